@@ -0,0 +1,554 @@
+package com.veyon.veyflow.config;
+
+import com.veyon.veyflow.state.InvalidationBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link WorkflowConfigRepository} that serves configs from a local cache in front of a shared
+ * repository such as {@link RedisWorkflowConfigRepository}, so a lookup normally costs neither a round
+ * trip nor a JSON parse.
+ * <p>
+ * All configs are preloaded when the cache is built, if the delegate supports
+ * {@link WorkflowConfigRepository#findAll()}. Entries, including the absence of a config, are served
+ * for at most {@code ttl} after they were loaded. Entries older than {@code refreshAfter} are reloaded
+ * ahead of that in the background: a periodic sweep reloads all of them with one
+ * {@link WorkflowConfigRepository#findAll(Collection)}, and a read of one schedules its reload while
+ * returning the cached config. A read therefore only waits for the delegate if the tenant is not
+ * cached or the delegate could not be reached for a whole {@code ttl}. Failed reloads keep the
+ * previous entry.
+ * <p>
+ * Changes made elsewhere arrive through an {@link InvalidationBus}: a
+ * {@link com.veyon.veyflow.state.RedisInvalidationBus} carries the writes of caches on other nodes, a
+ * {@link WorkflowConfigKeyspaceInvalidationBus} every write to Redis. An invalidated entry keeps being
+ * served until its reload, which starts immediately, completes.
+ * <p>
+ * Like {@link InMemoryWorkflowConfigRepository}, the cached instance itself is returned.
+ */
+public class CachingWorkflowConfigRepository implements WorkflowConfigRepository, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingWorkflowConfigRepository.class);
+    private static final int REFRESH_BATCH_SIZE = 500;
+
+    private final WorkflowConfigRepository delegate;
+    private final InvalidationBus invalidationBus;
+    private final long ttlNanos;
+    private final long refreshAfterNanos;
+    private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService refresher;
+
+    // Orders loads and invalidations, so a load that started before an invalidation is not cached
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<String, Long> invalidatedAt = new ConcurrentHashMap<>();
+    // Sequences of loads and writes that have not stored their result yet. Invalidations older than all
+    // of them cannot reject anything anymore and are pruned.
+    private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong remoteInvalidations = new AtomicLong();
+
+    private static final class Entry {
+        final WorkflowConfig config; // null if the tenant has no config
+        final long sequence;
+        final long loadedAt;
+
+        Entry(WorkflowConfig config, long sequence, long loadedAt) {
+            this.config = config;
+            this.sequence = sequence;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private CachingWorkflowConfigRepository(Builder builder) {
+        this.delegate = builder.delegate;
+        this.invalidationBus = builder.invalidationBus;
+        this.ttlNanos = builder.ttl.toNanos();
+        this.refreshAfterNanos = builder.refreshAfter.toNanos();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "veyflow-config-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (invalidationBus != null) {
+            invalidationBus.subscribe(this::onInvalidation);
+        }
+        if (builder.preload) {
+            preload();
+        }
+        long sweepNanos = builder.refreshInterval.toNanos();
+        refresher.scheduleWithFixedDelay(this::refreshDueQuietly, sweepNanos, sweepNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a new builder for a cache in front of {@code delegate}.
+     *
+     * @param delegate The shared repository
+     * @return A new builder
+     */
+    public static Builder builder(WorkflowConfigRepository delegate) {
+        return new Builder(delegate);
+    }
+
+    private void preload() {
+        long sequence = begin();
+        try {
+            Map<String, WorkflowConfig> all = delegate.findAll();
+            all.forEach((tenantId, config) -> store(tenantId, config, sequence));
+            log.info("Preloaded {} WorkflowConfigs", all.size());
+        } catch (UnsupportedOperationException e) {
+            log.debug("{} cannot enumerate configs; the cache fills on demand", delegate.getClass().getSimpleName());
+        } catch (Exception e) {
+            log.warn("Preloading WorkflowConfigs failed; the cache fills on demand: {}", e.getMessage());
+        } finally {
+            pending.remove(sequence);
+        }
+    }
+
+    /**
+     * Starts a load or write whose result is passed to {@link #store}; the caller must remove the
+     * returned sequence from {@code pending} once it has stored it or given up.
+     */
+    private long begin() {
+        synchronized (pending) {
+            long sequence = clock.incrementAndGet();
+            pending.add(sequence);
+            return sequence;
+        }
+    }
+
+    /**
+     * Drops the invalidations that no pending load or write started before. Later ones get a higher
+     * sequence than every invalidation dropped here.
+     */
+    private void pruneInvalidations() {
+        long oldestPending;
+        synchronized (pending) {
+            oldestPending = pending.isEmpty() ? clock.get() + 1 : pending.first();
+        }
+        invalidatedAt.values().removeIf(sequence -> sequence < oldestPending);
+    }
+
+    /**
+     * Caches the result of a load that started at {@code sequence}, unless the tenant was invalidated
+     * or stored by a later load since.
+     */
+    private void store(String tenantId, WorkflowConfig config, long sequence) {
+        cache.compute(tenantId, (key, existing) -> {
+            if (invalidatedAt.getOrDefault(key, 0L) > sequence || (existing != null && existing.sequence > sequence)) {
+                return existing;
+            }
+            return new Entry(config, sequence, System.nanoTime());
+        });
+    }
+
+    private void onInvalidation(String tenantId, long publishedAtMillis) {
+        invalidatedAt.put(tenantId, clock.incrementAndGet());
+        remoteInvalidations.incrementAndGet();
+        if (cache.containsKey(tenantId)) {
+            // Not deduplicated: a reload already running started before the invalidation and is discarded
+            submitRefresh(tenantId);
+        }
+    }
+
+    private void submitRefresh(String tenantId) {
+        try {
+            refresher.execute(() -> {
+                try {
+                    refresh(List.of(tenantId));
+                } finally {
+                    refreshing.remove(tenantId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(tenantId);
+        }
+    }
+
+    private void scheduleRefresh(String tenantId) {
+        if (refreshing.add(tenantId)) {
+            submitRefresh(tenantId);
+        }
+    }
+
+    /**
+     * Reloads the given tenants with one bulk read. On failure the cached entries are kept.
+     */
+    private void refresh(List<String> tenantIds) {
+        long sequence = begin();
+        try {
+            Map<String, WorkflowConfig> loaded;
+            try {
+                loaded = delegate.findAll(tenantIds);
+            } catch (Exception e) {
+                refreshFailures.incrementAndGet();
+                log.warn("Refreshing {} WorkflowConfigs failed; serving cached ones: {}", tenantIds.size(), e.getMessage());
+                return;
+            }
+            for (String tenantId : tenantIds) {
+                store(tenantId, loaded.get(tenantId), sequence);
+            }
+            refreshes.addAndGet(tenantIds.size());
+        } finally {
+            pending.remove(sequence);
+        }
+    }
+
+    /**
+     * Reloads every cached config older than {@code refreshAfter}, drops cached absences older than
+     * {@code ttl} and prunes invalidations. Runs periodically in the background.
+     */
+    private void refreshDue() {
+        pruneInvalidations();
+        long now = System.nanoTime();
+        List<String> due = new ArrayList<>();
+        for (Map.Entry<String, Entry> cached : cache.entrySet()) {
+            Entry entry = cached.getValue();
+            long age = now - entry.loadedAt;
+            if (entry.config == null) {
+                if (age >= ttlNanos) {
+                    cache.remove(cached.getKey(), entry);
+                }
+            } else if (age >= refreshAfterNanos && refreshing.add(cached.getKey())) {
+                due.add(cached.getKey());
+            }
+        }
+        try {
+            for (int i = 0; i < due.size(); i += REFRESH_BATCH_SIZE) {
+                refresh(due.subList(i, Math.min(i + REFRESH_BATCH_SIZE, due.size())));
+            }
+        } finally {
+            refreshing.removeAll(due);
+        }
+    }
+
+    private void refreshDueQuietly() {
+        try {
+            refreshDue();
+        } catch (Exception e) {
+            log.error("Refreshing WorkflowConfigs failed; will retry on the next sweep.", e);
+        }
+    }
+
+    /**
+     * @return The cached entry if it is younger than {@code ttl}, scheduling its reload if it is older
+     *         than {@code refreshAfter}; null otherwise.
+     */
+    private Entry getCached(String tenantId) {
+        Entry entry = cache.get(tenantId);
+        if (entry == null) {
+            return null;
+        }
+        long age = System.nanoTime() - entry.loadedAt;
+        if (age >= ttlNanos) {
+            expirations.incrementAndGet();
+            return null;
+        }
+        if (age >= refreshAfterNanos) {
+            scheduleRefresh(tenantId);
+        }
+        return entry;
+    }
+
+    private void announce(String tenantId) {
+        if (invalidationBus != null) {
+            invalidationBus.publish(tenantId);
+        }
+    }
+
+    @Override
+    public void save(WorkflowConfig config) {
+        delegate.save(config);
+        long sequence = begin();
+        try {
+            store(config.getTenantId(), config, sequence);
+        } finally {
+            pending.remove(sequence);
+        }
+        announce(config.getTenantId());
+    }
+
+    @Override
+    public Optional<WorkflowConfig> findById(String tenantId) {
+        if (tenantId == null) {
+            return Optional.empty();
+        }
+        Entry cached = getCached(tenantId);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return Optional.ofNullable(cached.config);
+        }
+        misses.incrementAndGet();
+        long sequence = begin();
+        try {
+            Optional<WorkflowConfig> loaded = delegate.findById(tenantId);
+            store(tenantId, loaded.orElse(null), sequence);
+            return loaded;
+        } finally {
+            pending.remove(sequence);
+        }
+    }
+
+    @Override
+    public Map<String, WorkflowConfig> findAll(Collection<String> tenantIds) {
+        Map<String, WorkflowConfig> found = new LinkedHashMap<>();
+        List<String> remote = new ArrayList<>();
+        for (String tenantId : tenantIds) {
+            Entry cached = (tenantId != null) ? getCached(tenantId) : null;
+            if (cached != null) {
+                hits.incrementAndGet();
+            } else if (tenantId != null) {
+                misses.incrementAndGet();
+                remote.add(tenantId);
+            }
+            found.put(tenantId, (cached != null) ? cached.config : null); // keep request order
+        }
+        if (!remote.isEmpty()) {
+            long sequence = begin();
+            try {
+                Map<String, WorkflowConfig> loaded = delegate.findAll(remote);
+                for (String tenantId : remote) {
+                    store(tenantId, loaded.get(tenantId), sequence);
+                }
+                found.putAll(loaded);
+            } finally {
+                pending.remove(sequence);
+            }
+        }
+        found.values().removeIf(config -> config == null);
+        return found;
+    }
+
+    /**
+     * Loads every config from the delegate and caches the result.
+     */
+    @Override
+    public Map<String, WorkflowConfig> findAll() {
+        long sequence = begin();
+        try {
+            Map<String, WorkflowConfig> all = delegate.findAll();
+            all.forEach((tenantId, config) -> store(tenantId, config, sequence));
+            return all;
+        } finally {
+            pending.remove(sequence);
+        }
+    }
+
+    @Override
+    public boolean delete(String tenantId) {
+        boolean deleted = delegate.delete(tenantId);
+        if (tenantId != null) {
+            long sequence = begin();
+            try {
+                store(tenantId, null, sequence);
+            } finally {
+                pending.remove(sequence);
+            }
+            announce(tenantId);
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean exists(String tenantId) {
+        Entry cached = (tenantId != null) ? getCached(tenantId) : null;
+        if (cached != null) {
+            return cached.config != null;
+        }
+        return delegate.exists(tenantId);
+    }
+
+    /**
+     * Drops every cached entry on this node only.
+     */
+    public void invalidateAll() {
+        long sequence = clock.incrementAndGet();
+        cache.keySet().forEach(tenantId -> invalidatedAt.put(tenantId, sequence));
+        cache.clear();
+    }
+
+    /**
+     * Stops the background refresh and closes the invalidation bus, if any. The delegate is left open.
+     */
+    @Override
+    public void close() {
+        refresher.shutdown();
+        try {
+            refresher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (invalidationBus != null) {
+            try {
+                invalidationBus.close();
+            } catch (Exception e) {
+                log.warn("Failed to close invalidation bus: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return Number of cached entries, including cached absences.
+     */
+    public int getSize() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Fraction of lookups served locally, or 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * @return Number of configs reloaded in the background.
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    public long getRefreshFailures() {
+        return refreshFailures.get();
+    }
+
+    /**
+     * @return Lookups that found an entry older than {@code ttl} and had to wait for the delegate.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getRemoteInvalidations() {
+        return remoteInvalidations.get();
+    }
+
+    /**
+     * @return Number of invalidations remembered to reject loads that started before them.
+     */
+    public int getRememberedInvalidations() {
+        return invalidatedAt.size();
+    }
+
+    /**
+     * Builder for {@link CachingWorkflowConfigRepository}.
+     */
+    public static class Builder {
+        private final WorkflowConfigRepository delegate;
+        private InvalidationBus invalidationBus;
+        private Duration ttl = Duration.ofMinutes(10);
+        private Duration refreshAfter = Duration.ofMinutes(5);
+        private Duration refreshInterval = Duration.ofSeconds(30);
+        private boolean preload = true;
+
+        private Builder(WorkflowConfigRepository delegate) {
+            if (delegate == null) {
+                throw new IllegalArgumentException("delegate must not be null");
+            }
+            this.delegate = delegate;
+        }
+
+        /**
+         * Sets the bus that announces config changes. Without one, changes made elsewhere are only
+         * picked up by the age-based refresh.
+         *
+         * @param invalidationBus The invalidation bus
+         * @return This builder for chaining
+         */
+        public Builder invalidationBus(InvalidationBus invalidationBus) {
+            this.invalidationBus = invalidationBus;
+            return this;
+        }
+
+        /**
+         * Sets how long an entry may be served after it was loaded, as a bound on staleness when
+         * invalidations and refreshes fail.
+         *
+         * @param ttl Maximum entry age
+         * @return This builder for chaining
+         */
+        public Builder ttl(Duration ttl) {
+            if (ttl == null || ttl.isNegative() || ttl.isZero()) {
+                throw new IllegalArgumentException("ttl must be positive");
+            }
+            this.ttl = ttl;
+            return this;
+        }
+
+        /**
+         * Sets the age after which an entry is reloaded in the background. Must be shorter than {@code ttl}.
+         *
+         * @param refreshAfter Entry age that triggers a reload
+         * @return This builder for chaining
+         */
+        public Builder refreshAfter(Duration refreshAfter) {
+            if (refreshAfter == null || refreshAfter.isNegative() || refreshAfter.isZero()) {
+                throw new IllegalArgumentException("refreshAfter must be positive");
+            }
+            this.refreshAfter = refreshAfter;
+            return this;
+        }
+
+        /**
+         * Sets how often entries due for a reload are looked for.
+         *
+         * @param refreshInterval Interval between sweeps
+         * @return This builder for chaining
+         */
+        public Builder refreshInterval(Duration refreshInterval) {
+            if (refreshInterval == null || refreshInterval.isNegative() || refreshInterval.isZero()) {
+                throw new IllegalArgumentException("refreshInterval must be positive");
+            }
+            this.refreshInterval = refreshInterval;
+            return this;
+        }
+
+        /**
+         * Sets whether all configs are loaded when the cache is built.
+         *
+         * @param preload true to preload
+         * @return This builder for chaining
+         */
+        public Builder preload(boolean preload) {
+            this.preload = preload;
+            return this;
+        }
+
+        public CachingWorkflowConfigRepository build() {
+            if (refreshAfter.compareTo(ttl) >= 0) {
+                throw new IllegalArgumentException("refreshAfter must be shorter than ttl");
+            }
+            return new CachingWorkflowConfigRepository(this);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.veyon.veyflow.config;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
@@ -44,6 +45,11 @@ public class InMemoryWorkflowConfigRepository implements WorkflowConfigRepositor
         return store.containsKey(tenantId);
     }
     
+    @Override
+    public Map<String, WorkflowConfig> findAll() {
+        return new HashMap<>(store);
+    }
+
     /**
      * Clears all entries from the store. Useful for testing.
      */
@@ -2,34 +2,137 @@ package com.veyon.veyflow.config;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.RedisKeyLayout;
+import com.veyon.veyflow.state.StateCodec;
+import com.veyon.veyflow.state.StateRetentionPolicy;
+import io.lettuce.core.GetExArgs;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanIterator;
+import io.lettuce.core.api.StatefulConnection;
 import io.lettuce.core.api.StatefulRedisConnection;
-import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.cluster.api.sync.RedisClusterCommands;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Redis-based implementation of {@link WorkflowConfigRepository}.
+ * <p>
+ * Works on a standalone connection or a Redis Cluster connection. With
+ * {@link RedisKeyLayout#TENANT_HASH_TAG} the configuration key of a tenant shares the cluster slot of
+ * its agent states. Configurations expire according to the {@link StateRetentionPolicy}, 10 minutes after the
+ * last save by default, and are compressed by the {@link StateCodec} set with {@link #withCodec(StateCodec)}.
+ * <p>
+ * {@link #findAll()} walks the keyspace with {@code SCAN} and loads each batch of keys with an
+ * {@code MGET} that is pipelined with the following {@code SCAN} calls.
  */
 public class RedisWorkflowConfigRepository implements WorkflowConfigRepository {
 
     private static final Logger log = LoggerFactory.getLogger(RedisWorkflowConfigRepository.class);
-    private static final String KEY_PREFIX = "veyflow:workflow_config:";
-    private static final long TTL_SECONDS = 600; 
-    private final StatefulRedisConnection<String, String> connection;
+    static final String KEY_PREFIX = "veyflow:workflow_config:";
+    private static final int SCAN_BATCH_SIZE = 500;
+    private final StatefulConnection<String, String> connection;
+    private final RedisClusterCommands<String, String> commands;
+    private final RedisClusterAsyncCommands<String, String> asyncCommands;
+    private final RedisKeyLayout keyLayout;
     private final Gson gson;
+    private volatile StateRetentionPolicy retentionPolicy = StateRetentionPolicy.defaults();
+    private volatile StateCodec codec = StateCodec.uncompressed();
 
     public RedisWorkflowConfigRepository(StatefulRedisConnection<String, String> connection) {
+        this(connection, RedisKeyLayout.LEGACY);
+    }
+
+    /**
+     * @param connection A standalone connection
+     * @param keyLayout How tenants are embedded in keys
+     */
+    public RedisWorkflowConfigRepository(StatefulRedisConnection<String, String> connection, RedisKeyLayout keyLayout) {
+        this(connection, connection.sync(), connection.async(), keyLayout);
+    }
+
+    /**
+     * Creates a repository on a Redis Cluster connection with the {@link RedisKeyLayout#TENANT_HASH_TAG} layout.
+     *
+     * @param connection A cluster connection
+     */
+    public RedisWorkflowConfigRepository(StatefulRedisClusterConnection<String, String> connection) {
+        this(connection, connection.sync(), connection.async(), RedisKeyLayout.TENANT_HASH_TAG);
+    }
+
+    private RedisWorkflowConfigRepository(StatefulConnection<String, String> connection,
+                                          RedisClusterCommands<String, String> commands,
+                                          RedisClusterAsyncCommands<String, String> asyncCommands,
+                                          RedisKeyLayout keyLayout) {
+        if (keyLayout == null) {
+            throw new IllegalArgumentException("keyLayout must not be null");
+        }
         this.connection = connection;
+        this.commands = commands;
+        this.asyncCommands = asyncCommands;
+        this.keyLayout = keyLayout;
         this.gson = new GsonBuilder()
                 // Potentially register adapters if WorkflowConfig has complex types like ZonedDateTime
                 // .registerTypeAdapter(ZonedDateTime.class, new ZonedDateTimeAdapter()) 
                 .create();
     }
 
+    /**
+     * Sets how long configurations are kept and whether reads renew their TTL.
+     *
+     * @param retentionPolicy The retention policy
+     * @return This repository for chaining
+     */
+    public RedisWorkflowConfigRepository withRetentionPolicy(StateRetentionPolicy retentionPolicy) {
+        if (retentionPolicy == null) {
+            throw new IllegalArgumentException("retentionPolicy must not be null");
+        }
+        this.retentionPolicy = retentionPolicy;
+        return this;
+    }
+
+    /**
+     * Sets the codec that compresses stored configurations.
+     *
+     * @param codec The codec; its level for {@link PersistenceMode#REDIS} is used
+     * @return This repository for chaining
+     */
+    public RedisWorkflowConfigRepository withCodec(StateCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * @return The codec in use, which also exposes the compression ratio.
+     */
+    public StateCodec getCodec() {
+        return codec;
+    }
+
     private String getKey(String tenantId) {
-        return KEY_PREFIX + tenantId;
+        return KEY_PREFIX + keyLayout.tenantSegment(tenantId);
+    }
+
+    private WorkflowConfig decode(String payload) {
+        return gson.fromJson(codec.decode(payload), WorkflowConfig.class);
     }
 
     @Override
@@ -37,11 +140,10 @@ public class RedisWorkflowConfigRepository implements WorkflowConfigRepository {
         if (config == null || config.getTenantId() == null) {
             throw new IllegalArgumentException("WorkflowConfig and its tenantId must not be null");
         }
-        RedisCommands<String, String> commands = connection.sync();
         String key = getKey(config.getTenantId());
-        String json = gson.toJson(config);
+        String json = codec.encode(gson.toJson(config), PersistenceMode.REDIS);
         try {
-            commands.setex(key, TTL_SECONDS, json);
+            commands.setex(key, retentionPolicy.ttlSecondsFor(config.getTenantId()), json);
             log.debug("Saved WorkflowConfig for key: {}", key);
         } catch (Exception e) {
             log.error("Error saving WorkflowConfig to Redis for key {}: {}", key, e.getMessage(), e);
@@ -54,15 +156,17 @@ public class RedisWorkflowConfigRepository implements WorkflowConfigRepository {
         if (tenantId == null) {
             return Optional.empty();
         }
-        RedisCommands<String, String> commands = connection.sync();
         String key = getKey(tenantId);
         try {
-            String json = commands.get(key);
+            StateRetentionPolicy policy = retentionPolicy;
+            String json = policy.isSlidingExpiration()
+                    ? commands.getex(key, GetExArgs.Builder.ex(policy.ttlSecondsFor(tenantId)))
+                    : commands.get(key);
             if (json == null || json.isEmpty()) {
                 log.debug("WorkflowConfig not found in Redis for key: {}", key);
                 return Optional.empty();
             }
-            WorkflowConfig config = gson.fromJson(json, WorkflowConfig.class);
+            WorkflowConfig config = decode(json);
             log.debug("Found WorkflowConfig in Redis for key: {}", key);
             return Optional.of(config);
         } catch (Exception e) {
@@ -76,7 +180,6 @@ public class RedisWorkflowConfigRepository implements WorkflowConfigRepository {
         if (tenantId == null) {
             return false;
         }
-        RedisCommands<String, String> commands = connection.sync();
         String key = getKey(tenantId);
         try {
             Long result = commands.del(key);
@@ -98,7 +201,6 @@ public class RedisWorkflowConfigRepository implements WorkflowConfigRepository {
         if (tenantId == null) {
             return false;
         }
-        RedisCommands<String, String> commands = connection.sync();
         String key = getKey(tenantId);
         try {
             Long result = commands.exists(key);
@@ -110,4 +212,90 @@ public class RedisWorkflowConfigRepository implements WorkflowConfigRepository {
             return false; // Or re-throw
         }
     }
+
+    /**
+     * Loads all requested configs with a single {@code MGET}, or with one pipeline of {@code GETEX}
+     * commands under sliding expiration so every read config gets its TTL renewed. On a cluster,
+     * Lettuce splits the {@code MGET} per slot.
+     */
+    @Override
+    public Map<String, WorkflowConfig> findAll(Collection<String> tenantIds) {
+        Map<String, WorkflowConfig> found = new LinkedHashMap<>();
+        Map<String, String> tenantIdsByKey = new LinkedHashMap<>();
+        for (String tenantId : tenantIds) {
+            if (tenantId != null) {
+                tenantIdsByKey.put(getKey(tenantId), tenantId);
+            }
+        }
+        if (tenantIdsByKey.isEmpty()) {
+            return found;
+        }
+        StateRetentionPolicy policy = retentionPolicy;
+        if (policy.isSlidingExpiration()) {
+            Map<String, RedisFuture<String>> replies = new LinkedHashMap<>();
+            tenantIdsByKey.forEach((key, tenantId) ->
+                    replies.put(tenantId, asyncCommands.getex(key, GetExArgs.Builder.ex(policy.ttlSecondsFor(tenantId)))));
+            awaitAll(new ArrayList<>(replies.values()));
+            replies.forEach((tenantId, reply) -> {
+                String json = reply.toCompletableFuture().join();
+                if (json != null && !json.isEmpty()) {
+                    found.put(tenantId, decode(json));
+                }
+            });
+            return found;
+        }
+        for (KeyValue<String, String> value : commands.mget(tenantIdsByKey.keySet().toArray(new String[0]))) {
+            if (value.hasValue() && !value.getValue().isEmpty()) {
+                found.put(tenantIdsByKey.get(value.getKey()), decode(value.getValue()));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Loads every config with a cursor-based {@code SCAN MATCH} over the config keys. Each batch of 500
+     * keys is requested with an asynchronous {@code MGET} while the scan continues, so the whole load
+     * takes roughly one round trip per {@code SCAN} call. Reads do not renew TTLs.
+     */
+    @Override
+    public Map<String, WorkflowConfig> findAll() {
+        Iterator<String> keys = ScanIterator.scan(commands, ScanArgs.Builder.matches(KEY_PREFIX + "*").limit(SCAN_BATCH_SIZE));
+        List<RedisFuture<List<KeyValue<String, String>>>> replies = new ArrayList<>();
+        List<String> batch = new ArrayList<>(SCAN_BATCH_SIZE);
+        while (keys.hasNext()) {
+            batch.add(keys.next());
+            if (batch.size() == SCAN_BATCH_SIZE || !keys.hasNext()) {
+                replies.add(asyncCommands.mget(batch.toArray(new String[0])));
+                batch.clear();
+            }
+        }
+        awaitAll(replies);
+        Map<String, WorkflowConfig> found = new HashMap<>();
+        for (RedisFuture<List<KeyValue<String, String>>> reply : replies) {
+            for (KeyValue<String, String> value : reply.toCompletableFuture().join()) {
+                if (value.hasValue() && !value.getValue().isEmpty()) {
+                    try {
+                        WorkflowConfig config = decode(value.getValue());
+                        if (config.getTenantId() != null) {
+                            found.put(config.getTenantId(), config);
+                        }
+                    } catch (Exception e) {
+                        log.warn("Skipping unreadable WorkflowConfig at key {}: {}", value.getKey(), e.getMessage());
+                    }
+                }
+            }
+        }
+        log.debug("Loaded {} WorkflowConfigs from Redis", found.size());
+        return found;
+    }
+
+    private void awaitAll(List<? extends RedisFuture<?>> replies) {
+        if (replies.isEmpty()) {
+            return;
+        }
+        long timeoutMillis = connection.getTimeout().toMillis();
+        if (!LettuceFutures.awaitAll(timeoutMillis, TimeUnit.MILLISECONDS, replies.toArray(new RedisFuture[0]))) {
+            throw new IllegalStateException("Timed out after " + timeoutMillis + " ms waiting for " + replies.size() + " pipelined Redis replies");
+        }
+    }
 }
@@ -0,0 +1,203 @@
+package com.veyon.veyflow.config;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable, compiled form of {@link WorkflowConfig#getConfiguredToolServices()} for fast
+ * "is this tool method active" checks.
+ * <p>
+ * Service names are interned and every method name of a service gets a bit number shared by all
+ * indexes, so an index holds one bitset per service plus a wildcard flag, and a check is a map
+ * lookup and a bit test. Indexes are flyweights: {@link #of(Map)} returns the same instance for
+ * equal activations as long as one is in use, so tenants sharing a tool set share one index. Each
+ * distinct index gets a {@link #getVersion() version} that is unique within the JVM and can key
+ * data derived from the activations.
+ */
+public final class ToolActivationIndex {
+
+    private static final String WILDCARD = "*";
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private static final Map<String, MethodCatalog> CATALOGS = new ConcurrentHashMap<>();
+    // Canonical form -> index; entries go away once no WorkflowConfig references the index
+    private static final Map<String, WeakReference<ToolActivationIndex>> INTERNED = new WeakHashMap<>();
+
+    /**
+     * The index with no active services.
+     */
+    public static final ToolActivationIndex EMPTY = new ToolActivationIndex("", Collections.emptyMap());
+
+    private final String canonical;
+    private final Map<String, ServiceActivation> services;
+    private final Set<String> serviceNames;
+    private final long version;
+
+    /**
+     * Method name -> bit number for one service, shared by all indexes.
+     */
+    private static final class MethodCatalog {
+        final String serviceName;
+        private final Map<String, Integer> bits = new ConcurrentHashMap<>();
+        private final AtomicInteger nextBit = new AtomicInteger();
+
+        MethodCatalog(String serviceName) {
+            this.serviceName = serviceName;
+        }
+
+        int bitOf(String methodName) {
+            return bits.computeIfAbsent(methodName, name -> nextBit.getAndIncrement());
+        }
+
+        int lookup(String methodName) {
+            Integer bit = bits.get(methodName);
+            return (bit == null) ? -1 : bit;
+        }
+    }
+
+    private static final class ServiceActivation {
+        final MethodCatalog catalog;
+        final boolean wildcard;
+        final long[] methods;
+
+        ServiceActivation(MethodCatalog catalog, boolean wildcard, long[] methods) {
+            this.catalog = catalog;
+            this.wildcard = wildcard;
+            this.methods = methods;
+        }
+
+        boolean isActive(String methodName) {
+            if (wildcard) {
+                return true;
+            }
+            int bit = catalog.lookup(methodName);
+            return bit >= 0 && (bit >> 6) < methods.length && (methods[bit >> 6] & (1L << bit)) != 0;
+        }
+    }
+
+    private ToolActivationIndex(String canonical, Map<String, ServiceActivation> services) {
+        this.canonical = canonical;
+        this.services = services;
+        this.serviceNames = Collections.unmodifiableSet(services.keySet());
+        this.version = VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Compiles the activations of a {@link WorkflowConfig}, returning the shared instance if equal
+     * activations are already compiled. The order of services and methods does not matter.
+     *
+     * @param configuredToolServices Service class name -> active method names, where {@code "*"} activates all methods
+     * @return The index for the activations
+     */
+    public static ToolActivationIndex of(Map<String, List<String>> configuredToolServices) {
+        if (configuredToolServices == null || configuredToolServices.isEmpty()) {
+            return EMPTY;
+        }
+        // Canonical form: sorted services, each with its sorted methods or the wildcard alone
+        TreeMap<String, TreeSet<String>> sorted = new TreeMap<>();
+        for (Map.Entry<String, List<String>> service : configuredToolServices.entrySet()) {
+            if (service.getKey() == null) {
+                continue;
+            }
+            TreeSet<String> methods = new TreeSet<>();
+            if (service.getValue() != null) {
+                for (String method : service.getValue()) {
+                    if (method != null) {
+                        methods.add(method);
+                    }
+                }
+            }
+            if (methods.contains(WILDCARD)) {
+                methods.retainAll(Set.of(WILDCARD));
+            }
+            sorted.put(service.getKey(), methods);
+        }
+        StringBuilder canonical = new StringBuilder();
+        sorted.forEach((service, methods) -> {
+            canonical.append(service).append('\n');
+            methods.forEach(method -> canonical.append('\t').append(method).append('\n'));
+        });
+        String key = canonical.toString();
+
+        synchronized (INTERNED) {
+            WeakReference<ToolActivationIndex> existing = INTERNED.get(key);
+            ToolActivationIndex index = (existing != null) ? existing.get() : null;
+            if (index == null) {
+                index = compile(key, sorted);
+                INTERNED.put(index.canonical, new WeakReference<>(index));
+            }
+            return index;
+        }
+    }
+
+    private static ToolActivationIndex compile(String canonical, TreeMap<String, TreeSet<String>> sorted) {
+        Map<String, ServiceActivation> services = new HashMap<>();
+        sorted.forEach((service, methods) -> {
+            MethodCatalog catalog = CATALOGS.computeIfAbsent(service, MethodCatalog::new);
+            boolean wildcard = methods.contains(WILDCARD);
+            long[] bits = new long[0];
+            if (!wildcard) {
+                for (String method : methods) {
+                    int bit = catalog.bitOf(method);
+                    if ((bit >> 6) >= bits.length) {
+                        bits = Arrays.copyOf(bits, (bit >> 6) + 1);
+                    }
+                    bits[bit >> 6] |= 1L << bit;
+                }
+            }
+            services.put(catalog.serviceName, new ServiceActivation(catalog, wildcard, bits));
+        });
+        return new ToolActivationIndex(canonical, services);
+    }
+
+    /**
+     * @param serviceClassName The fully qualified class name of the ToolService
+     * @param methodName The name of the method
+     * @return {@code true} if the method is active
+     */
+    public boolean isActive(String serviceClassName, String methodName) {
+        if (serviceClassName == null || methodName == null) {
+            return false;
+        }
+        ServiceActivation service = services.get(serviceClassName);
+        return service != null && service.isActive(methodName);
+    }
+
+    /**
+     * @param serviceClassName The fully qualified class name of the ToolService
+     * @return {@code true} if the service is configured, even with no active methods
+     */
+    public boolean isServiceConfigured(String serviceClassName) {
+        return serviceClassName != null && services.containsKey(serviceClassName);
+    }
+
+    /**
+     * @return The configured service class names.
+     */
+    public Set<String> getServiceNames() {
+        return serviceNames;
+    }
+
+    /**
+     * @return A number identifying these activations, unique among indexes created in this JVM. Equal
+     *         activations share a version while their index is in use.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "ToolActivationIndex{version=" + version + ", services=" + serviceNames + "}";
+    }
+}
@@ -30,6 +30,8 @@ public class WorkflowConfig {
 
     private transient WorkflowConfigRepository repository;
     private transient boolean isDirty = false;
+    // Compiled from configuredToolServices on first use, reset whenever the activations change
+    private transient volatile ToolActivationIndex toolActivationIndex;
 
     /**
      * Default constructor initializing an empty configuration.
@@ -88,8 +90,8 @@ public class WorkflowConfig {
             return;
         }
 
-        if (persistenceMode == PersistenceMode.REDIS && (tenantId == null || tenantId.isBlank())) {
-            throw new IllegalStateException("Cannot save to REDIS without a valid tenantId.");
+        if (tenantId == null || tenantId.isBlank()) {
+            throw new IllegalStateException("Cannot save to " + persistenceMode + " without a valid tenantId.");
         }
 
         if (isDirty) {
@@ -130,15 +132,33 @@ public class WorkflowConfig {
         }
     }
 
+    /**
+     * @return A read-only copy of the activated methods per tool service; neither the map nor its lists
+     *         can be modified, so the compiled {@link ToolActivationIndex} cannot go stale. Change
+     *         activations through {@link #activateToolMethods(String, List)},
+     *         {@link #activateAllToolMethodsForService(String)} or {@link #setConfiguredToolServices(Map)}.
+     */
     public Map<String, List<String>> getConfiguredToolServices() {
-        return configuredToolServices;
+        if (configuredToolServices == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, List<String>> copy = new HashMap<>();
+        configuredToolServices.forEach((service, methods) ->
+                copy.put(service, (methods != null) ? Collections.unmodifiableList(new ArrayList<>(methods)) : null));
+        return Collections.unmodifiableMap(copy);
     }
 
     public void setConfiguredToolServices(Map<String, List<String>> configuredToolServices) {
         // Typically for deserialization, consider if this should always mark dirty
         // For now, let's assume if it's different, it's dirty.
         if (this.configuredToolServices == null || !this.configuredToolServices.equals(configuredToolServices)) {
-            this.configuredToolServices = configuredToolServices;
+            // The lists are copied too, so the caller cannot change activations behind the index
+            this.configuredToolServices = new HashMap<>();
+            if (configuredToolServices != null) {
+                configuredToolServices.forEach((service, methods) ->
+                        this.configuredToolServices.put(service, (methods != null) ? new ArrayList<>(methods) : new ArrayList<>()));
+            }
+            this.toolActivationIndex = null;
             this.isDirty = true; 
         }
     }
@@ -159,6 +179,7 @@ public class WorkflowConfig {
             // or pass an empty list explicitly if that's the desired semantic.
             // For now, let's assume activating with no methods means no methods are active.
             this.configuredToolServices.put(serviceClassName, new ArrayList<>());
+            this.toolActivationIndex = null;
             this.isDirty = true;
             return;
         }
@@ -167,6 +188,7 @@ public class WorkflowConfig {
 
         if (!currentMethods.equals(newMethods)) {
             this.configuredToolServices.put(serviceClassName, newMethods);
+            this.toolActivationIndex = null;
             this.isDirty = true;
         }
     }
@@ -186,6 +208,7 @@ public class WorkflowConfig {
         
         if (!currentMethods.equals(newMethods) || currentMethods.size() != 1) { // check if it's already '*' or needs update
             this.configuredToolServices.put(serviceClassName, newMethods);
+            this.toolActivationIndex = null;
             this.isDirty = true;
         }
     }
@@ -198,14 +221,22 @@ public class WorkflowConfig {
      * @return {@code true} if the method is active, {@code false} otherwise.
      */
     public boolean isToolMethodActive(String serviceClassName, String methodName) {
-        if (serviceClassName == null || methodName == null) {
-            return false;
-        }
-        List<String> activeMethods = this.configuredToolServices.get(serviceClassName);
-        if (activeMethods == null) {
-            return false; // Service not configured, thus method is not active.
+        return getToolActivationIndex().isActive(serviceClassName, methodName);
+    }
+
+    /**
+     * Gets the compiled form of the tool activations, shared with every other configuration that
+     * activates the same methods. Callers checking many methods should fetch it once.
+     *
+     * @return The activation index, never null.
+     */
+    public ToolActivationIndex getToolActivationIndex() {
+        ToolActivationIndex index = this.toolActivationIndex;
+        if (index == null) {
+            index = ToolActivationIndex.of(configuredToolServices);
+            this.toolActivationIndex = index;
         }
-        return activeMethods.contains("*") || activeMethods.contains(methodName);
+        return index;
     }
 
     /**
@@ -215,7 +246,7 @@ public class WorkflowConfig {
      * @return {@code true} if the service is configured, {@code false} otherwise.
      */
     public boolean isToolServiceConfigured(String serviceClassName) {
-        return this.configuredToolServices.containsKey(serviceClassName);
+        return getToolActivationIndex().isServiceConfigured(serviceClassName);
     }
 
     /**
@@ -225,6 +256,6 @@ public class WorkflowConfig {
      * @return A set of active tool service class names. Returns an empty set if none are configured.
      */
     public Set<String> getActiveServiceClassNames() {
-        return Collections.unmodifiableSet(this.configuredToolServices.keySet());
+        return getToolActivationIndex().getServiceNames();
     }
 }
@@ -0,0 +1,143 @@
+package com.veyon.veyflow.config;
+
+import com.veyon.veyflow.state.InvalidationBus;
+import com.veyon.veyflow.state.RedisKeyLayout;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.cluster.pubsub.RedisClusterPubSubAdapter;
+import io.lettuce.core.cluster.pubsub.StatefulRedisClusterPubSubConnection;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link InvalidationBus} fed by Redis keyspace notifications on the keys of
+ * {@link RedisWorkflowConfigRepository}, so a cache learns about every change to a config, including
+ * writes by processes that do not publish invalidations and expirations. The keys passed to listeners
+ * are tenant IDs.
+ * <p>
+ * Redis must have keyspace notifications enabled for generic, string and expiry events, e.g.
+ * {@code notify-keyspace-events Kg$x}; a warning is logged at startup if they appear to be off.
+ * {@link #publish(String)} does nothing, since Redis announces writes itself. Unlike
+ * {@link com.veyon.veyflow.state.RedisInvalidationBus}, this node's own writes are reported too.
+ * Notifications are at-most-once, so caches fed by this bus should still bound entry age.
+ */
+public class WorkflowConfigKeyspaceInvalidationBus implements InvalidationBus {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkflowConfigKeyspaceInvalidationBus.class);
+    private static final String PATTERN = "__keyspace@*__:" + RedisWorkflowConfigRepository.KEY_PREFIX + "*";
+    // "expire" is left out: GETEX under sliding expiration renews TTLs on every read
+    private static final Set<String> CHANGE_EVENTS = Set.of("set", "del", "expired", "evicted", "rename_from", "rename_to", "restore");
+
+    private final RedisKeyLayout keyLayout;
+    private final StatefulRedisPubSubConnection<String, String> connection;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Subscribes on a standalone Redis. The connection is opened immediately and closed by
+     * {@link #close()}; the client itself is not shut down.
+     *
+     * @param redisClient The client used to open the subscribe connection
+     * @param keyLayout The key layout of the config repository
+     */
+    public WorkflowConfigKeyspaceInvalidationBus(RedisClient redisClient, RedisKeyLayout keyLayout) {
+        this.keyLayout = requireLayout(keyLayout);
+        this.connection = redisClient.connectPubSub();
+        warnIfNotificationsDisabled();
+        connection.addListener(new RedisPubSubAdapter<>() {
+            @Override
+            public void message(String pattern, String channel, String message) {
+                dispatch(channel, message);
+            }
+        });
+        connection.sync().psubscribe(PATTERN);
+        log.debug("Subscribed to WorkflowConfig keyspace notifications");
+    }
+
+    /**
+     * Subscribes on every master of a Redis Cluster, since keyspace notifications are only published
+     * by the node that owns the key.
+     *
+     * @param clusterClient The client used to open the subscribe connection
+     * @param keyLayout The key layout of the config repository
+     */
+    public WorkflowConfigKeyspaceInvalidationBus(RedisClusterClient clusterClient, RedisKeyLayout keyLayout) {
+        this.keyLayout = requireLayout(keyLayout);
+        StatefulRedisClusterPubSubConnection<String, String> cluster = clusterClient.connectPubSub();
+        this.connection = cluster;
+        cluster.setNodeMessagePropagation(true);
+        cluster.addListener(new RedisClusterPubSubAdapter<>() {
+            @Override
+            public void message(RedisClusterNode node, String pattern, String channel, String message) {
+                dispatch(channel, message);
+            }
+        });
+        cluster.sync().upstream().commands().psubscribe(PATTERN);
+        log.debug("Subscribed to WorkflowConfig keyspace notifications on all cluster masters");
+    }
+
+    private static RedisKeyLayout requireLayout(RedisKeyLayout keyLayout) {
+        if (keyLayout == null) {
+            throw new IllegalArgumentException("keyLayout must not be null");
+        }
+        return keyLayout;
+    }
+
+    private void warnIfNotificationsDisabled() {
+        try {
+            Map<String, String> config = connection.sync().configGet("notify-keyspace-events");
+            String flags = (config == null) ? null : config.get("notify-keyspace-events");
+            if (flags != null && !(flags.contains("K") && (flags.contains("A") || (flags.contains("g") && flags.contains("$"))))) {
+                log.warn("Redis keyspace notifications are off (notify-keyspace-events='{}'); "
+                        + "WorkflowConfig caches will only be refreshed by age", flags);
+            }
+        } catch (Exception e) {
+            // CONFIG is often disabled on managed Redis
+            log.debug("Could not read notify-keyspace-events: {}", e.getMessage());
+        }
+    }
+
+    private void dispatch(String channel, String event) {
+        if (!CHANGE_EVENTS.contains(event)) {
+            return;
+        }
+        int prefix = channel.indexOf(RedisWorkflowConfigRepository.KEY_PREFIX);
+        if (prefix < 0) {
+            return;
+        }
+        String tenantId = keyLayout.tenantFromSegment(
+                channel.substring(prefix + RedisWorkflowConfigRepository.KEY_PREFIX.length()));
+        long now = System.currentTimeMillis();
+        for (Listener listener : listeners) {
+            try {
+                listener.onInvalidate(tenantId, now);
+            } catch (Exception e) {
+                log.error("Invalidation listener failed for tenant {}", tenantId, e);
+            }
+        }
+    }
+
+    /**
+     * Does nothing: Redis publishes a notification for every write to a config key.
+     */
+    @Override
+    public void publish(String key) {
+    }
+
+    @Override
+    public void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+}
@@ -1,5 +1,8 @@
 package com.veyon.veyflow.config;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -38,4 +41,30 @@ public interface WorkflowConfigRepository {
      * @return true if the config exists, false otherwise.
      */
     boolean exists(String tenantId);
+
+    /**
+     * Finds the configs of several tenants.
+     * The default implementation issues one {@link #findById(String)} per tenant;
+     * remote implementations should override it with a single round trip.
+     *
+     * @param tenantIds The tenant IDs.
+     * @return The found configs keyed by tenantId, in request order. Tenants without config are omitted.
+     */
+    default Map<String, WorkflowConfig> findAll(Collection<String> tenantIds) {
+        Map<String, WorkflowConfig> found = new LinkedHashMap<>();
+        for (String tenantId : tenantIds) {
+            findById(tenantId).ifPresent(config -> found.put(tenantId, config));
+        }
+        return found;
+    }
+
+    /**
+     * Loads the configs of all tenants, e.g. to warm a cache at startup.
+     * The default implementation is not supported, since the interface cannot enumerate tenants.
+     *
+     * @return All configs keyed by tenantId, in no particular order.
+     */
+    default Map<String, WorkflowConfig> findAll() {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support findAll");
+    }
 }
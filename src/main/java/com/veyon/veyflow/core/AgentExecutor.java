@@ -4,6 +4,8 @@ import com.veyon.veyflow.state.AgentState;
 import com.veyon.veyflow.state.AgentStateRepository;
 import com.veyon.veyflow.state.InMemoryAgentStateRepository;
 import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.StateConflictException;
+import com.veyon.veyflow.state.StateMergeHandler;
 import com.veyon.veyflow.state.ChatMessage;
 import com.veyon.veyflow.routing.NodeRouter;
 import com.veyon.veyflow.config.WorkflowConfig;
@@ -34,6 +36,8 @@ public class AgentExecutor {
     private final String entryNode;
     private final ExecutorService executorService;
     private final AgentStateRepository agentStateRepository;
+    private StateMergeHandler mergeHandler;
+    private int maxSaveAttempts = 3;
     
     /**
      * Create a new agent executor with a specific state repository.
@@ -81,12 +85,32 @@ public class AgentExecutor {
         return this;
     }
     
+    /**
+     * Save final states with optimistic concurrency control: if another execution saved the same
+     * thread meanwhile, the handler merges both states and the save is retried. Without a handler the
+     * final state overwrites whatever is stored.
+     * 
+     * @param mergeHandler Combines the stored state with the one that failed to save
+     * @param maxSaveAttempts Maximum number of save attempts, including the first one
+     * @return This executor instance for chaining
+     */
+    public AgentExecutor withMergeHandler(StateMergeHandler mergeHandler, int maxSaveAttempts) {
+        if (maxSaveAttempts < 1) {
+            throw new IllegalArgumentException("maxSaveAttempts must be at least 1");
+        }
+        this.mergeHandler = mergeHandler;
+        this.maxSaveAttempts = maxSaveAttempts;
+        return this;
+    }
+    
     /**
      * Execute the agent with the given state.
      * 
      * @param state The initial state
      * @param workflowConfig The workflow configuration
      * @return The final state after execution
+     * @throws StateConflictException If the final state could not be saved because other executions kept
+     *         saving the same thread and the merge handler did not resolve the conflict
      */
     public AgentState execute(AgentState state, WorkflowConfig workflowConfig) {
         if (state.getCurrentNode() == null || state.getCurrentNode().isEmpty()) {
@@ -211,18 +235,26 @@ public class AgentExecutor {
         log.debug("execute: Exited while loop. Final currentNode: {} (State Tenant: {}, Thread: {})", state.getCurrentNode(), state.getTenantId(), state.getThreadId());
         
         // After the loop, workflow execution is complete or has been interrupted.
-        // Save the state if it's configured for REDIS persistence and a repository is available.
-        if (this.agentStateRepository != null && state.getPersistenceMode() == PersistenceMode.REDIS) {
+        // Save the state if it's configured for external persistence (REDIS, FILE) and a repository is available.
+        boolean persistent = state.getPersistenceMode() != null && state.getPersistenceMode() != PersistenceMode.IN_MEMORY;
+        if (this.agentStateRepository != null && persistent) {
             log.info("Workflow finished for tenant '{}', thread '{}'. Saving state to repository.", state.getTenantId(), state.getThreadId());
             try {
-                this.agentStateRepository.save(state);
+                if (mergeHandler != null) {
+                    state = this.agentStateRepository.saveWithMerge(state, mergeHandler, maxSaveAttempts);
+                } else {
+                    this.agentStateRepository.save(state);
+                }
+            } catch (StateConflictException e) {
+                log.error("State for tenant '{}', thread '{}' was not saved: {}", state.getTenantId(), state.getThreadId(), e.getMessage());
+                throw e;
             } catch (Exception e) {
                 log.error("Failed to save state for tenant '{}', thread '{}' to repository after workflow completion.", 
                           state.getTenantId(), state.getThreadId(), e);
             }
-        } else if (this.agentStateRepository == null && state.getPersistenceMode() == PersistenceMode.REDIS) {
-            log.warn("AgentState persistenceMode is REDIS, but no AgentStateRepository is configured in AgentExecutor for tenant '{}', thread '{}'. State not saved.",
-                     state.getTenantId(), state.getThreadId());
+        } else if (this.agentStateRepository == null && persistent) {
+            log.warn("AgentState persistenceMode is {}, but no AgentStateRepository is configured in AgentExecutor for tenant '{}', thread '{}'. State not saved.",
+                     state.getPersistenceMode(), state.getTenantId(), state.getThreadId());
         }
 
         return state;
@@ -242,7 +274,7 @@ public class AgentExecutor {
         
         for (String targetNodeName : targetNodes) {
             CompletableFuture<AgentState> future = CompletableFuture.supplyAsync(() -> {
-                AgentState branchState = AgentState.fromJson(state.toJson()); // Copia del estado *antes* de la ejecución de esta rama
+                AgentState branchState = state.copy(); // Copia del estado *antes* de la ejecución de esta rama
                 // No establecemos currentNode aquí, ya que solo vamos a procesar el targetNodeName específico
 
                 AgentNode targetNode = nodes.get(targetNodeName);
@@ -1,7 +1,6 @@
 package com.veyon.veyflow.core;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonObject;
 import com.veyon.veyflow.foundationmodels.FoundationModelService;
 import com.veyon.veyflow.foundationmodels.FoundationModelService.ModelRequest;
 import com.veyon.veyflow.foundationmodels.ModelParameters;
@@ -9,21 +8,45 @@ import com.veyon.veyflow.foundationmodels.ModelTurnResponse;
 import com.veyon.veyflow.state.AgentState;
 import com.veyon.veyflow.state.ChatMessage;
 import com.veyon.veyflow.tools.Tool;
+import com.veyon.veyflow.tools.ToolArgumentValidator;
+import com.veyon.veyflow.tools.ToolBatch;
+import com.veyon.veyflow.tools.ToolBatchInvoker;
 import com.veyon.veyflow.tools.ToolCall;
+import com.veyon.veyflow.tools.ToolDispatchTable;
+import com.veyon.veyflow.tools.ToolGuard;
+import com.veyon.veyflow.tools.ToolInvoker;
+import com.veyon.veyflow.tools.ToolResultCache;
 import com.veyon.veyflow.tools.ToolService;
+import com.veyon.veyflow.tools.ToolUnavailableException;
 import com.veyon.veyflow.tools.Parameter;
 import com.veyon.veyflow.tools.ToolAnnotation;
-import com.veyon.veyflow.tools.ToolParameter;
+import com.veyon.veyflow.tools.ToolLimits;
+import com.veyon.veyflow.tools.ToolMetadata;
+import com.veyon.veyflow.tools.ToolMethodMetadata;
+import com.veyon.veyflow.config.ToolActivationIndex;
 import com.veyon.veyflow.config.WorkflowConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 //This object updates your state with the tool calls and responses automatically, that cuz
 //this object doesnt CLONE the state object, it just updates it.
@@ -32,16 +55,126 @@ public class ToolAgent {
 
     private static final Logger log = LoggerFactory.getLogger(ToolAgent.class);
     private static final int MAX_TOOL_ITERATIONS_PER_EXECUTE = 10; // Max iterations for tool calls within one execute() call
+    private static final int DEFAULT_TOOL_PARALLELISM = 4;
+    private static final int DEFAULT_TOOL_RESULT_CACHE_SIZE = 10_000;
     private final Gson gson;
     private final FoundationModelService foundationModelService;
     private final Map<String, ToolService> registeredToolServices; // Assuming this is populated at construction
+    private final ToolDispatchTable dispatchTable;
+    private final Map<String, List<ToolDeclaration>> toolDeclarations;
+    // Service class name -> the names its services are registered, and therefore activated, under
+    private final Map<String, List<String>> activationNames = new HashMap<>();
+    // Declarations per activation index; entries go away with the index
+    private final Map<ToolActivationIndex, List<Tool>> declarationCache = new WeakHashMap<>();
     private final String modelName;
+    private volatile int toolParallelism = DEFAULT_TOOL_PARALLELISM;
+    private volatile ExecutorService toolExecutor = SharedToolExecutor.INSTANCE;
+    private volatile ToolResultCache toolResultCache = new ToolResultCache(DEFAULT_TOOL_RESULT_CACHE_SIZE);
+    private final Map<String, ToolGuard> toolGuards = new ConcurrentHashMap<>();
 
     public ToolAgent(FoundationModelService foundationModelService, Map<String, ToolService> registeredToolServices, String modelName) {
         this.foundationModelService = foundationModelService;
         this.registeredToolServices = (registeredToolServices != null) ? new HashMap<>(registeredToolServices) : new HashMap<>();
         this.modelName = modelName;
         this.gson = new Gson();
+        this.dispatchTable = ToolDispatchTable.build(new TreeMap<>(this.registeredToolServices).values(), gson);
+        this.toolDeclarations = reflectToolDeclarations(this.registeredToolServices);
+        this.registeredToolServices.forEach((name, service) ->
+                activationNames.computeIfAbsent(service.getClass().getName(), className -> new ArrayList<>()).add(name));
+        for (ToolService service : this.registeredToolServices.values()) {
+            String serviceClassName = service.getClass().getName();
+            toolGuards.put(serviceClassName, new ToolGuard(serviceClassName, ToolGuard.Settings.of(service.getClass())));
+        }
+    }
+
+    /**
+     * Daemon pool shared by all agents, created on first use, that runs synchronous tool methods for agents
+     * without an executor of their own. The number of calls per service is bounded by its bulkhead.
+     */
+    private static final class SharedToolExecutor {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "veyflow-tool-" + THREADS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets how many tool calls of one model response may run concurrently. Calls run concurrently only if
+     * their tool allows it, see {@link ToolAnnotation#parallel()}; results are always added to the history in
+     * the order the model issued the calls. 1 runs every call sequentially. Asynchronous tools, see
+     * {@link ToolInvoker#isAsync()}, count while their future is pending but do not hold a thread.
+     *
+     * @param toolParallelism Maximum number of concurrent tool calls per model response
+     * @return This agent for chaining
+     */
+    public ToolAgent withToolParallelism(int toolParallelism) {
+        if (toolParallelism < 1) {
+            throw new IllegalArgumentException("toolParallelism must be at least 1");
+        }
+        this.toolParallelism = toolParallelism;
+        return this;
+    }
+
+    /**
+     * Sets the executor that runs synchronous tool methods, instead of a daemon pool shared by all agents.
+     * Asynchronous tools are started on the agent's thread and complete on whatever thread completes their
+     * future. The executor is not shut down by the agent.
+     *
+     * @param toolExecutor The executor for synchronous tool calls
+     * @return This agent for chaining
+     */
+    public ToolAgent withToolExecutor(ExecutorService toolExecutor) {
+        if (toolExecutor == null) {
+            throw new IllegalArgumentException("toolExecutor must not be null");
+        }
+        this.toolExecutor = toolExecutor;
+        return this;
+    }
+
+    /**
+     * Sets the limits for calls to one tool service, replacing those declared with {@link ToolLimits}.
+     * Resets the service's circuit breaker.
+     *
+     * @param serviceClassName The fully qualified class name of the ToolService
+     * @param settings The limits
+     * @return This agent for chaining
+     */
+    public ToolAgent withToolLimits(String serviceClassName, ToolGuard.Settings settings) {
+        if (serviceClassName == null || settings == null) {
+            throw new IllegalArgumentException("serviceClassName and settings must not be null");
+        }
+        toolGuards.put(serviceClassName, new ToolGuard(serviceClassName, settings));
+        return this;
+    }
+
+    /**
+     * @param serviceClassName The fully qualified class name of the ToolService
+     * @return The guard of the service, for its circuit state and metrics; null if the service is not registered
+     */
+    public ToolGuard getToolGuard(String serviceClassName) {
+        return toolGuards.get(serviceClassName);
+    }
+
+    /**
+     * Sets the cache for results of tools that enable caching with {@link ToolAnnotation#cacheTtlSeconds()}.
+     * By default every agent has its own cache of 10,000 results; pass a shared cache to share results
+     * between agents, or null to disable caching.
+     *
+     * @param toolResultCache The cache, or null
+     * @return This agent for chaining
+     */
+    public ToolAgent withToolResultCache(ToolResultCache toolResultCache) {
+        this.toolResultCache = toolResultCache;
+        return this;
+    }
+
+    /**
+     * @return The tool result cache, for its metrics; null if caching is disabled.
+     */
+    public ToolResultCache getToolResultCache() {
+        return toolResultCache;
     }
 
     public AgentTurnResult execute(
@@ -56,8 +189,8 @@ public class ToolAgent {
         String finalAssistantMessage = null;
         int currentToolIteration = 0;
 
-        List<ToolService> activeToolServices = getActiveToolServices(workflowConfig);
-        List<Tool> functionDeclarations = buildFunctionDeclarations(currentState.getTenantId(), activeToolServices, workflowConfig);
+        ToolActivationIndex activationIndex = (workflowConfig != null) ? workflowConfig.getToolActivationIndex() : null;
+        List<Tool> functionDeclarations = buildFunctionDeclarations(currentState.getTenantId(), activationIndex);
 
         // Determine System Prompt
         String effectiveSystemPrompt = "You are a helpful assistant."; // Default system prompt
@@ -107,79 +240,21 @@ public class ToolAgent {
                 log.info("ToolAgent execute: Detected {} tool calls in iteration {} for tenant {}.", toolCallsFromModel.size(), currentToolIteration, currentState.getTenantId());
                 // List<ChatMessage> toolResponses = new ArrayList<>(); // Not needed here, add directly to newMessagesThisTurn and currentState
 
+                List<ResolvedToolCall> resolvedCalls = new ArrayList<>(toolCallsFromModel.size());
                 for (ToolCall toolCall : toolCallsFromModel) {
-                    String toolArgsJson = toolCall.getParameters() != null ? gson.toJson(toolCall.getParameters()) : "{}";
-                    log.info("Executing tool: {} with ID: {} and arguments: {}", toolCall.getName(), toolCall.getId(), toolArgsJson);
-
-                    String fullToolName = toolCall.getName();
-                    String serviceClassNameFromTool = "";
-                    String methodNameFromTool = "";
-
-                    // Analizamos el nombre de la herramienta asumiendo formato SimpleClassName_MethodName
-                    int separatorIndex = fullToolName.lastIndexOf('_');
-                    if (separatorIndex == -1) {
-                        separatorIndex = fullToolName.lastIndexOf('.');
-                    }
-
-                    if (separatorIndex != -1 && separatorIndex < fullToolName.length() - 1) {
-                        serviceClassNameFromTool = fullToolName.substring(0, separatorIndex);
-                        methodNameFromTool = fullToolName.substring(separatorIndex + 1);
-                    } else {
-                        // Si no hay un separador válido, log error
-                        log.error("Could not parse service class name and method name from tool name: '{}'. Expected 'ClassName_MethodName'.", fullToolName);
-                    }
+                    resolvedCalls.add(resolveToolCall(toolCall, activationIndex));
+                }
+                String[] toolResults = executeToolCalls(resolvedCalls, currentState);
 
-                    ToolService service = findToolServiceByClassName(activeToolServices, serviceClassNameFromTool);
-                    Object result = null;
-                    String toolExecutionResultContent = "";
-
-                    if (service != null && !methodNameFromTool.isEmpty()) {
-                        try {
-                            Method methodToExecute = null;
-                            for (Method m : service.getClass().getMethods()) {
-                                if (m.getName().equals(methodNameFromTool)) {
-                                    methodToExecute = m;
-                                    break;
-                                }
-                            }
-                            if (methodToExecute == null) throw new NoSuchMethodException("Method " + methodNameFromTool + " not found in service " + serviceClassNameFromTool);
-
-                            java.lang.reflect.Parameter[] methodParams = methodToExecute.getParameters();
-                            Object[] argsToPass = new Object[methodParams.length];
-                            JsonObject llmArgs = toolCall.getParameters();
-
-                            for (int i = 0; i < methodParams.length; i++) {
-                                java.lang.reflect.Parameter param = methodParams[i];
-                                if (param.getType() == AgentState.class) {
-                                    argsToPass[i] = currentState;
-                                } else {
-                                    String paramName = param.getName();
-                                    if (llmArgs != null && llmArgs.has(paramName)) {
-                                        argsToPass[i] = gson.fromJson(llmArgs.get(paramName), param.getType());
-                                    } else {
-                                        if (param.getType().isPrimitive()) throw new IllegalArgumentException("Missing required primitive parameter: " + paramName);
-                                        argsToPass[i] = null;
-                                    }
-                                }
-                            }
-                            result = methodToExecute.invoke(service, argsToPass);
-                            toolExecutionResultContent = (result != null) ? gson.toJson(result) : "";
-                        } catch (Exception e) {
-                            log.error("Error executing tool {}: {}", toolCall.getName(), e.getMessage(), e);
-                            toolExecutionResultContent = "Error: " + e.getMessage();
-                        }
-                    } else {
-                        toolExecutionResultContent = "Error: Service for " + toolCall.getName() + " not found or method name invalid.";
-                        log.error(toolExecutionResultContent);
-                    }
-                    
-                    // Use new ChatMessage(toolCall.getId(), ChatMessage.Role.TOOL, toolContent).setToolName() for tool responses.
-                    ChatMessage toolResponseMessage = new ChatMessage(toolCall.getId(), ChatMessage.Role.TOOL, toolExecutionResultContent);
+                // Results go into the history in the order the model issued the calls, however they completed
+                for (int i = 0; i < resolvedCalls.size(); i++) {
+                    ToolCall toolCall = resolvedCalls.get(i).toolCall;
+                    ChatMessage toolResponseMessage = new ChatMessage(toolCall.getId(), ChatMessage.Role.TOOL, toolResults[i]);
                     toolResponseMessage.setToolName(toolCall.getName());
-                    
+
                     currentState.addChatMessage(toolResponseMessage);
                     newMessagesThisTurn.add(toolResponseMessage); // Added: Collect tool response message
-                    allToolExecutionRecords.add(new AgentTurnResult.ToolExecutionRecord(toolCall.getName(), toolArgsJson, toolExecutionResultContent));
+                    allToolExecutionRecords.add(new AgentTurnResult.ToolExecutionRecord(toolCall.getName(), resolvedCalls.get(i).argsJson, toolResults[i]));
                 }
             } else {
                 finalAssistantMessage = assistantContent; // Use content from model directly
@@ -194,86 +269,420 @@ public class ToolAgent {
         return new AgentTurnResult(finalAssistantMessage, finalChatHistory, newMessagesThisTurn, allToolExecutionRecords);
     }
 
-    private List<ToolService> getActiveToolServices(WorkflowConfig workflowConfig) {
-        List<ToolService> availableServices = new ArrayList<>();
-        
-        // Si no hay workflowConfig, no hay servicios activos
-        if (workflowConfig == null) {
-            log.debug("No WorkflowConfig provided, no tool services are active.");
-            return availableServices;
+    /**
+     * Looks up the invoker for a tool call and checks its arguments against the tool's parameter schema.
+     * Only methods active in the workflow configuration, under the name their service is registered with,
+     * can be called, just as only those are declared; a call with invalid arguments gets
+     * every violation as its result without reaching the tool.
+     */
+    private ResolvedToolCall resolveToolCall(ToolCall toolCall, ToolActivationIndex activationIndex) {
+        String toolArgsJson = toolCall.getParameters() != null ? gson.toJson(toolCall.getParameters()) : "{}";
+        ToolInvoker invoker = dispatchTable.get(toolCall.getName());
+        if (invoker == null || activationIndex == null
+                || !isActive(activationIndex, invoker)) {
+            return new ResolvedToolCall(toolCall, toolArgsJson, null,
+                    "Error: Service for " + toolCall.getName() + " not found or method name invalid.");
         }
-        
-        // Obtener los servicios activos desde el WorkflowConfig
-        Set<String> activeServiceClassNames = workflowConfig.getActiveServiceClassNames();
-        for (String serviceClassName : activeServiceClassNames) {
-            ToolService service = registeredToolServices.get(serviceClassName);
-            if (service != null) {
-                availableServices.add(service);
-                log.debug("Tool service '{}' added (active in WorkflowConfig).", serviceClassName);
+        List<ToolArgumentValidator.Violation> violations = invoker.validateArguments(toolCall.getParameters());
+        if (!violations.isEmpty()) {
+            return new ResolvedToolCall(toolCall, toolArgsJson, invoker,
+                    ToolArgumentValidator.toJson(toolCall.getName(), violations).toString());
+        }
+        return new ResolvedToolCall(toolCall, toolArgsJson, invoker, null);
+    }
+
+    /**
+     * Checks the activation of a tool under the names its service is registered with, the names its
+     * declarations are built for.
+     */
+    private boolean isActive(ToolActivationIndex activationIndex, ToolInvoker invoker) {
+        for (String serviceName : activationNames.getOrDefault(invoker.getServiceClassName(), List.of())) {
+            if (activationIndex.isActive(serviceName, invoker.getMethodName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Executes the tool calls of one model response. Calls to a tool with a {@link ToolBatch} variant are
+     * grouped into one invocation of it. Calls and groups that may run in parallel are started up to
+     * {@code toolParallelism} at a time, each completion starting the next, while the others run one at a
+     * time in the order the model issued them, alongside the parallel ones. The calling thread only waits
+     * for the results. A unit that fails only fails its own calls.
+     *
+     * @return The result content of each call, indexed like {@code calls}
+     */
+    private String[] executeToolCalls(List<ResolvedToolCall> calls, AgentState currentState) {
+        AtomicReferenceArray<String> results = new AtomicReferenceArray<>(calls.size());
+        List<List<Integer>> concurrent = new ArrayList<>();
+        List<List<Integer>> serialized = new ArrayList<>();
+        for (List<Integer> unit : groupToolCalls(calls)) {
+            if (toolParallelism > 1 && calls.get(unit.get(0)).isParallelSafe()) {
+                concurrent.add(unit);
             } else {
-                log.warn("Service '{}' is active in WorkflowConfig but not registered.", serviceClassName);
+                serialized.add(unit);
+            }
+        }
+
+        CountDownLatch concurrentDone = new CountDownLatch(concurrent.size());
+        AtomicInteger cursor = new AtomicInteger();
+        Runnable startNext = new Runnable() {
+            @Override
+            public void run() {
+                int next = cursor.getAndIncrement();
+                if (next >= concurrent.size()) {
+                    return;
+                }
+                List<Integer> unit = concurrent.get(next);
+                startUnit(unit, calls, currentState, results).whenComplete((done, error) -> {
+                    if (error != null) {
+                        failUnit(unit, calls, results, error);
+                    }
+                    concurrentDone.countDown();
+                    run();
+                });
+            }
+        };
+        for (int i = 0; i < Math.min(toolParallelism, concurrent.size()); i++) {
+            startNext.run();
+        }
+
+        try {
+            for (List<Integer> unit : serialized) {
+                try {
+                    startUnit(unit, calls, currentState, results).get();
+                } catch (ExecutionException e) {
+                    failUnit(unit, calls, results, e.getCause());
+                }
+            }
+            concurrentDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        String[] contents = new String[calls.size()];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = results.get(i);
+            if (contents[i] == null) {
+                contents[i] = "Error: Tool " + calls.get(i).toolCall.getName() + " did not complete.";
             }
         }
-        return availableServices;
+        return contents;
     }
 
-    private List<Tool> buildFunctionDeclarations(String tenantId, List<ToolService> activeToolServices, WorkflowConfig workflowConfig) {
-        List<Tool> functionDeclarations = new ArrayList<>();
-        for (ToolService service : activeToolServices) {
-            Class<?> serviceClass = service.getClass();
-            String serviceFQN = serviceClass.getName();
+    /**
+     * Gives the calls of a failed unit that have no result yet the unit's error as their result.
+     */
+    private void failUnit(List<Integer> unit, List<ResolvedToolCall> calls, AtomicReferenceArray<String> results, Throwable error) {
+        for (int index : unit) {
+            if (results.get(index) == null) {
+                results.compareAndSet(index, null, errorResult(toolName(calls.get(index)), error));
+            }
+        }
+    }
+
+    /**
+     * Splits the calls into units that are started together: the calls to each tool with a batch variant,
+     * split by its maximum batch size, and every other call on its own. Units are ordered by their first call.
+     *
+     * @return The indexes of the calls of each unit
+     */
+    private static List<List<Integer>> groupToolCalls(List<ResolvedToolCall> calls) {
+        List<List<Integer>> units = new ArrayList<>();
+        Map<ToolInvoker, List<Integer>> openBatches = new IdentityHashMap<>();
+        for (int i = 0; i < calls.size(); i++) {
+            ToolInvoker invoker = calls.get(i).invoker;
+            ToolBatchInvoker batchInvoker = (invoker != null && calls.get(i).error == null) ? invoker.getBatchInvoker() : null;
+            if (batchInvoker == null) {
+                units.add(List.of(i));
+                continue;
+            }
+            List<Integer> batch = openBatches.get(invoker);
+            if (batch == null || (batchInvoker.getMaxBatchSize() > 0 && batch.size() >= batchInvoker.getMaxBatchSize())) {
+                batch = new ArrayList<>();
+                units.add(batch);
+                openBatches.put(invoker, batch);
+            }
+            batch.add(i);
+        }
+        return units;
+    }
+
+    /**
+     * Starts a unit from {@link #groupToolCalls} and stores the results of its calls. Never throws; an
+     * unexpected failure completes the returned future exceptionally.
+     */
+    private CompletableFuture<Void> startUnit(List<Integer> unit, List<ResolvedToolCall> calls, AgentState currentState,
+                                              AtomicReferenceArray<String> results) {
+        try {
+            if (unit.size() == 1) {
+                int index = unit.get(0);
+                return startToolCall(calls.get(index), currentState).thenAccept(content -> results.set(index, content));
+            }
+            List<ResolvedToolCall> batch = new ArrayList<>(unit.size());
+            for (int index : unit) {
+                batch.add(calls.get(index));
+            }
+            return startBatch(batch, currentState).thenAccept(contents -> {
+                for (int i = 0; i < unit.size(); i++) {
+                    results.set(unit.get(i), contents[i]);
+                }
+            });
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Starts one tool call. Failures are turned into an error result for this call only, so the returned
+     * future always completes normally.
+     */
+    private CompletableFuture<String> startToolCall(ResolvedToolCall call, AgentState currentState) {
+        ToolCall toolCall = call.toolCall;
+        log.info("Executing tool: {} with ID: {} and arguments: {}", toolCall.getName(), toolCall.getId(), call.argsJson);
+        if (call.error != null) {
+            log.error(call.error);
+            return CompletableFuture.completedFuture(call.error);
+        }
+        CompletableFuture<String> result;
+        try {
+            ToolInvoker invoker = call.invoker;
+            ToolResultCache resultCache = toolResultCache;
+            String cacheKey = (resultCache != null) ? invoker.cacheKey(toolCall.getParameters(), currentState) : null;
+            if (cacheKey != null) {
+                result = resultCache.get(cacheKey, invoker.getCacheTtlNanos(), () -> invokeGuarded(invoker, toolCall, currentState));
+            } else {
+                result = invokeGuarded(invoker, toolCall, currentState);
+            }
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.handle((content, error) -> (error == null) ? content : errorResult(toolName(call), error));
+    }
+
+    /**
+     * Starts the calls to one tool as a single invocation of its batch method. Cached results are served
+     * from the cache and calls with invalid arguments fail on their own; the rest share the invocation and
+     * its failure, unless the batch method returns a {@link Throwable} for a call. The returned future
+     * always completes normally.
+     *
+     * @return The result content of each call, indexed like {@code batch}
+     */
+    private CompletableFuture<String[]> startBatch(List<ResolvedToolCall> batch, AgentState currentState) {
+        ToolInvoker invoker = batch.get(0).invoker;
+        ToolBatchInvoker batchInvoker = invoker.getBatchInvoker();
+        String toolName = toolName(batch.get(0));
+        String[] contents = new String[batch.size()];
+        String[] cacheKeys = new String[batch.size()];
+        List<Integer> pending = new ArrayList<>();
+        List<Object> elements = new ArrayList<>();
+        ToolResultCache resultCache = toolResultCache;
+        for (int i = 0; i < batch.size(); i++) {
+            ToolCall toolCall = batch.get(i).toolCall;
+            log.info("Executing tool: {} with ID: {} and arguments: {}", toolCall.getName(), toolCall.getId(), batch.get(i).argsJson);
+            try {
+                cacheKeys[i] = (resultCache != null) ? invoker.cacheKey(toolCall.getParameters(), currentState) : null;
+                contents[i] = (cacheKeys[i] != null) ? resultCache.getIfPresent(cacheKeys[i]) : null;
+                if (contents[i] == null) {
+                    elements.add(batchInvoker.bindElement(toolCall.getParameters()));
+                    pending.add(i);
+                }
+            } catch (RuntimeException e) {
+                contents[i] = errorResult(toolName, e);
+            }
+        }
+        if (pending.isEmpty()) {
+            return CompletableFuture.completedFuture(contents);
+        }
+
+        log.info("Invoking batch method {} for {} calls to {}", batchInvoker.getMethodName(), pending.size(), toolName);
+        long timeoutMillis = (batchInvoker.getTimeoutMillis() > 0) ? batchInvoker.getTimeoutMillis() : invoker.getTimeoutMillis();
+        return guardOf(invoker).call(() -> {
+            try {
+                return batchInvoker.invoke(elements, currentState);
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }, batchInvoker.isAsync(), timeoutMillis, toolExecutor).handle((returned, error) -> {
+            if (error == null && !(returned instanceof List<?> list && list.size() == pending.size())) {
+                error = new IllegalStateException("Batch method " + batchInvoker.getMethodName() + " returned "
+                        + ((returned instanceof List<?> list) ? list.size() + " results" : "no list") + " for " + pending.size() + " calls");
+            }
+            String failed = (error != null) ? errorResult(toolName, error) : null;
+            for (int k = 0; k < pending.size(); k++) {
+                int i = pending.get(k);
+                Object result = (failed == null) ? ((List<?>) returned).get(k) : null;
+                if (failed != null) {
+                    contents[i] = failed;
+                } else if (result instanceof Throwable callError) {
+                    contents[i] = errorResult(toolName, callError);
+                } else {
+                    contents[i] = serializeResult(result);
+                    if (cacheKeys[i] != null) {
+                        resultCache.put(cacheKeys[i], contents[i], invoker.getCacheTtlNanos());
+                    }
+                }
+            }
+            return contents;
+        });
+    }
+
+    private static String toolName(ResolvedToolCall call) {
+        return call.toolCall.getName();
+    }
+
+    /**
+     * Turns the failure of a tool call into its result: a structured error if the service is unavailable,
+     * otherwise "Error: " and the message.
+     */
+    private String errorResult(String toolName, Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ToolUnavailableException unavailable) {
+            log.warn("Tool {} unavailable ({}): {}", toolName, unavailable.getReason(), unavailable.getMessage());
+            return unavailable.toJson();
+        }
+        log.error("Error executing tool {}: {}", toolName, cause.getMessage(), cause);
+        return "Error: " + cause.getMessage();
+    }
+
+    private ToolGuard guardOf(ToolInvoker invoker) {
+        return toolGuards.computeIfAbsent(invoker.getServiceClassName(), name -> new ToolGuard(name, ToolGuard.Settings.defaults()));
+    }
 
+    /**
+     * Invokes a tool through the guard of its service and serializes its result. Arguments are bound first,
+     * so invalid arguments never count against the service.
+     *
+     * @throws IllegalArgumentException if an argument is missing or cannot be converted
+     */
+    private CompletableFuture<String> invokeGuarded(ToolInvoker invoker, ToolCall toolCall, AgentState currentState) {
+        Object[] values = invoker.bindArguments(toolCall.getParameters(), currentState);
+        return guardOf(invoker).call(() -> {
+            try {
+                return invoker.invokeBound(values);
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new UndeclaredThrowableException(t);
+            }
+        }, invoker.isAsync(), invoker.getTimeoutMillis(), toolExecutor).thenApply(this::serializeResult);
+    }
+
+    private String serializeResult(Object result) {
+        return (result != null) ? gson.toJson(result) : "";
+    }
+
+    /**
+     * Collects the declaration of every tool method per service class name, once. Services with generated
+     * {@link ToolMetadata} are described by it; the others are reflected over.
+     */
+    private static Map<String, List<ToolDeclaration>> reflectToolDeclarations(Map<String, ToolService> services) {
+        Map<String, List<ToolDeclaration>> declarations = new HashMap<>();
+        for (Map.Entry<String, ToolService> registered : services.entrySet()) {
+            Class<?> serviceClass = registered.getValue().getClass();
+            List<ToolDeclaration> serviceDeclarations = new ArrayList<>();
+            ToolMetadata metadata = ToolMetadata.of(serviceClass);
+            if (metadata != null) {
+                for (ToolMethodMetadata toolMethod : metadata.getToolMethods()) {
+                    Tool function = new Tool(serviceClass.getSimpleName() + "." + toolMethod.getMethodName(),
+                            toolMethod.getDescription(), toolMethod.getSchema());
+                    serviceDeclarations.add(new ToolDeclaration(toolMethod.getMethodName(), function));
+                }
+                declarations.put(registered.getKey(), serviceDeclarations);
+                continue;
+            }
             for (Method method : serviceClass.getDeclaredMethods()) {
                 if (method.isAnnotationPresent(ToolAnnotation.class)) {
-                    // Verificar si el método está activo en workflowConfig
-                    if (workflowConfig != null && !workflowConfig.isToolMethodActive(serviceFQN, method.getName())) {
-                        log.debug("Skipping tool declaration for method {} in service {} as it's not active in WorkflowConfig for tenant {}.", method.getName(), serviceFQN, tenantId);
-                        continue;
-                    }
-                    
                     ToolAnnotation toolAnnotation = method.getAnnotation(ToolAnnotation.class);
                     Tool function = new Tool();
                     function.setName(serviceClass.getSimpleName() + "." + method.getName());
                     function.setDescription(toolAnnotation.value()); 
 
-                    List<Parameter> parametersList = new ArrayList<>();
-                    for (java.lang.reflect.Parameter reflectParam : method.getParameters()) {
-                        if (reflectParam.isAnnotationPresent(ToolParameter.class)) {
-                            ToolParameter paramAnnotation = reflectParam.getAnnotation(ToolParameter.class);
-                            Parameter schemaParam = new Parameter(); 
-                            schemaParam.setName(reflectParam.getName()); 
-                            schemaParam.setType(paramAnnotation.type());
-                            schemaParam.setDescription(paramAnnotation.value()); 
-                            schemaParam.setRequired(paramAnnotation.required());
-                            parametersList.add(schemaParam);
-                        }
-                    }
-                    function.setParametersSchema(parametersList); 
-
-                    functionDeclarations.add(function);
-                    log.debug("Added tool declaration: {}", function.getName());
+                    function.setParametersSchema(Collections.unmodifiableList(Parameter.schemaOf(method)));
+                    serviceDeclarations.add(new ToolDeclaration(method.getName(), function));
                 }
             }
+            // Keyed by the name the service is registered and activated under
+            declarations.put(registered.getKey(), serviceDeclarations);
         }
-        return functionDeclarations;
+        return declarations;
     }
 
-    private ToolService findToolServiceByClassName(List<ToolService> services, String className) {
-        for (ToolService service : services) {
-            if (service.getClass().getSimpleName().equals(className)) {
-                return service;
+    /**
+     * Gets the declarations of the tools active in {@code activationIndex}. They are built once per
+     * activation index and shared by all tenants with the same tool set; a changed WorkflowConfig gets a new
+     * index and therefore new declarations. The returned list and its tools must not be modified.
+     */
+    private List<Tool> buildFunctionDeclarations(String tenantId, ToolActivationIndex activationIndex) {
+        if (activationIndex == null) {
+            log.debug("No WorkflowConfig provided, no tool services are active.");
+            return Collections.emptyList();
+        }
+        synchronized (declarationCache) {
+            List<Tool> cached = declarationCache.get(activationIndex);
+            if (cached != null) {
+                return cached;
             }
         }
-        
-        // Intentar buscar por nombre completo como fallback
-        for (ToolService service : services) {
-            if (service.getClass().getName().equals(className)) {
-                log.debug("Found service by fully qualified name instead of simple name: {}", className);
-                return service;
+
+        List<Tool> functionDeclarations = new ArrayList<>();
+        for (String serviceClassName : activationIndex.getServiceNames()) {
+            List<ToolDeclaration> serviceDeclarations = toolDeclarations.get(serviceClassName);
+            if (serviceDeclarations == null) {
+                log.warn("Service '{}' is active in WorkflowConfig but not registered.", serviceClassName);
+                continue;
+            }
+            for (ToolDeclaration declaration : serviceDeclarations) {
+                // Verificar si el método está activo en workflowConfig
+                if (!activationIndex.isActive(serviceClassName, declaration.methodName)) {
+                    log.debug("Skipping tool declaration for method {} in service {} as it's not active in WorkflowConfig for tenant {}.", declaration.methodName, serviceClassName, tenantId);
+                    continue;
+                }
+                functionDeclarations.add(declaration.tool);
+                log.debug("Added tool declaration: {}", declaration.tool.getName());
             }
         }
-        
-        log.warn("Service with class name '{}' not found in active services list", className);
-        return null;
+        List<Tool> declarations = Collections.unmodifiableList(functionDeclarations);
+        synchronized (declarationCache) {
+            declarationCache.put(activationIndex, declarations);
+        }
+        return declarations;
+    }
+
+    private static final class ToolDeclaration {
+        final String methodName;
+        final Tool tool;
+
+        ToolDeclaration(String methodName, Tool tool) {
+            this.methodName = methodName;
+            this.tool = tool;
+        }
+    }
+
+    /**
+     * A tool call with the invoker it refers to, or the error that prevents running it.
+     */
+    private static final class ResolvedToolCall {
+        final ToolCall toolCall;
+        final String argsJson;
+        final ToolInvoker invoker;
+        final String error;
+
+        ResolvedToolCall(ToolCall toolCall, String argsJson, ToolInvoker invoker, String error) {
+            this.toolCall = toolCall;
+            this.argsJson = argsJson;
+            this.invoker = invoker;
+            this.error = error;
+        }
+
+        boolean isParallelSafe() {
+            return invoker == null || invoker.isParallel();
+        }
     }
 }
@@ -245,6 +245,20 @@ public class GeminiRequestAdapter implements ModelRequestAdapter {
                         if (paramObj.getDescription() != null && !paramObj.getDescription().isEmpty()) {
                             paramDetailsJson.addProperty("description", paramObj.getDescription());
                         }
+                        if (paramObj.getEnumValues() != null && !paramObj.getEnumValues().isEmpty()
+                                && "STRING".equalsIgnoreCase(paramObj.getType())) {
+                            // Gemini only accepts enums on strings, declared with format "enum"
+                            JsonArray enumJsonArray = new JsonArray();
+                            paramObj.getEnumValues().forEach(enumJsonArray::add);
+                            paramDetailsJson.addProperty("format", "enum");
+                            paramDetailsJson.add("enum", enumJsonArray);
+                        }
+                        if (paramObj.getMinimum() != null) {
+                            paramDetailsJson.addProperty("minimum", paramObj.getMinimum());
+                        }
+                        if (paramObj.getMaximum() != null) {
+                            paramDetailsJson.addProperty("maximum", paramObj.getMaximum());
+                        }
                         propertiesJson.add(paramObj.getName(), paramDetailsJson);
                         if (paramObj.isRequired()) {
                             requiredJsonArray.add(paramObj.getName());
@@ -130,7 +130,17 @@ public class OpenAiRequestAdapter implements ModelRequestAdapter {
                         if (param.getDescription() != null && !param.getDescription().isEmpty()) {
                             paramDetails.addProperty("description", param.getDescription());
                         }
-                        // TODO: Handle enum for parameters if param.getEnumValues() is available and not null/empty
+                        if (param.getEnumValues() != null && !param.getEnumValues().isEmpty()) {
+                            JsonArray enumArray = new JsonArray();
+                            param.getEnumValues().forEach(enumArray::add);
+                            paramDetails.add("enum", enumArray);
+                        }
+                        if (param.getMinimum() != null) {
+                            paramDetails.addProperty("minimum", param.getMinimum());
+                        }
+                        if (param.getMaximum() != null) {
+                            paramDetails.addProperty("maximum", param.getMaximum());
+                        }
                         propertiesJson.add(param.getName(), paramDetails);
                         if (param.isRequired()) {
                             requiredArray.add(param.getName());
@@ -12,8 +12,19 @@ import java.util.Set;
 /**
  * Represents the state of an agent during execution.
  * This state is passed between nodes and is fully serializable.
+ * <p>
+ * States loaded by the repositories are decoded lazily (see {@link #fromJsonLazy(String)}): values and
+ * chat messages are parsed from the stored JSON on first access, and the ones never accessed are
+ * written back without re-encoding.
  */
 public class AgentState {
+    private static final Gson GSON = new GsonBuilder()
+        .registerTypeAdapter(ZonedDateTime.class, new ZonedDateTimeAdapter())
+        .registerTypeAdapterFactory(new LazyJson.AdapterFactory())
+        .create();
+
+    // Declared first so it leads the JSON form, where stores can read it without parsing the rest
+    private long version;
     private Map<String, Object> values;
     private List<ChatMessage> chatMessages;
     private String currentNode;
@@ -87,7 +98,11 @@ public class AgentState {
      * @return This state instance for chaining
      */
     public AgentState set(String key, Object value) {
-        values.put(key, value);
+        if (values instanceof LazyValueMap) {
+            ((LazyValueMap) values).set(key, value);
+        } else {
+            values.put(key, value);
+        }
         return this;
     }
 
@@ -100,6 +115,26 @@ public class AgentState {
         return chatMessages;
     }
 
+    /**
+     * Get the number of chat messages without decoding any of them.
+     * 
+     * @return Number of chat messages
+     */
+    public int getChatMessageCount() {
+        return chatMessages.size();
+    }
+
+    /**
+     * Get a range of the chat messages, e.g. the last few, decoding only the messages in the range.
+     * 
+     * @param fromIndex Index of the first message, inclusive
+     * @param toIndex Index of the last message, exclusive
+     * @return A view of the range, backed by this state's messages
+     */
+    public List<ChatMessage> getChatMessages(int fromIndex, int toIndex) {
+        return chatMessages.subList(fromIndex, toIndex);
+    }
+
     /**
      * Set the chat messages.
      * 
@@ -212,16 +247,70 @@ public class AgentState {
         return this;
     }
 
+    /**
+     * Get the version of this state. Every save of its thread, plain or
+     * {@link AgentStateRepository#compareAndSave(AgentState) compare-and-save}, increases it; a state
+     * that was never saved has version 0.
+     * 
+     * @return Version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Set the version of this state. Normally maintained by the repository; a merge handler sets it to
+     * the version of the state it merged with.
+     * 
+     * @param version Version
+     * @return This state instance for chaining
+     */
+    public AgentState setVersion(long version) {
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * The version a plain {@link AgentStateRepository#save(AgentState) save} stores: above the stored one,
+     * so a concurrent compare-and-save notices the write, and never below the saved state's own, so
+     * copying a state to an empty repository keeps its version.
+     *
+     * @param storedVersion The version currently stored, or 0 if the thread has no state
+     * @param version The version of the state being saved
+     * @return The version to store
+     */
+    static long versionAfterSave(long storedVersion, long version) {
+        return Math.max(storedVersion + 1, version);
+    }
+
+    /**
+     * Read the version from the start of a serialized state without deserializing it.
+     * 
+     * @param json JSON produced by {@link #toJson()}
+     * @return The version, or 0 for states serialized before versions existed
+     */
+    static long peekVersion(String json) {
+        String prefix = "{\"version\":";
+        if (json != null && json.startsWith(StateCodec.MAGIC)) {
+            return StateCodec.peekVersion(json);
+        }
+        if (json == null || !json.startsWith(prefix)) {
+            return 0;
+        }
+        long version = 0;
+        for (int i = prefix.length(); i < json.length() && Character.isDigit(json.charAt(i)); i++) {
+            version = version * 10 + (json.charAt(i) - '0');
+        }
+        return version;
+    }
+
     /**
      * Serialize the state to JSON.
      * 
      * @return JSON representation of the state
      */
     public String toJson() {
-        Gson gson = new GsonBuilder()
-            .registerTypeAdapter(ZonedDateTime.class, new ZonedDateTimeAdapter())
-            .create();
-        return gson.toJson(this);
+        return GSON.toJson(this);
     }
 
     /**
@@ -231,12 +320,151 @@ public class AgentState {
      * @return The deserialized state
      */
     public static AgentState fromJson(String json) {
-        Gson gson = new GsonBuilder()
-            .registerTypeAdapter(ZonedDateTime.class, new ZonedDateTimeAdapter())
-            .create();
-        return gson.fromJson(json, AgentState.class);
+        return GSON.fromJson(json, AgentState.class);
+    }
+
+    /**
+     * Deserialize the state from JSON, deferring the values and chat messages until they are accessed.
+     * Only the boundaries of the values and messages are located up front; the other fields are
+     * decoded right away. Falls back to {@link #fromJson(String)} for JSON it cannot split.
+     * 
+     * @param json JSON representation of the state
+     * @return The deserialized state
+     */
+    public static AgentState fromJsonLazy(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            StringBuilder eager = new StringBuilder(128).append('{');
+            LazyValueMap lazyValues = null;
+            LazyMessageList lazyMessages = null;
+            int i = LazyJson.skipWhitespace(json, LazyJson.expect(json, 0, '{'));
+            while (json.charAt(i) != '}') {
+                int nameEnd = LazyJson.skipString(json, i);
+                String name = LazyJson.readName(json, i, nameEnd, GSON);
+                int valueStart = LazyJson.skipWhitespace(json, LazyJson.expect(json, nameEnd, ':'));
+                int valueEnd = LazyJson.skipValue(json, valueStart);
+                if (name.equals("values") && json.charAt(valueStart) == '{') {
+                    lazyValues = LazyValueMap.parse(json, valueStart, valueEnd, GSON);
+                } else if (name.equals("chatMessages") && json.charAt(valueStart) == '[') {
+                    lazyMessages = LazyMessageList.parse(json, valueStart, valueEnd, GSON);
+                } else {
+                    eager.append(eager.length() > 1 ? "," : "").append(json, i, valueEnd);
+                }
+                i = LazyJson.skipWhitespace(json, valueEnd);
+                if (json.charAt(i) == ',') {
+                    i = LazyJson.skipWhitespace(json, i + 1);
+                } else if (json.charAt(i) != '}') {
+                    throw new IllegalArgumentException("Expected ',' or '}' at " + i);
+                }
+            }
+            if (LazyJson.skipWhitespace(json, i + 1) != json.length()) {
+                throw new IllegalArgumentException("Trailing content at " + (i + 1));
+            }
+            AgentState state = GSON.fromJson(eager.append('}').toString(), AgentState.class);
+            if (lazyValues != null) {
+                state.values = lazyValues;
+            }
+            if (lazyMessages != null) {
+                state.chatMessages = lazyMessages;
+            }
+            return state;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return fromJson(json);
+        }
+    }
+    
+    /**
+     * Create an independent deep copy of this state through its JSON form. The copy is decoded lazily,
+     * so values and messages that are not accessed are neither decoded nor re-encoded.
+     * 
+     * @return A copy that shares no mutable data with this state
+     */
+    public AgentState copy() {
+        return fromJsonLazy(toJson());
     }
     
+    /**
+     * Create an empty state whose values and messages accept undecoded JSON, for rebuilding a state
+     * from journal events.
+     */
+    static AgentState emptyLazy(String tenantId, String threadId, PersistenceMode persistenceMode) {
+        AgentState state = new AgentState(tenantId, threadId, persistenceMode);
+        state.values = new LazyValueMap(GSON);
+        state.chatMessages = LazyMessageList.empty(GSON);
+        return state;
+    }
+
+    /**
+     * @return The value as a still undecoded span, or null if it was decoded or is absent
+     */
+    LazyJson.Raw rawValue(String key) {
+        Object raw = (values instanceof LazyValueMap) ? ((LazyValueMap) values).rawValue(key) : null;
+        return (raw instanceof LazyJson.Raw) ? (LazyJson.Raw) raw : null;
+    }
+
+    /**
+     * @return The chat message as a still undecoded span, or null if it was decoded
+     */
+    LazyJson.Raw rawChatMessage(int index) {
+        Object raw = (chatMessages instanceof LazyMessageList) ? ((LazyMessageList) chatMessages).rawElements().get(index) : null;
+        return (raw instanceof LazyJson.Raw) ? (LazyJson.Raw) raw : null;
+    }
+
+    /**
+     * @return The JSON form of a value, taken verbatim if it was never decoded, or null if absent or null
+     */
+    String valueJson(String key) {
+        LazyJson.Raw raw = rawValue(key);
+        if (raw != null) {
+            return raw.text();
+        }
+        Object value = values.get(key);
+        return (value != null) ? GSON.toJson(value) : null;
+    }
+
+    /**
+     * @return The JSON form of a chat message, taken verbatim if it was never decoded
+     */
+    String chatMessageJson(int index) {
+        LazyJson.Raw raw = rawChatMessage(index);
+        if (raw != null) {
+            return raw.text();
+        }
+        return GSON.toJson(chatMessages.get(index), ChatMessage.class);
+    }
+
+    /**
+     * Set a value from its JSON form, which stays undecoded if the values are lazily decoded.
+     */
+    void setValueJson(String key, String json) {
+        if (values instanceof LazyValueMap) {
+            ((LazyValueMap) values).set(key, new LazyJson.Raw(json, 0, json.length()));
+        } else {
+            values.put(key, GSON.fromJson(json, Object.class));
+        }
+    }
+
+    /**
+     * Append a chat message from its JSON form, which stays undecoded if the messages are lazily decoded.
+     */
+    void addChatMessageJson(String json) {
+        if (chatMessages instanceof LazyMessageList) {
+            ((LazyMessageList) chatMessages).addRaw(new LazyJson.Raw(json, 0, json.length()));
+        } else {
+            chatMessages.add(GSON.fromJson(json, ChatMessage.class));
+        }
+    }
+
+    /**
+     * Set both nodes as they were recorded, rather than shifting the current node into the previous one.
+     */
+    void setNodes(String currentNode, String previousNode) {
+        this.currentNode = currentNode;
+        this.previousNode = previousNode;
+    }
+
     /**
      * Get all keys in the state.
      * 
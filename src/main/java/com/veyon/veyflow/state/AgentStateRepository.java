@@ -1,12 +1,23 @@
 package com.veyon.veyflow.state;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Stream;
 
 public interface AgentStateRepository {
 
     /**
      * Saves the given agent state.
      * If a state with the same tenantId and threadId already exists, it will be overwritten.
+     * The version is not checked, but it never goes back: the state is stored, and its own version set,
+     * to one more than the stored version, or to its own version if that is higher. So a plain save
+     * always makes a concurrent {@link #compareAndSave(AgentState)} of the same thread fail, and saving
+     * a state to an empty repository keeps its version. Use {@code compareAndSave} when several writers
+     * may save the same thread concurrently.
      *
      * @param state The AgentState to save.
      */
@@ -38,4 +49,203 @@ public interface AgentStateRepository {
      * @return true if the state exists, false otherwise.
      */
     boolean exists(String tenantId, String threadId);
+
+    /**
+     * Finds the states of several threads of one tenant.
+     * The default implementation issues one {@link #findById(String, String)} per thread;
+     * remote implementations should override it with a single round trip.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadIds The IDs of the conversation threads.
+     * @return The found states keyed by threadId, in request order. Threads without state are omitted.
+     */
+    default Map<String, AgentState> findAll(String tenantId, Collection<String> threadIds) {
+        Map<String, AgentState> found = new LinkedHashMap<>();
+        for (String threadId : threadIds) {
+            findById(tenantId, threadId).ifPresent(state -> found.put(threadId, state));
+        }
+        return found;
+    }
+
+    /**
+     * Saves several agent states, overwriting existing ones.
+     * The default implementation issues one {@link #save(AgentState)} per state.
+     *
+     * @param states The states to save.
+     */
+    default void saveAll(Collection<AgentState> states) {
+        for (AgentState state : states) {
+            save(state);
+        }
+    }
+
+    /**
+     * Deletes the states of several threads of one tenant.
+     * The default implementation issues one {@link #delete(String, String)} per thread.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadIds The IDs of the conversation threads.
+     * @return The number of states that were deleted.
+     */
+    default long deleteAll(String tenantId, Collection<String> threadIds) {
+        long deleted = 0;
+        for (String threadId : threadIds) {
+            if (delete(tenantId, threadId)) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Streams all states of a tenant, loading them in batches as the stream is consumed rather than all
+     * at once. States saved or deleted during the scan may or may not be included. The stream may hold
+     * resources and should be closed, e.g. with try-with-resources.
+     * The default implementation is not supported, since the interface cannot enumerate threads.
+     *
+     * @param tenantId The ID of the tenant.
+     * @return The tenant's states, in no particular order.
+     */
+    default Stream<AgentState> scanByTenant(String tenantId) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support scanByTenant");
+    }
+
+    /**
+     * Deletes all states of a tenant, e.g. when the tenant is offboarded. Only the tenant's own threads
+     * are removed: tenant IDs cannot contain {@code ::} (see {@link #validateIds}), so no other tenant's
+     * keys share the tenant's key prefix.
+     * The default implementation is not supported, since the interface cannot enumerate threads.
+     *
+     * @param tenantId The ID of the tenant.
+     * @return The number of states that were deleted.
+     */
+    default long purgeTenant(String tenantId) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support purgeTenant");
+    }
+
+    /**
+     * Checks that a tenant and thread ID can be stored by this repository, by the rules its operations
+     * apply: both must not be null or blank, and the tenant ID must not contain {@code ::} or end with
+     * {@code :}, the separator between tenant and thread in keys. Decorators that accept states before
+     * handing them on, such as {@link WriteBehindAgentStateRepository}, use it to reject them up front.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @throws IllegalArgumentException If the IDs cannot be stored.
+     */
+    default void validateIds(String tenantId, String threadId) {
+        StateKeys.requireIds(tenantId, threadId);
+    }
+
+    /**
+     * Saves the state only if the stored version still equals {@link AgentState#getVersion()}, that is,
+     * if nobody else saved the thread since the state was loaded. A thread without stored state has
+     * version 0. On success the state's version is incremented; on conflict neither the stored state
+     * nor the given one is changed.
+     * The default implementation is not supported, since it cannot be atomic.
+     *
+     * @param state The AgentState to save.
+     * @return true if the state was saved, false if the stored version differs.
+     */
+    default boolean compareAndSave(AgentState state) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support compareAndSave");
+    }
+
+    /**
+     * Saves the state with {@link #compareAndSave(AgentState)}. On conflict, the stored state is loaded,
+     * merged with the attempted one by {@code mergeHandler}, and the merge result is saved in turn.
+     *
+     * @param state The AgentState to save.
+     * @param mergeHandler Combines the stored state with the one that failed to save.
+     * @param maxAttempts Maximum number of save attempts, including the first one.
+     * @return The state that was stored: {@code state} itself or the result of the last merge.
+     * @throws StateConflictException If the state was not saved within {@code maxAttempts}, or the handler gave up.
+     */
+    default AgentState saveWithMerge(AgentState state, StateMergeHandler mergeHandler, int maxAttempts) {
+        if (state == null || mergeHandler == null) {
+            throw new IllegalArgumentException("AgentState and mergeHandler must not be null");
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        String tenantId = state.getTenantId();
+        String threadId = state.getThreadId();
+        AgentState attempt = state;
+        for (int attempts = 1; ; attempts++) {
+            if (compareAndSave(attempt)) {
+                return attempt;
+            }
+            AgentState stored = findById(tenantId, threadId).orElse(null);
+            long storedVersion = (stored != null) ? stored.getVersion() : 0;
+            AgentState merged = (attempts < maxAttempts) ? mergeHandler.merge(stored, attempt) : null;
+            if (merged == null) {
+                throw new StateConflictException(tenantId, threadId, attempt.getVersion(), storedVersion);
+            }
+            attempt = merged.setVersion(storedVersion);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #save(AgentState)}.
+     * The default implementation saves synchronously and returns a completed stage.
+     *
+     * @param state The AgentState to save.
+     * @return A stage that completes once the state is stored.
+     */
+    default CompletionStage<Void> saveAsync(AgentState state) {
+        try {
+            save(state);
+            return CompletableFuture.completedFuture(null);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #findById(String, String)}.
+     * The default implementation loads synchronously and returns a completed stage.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A stage with the AgentState if found, or an empty Optional otherwise.
+     */
+    default CompletionStage<Optional<AgentState>> findByIdAsync(String tenantId, String threadId) {
+        try {
+            return CompletableFuture.completedFuture(findById(tenantId, threadId));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #delete(String, String)}.
+     * The default implementation deletes synchronously and returns a completed stage.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A stage with true if the state was deleted, false otherwise.
+     */
+    default CompletionStage<Boolean> deleteAsync(String tenantId, String threadId) {
+        try {
+            return CompletableFuture.completedFuture(delete(tenantId, threadId));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #exists(String, String)}.
+     * The default implementation checks synchronously and returns a completed stage.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A stage with true if the state exists, false otherwise.
+     */
+    default CompletionStage<Boolean> existsAsync(String tenantId, String threadId) {
+        try {
+            return CompletableFuture.completedFuture(exists(tenantId, threadId));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
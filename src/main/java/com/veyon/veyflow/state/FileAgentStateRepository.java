@@ -0,0 +1,1117 @@
+package com.veyon.veyflow.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable {@link AgentStateRepository} for {@link PersistenceMode#FILE}, storing states in a local
+ * append-only log.
+ * <p>
+ * The log is split into segment files ({@code segment-<id>.log}). Every save appends a checksummed
+ * record and every delete appends a tombstone; an index from {@code tenant::thread} to the latest
+ * record is kept in memory. On close and after each compaction the index is written to
+ * {@code index.snapshot}, which is memory-mapped on startup so that only the log written after it has
+ * to be replayed. A torn record at the end of the log, as left by a crash, is truncated during recovery.
+ * <p>
+ * Saves return once their record is on disk. Concurrent saves share one fsync (group commit); with
+ * a positive {@code fsyncInterval} saves return immediately and the log is forced periodically,
+ * trading a bounded window of lost writes for throughput. Compaction runs in the background once the
+ * superseded records outweigh the live ones: live records are copied out of all sealed segments,
+ * which are then deleted.
+ * <p>
+ * With {@code compressValues} the serialized states are stored deflated by a {@link StateCodec}, with
+ * its dictionary if it has one, which suits a cold tier (see {@link TieredAgentStateRepository}).
+ * Compressed and plain records can be mixed in one log, so the option can be changed between restarts
+ * as long as the codec still knows the dictionaries of existing records.
+ * <p>
+ * Lookups decode a fresh instance from disk, as {@link RedisAgentStateRepository} does. A directory
+ * must only be opened by one repository at a time.
+ */
+public class FileAgentStateRepository implements AgentStateRepository, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(FileAgentStateRepository.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_FILE = "index.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x56464958;
+    private static final int SNAPSHOT_VERSION = 2;
+
+    // Record: [int crc32c of body][int bodyLength] body: [byte type][int keyLength][key][value]
+    private static final int HEADER_BYTES = 8;
+    private static final int MIN_BODY_BYTES = 5;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte PUT_DEFLATED = 3;
+    // Value: [int dictionaryId][deflated with that StateDictionary]
+    private static final byte PUT_DEFLATED_DICTIONARY = 4;
+    // Enough of a serialized state to read its version, see AgentState.peekVersion
+    private static final int VERSION_PREFIX_BYTES = 32;
+    private static final int PURGE_BATCH_SIZE = 1000;
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+    private final long fsyncIntervalNanos;
+    private final boolean compressValues;
+    private final StateCodec codec;
+
+    // Lock order: compactionLock, then syncLock, then writeLock
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private final Object compactionLock = new Object();
+
+    private final Map<String, Location> index = new HashMap<>();
+    private final NavigableMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long liveBytes = 0;
+    private long logBytes = 0;
+    private long writtenSequence = 0;
+    private volatile long syncedSequence = 0;
+    private volatile boolean closed = false;
+
+    private final ScheduledExecutorService background;
+
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong syncedWrites = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final long recoveryMillis;
+    private final long replayedRecords;
+    private final long truncatedBytes;
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+
+        Segment(long id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        final long version;
+
+        Location(Segment segment, long offset, int length, long version) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.version = version;
+        }
+    }
+
+    private FileAgentStateRepository(Builder builder) {
+        this.directory = builder.directory;
+        this.maxSegmentBytes = builder.maxSegmentBytes;
+        this.fsyncIntervalNanos = builder.fsyncInterval.toNanos();
+        this.compressValues = builder.compressValues;
+        this.codec = builder.codec;
+
+        long start = System.nanoTime();
+        long[] recovery;
+        try {
+            Files.createDirectories(directory);
+            recovery = recover();
+        } catch (IOException e) {
+            closeSegments();
+            throw new UncheckedIOException("Could not open agent state log in " + directory, e);
+        }
+        this.replayedRecords = recovery[0];
+        this.truncatedBytes = recovery[1];
+        this.recoveryMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("Opened agent state log {}: {} threads in {} segments, replayed {} records in {} ms",
+                directory, index.size(), segments.size(), replayedRecords, recoveryMillis);
+
+        this.background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "veyflow-file-agentstate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (fsyncIntervalNanos > 0) {
+            background.scheduleWithFixedDelay(this::backgroundSync, fsyncIntervalNanos, fsyncIntervalNanos, TimeUnit.NANOSECONDS);
+        }
+        long compactionCheckNanos = builder.compactionCheckInterval.toNanos();
+        background.scheduleWithFixedDelay(this::backgroundCompaction, compactionCheckNanos, compactionCheckNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a new builder for a repository stored in {@code directory}.
+     *
+     * @param directory Directory holding the segment files and the index snapshot; created if missing
+     * @return A new builder
+     */
+    public static Builder builder(Path directory) {
+        return new Builder(directory);
+    }
+
+    private String getKey(String tenantId, String threadId) {
+        return StateKeys.key(tenantId, threadId);
+    }
+
+    @Override
+    public void save(AgentState state) {
+        saveAll(Collections.singletonList(state));
+    }
+
+    /**
+     * Encodes the states outside the write lock as if each stored version were the state's own, which
+     * is the usual load-modify-save case. A state whose stored version turns out to differ is encoded
+     * again under the lock with the version it actually gets.
+     */
+    @Override
+    public void saveAll(Collection<AgentState> states) {
+        List<AgentState> saved = new ArrayList<>(states.size());
+        List<String> keys = new ArrayList<>(states.size());
+        List<ByteBuffer> records = new ArrayList<>(states.size());
+        List<Long> versions = new ArrayList<>(states.size());
+        for (AgentState state : states) {
+            if (state == null) {
+                throw new IllegalArgumentException("AgentState must not be null");
+            }
+            String key = getKey(state.getTenantId(), state.getThreadId());
+            long version = state.getVersion();
+            saved.add(state);
+            keys.add(key);
+            versions.add(version);
+            state.setVersion(version + 1);
+            try {
+                records.add(encodeState(key, state));
+            } finally {
+                state.setVersion(version);
+            }
+        }
+        if (records.isEmpty()) {
+            return;
+        }
+        long sequence;
+        synchronized (writeLock) {
+            ensureOpen();
+            for (int i = 0; i < records.size(); i++) {
+                String key = keys.get(i);
+                AgentState state = saved.get(i);
+                Location previous = index.get(key);
+                long version = AgentState.versionAfterSave((previous != null) ? previous.version : 0, versions.get(i));
+                ByteBuffer record = records.get(i);
+                if (version != versions.get(i) + 1) {
+                    state.setVersion(version);
+                    record = encodeState(key, state);
+                }
+                put(key, record, version);
+                state.setVersion(version);
+            }
+            sequence = writtenSequence;
+        }
+        awaitDurable(sequence);
+    }
+
+    /**
+     * Compares the version under the write lock, so the check and the append are atomic.
+     */
+    @Override
+    public boolean compareAndSave(AgentState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("AgentState must not be null");
+        }
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        long expected = state.getVersion();
+        boolean saved = false;
+        long sequence;
+        try {
+            state.setVersion(expected + 1);
+            ByteBuffer record = encodeState(key, state);
+            synchronized (writeLock) {
+                ensureOpen();
+                Location previous = index.get(key);
+                if (((previous != null) ? previous.version : 0) != expected) {
+                    return false;
+                }
+                put(key, record, expected + 1);
+                saved = true;
+                sequence = writtenSequence;
+            }
+        } finally {
+            if (!saved) {
+                state.setVersion(expected);
+            }
+        }
+        awaitDurable(sequence);
+        return true;
+    }
+
+    // Must hold writeLock
+    private void put(String key, ByteBuffer record, long version) {
+        Location location = append(record, version);
+        Location previous = index.put(key, location);
+        if (previous != null) {
+            liveBytes -= previous.length;
+        }
+        liveBytes += location.length;
+    }
+
+    @Override
+    public Optional<AgentState> findById(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return Optional.empty();
+        }
+        String key = getKey(tenantId, threadId);
+        while (true) {
+            Location location;
+            synchronized (writeLock) {
+                ensureOpen();
+                location = index.get(key);
+            }
+            if (location == null) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(AgentState.fromJsonLazy(readValue(location)));
+            } catch (ClosedChannelException e) {
+                // Retry only if the segment was compacted away after the lookup and the index now
+                // points at the copy; anything else (e.g. an interrupted read closing the channel) is fatal
+                synchronized (writeLock) {
+                    ensureOpen();
+                    if (index.get(key) == location || e instanceof ClosedByInterruptException) {
+                        throw new UncheckedIOException("Could not read agent state " + key + " from " + location.segment.path, e);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read agent state " + key + " from " + location.segment.path, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return false;
+        }
+        return deleteAll(tenantId, List.of(threadId)) > 0;
+    }
+
+    @Override
+    public long deleteAll(String tenantId, Collection<String> threadIds) {
+        if (tenantId == null) {
+            return 0;
+        }
+        long deleted = 0;
+        long sequence;
+        synchronized (writeLock) {
+            ensureOpen();
+            for (String threadId : threadIds) {
+                if (threadId == null) {
+                    continue;
+                }
+                String key = getKey(tenantId, threadId);
+                Location previous = index.remove(key);
+                if (previous != null) {
+                    append(encode(DELETE, key, new byte[0]), 0);
+                    liveBytes -= previous.length;
+                    deleted++;
+                }
+            }
+            sequence = writtenSequence;
+        }
+        if (deleted > 0) {
+            awaitDurable(sequence);
+        }
+        return deleted;
+    }
+
+    /**
+     * Collects the tenant's keys under the lock and reads each state from disk as the stream reaches it.
+     */
+    @Override
+    public Stream<AgentState> scanByTenant(String tenantId) {
+        String prefix = StateKeys.tenantPrefix(tenantId);
+        List<String> threadIds = new ArrayList<>();
+        synchronized (writeLock) {
+            ensureOpen();
+            for (String key : index.keySet()) {
+                if (key.startsWith(prefix)) {
+                    threadIds.add(key.substring(prefix.length()));
+                }
+            }
+        }
+        return threadIds.stream()
+                .map(threadId -> findById(tenantId, threadId))
+                .flatMap(Optional::stream)
+                .filter(state -> tenantId.equals(state.getTenantId()));
+    }
+
+    /**
+     * Appends tombstones for the tenant's threads in batches, releasing the write lock between batches
+     * so regular saves are not blocked for the whole purge. All tombstones are synced once at the end.
+     */
+    @Override
+    public long purgeTenant(String tenantId) {
+        String prefix = StateKeys.tenantPrefix(tenantId);
+        List<String> keys = new ArrayList<>();
+        synchronized (writeLock) {
+            ensureOpen();
+            for (String key : index.keySet()) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+        }
+        long purged = 0;
+        long sequence = 0;
+        for (int from = 0; from < keys.size(); from += PURGE_BATCH_SIZE) {
+            synchronized (writeLock) {
+                ensureOpen();
+                for (String key : keys.subList(from, Math.min(from + PURGE_BATCH_SIZE, keys.size()))) {
+                    Location previous = index.remove(key);
+                    if (previous != null) {
+                        append(encode(DELETE, key, new byte[0]), 0);
+                        liveBytes -= previous.length;
+                        purged++;
+                    }
+                }
+                sequence = writtenSequence;
+            }
+        }
+        if (purged > 0) {
+            awaitDurable(sequence);
+        }
+        log.info("Purged {} agent states of tenant {}", purged, tenantId);
+        return purged;
+    }
+
+    @Override
+    public boolean exists(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return false;
+        }
+        synchronized (writeLock) {
+            ensureOpen();
+            return index.containsKey(getKey(tenantId, threadId));
+        }
+    }
+
+    private ByteBuffer encodeState(String key, AgentState state) {
+        byte[] json = state.toJson().getBytes(StandardCharsets.UTF_8);
+        if (!compressValues) {
+            return encode(PUT, key, json);
+        }
+        int dictionaryId = codec.getDictionaryId();
+        byte[] deflated = codec.compress(json, PersistenceMode.FILE);
+        if (dictionaryId == 0) {
+            return encode(PUT_DEFLATED, key, deflated);
+        }
+        return encode(PUT_DEFLATED_DICTIONARY, key, ByteBuffer.allocate(4 + deflated.length).putInt(dictionaryId).put(deflated).array());
+    }
+
+    /**
+     * Inflates a compressed record value until it ends or {@code maxBytes} have been produced.
+     */
+    private byte[] inflate(byte type, ByteBuffer value, int maxBytes) throws IOException {
+        try {
+            if (type == PUT_DEFLATED_DICTIONARY) {
+                int dictionaryId = value.getInt(value.position());
+                return codec.decompress(value.position(value.position() + 4), dictionaryId, maxBytes);
+            }
+            return codec.decompress(value, 0, maxBytes);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("Could not inflate agent state: " + e.getMessage(), e);
+        }
+    }
+
+    private static ByteBuffer encode(byte type, String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int bodyLength = MIN_BODY_BYTES + keyBytes.length + value.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+        record.position(HEADER_BYTES);
+        record.put(type).putInt(keyBytes.length).put(keyBytes).put(value);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER_BYTES, bodyLength);
+        record.putInt(0, (int) crc.getValue()).putInt(4, bodyLength);
+        return record.position(0);
+    }
+
+    // Must hold writeLock
+    private Location append(ByteBuffer record, long version) {
+        int length = record.remaining();
+        try {
+            if (active.size > 0 && active.size + length > maxSegmentBytes) {
+                roll();
+            }
+            long offset = active.size;
+            while (record.hasRemaining()) {
+                active.channel.write(record, offset + record.position());
+            }
+            active.size += length;
+            logBytes += length;
+            writtenSequence++;
+            return new Location(active, offset, length, version);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not append to agent state log " + active.path, e);
+        }
+    }
+
+    // Must hold writeLock. Sealing forces the segment, so later syncs only need the active one.
+    private void roll() throws IOException {
+        active.channel.force(false);
+        active = openSegment(active.id + 1);
+        segments.put(active.id, active);
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, path, channel, channel.size());
+    }
+
+    private ByteBuffer readRecord(Location location) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.length);
+        while (record.hasRemaining()) {
+            if (location.segment.channel.read(record, location.offset + record.position()) < 0) {
+                throw new IOException("Unexpected end of segment at offset " + location.offset);
+            }
+        }
+        record.flip();
+        if (!checksumMatches(record, 0)) {
+            throw new IOException("Checksum mismatch for record at offset " + location.offset);
+        }
+        return record;
+    }
+
+    private String readValue(Location location) throws IOException {
+        ByteBuffer record = readRecord(location);
+        int keyLength = record.getInt(HEADER_BYTES + 1);
+        int valueOffset = HEADER_BYTES + MIN_BODY_BYTES + keyLength;
+        byte type = record.get(HEADER_BYTES);
+        if (type == PUT_DEFLATED || type == PUT_DEFLATED_DICTIONARY) {
+            byte[] json = inflate(type, record.position(valueOffset), Integer.MAX_VALUE);
+            return new String(json, StandardCharsets.UTF_8);
+        }
+        return new String(record.array(), valueOffset, record.limit() - valueOffset, StandardCharsets.UTF_8);
+    }
+
+    private static boolean checksumMatches(ByteBuffer buffer, int recordStart) {
+        int bodyLength = buffer.getInt(recordStart + 4);
+        if (bodyLength < MIN_BODY_BYTES || bodyLength > buffer.limit() - recordStart - HEADER_BYTES) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(recordStart + HEADER_BYTES).limit(recordStart + HEADER_BYTES + bodyLength));
+        return (int) crc.getValue() == buffer.getInt(recordStart);
+    }
+
+    private void awaitDurable(long sequence) {
+        if (fsyncIntervalNanos > 0 || syncedSequence >= sequence) {
+            return;
+        }
+        // Whoever gets the lock first forces everything written so far, including the writes of
+        // the threads queued behind it
+        synchronized (syncLock) {
+            if (syncedSequence < sequence) {
+                syncToDisk();
+            }
+        }
+    }
+
+    // Must hold syncLock
+    private void syncToDisk() {
+        Segment segment;
+        long target;
+        synchronized (writeLock) {
+            segment = active;
+            target = writtenSequence;
+        }
+        if (target == syncedSequence) {
+            return;
+        }
+        try {
+            segment.channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not sync agent state log " + segment.path, e);
+        }
+        syncs.incrementAndGet();
+        syncedWrites.addAndGet(target - syncedSequence);
+        syncedSequence = target;
+    }
+
+    /**
+     * Forces every write accepted so far to disk. Only needed with a positive {@code fsyncInterval};
+     * otherwise saves are already durable when they return.
+     */
+    public void sync() {
+        synchronized (syncLock) {
+            ensureOpen();
+            syncToDisk();
+        }
+    }
+
+    private void backgroundSync() {
+        try {
+            synchronized (syncLock) {
+                if (!closed) {
+                    syncToDisk();
+                }
+            }
+        } catch (Exception e) {
+            log.error("Background sync of agent state log {} failed", directory, e);
+        }
+    }
+
+    private void backgroundCompaction() {
+        try {
+            long dead;
+            long live;
+            synchronized (writeLock) {
+                if (closed || segments.size() < 2) {
+                    return;
+                }
+                dead = logBytes - liveBytes;
+                live = liveBytes;
+            }
+            if (dead > Math.max(live, maxSegmentBytes)) {
+                compact();
+            }
+        } catch (Exception e) {
+            log.error("Background compaction of agent state log {} failed", directory, e);
+        }
+    }
+
+    /**
+     * Rewrites the live records of all sealed segments into the active segment and deletes the sealed
+     * segments, then writes a new index snapshot. Runs in the background when superseded records
+     * outweigh live ones; may also be called directly.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            Set<Segment> sealed;
+            List<String> keys = new ArrayList<>();
+            List<Location> locations = new ArrayList<>();
+            synchronized (writeLock) {
+                ensureOpen();
+                sealed = new HashSet<>(segments.headMap(active.id, false).values());
+                if (sealed.isEmpty()) {
+                    return;
+                }
+                index.forEach((key, location) -> {
+                    if (sealed.contains(location.segment)) {
+                        keys.add(key);
+                        locations.add(location);
+                    }
+                });
+            }
+
+            long before;
+            synchronized (writeLock) {
+                before = logBytes;
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                ByteBuffer record;
+                try {
+                    record = readRecord(locations.get(i)); // sealed segments are immutable
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not read " + locations.get(i).segment.path + " during compaction", e);
+                }
+                synchronized (writeLock) {
+                    ensureOpen();
+                    // Only move records that were not superseded meanwhile
+                    if (index.get(keys.get(i)) == locations.get(i)) {
+                        index.put(keys.get(i), append(record, locations.get(i).version));
+                    }
+                }
+            }
+
+            // The new snapshot must reference the copies before the originals disappear
+            writeSnapshot();
+            long after;
+            synchronized (syncLock) {
+                synchronized (writeLock) {
+                    for (Segment segment : sealed) {
+                        segments.remove(segment.id);
+                        logBytes -= segment.size;
+                        try {
+                            segment.channel.close();
+                            Files.deleteIfExists(segment.path);
+                        } catch (IOException e) {
+                            log.warn("Could not delete compacted segment {}: {}", segment.path, e.getMessage());
+                        }
+                    }
+                    after = logBytes;
+                }
+            }
+            compactions.incrementAndGet();
+            log.info("Compacted agent state log {}: moved {} live records, log size {} -> {} bytes",
+                    directory, keys.size(), before, after);
+        }
+    }
+
+    // Snapshot: [int magic][int format version][long replaySegment][long replayOffset][int count]
+    //           count x ([int keyLength][key][long segment][long offset][int length][long version]) [int crc32c]
+    private void writeSnapshot() {
+        List<byte[]> keys;
+        List<Location> locations;
+        Segment replaySegment;
+        long replayOffset;
+        synchronized (writeLock) {
+            keys = new ArrayList<>(index.size());
+            locations = new ArrayList<>(index.size());
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                keys.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                locations.add(entry.getValue());
+            }
+            replaySegment = active;
+            replayOffset = active.size;
+        }
+        synchronized (syncLock) {
+            try {
+                // Every record the snapshot references must be on disk; sealed segments already are
+                replaySegment.channel.force(false);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not sync agent state log " + replaySegment.path, e);
+            }
+        }
+
+        int size = 4 + 4 + 8 + 8 + 4 + 4;
+        for (byte[] key : keys) {
+            size += 4 + key.length + 8 + 8 + 4 + 8;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(replaySegment.id).putLong(replayOffset).putInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Location location = locations.get(i);
+            buffer.putInt(keys.get(i).length).put(keys.get(i))
+                    .putLong(location.segment.id).putLong(location.offset).putInt(location.length).putLong(location.version);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, size - 4);
+        buffer.putInt((int) crc.getValue()).flip();
+
+        Path target = directory.resolve(SNAPSHOT_FILE);
+        Path temp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write index snapshot " + target, e);
+        }
+    }
+
+    /**
+     * Opens all segments, loads the index snapshot if it is usable and replays the log written after it.
+     *
+     * @return {replayed records, truncated bytes}
+     */
+    private long[] recover() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String id = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                try {
+                    Segment segment = openSegment(Long.parseLong(id));
+                    segments.put(segment.id, segment);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file {} in agent state log", file);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            Segment first = openSegment(1);
+            segments.put(first.id, first);
+        }
+
+        long replaySegment = segments.firstKey();
+        long replayOffset = 0;
+        long[] snapshotStart = loadSnapshot();
+        if (snapshotStart != null) {
+            replaySegment = snapshotStart[0];
+            replayOffset = snapshotStart[1];
+        } else {
+            index.clear();
+        }
+
+        long replayed = 0;
+        long truncated = 0;
+        for (Segment segment : segments.tailMap(replaySegment, true).values()) {
+            long start = (segment.id == replaySegment) ? replayOffset : 0;
+            boolean last = segment.id == segments.lastKey();
+            long[] result = replay(segment, start, last);
+            replayed += result[0];
+            truncated += result[1];
+        }
+
+        liveBytes = 0;
+        for (Location location : index.values()) {
+            liveBytes += location.length;
+        }
+        logBytes = 0;
+        for (Segment segment : segments.values()) {
+            logBytes += segment.size;
+        }
+        active = segments.lastEntry().getValue();
+        return new long[] {replayed, truncated};
+    }
+
+    /**
+     * @return {replay segment, replay offset}, or null if there is no usable snapshot.
+     */
+    private long[] loadSnapshot() throws IOException {
+        Path path = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int size = buffer.limit();
+            if (size < 32 || buffer.getInt(0) != SNAPSHOT_MAGIC || buffer.getInt(4) != SNAPSHOT_VERSION) {
+                log.warn("Ignoring unreadable index snapshot {}; replaying the full log", path);
+                return null;
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate().limit(size - 4));
+            if ((int) crc.getValue() != buffer.getInt(size - 4)) {
+                log.warn("Ignoring index snapshot {} with checksum mismatch; replaying the full log", path);
+                return null;
+            }
+            long replaySegment = buffer.getLong(8);
+            long replayOffset = buffer.getLong(16);
+            int count = buffer.getInt(24);
+            Segment start = segments.get(replaySegment);
+            if (start == null || start.size < replayOffset) {
+                log.warn("Index snapshot {} does not match the log; replaying the full log", path);
+                return null;
+            }
+            buffer.position(28);
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[buffer.getInt()];
+                buffer.get(key);
+                Segment segment = segments.get(buffer.getLong());
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                long version = buffer.getLong();
+                if (segment == null || offset + length > segment.size) {
+                    log.warn("Index snapshot {} references missing log data; replaying the full log", path);
+                    index.clear();
+                    return null;
+                }
+                index.put(new String(key, StandardCharsets.UTF_8), new Location(segment, offset, length, version));
+            }
+            return new long[] {replaySegment, replayOffset};
+        }
+    }
+
+    /**
+     * Applies the records of {@code segment} from {@code start} to the index. A torn or corrupt record
+     * in the last segment is the tail of an interrupted write and is truncated.
+     *
+     * @return {replayed records, truncated bytes}
+     */
+    private long[] replay(Segment segment, long start, boolean last) throws IOException {
+        if (segment.size <= start) {
+            return new long[] {0, 0};
+        }
+        MappedByteBuffer buffer = segment.channel.map(FileChannel.MapMode.READ_ONLY, start, segment.size - start);
+        int position = 0;
+        long replayed = 0;
+        while (position < buffer.limit()) {
+            int remaining = buffer.limit() - position;
+            int bodyLength = (remaining >= HEADER_BYTES) ? buffer.getInt(position + 4) : -1;
+            if (bodyLength < MIN_BODY_BYTES || bodyLength > remaining - HEADER_BYTES || !checksumMatches(buffer, position)) {
+                break;
+            }
+            byte type = buffer.get(position + HEADER_BYTES);
+            int keyLength = buffer.getInt(position + HEADER_BYTES + 1);
+            if (keyLength < 0 || keyLength > bodyLength - MIN_BODY_BYTES) {
+                break;
+            }
+            byte[] key = new byte[keyLength];
+            buffer.get(position + HEADER_BYTES + MIN_BODY_BYTES, key);
+            String keyString = new String(key, StandardCharsets.UTF_8);
+            int length = HEADER_BYTES + bodyLength;
+            if (type == PUT || type == PUT_DEFLATED || type == PUT_DEFLATED_DICTIONARY) {
+                int valueOffset = position + HEADER_BYTES + MIN_BODY_BYTES + keyLength;
+                byte[] valuePrefix;
+                if (type != PUT) {
+                    valuePrefix = inflate(type, buffer.slice(valueOffset, position + length - valueOffset), VERSION_PREFIX_BYTES);
+                } else {
+                    valuePrefix = new byte[Math.min(VERSION_PREFIX_BYTES, position + length - valueOffset)];
+                    buffer.get(valueOffset, valuePrefix);
+                }
+                long version = AgentState.peekVersion(new String(valuePrefix, StandardCharsets.US_ASCII));
+                index.put(keyString, new Location(segment, start + position, length, version));
+            } else if (type == DELETE) {
+                index.remove(keyString);
+            } else {
+                break;
+            }
+            position += length;
+            replayed++;
+        }
+
+        long valid = start + position;
+        long invalid = segment.size - valid;
+        if (invalid > 0) {
+            if (last) {
+                log.warn("Truncating {} bytes of incomplete records at offset {} of {}", invalid, valid, segment.path);
+                segment.channel.truncate(valid);
+                segment.channel.force(false);
+                segment.size = valid;
+            } else {
+                log.error("Corrupt record at offset {} of {}; skipping the remaining {} bytes of this segment",
+                        valid, segment.path, invalid);
+                return new long[] {replayed, 0};
+            }
+        }
+        return new long[] {replayed, invalid};
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("FileAgentStateRepository for " + directory + " is closed");
+        }
+    }
+
+    /**
+     * Syncs the log, writes an index snapshot so the next start does not need to replay, and closes
+     * all segment files.
+     */
+    @Override
+    public void close() {
+        synchronized (compactionLock) {
+            synchronized (syncLock) {
+                synchronized (writeLock) {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                }
+                // Releases saves still waiting for their group commit
+                try {
+                    syncToDisk();
+                } catch (UncheckedIOException e) {
+                    log.error("Could not sync agent state log {} on close", directory, e);
+                }
+            }
+            background.shutdownNow();
+            try {
+                writeSnapshot();
+            } catch (UncheckedIOException e) {
+                log.warn("Could not write index snapshot on close; the log will be replayed on next start: {}", e.getMessage());
+            }
+            closeSegments();
+        }
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                log.warn("Could not close segment {}: {}", segment.path, e.getMessage());
+            }
+        }
+    }
+
+    public int getEntryCount() {
+        synchronized (writeLock) {
+            return index.size();
+        }
+    }
+
+    /**
+     * @return Size of the records currently referenced by the index.
+     */
+    public long getLiveBytes() {
+        synchronized (writeLock) {
+            return liveBytes;
+        }
+    }
+
+    /**
+     * @return Total size of all segment files, including superseded records and tombstones.
+     */
+    public long getLogBytes() {
+        synchronized (writeLock) {
+            return logBytes;
+        }
+    }
+
+    public int getSegmentCount() {
+        synchronized (writeLock) {
+            return segments.size();
+        }
+    }
+
+    public long getSyncCount() {
+        return syncs.get();
+    }
+
+    /**
+     * @return Mean number of writes made durable by one fsync, i.e. the group commit factor.
+     */
+    public double getAverageWritesPerSync() {
+        long count = syncs.get();
+        return (count == 0) ? 0.0 : (double) syncedWrites.get() / count;
+    }
+
+    public long getCompactionCount() {
+        return compactions.get();
+    }
+
+    /**
+     * @return Time spent opening the log, loading the snapshot and replaying on startup.
+     */
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    /**
+     * @return Records replayed on startup because they were written after the last index snapshot.
+     */
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+
+    /**
+     * @return Bytes of torn records discarded from the end of the log on startup.
+     */
+    public long getTruncatedBytes() {
+        return truncatedBytes;
+    }
+
+    /**
+     * Builder for {@link FileAgentStateRepository}.
+     */
+    public static class Builder {
+        private final Path directory;
+        private long maxSegmentBytes = 64L * 1024 * 1024;
+        private Duration fsyncInterval = Duration.ZERO;
+        private Duration compactionCheckInterval = Duration.ofSeconds(30);
+        private boolean compressValues = false;
+        private StateCodec codec = StateCodec.builder().build();
+
+        private Builder(Path directory) {
+            if (directory == null) {
+                throw new IllegalArgumentException("directory must not be null");
+            }
+            this.directory = directory;
+        }
+
+        /**
+         * Sets the size at which the active segment is sealed and a new one started.
+         *
+         * @param maxSegmentBytes Segment size in bytes
+         * @return This builder for chaining
+         */
+        public Builder maxSegmentBytes(long maxSegmentBytes) {
+            if (maxSegmentBytes <= 0 || maxSegmentBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("maxSegmentBytes must be between 1 and " + Integer.MAX_VALUE);
+            }
+            this.maxSegmentBytes = maxSegmentBytes;
+            return this;
+        }
+
+        /**
+         * Sets how often the log is forced to disk. With {@link Duration#ZERO}, the default, every save is
+         * durable when it returns; otherwise up to this much of the most recent writes can be lost on a crash.
+         *
+         * @param fsyncInterval Interval between background fsyncs, or zero for synchronous group commit
+         * @return This builder for chaining
+         */
+        public Builder fsyncInterval(Duration fsyncInterval) {
+            if (fsyncInterval == null || fsyncInterval.isNegative()) {
+                throw new IllegalArgumentException("fsyncInterval must not be negative");
+            }
+            this.fsyncInterval = fsyncInterval;
+            return this;
+        }
+
+        /**
+         * Sets how often the background thread checks whether the log needs compaction.
+         *
+         * @param compactionCheckInterval Check interval
+         * @return This builder for chaining
+         */
+        public Builder compactionCheckInterval(Duration compactionCheckInterval) {
+            if (compactionCheckInterval == null || compactionCheckInterval.isNegative() || compactionCheckInterval.isZero()) {
+                throw new IllegalArgumentException("compactionCheckInterval must be positive");
+            }
+            this.compactionCheckInterval = compactionCheckInterval;
+            return this;
+        }
+
+        /**
+         * Stores serialized states deflated. Trades CPU on every save and lookup for a smaller log.
+         *
+         * @param compressValues true to compress new records
+         * @return This builder for chaining
+         */
+        public Builder compressValues(boolean compressValues) {
+            this.compressValues = compressValues;
+            return this;
+        }
+
+        /**
+         * Sets the codec that compresses values, e.g. one with a trained {@link StateDictionary}, and
+         * enables {@code compressValues}. Its level for {@link PersistenceMode#FILE} is used.
+         *
+         * @param codec The codec
+         * @return This builder for chaining
+         */
+        public Builder codec(StateCodec codec) {
+            if (codec == null) {
+                throw new IllegalArgumentException("codec must not be null");
+            }
+            this.codec = codec;
+            this.compressValues = true;
+            return this;
+        }
+
+        public FileAgentStateRepository build() {
+            return new FileAgentStateRepository(this);
+        }
+    }
+}
@@ -1,23 +1,310 @@
 package com.veyon.veyflow.state;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * In-memory implementation of {@link AgentStateRepository}, bounded by entry count and by the
+ * estimated serialized size of the stored states.
+ * <p>
+ * When a bound is exceeded the least recently used thread is evicted; if a spill directory is
+ * configured it is written to a local overflow file and transparently reloaded on the next lookup
+ * instead of being dropped. Threads can also expire after a time since their last write or access;
+ * expiry is driven by a {@link TimingWheel} and expired threads are always dropped.
+ * <p>
+ * Lookups return the stored instance itself. Its weight is estimated when it is saved, so changes
+ * made after a save are only accounted for on the next save.
+ */
+public class InMemoryAgentStateRepository implements AgentStateRepository, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(InMemoryAgentStateRepository.class);
+    private static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final int WHEEL_BUCKETS = 512;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long expireAfterWriteNanos;
+    private final long expireAfterAccessNanos;
+
+    // Iteration starts at the least recently used thread: saves and reads move a thread to the end (see
+    // touch). Internal reads such as expiry, exists and version checks use get, which leaves the order alone.
+    private final Map<String, Entry> store = new LinkedHashMap<>();
+    private final TimingWheel<String> expiryWheel;
+    private final ScheduledExecutorService expiryTicker;
+    private final SpillFile spillFile;
 
-public class InMemoryAgentStateRepository implements AgentStateRepository {
+    private long estimatedBytes = 0;
+    private long evictionCount = 0;
+    private long expirationCount = 0;
+    private long spillCount = 0;
 
-    private final Map<String, AgentState> store = new ConcurrentHashMap<>();
+    private static final class Entry {
+        final AgentState state;
+        final long weight;
+        // Version at save time; the stored instance itself is shared with callers and may change
+        final long version;
+        final long writtenAt;
+        long accessedAt;
+        // Deadline of this key's single pending timeout in the wheel, NONE if not scheduled
+        long scheduledDeadline = NONE;
+
+        Entry(AgentState state, long weight, long now) {
+            this.state = state;
+            this.weight = weight;
+            this.version = state.getVersion();
+            this.writtenAt = now;
+            this.accessedAt = now;
+        }
+    }
+
+    /**
+     * Creates a repository bounded to 256 MiB of estimated state size, without expiry or spilling.
+     */
+    public InMemoryAgentStateRepository() {
+        this(builder());
+    }
+
+    private InMemoryAgentStateRepository(Builder builder) {
+        this.maxEntries = builder.maxEntries;
+        this.maxBytes = builder.maxBytes;
+        this.expireAfterWriteNanos = (builder.expireAfterWrite != null) ? builder.expireAfterWrite.toNanos() : 0;
+        this.expireAfterAccessNanos = (builder.expireAfterAccess != null) ? builder.expireAfterAccess.toNanos() : 0;
+        this.spillFile = (builder.spillDirectory != null) ? new SpillFile(builder.spillDirectory) : null;
+
+        long shortestTtl = shortestTtlNanos();
+        if (shortestTtl > 0) {
+            // Resolution of 1/64 of the TTL keeps expiry within ~2% of the configured time
+            long tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(10), shortestTtl / 64);
+            this.expiryWheel = new TimingWheel<>(tickNanos, WHEEL_BUCKETS, System.nanoTime());
+            this.expiryTicker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "veyflow-inmemory-expiry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.expiryTicker.scheduleAtFixedRate(this::expireEntries, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+        } else {
+            this.expiryWheel = null;
+            this.expiryTicker = null;
+        }
+    }
+
+    /**
+     * Creates a new builder for a bounded in-memory repository.
+     *
+     * @return A new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
 
     private String getKey(String tenantId, String threadId) {
-        return tenantId + "::" + threadId;
+        return StateKeys.key(tenantId, threadId);
+    }
+
+    private long shortestTtlNanos() {
+        if (expireAfterWriteNanos > 0 && expireAfterAccessNanos > 0) {
+            return Math.min(expireAfterWriteNanos, expireAfterAccessNanos);
+        }
+        return Math.max(expireAfterWriteNanos, expireAfterAccessNanos);
+    }
+
+    /**
+     * Estimated serialized size of a state; the same JSON form the Redis repository stores.
+     */
+    private static long weigh(AgentState state) {
+        return state.toJson().length();
+    }
+
+    private long deadline(Entry entry) {
+        long deadline = Long.MAX_VALUE;
+        if (expireAfterWriteNanos > 0) {
+            deadline = entry.writtenAt + expireAfterWriteNanos;
+        }
+        if (expireAfterAccessNanos > 0) {
+            deadline = Math.min(deadline, entry.accessedAt + expireAfterAccessNanos);
+        }
+        return deadline;
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return expiryWheel != null && deadline(entry) <= now;
     }
 
     @Override
     public void save(AgentState state) {
+        validate(state);
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        long weight = weigh(state);
+        synchronized (store) {
+            state.setVersion(AgentState.versionAfterSave(storedVersion(key), state.getVersion()));
+            put(key, state, weight);
+        }
+    }
+
+    /**
+     * Validates every state before saving any, so a null state leaves the store unchanged.
+     */
+    @Override
+    public void saveAll(Collection<AgentState> states) {
+        for (AgentState state : states) {
+            validate(state);
+        }
+        for (AgentState state : states) {
+            save(state);
+        }
+    }
+
+    /**
+     * Compares and replaces the version atomically under the store lock.
+     */
+    @Override
+    public boolean compareAndSave(AgentState state) {
+        validate(state);
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        long weight = weigh(state);
+        synchronized (store) {
+            long storedVersion = storedVersion(key);
+            if (storedVersion != state.getVersion()) {
+                return false;
+            }
+            state.setVersion(storedVersion + 1);
+            put(key, state, weight);
+            return true;
+        }
+    }
+
+    // Must hold store lock. Not an access: the order of eviction stays as it is.
+    private long storedVersion(String key) {
+        Entry entry = store.get(key);
+        if (entry != null) {
+            return isExpired(entry, System.nanoTime()) ? 0 : entry.version;
+        }
+        if (spillFile != null && spillFile.contains(key)) {
+            return AgentState.fromJsonLazy(spillFile.get(key)).getVersion();
+        }
+        return 0;
+    }
+
+    private static void validate(AgentState state) {
         if (state == null || state.getTenantId() == null || state.getThreadId() == null) {
             throw new IllegalArgumentException("AgentState and its tenantId and threadId must not be null");
         }
-        store.put(getKey(state.getTenantId(), state.getThreadId()), state);
+    }
+
+    // Must hold store lock
+    private void put(String key, AgentState state, long weight) {
+        Entry entry = new Entry(state, weight, System.nanoTime());
+        Entry previous = store.remove(key); // re-inserted at the most recently used end
+        store.put(key, entry);
+        if (previous != null) {
+            estimatedBytes -= previous.weight;
+            entry.scheduledDeadline = previous.scheduledDeadline;
+        }
+        if (spillFile != null) {
+            spillFile.remove(key);
+        }
+        estimatedBytes += weight;
+        if (expiryWheel != null && entry.scheduledDeadline == NONE) {
+            scheduleExpiry(key, entry, deadline(entry));
+        }
+        evictToBounds(key);
+    }
+
+    // Must hold store lock
+    private void scheduleExpiry(String key, Entry entry, long deadline) {
+        expiryWheel.schedule(key, deadline);
+        entry.scheduledDeadline = deadline;
+    }
+
+    // Must hold store lock. Never evicts the thread that was just written.
+    private void evictToBounds(String justWritten) {
+        Iterator<Map.Entry<String, Entry>> eldest = store.entrySet().iterator();
+        while ((store.size() > maxEntries || estimatedBytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<String, Entry> candidate = eldest.next();
+            if (candidate.getKey().equals(justWritten)) {
+                continue;
+            }
+            eldest.remove();
+            estimatedBytes -= candidate.getValue().weight;
+            evictionCount++;
+            if (spillFile != null) {
+                spillFile.put(candidate.getKey(), candidate.getValue().state.toJson());
+                spillCount++;
+            }
+        }
+    }
+
+    private void expireEntries() {
+        try {
+            synchronized (store) {
+                long now = System.nanoTime();
+                expiryWheel.advance(now, (key, scheduledDeadline) -> {
+                    Entry entry = store.get(key);
+                    if (entry == null || entry.scheduledDeadline != scheduledDeadline) {
+                        return; // deleted, evicted, or superseded by a newer timeout
+                    }
+                    long deadline = deadline(entry);
+                    if (deadline <= now) {
+                        store.remove(key);
+                        estimatedBytes -= entry.weight;
+                        expirationCount++;
+                    } else {
+                        scheduleExpiry(key, entry, deadline);
+                    }
+                });
+            }
+        } catch (Exception e) {
+            log.error("Failed to expire in-memory agent states", e);
+        }
+    }
+
+    // Must hold store lock. Moves the thread to the most recently used end.
+    private void touch(String key, Entry entry) {
+        store.remove(key);
+        store.put(key, entry);
+    }
+
+    // Must hold store lock. A read by a caller: counts as an access for expiry and eviction.
+    private AgentState lookup(String key) {
+        long now = System.nanoTime();
+        Entry entry = store.get(key);
+        if (entry != null) {
+            if (isExpired(entry, now)) {
+                return null; // the wheel will remove it on its next tick
+            }
+            entry.accessedAt = now;
+            touch(key, entry);
+            return entry.state;
+        }
+        if (spillFile != null && spillFile.contains(key)) {
+            AgentState state = AgentState.fromJsonLazy(spillFile.get(key));
+            spillFile.remove(key);
+            Entry promoted = new Entry(state, weigh(state), now);
+            store.put(key, promoted);
+            estimatedBytes += promoted.weight;
+            if (expiryWheel != null) {
+                scheduleExpiry(key, promoted, deadline(promoted));
+            }
+            evictToBounds(key);
+            return state;
+        }
+        return null;
     }
 
     @Override
@@ -25,7 +312,9 @@ public class InMemoryAgentStateRepository implements AgentStateRepository {
         if (tenantId == null || threadId == null) {
             return Optional.empty();
         }
-        return Optional.ofNullable(store.get(getKey(tenantId, threadId)));
+        synchronized (store) {
+            return Optional.ofNullable(lookup(getKey(tenantId, threadId)));
+        }
     }
 
     @Override
@@ -33,7 +322,20 @@ public class InMemoryAgentStateRepository implements AgentStateRepository {
         if (tenantId == null || threadId == null) {
             return false;
         }
-        return store.remove(getKey(tenantId, threadId)) != null;
+        synchronized (store) {
+            return remove(getKey(tenantId, threadId));
+        }
+    }
+
+    // Must hold store lock
+    private boolean remove(String key) {
+        Entry removed = store.remove(key);
+        boolean spilled = spillFile != null && spillFile.remove(key);
+        if (removed != null) {
+            estimatedBytes -= removed.weight;
+            return !isExpired(removed, System.nanoTime()) || spilled;
+        }
+        return spilled;
     }
 
     @Override
@@ -41,6 +343,285 @@ public class InMemoryAgentStateRepository implements AgentStateRepository {
         if (tenantId == null || threadId == null) {
             return false;
         }
-        return store.containsKey(getKey(tenantId, threadId));
+        String key = getKey(tenantId, threadId);
+        synchronized (store) {
+            Entry entry = store.get(key);
+            if (entry != null) {
+                return !isExpired(entry, System.nanoTime());
+            }
+            return spillFile != null && spillFile.contains(key);
+        }
+    }
+
+    @Override
+    public Map<String, AgentState> findAll(String tenantId, Collection<String> threadIds) {
+        Map<String, AgentState> found = new LinkedHashMap<>();
+        if (tenantId == null) {
+            return found;
+        }
+        synchronized (store) {
+            for (String threadId : threadIds) {
+                if (threadId != null) {
+                    AgentState state = lookup(getKey(tenantId, threadId));
+                    if (state != null) {
+                        found.put(threadId, state);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public long deleteAll(String tenantId, Collection<String> threadIds) {
+        if (tenantId == null) {
+            return 0;
+        }
+        long deleted = 0;
+        synchronized (store) {
+            for (String threadId : threadIds) {
+                if (threadId != null && remove(getKey(tenantId, threadId))) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Takes a snapshot of the tenant's threads under the lock; spilled threads are read from the spill
+     * file as the stream reaches them, without promoting them back into memory.
+     */
+    @Override
+    public Stream<AgentState> scanByTenant(String tenantId) {
+        if (tenantId == null) {
+            return Stream.empty();
+        }
+        String prefix = StateKeys.tenantPrefix(tenantId);
+        List<AgentState> inMemory = new ArrayList<>();
+        List<String> spilled = new ArrayList<>();
+        synchronized (store) {
+            long now = System.nanoTime();
+            store.forEach((key, entry) -> {
+                if (key.startsWith(prefix) && !isExpired(entry, now) && tenantId.equals(entry.state.getTenantId())) {
+                    inMemory.add(entry.state);
+                }
+            });
+            if (spillFile != null) {
+                for (String key : spillFile.keys()) {
+                    if (key.startsWith(prefix)) {
+                        spilled.add(key);
+                    }
+                }
+            }
+        }
+        Stream<AgentState> fromSpill = spilled.stream()
+                .map(key -> {
+                    synchronized (store) {
+                        return spillFile.get(key);
+                    }
+                })
+                .filter(Objects::nonNull)
+                .map(AgentState::fromJsonLazy)
+                .filter(state -> tenantId.equals(state.getTenantId()));
+        return Stream.concat(inMemory.stream(), fromSpill);
+    }
+
+    @Override
+    public long purgeTenant(String tenantId) {
+        if (tenantId == null) {
+            return 0;
+        }
+        String prefix = StateKeys.tenantPrefix(tenantId);
+        long purged = 0;
+        synchronized (store) {
+            List<String> keys = new ArrayList<>();
+            for (String key : store.keySet()) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+            if (spillFile != null) {
+                for (String key : spillFile.keys()) {
+                    if (key.startsWith(prefix)) {
+                        keys.add(key);
+                    }
+                }
+            }
+            for (String key : keys) {
+                if (remove(key)) {
+                    purged++;
+                }
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * @return Number of threads held in memory (excluding spilled ones).
+     */
+    public int getEntryCount() {
+        synchronized (store) {
+            return store.size();
+        }
+    }
+
+    /**
+     * @return Sum of the estimated serialized sizes of the threads held in memory.
+     */
+    public long getEstimatedBytes() {
+        synchronized (store) {
+            return estimatedBytes;
+        }
+    }
+
+    /**
+     * @return Number of threads evicted because a size bound was exceeded.
+     */
+    public long getEvictionCount() {
+        synchronized (store) {
+            return evictionCount;
+        }
+    }
+
+    /**
+     * @return Number of threads dropped because they expired.
+     */
+    public long getExpirationCount() {
+        synchronized (store) {
+            return expirationCount;
+        }
+    }
+
+    /**
+     * @return Number of evicted threads written to the spill file so far.
+     */
+    public long getSpillCount() {
+        synchronized (store) {
+            return spillCount;
+        }
+    }
+
+    /**
+     * @return Number of threads currently held only in the spill file.
+     */
+    public int getSpilledEntryCount() {
+        synchronized (store) {
+            return (spillFile != null) ? spillFile.size() : 0;
+        }
+    }
+
+    /**
+     * @return Size of the spill file on disk, including records awaiting compaction.
+     */
+    public long getSpillFileBytes() {
+        synchronized (store) {
+            return (spillFile != null) ? spillFile.getFileBytes() : 0;
+        }
+    }
+
+    /**
+     * Stops the expiry thread and deletes the spill file.
+     */
+    @Override
+    public void close() {
+        if (expiryTicker != null) {
+            expiryTicker.shutdownNow();
+        }
+        synchronized (store) {
+            if (expiryWheel != null) {
+                expiryWheel.clear();
+            }
+            if (spillFile != null) {
+                spillFile.close();
+            }
+        }
+    }
+
+    /**
+     * Builder for {@link InMemoryAgentStateRepository}.
+     */
+    public static class Builder {
+        private int maxEntries = Integer.MAX_VALUE;
+        private long maxBytes = DEFAULT_MAX_BYTES;
+        private Duration expireAfterWrite;
+        private Duration expireAfterAccess;
+        private Path spillDirectory;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the maximum number of threads held in memory.
+         *
+         * @param maxEntries Entry bound
+         * @return This builder for chaining
+         */
+        public Builder maxEntries(int maxEntries) {
+            if (maxEntries <= 0) {
+                throw new IllegalArgumentException("maxEntries must be greater than 0");
+            }
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Sets the maximum total estimated serialized size of the threads held in memory.
+         *
+         * @param maxBytes Size bound in bytes
+         * @return This builder for chaining
+         */
+        public Builder maxBytes(long maxBytes) {
+            if (maxBytes <= 0) {
+                throw new IllegalArgumentException("maxBytes must be greater than 0");
+            }
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Drops threads that were not saved for the given time.
+         *
+         * @param expireAfterWrite Time to live since the last save, or null to disable
+         * @return This builder for chaining
+         */
+        public Builder expireAfterWrite(Duration expireAfterWrite) {
+            this.expireAfterWrite = validTtl(expireAfterWrite);
+            return this;
+        }
+
+        /**
+         * Drops threads that were neither saved nor read for the given time.
+         *
+         * @param expireAfterAccess Time to live since the last access, or null to disable
+         * @return This builder for chaining
+         */
+        public Builder expireAfterAccess(Duration expireAfterAccess) {
+            this.expireAfterAccess = validTtl(expireAfterAccess);
+            return this;
+        }
+
+        /**
+         * Writes threads evicted by the size bounds to an overflow file in this directory instead of
+         * dropping them. The file is deleted when the repository is closed.
+         *
+         * @param spillDirectory Directory for the overflow file, or null to drop evicted threads
+         * @return This builder for chaining
+         */
+        public Builder spillDirectory(Path spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        private static Duration validTtl(Duration ttl) {
+            if (ttl != null && (ttl.isNegative() || ttl.isZero())) {
+                throw new IllegalArgumentException("Expiry duration must be positive");
+            }
+            return ttl;
+        }
+
+        public InMemoryAgentStateRepository build() {
+            return new InMemoryAgentStateRepository(this);
+        }
     }
 }
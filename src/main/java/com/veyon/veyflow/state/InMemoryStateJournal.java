@@ -0,0 +1,130 @@
+package com.veyon.veyflow.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link StateJournal} held in process memory, for tests and single-node deployments.
+ */
+public class InMemoryStateJournal implements StateJournal {
+
+    private final Map<String, Journal> journals = new ConcurrentHashMap<>();
+
+    private static final class Journal {
+        // Event i (1-based) is at index i - base - 1
+        final List<String> events = new ArrayList<>();
+        long base;
+        String baseSnapshot;
+        long snapshotSequence;
+        String snapshot;
+
+        long head() {
+            return base + events.size();
+        }
+
+        List<String> range(long fromExclusive, long toInclusive) {
+            return new ArrayList<>(events.subList((int) (fromExclusive - base), (int) (toInclusive - base)));
+        }
+    }
+
+    private static String key(String tenantId, String threadId) {
+        return StateKeys.key(tenantId, threadId);
+    }
+
+    @Override
+    public long append(String tenantId, String threadId, long expectedHead, List<String> events) {
+        Journal journal = journals.computeIfAbsent(key(tenantId, threadId), k -> new Journal());
+        synchronized (journal) {
+            if (journals.get(key(tenantId, threadId)) != journal) {
+                // Deleted concurrently; retry against the new journal
+                return append(tenantId, threadId, expectedHead, events);
+            }
+            long head = journal.head();
+            if (head != expectedHead) {
+                return -1 - head;
+            }
+            journal.events.addAll(events);
+            return journal.head();
+        }
+    }
+
+    @Override
+    public long head(String tenantId, String threadId) {
+        Journal journal = journals.get(key(tenantId, threadId));
+        if (journal == null) {
+            return 0;
+        }
+        synchronized (journal) {
+            return journal.head();
+        }
+    }
+
+    @Override
+    public Replay readLatest(String tenantId, String threadId) {
+        Journal journal = journals.get(key(tenantId, threadId));
+        if (journal == null) {
+            return new Replay(0, 0, null, List.of());
+        }
+        synchronized (journal) {
+            long head = journal.head();
+            if (journal.snapshotSequence > journal.base) {
+                return new Replay(head, journal.snapshotSequence, journal.snapshot,
+                        journal.range(journal.snapshotSequence, head));
+            }
+            return new Replay(head, journal.base, journal.baseSnapshot, journal.range(journal.base, head));
+        }
+    }
+
+    @Override
+    public Replay readFromBase(String tenantId, String threadId, long toSequence) {
+        Journal journal = journals.get(key(tenantId, threadId));
+        if (journal == null) {
+            return new Replay(0, 0, null, List.of());
+        }
+        synchronized (journal) {
+            long head = journal.head();
+            long to = (toSequence < 0) ? head : Math.max(journal.base, Math.min(toSequence, head));
+            return new Replay(head, journal.base, journal.baseSnapshot, journal.range(journal.base, to));
+        }
+    }
+
+    @Override
+    public boolean writeSnapshot(String tenantId, String threadId, long sequence, String stateJson) {
+        Journal journal = journals.get(key(tenantId, threadId));
+        if (journal == null) {
+            return false;
+        }
+        synchronized (journal) {
+            if (sequence > journal.head() || sequence <= journal.snapshotSequence) {
+                return false;
+            }
+            journal.snapshotSequence = sequence;
+            journal.snapshot = stateJson;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean compact(String tenantId, String threadId, long sequence, String stateJson) {
+        Journal journal = journals.get(key(tenantId, threadId));
+        if (journal == null) {
+            return false;
+        }
+        synchronized (journal) {
+            if (sequence > journal.head() || sequence <= journal.base) {
+                return false;
+            }
+            journal.events.subList(0, (int) (sequence - journal.base)).clear();
+            journal.base = sequence;
+            journal.baseSnapshot = stateJson;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean delete(String tenantId, String threadId) {
+        return journals.remove(key(tenantId, threadId)) != null;
+    }
+}
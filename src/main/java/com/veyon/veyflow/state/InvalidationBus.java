@@ -0,0 +1,37 @@
+package com.veyon.veyflow.state;
+
+/**
+ * Broadcasts cache invalidations between application nodes that keep local copies of shared data.
+ * A node never receives its own invalidations.
+ */
+public interface InvalidationBus extends AutoCloseable {
+
+    /**
+     * Receives invalidations published by other nodes.
+     */
+    @FunctionalInterface
+    interface Listener {
+        /**
+         * @param key The invalidated key
+         * @param publishedAtMillis Wall-clock time at which the publishing node sent the invalidation
+         */
+        void onInvalidate(String key, long publishedAtMillis);
+    }
+
+    /**
+     * Tells all other nodes that the value stored under {@code key} changed.
+     *
+     * @param key The changed key
+     */
+    void publish(String key);
+
+    /**
+     * Registers a listener for invalidations from other nodes.
+     *
+     * @param listener The listener
+     */
+    void subscribe(Listener listener);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,680 @@
+package com.veyon.veyflow.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Event-sourced {@link AgentStateRepository}: instead of rewriting the whole state, each save appends
+ * the changes since the previous save to the thread's {@link StateJournal} as {@link StateEvent}s,
+ * e.g. one {@code MESSAGE_APPENDED} and one {@code VALUE_SET} for a typical node, so a write costs the
+ * size of the change rather than the size of the state.
+ * <p>
+ * Changes are found by comparing the saved state with fingerprints of the journal's head state, which
+ * this repository keeps for recently used threads. Values and messages that were never decoded (see
+ * {@link AgentState#fromJsonLazy(String)}) are fingerprinted from their stored JSON without decoding.
+ * An append is conditional on the journal's head, so a save racing with another writer rebuilds the
+ * fingerprints from the journal and diffs again; the result is the same as overwriting the state.
+ * Fingerprints are also remembered on the undecoded spans of loaded states, so saving a loaded state
+ * only digests what was decoded or added since. A thread deleted and re-created through another
+ * instance is only noticed once its head differs from the one cached here.
+ * <p>
+ * States are rebuilt from the latest snapshot plus the events after it. Every {@code snapshotEvery}
+ * events a background task writes a new snapshot and compacts the journal, dropping events that are
+ * more than {@code retainedEvents} behind it. The retained events are available through
+ * {@link #getJournal(String, String)} for audit, and {@link #findAtSequence(String, String, long)}
+ * rebuilds the state as it was after any of them.
+ * <p>
+ * {@code scanByTenant} and {@code purgeTenant} are not supported. {@link #close()} stops the
+ * background compaction but does not close the journal.
+ */
+public class JournalAgentStateRepository implements AgentStateRepository, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(JournalAgentStateRepository.class);
+    private static final int LOCK_STRIPES = 256;
+    private static final int MAX_APPEND_ATTEMPTS = 8;
+
+    private final StateJournal journal;
+    private final int snapshotEvery;
+    private final int retainedEvents;
+    private final int maxCachedThreads;
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    // Fingerprints of the head state of recently used threads, in access order
+    private final LinkedHashMap<String, Projection> projections;
+    private final Set<String> pendingCompactions = ConcurrentHashMap.newKeySet();
+    private final ExecutorService compactor;
+
+    private final AtomicLong appendedEvents = new AtomicLong();
+    private final AtomicLong appendedBytes = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+
+    /**
+     * A 128-bit digest of a value's or message's JSON.
+     */
+    private record Fingerprint(long high, long low) {
+        private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        });
+
+        static Fingerprint of(String json) {
+            ByteBuffer digest = ByteBuffer.wrap(DIGESTS.get().digest(json.getBytes(StandardCharsets.UTF_8)));
+            return new Fingerprint(digest.getLong(), digest.getLong());
+        }
+
+        /**
+         * @return The fingerprint remembered on an undecoded span, or null.
+         */
+        static Fingerprint remembered(LazyJson.Raw raw) {
+            return (raw != null && raw.fingerprint instanceof Fingerprint fingerprint) ? fingerprint : null;
+        }
+
+        static Fingerprint ofValue(AgentState state, String key) {
+            LazyJson.Raw raw = state.rawValue(key);
+            Fingerprint fingerprint = remembered(raw);
+            if (fingerprint == null) {
+                String json = state.valueJson(key);
+                if (json == null) {
+                    return null;
+                }
+                fingerprint = of(json);
+                if (raw != null) {
+                    raw.fingerprint = fingerprint;
+                }
+            }
+            return fingerprint;
+        }
+
+        static Fingerprint ofMessage(AgentState state, int index) {
+            LazyJson.Raw raw = state.rawChatMessage(index);
+            Fingerprint fingerprint = remembered(raw);
+            if (fingerprint == null) {
+                fingerprint = of(state.chatMessageJson(index));
+                if (raw != null) {
+                    raw.fingerprint = fingerprint;
+                }
+            }
+            return fingerprint;
+        }
+    }
+
+    /**
+     * What the journal's head state looks like, without holding its content.
+     */
+    private static final class Projection {
+        long head;
+        long snapshotSequence;
+        long version;
+        PersistenceMode persistenceMode = PersistenceMode.IN_MEMORY;
+        String currentNode = "";
+        String previousNode = "";
+        final Map<String, Fingerprint> values = new HashMap<>();
+        final List<Fingerprint> messages = new ArrayList<>();
+
+        static Projection of(AgentState state, long head, long snapshotSequence) {
+            Projection projection = new Projection();
+            projection.head = head;
+            projection.snapshotSequence = snapshotSequence;
+            projection.version = state.getVersion();
+            projection.persistenceMode = state.getPersistenceMode();
+            projection.currentNode = state.getCurrentNode();
+            projection.previousNode = state.getPreviousNode();
+            for (String key : state.getKeys()) {
+                Fingerprint fingerprint = Fingerprint.ofValue(state, key);
+                if (fingerprint != null) {
+                    projection.values.put(key, fingerprint);
+                }
+            }
+            for (int i = 0; i < state.getChatMessageCount(); i++) {
+                projection.messages.add(Fingerprint.ofMessage(state, i));
+            }
+            return projection;
+        }
+
+        /**
+         * Remembers this projection's fingerprints on the undecoded spans of {@code state}, which must
+         * have been rebuilt from the journal at this projection's head, so a later diff of the state
+         * does not digest them again.
+         */
+        void rememberOn(AgentState state) {
+            values.forEach((key, fingerprint) -> {
+                LazyJson.Raw raw = state.rawValue(key);
+                if (raw != null) {
+                    raw.fingerprint = fingerprint;
+                }
+            });
+            int count = Math.min(messages.size(), state.getChatMessageCount());
+            for (int i = 0; i < count; i++) {
+                LazyJson.Raw raw = state.rawChatMessage(i);
+                if (raw != null) {
+                    raw.fingerprint = messages.get(i);
+                }
+            }
+        }
+
+        /**
+         * Collects the events that turn this projection's state into {@code state} with the given
+         * version, and returns the projection of the result.
+         */
+        Projection diff(AgentState state, long version, List<StateEvent> events) {
+            Projection next = new Projection();
+            next.snapshotSequence = snapshotSequence;
+            next.version = version;
+            next.persistenceMode = state.getPersistenceMode();
+            next.currentNode = state.getCurrentNode();
+            next.previousNode = state.getPreviousNode();
+            if (persistenceMode != next.persistenceMode) {
+                events.add(StateEvent.persistenceModeSet(next.persistenceMode));
+            }
+            if (this.version != version) {
+                events.add(StateEvent.versionSet(version));
+            }
+            if (!Objects.equals(currentNode, next.currentNode) || !Objects.equals(previousNode, next.previousNode)) {
+                events.add(StateEvent.nodeTransition(next.currentNode, next.previousNode));
+            }
+            for (String key : state.getKeys()) {
+                // Null values are not serialized, so they count as removed
+                Fingerprint fingerprint = Fingerprint.ofValue(state, key);
+                if (fingerprint == null) {
+                    continue;
+                }
+                next.values.put(key, fingerprint);
+                if (!fingerprint.equals(values.get(key))) {
+                    events.add(StateEvent.valueSet(key, state.valueJson(key)));
+                }
+            }
+            for (String key : values.keySet()) {
+                if (!next.values.containsKey(key)) {
+                    events.add(StateEvent.valueRemoved(key));
+                }
+            }
+            // Messages are appended in the common case; anything else truncates to the common prefix
+            int common = 0;
+            List<String> appended = new ArrayList<>();
+            for (int i = 0; i < state.getChatMessageCount(); i++) {
+                Fingerprint fingerprint = Fingerprint.ofMessage(state, i);
+                next.messages.add(fingerprint);
+                if (appended.isEmpty() && i < messages.size() && fingerprint.equals(messages.get(i))) {
+                    common++;
+                } else {
+                    appended.add(state.chatMessageJson(i));
+                }
+            }
+            if (common < messages.size()) {
+                events.add(StateEvent.messagesTruncated(common));
+            }
+            for (String json : appended) {
+                events.add(StateEvent.messageAppended(json));
+            }
+            return next;
+        }
+    }
+
+    private JournalAgentStateRepository(Builder builder) {
+        this.journal = builder.journal;
+        this.snapshotEvery = builder.snapshotEvery;
+        this.retainedEvents = builder.retainedEvents;
+        this.maxCachedThreads = builder.maxCachedThreads;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.projections = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Projection> eldest) {
+                return size() > JournalAgentStateRepository.this.maxCachedThreads;
+            }
+        };
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "veyflow-journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a new builder for a repository over the given journal.
+     *
+     * @param journal Where the events and snapshots are stored
+     * @return A new builder
+     */
+    public static Builder builder(StateJournal journal) {
+        return new Builder(journal);
+    }
+
+    private static String getKey(String tenantId, String threadId) {
+        return StateKeys.key(tenantId, threadId);
+    }
+
+    private ReentrantLock lockFor(String key) {
+        ReentrantLock lock = stripes[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+        lock.lock();
+        return lock;
+    }
+
+    private Projection cachedProjection(String key) {
+        synchronized (projections) {
+            return projections.get(key);
+        }
+    }
+
+    private void cacheProjection(String key, Projection projection) {
+        synchronized (projections) {
+            projections.put(key, projection);
+        }
+    }
+
+    private void evictProjection(String key) {
+        synchronized (projections) {
+            projections.remove(key);
+        }
+    }
+
+    /**
+     * Replays {@code replay} onto its snapshot, or onto an empty state if it has none.
+     */
+    private static AgentState replay(String tenantId, String threadId, StateJournal.Replay replay) {
+        AgentState state = (replay.getSnapshot() != null)
+                ? AgentState.fromJsonLazy(replay.getSnapshot())
+                : AgentState.emptyLazy(tenantId, threadId, PersistenceMode.IN_MEMORY);
+        state.setTenantId(tenantId).setThreadId(threadId);
+        long expected = replay.getSequence();
+        for (String json : replay.getEvents()) {
+            StateEvent event = StateEvent.fromJson(json);
+            if (event.getSequence() != ++expected) {
+                throw new IllegalStateException("Journal of " + tenantId + "::" + threadId + " has event "
+                        + event.getSequence() + " where " + expected + " was expected");
+            }
+            event.applyTo(state);
+        }
+        return state;
+    }
+
+    // Called with the thread's lock held
+    private Optional<AgentState> rebuild(String key, String tenantId, String threadId) {
+        StateJournal.Replay latest = journal.readLatest(tenantId, threadId);
+        if (latest.getHead() == 0) {
+            evictProjection(key);
+            return Optional.empty();
+        }
+        AgentState state = replay(tenantId, threadId, latest);
+        Projection cached = cachedProjection(key);
+        if (cached != null && cached.head == latest.getHead()) {
+            cached.rememberOn(state);
+        } else {
+            cacheProjection(key, Projection.of(state, latest.getHead(), latest.getSequence()));
+            rebuilds.incrementAndGet();
+        }
+        return Optional.of(state);
+    }
+
+    // Called with the thread's lock held
+    private Projection projection(String key, String tenantId, String threadId) {
+        Projection projection = cachedProjection(key);
+        if (projection != null) {
+            return projection;
+        }
+        StateJournal.Replay latest = journal.readLatest(tenantId, threadId);
+        if (latest.getHead() == 0) {
+            // A thread without a journal is diffed against the empty state
+            return new Projection();
+        }
+        projection = Projection.of(replay(tenantId, threadId, latest), latest.getHead(), latest.getSequence());
+        cacheProjection(key, projection);
+        rebuilds.incrementAndGet();
+        return projection;
+    }
+
+    /**
+     * Appends the changes of {@code state}, retrying against the journal's current head if another
+     * writer got there first.
+     *
+     * @param expectedVersion The version the journal must have, or -1 to skip the check
+     * @return The version the journal has now, or -1 if it has a different version than {@code expectedVersion}
+     */
+    private long write(AgentState state, long expectedVersion) {
+        String tenantId = state.getTenantId();
+        String threadId = state.getThreadId();
+        String key = getKey(tenantId, threadId);
+        ReentrantLock lock = lockFor(key);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                Projection projection = projection(key, tenantId, threadId);
+                if (expectedVersion >= 0 && projection.version != expectedVersion) {
+                    if (journal.head(tenantId, threadId) == projection.head) {
+                        return -1;
+                    }
+                    // Another writer moved the journal since it was cached
+                    evictProjection(key);
+                    continue;
+                }
+                long version = (expectedVersion < 0)
+                        ? AgentState.versionAfterSave(projection.version, state.getVersion())
+                        : expectedVersion + 1;
+                List<StateEvent> events = new ArrayList<>();
+                Projection next = projection.diff(state, version, events);
+                if (events.isEmpty()) {
+                    return version;
+                }
+                List<String> serialized = new ArrayList<>(events.size());
+                long bytes = 0;
+                for (int i = 0; i < events.size(); i++) {
+                    String json = events.get(i).withSequence(projection.head + i + 1).toJson();
+                    serialized.add(json);
+                    bytes += json.length();
+                }
+                long head = journal.append(tenantId, threadId, projection.head, serialized);
+                if (head >= 0) {
+                    next.head = head;
+                    cacheProjection(key, next);
+                    appendedEvents.addAndGet(events.size());
+                    appendedBytes.addAndGet(bytes);
+                    if (head - next.snapshotSequence >= snapshotEvery) {
+                        scheduleCompaction(key, tenantId, threadId);
+                    }
+                    return version;
+                }
+                conflicts.incrementAndGet();
+                evictProjection(key);
+                if (attempt >= MAX_APPEND_ATTEMPTS) {
+                    throw new IllegalStateException("Could not append to the journal of " + key + " after "
+                            + attempt + " attempts; it is being written concurrently");
+                }
+                log.debug("Journal of {} moved to {} during a save; diffing again", key, -1 - head);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void save(AgentState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("AgentState must not be null");
+        }
+        state.setVersion(write(state, -1));
+    }
+
+    /**
+     * Appends the changes together with a {@code VERSION_SET} event, conditional on the journal's
+     * version, which is checked against the journal's head by the same conditional append.
+     */
+    @Override
+    public boolean compareAndSave(AgentState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("AgentState must not be null");
+        }
+        long expected = state.getVersion();
+        if (write(state, expected) < 0) {
+            log.debug("Version conflict saving {}::{}: expected {}", state.getTenantId(), state.getThreadId(), expected);
+            return false;
+        }
+        state.setVersion(expected + 1);
+        return true;
+    }
+
+    @Override
+    public Optional<AgentState> findById(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return Optional.empty();
+        }
+        String key = getKey(tenantId, threadId);
+        ReentrantLock lock = lockFor(key);
+        try {
+            return rebuild(key, tenantId, threadId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String tenantId, String threadId) {
+        String key = getKey(tenantId, threadId);
+        ReentrantLock lock = lockFor(key);
+        try {
+            evictProjection(key);
+            return journal.delete(tenantId, threadId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean exists(String tenantId, String threadId) {
+        return journal.head(tenantId, threadId) > 0;
+    }
+
+    /**
+     * Returns the retained events of a thread, oldest first, for audit and debugging.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return The events from the journal's base to its head; empty if the thread has no journal.
+     */
+    public List<StateEvent> getJournal(String tenantId, String threadId) {
+        getKey(tenantId, threadId);
+        List<String> serialized = journal.readFromBase(tenantId, threadId, -1).getEvents();
+        List<StateEvent> events = new ArrayList<>(serialized.size());
+        for (String json : serialized) {
+            events.add(StateEvent.fromJson(json));
+        }
+        return events;
+    }
+
+    /**
+     * Rebuilds the state of a thread as it was right after the given event.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @param sequence The sequence of the event, see {@link StateEvent#getSequence()}.
+     * @return The state, or an empty Optional if the thread has no journal.
+     * @throws IllegalArgumentException If the event was compacted away or does not exist yet.
+     */
+    public Optional<AgentState> findAtSequence(String tenantId, String threadId, long sequence) {
+        getKey(tenantId, threadId);
+        StateJournal.Replay replay = journal.readFromBase(tenantId, threadId, sequence);
+        if (replay.getHead() == 0) {
+            return Optional.empty();
+        }
+        if (sequence < replay.getSequence() || sequence > replay.getHead()) {
+            throw new IllegalArgumentException("Event " + sequence + " is outside the retained journal ["
+                    + replay.getSequence() + ", " + replay.getHead() + "]");
+        }
+        return Optional.of(replay(tenantId, threadId, replay));
+    }
+
+    /**
+     * Writes a snapshot of the thread's head state and drops the events more than
+     * {@code retainedEvents} behind it. Runs in the background every {@code snapshotEvery} events;
+     * can be called directly, e.g. before exporting a journal.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return true if a snapshot was written.
+     */
+    public boolean compact(String tenantId, String threadId) {
+        String key = getKey(tenantId, threadId);
+        StateJournal.Replay latest = journal.readLatest(tenantId, threadId);
+        if (latest.getHead() == 0 || latest.getHead() == latest.getSequence()) {
+            return false;
+        }
+        long head = latest.getHead();
+        boolean written = journal.writeSnapshot(tenantId, threadId, head, replay(tenantId, threadId, latest).toJson());
+        if (written) {
+            snapshots.incrementAndGet();
+            synchronized (projections) {
+                Projection cached = projections.get(key);
+                if (cached != null && cached.snapshotSequence < head) {
+                    cached.snapshotSequence = head;
+                }
+            }
+        }
+        long base = head - retainedEvents;
+        if (base > 0) {
+            StateJournal.Replay prefix = journal.readFromBase(tenantId, threadId, base);
+            if (prefix.getSequence() < base && prefix.getHead() >= base
+                    && journal.compact(tenantId, threadId, base, replay(tenantId, threadId, prefix).toJson())) {
+                compactions.incrementAndGet();
+                log.debug("Compacted journal of {} to events after {}", key, base);
+            }
+        }
+        return written;
+    }
+
+    private void scheduleCompaction(String key, String tenantId, String threadId) {
+        if (!pendingCompactions.add(key)) {
+            return;
+        }
+        try {
+            compactor.execute(() -> {
+                try {
+                    compact(tenantId, threadId);
+                } catch (Exception e) {
+                    log.error("Compacting the journal of {} failed; will retry after the next save.", key, e);
+                } finally {
+                    pendingCompactions.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingCompactions.remove(key);
+        }
+    }
+
+    /**
+     * Stops the background compaction, finishing the compactions already scheduled.
+     */
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of events appended by this repository.
+     */
+    public long getAppendedEvents() {
+        return appendedEvents.get();
+    }
+
+    /**
+     * @return Total size of the events appended by this repository, in characters.
+     */
+    public long getAppendedBytes() {
+        return appendedBytes.get();
+    }
+
+    /**
+     * @return Number of times a thread's fingerprints were rebuilt from the journal.
+     */
+    public long getRebuilds() {
+        return rebuilds.get();
+    }
+
+    /**
+     * @return Number of appends that found another writer's events at the head and were retried.
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    public long getSnapshots() {
+        return snapshots.get();
+    }
+
+    public long getCompactions() {
+        return compactions.get();
+    }
+
+    /**
+     * Builder for {@link JournalAgentStateRepository}.
+     */
+    public static class Builder {
+        private final StateJournal journal;
+        private int snapshotEvery = 100;
+        private int retainedEvents = 1_000;
+        private int maxCachedThreads = 10_000;
+
+        private Builder(StateJournal journal) {
+            if (journal == null) {
+                throw new IllegalArgumentException("journal must not be null");
+            }
+            this.journal = journal;
+        }
+
+        /**
+         * Sets after how many events since the last snapshot a new one is written, which bounds the
+         * number of events replayed per load.
+         *
+         * @param snapshotEvery Events between snapshots
+         * @return This builder for chaining
+         */
+        public Builder snapshotEvery(int snapshotEvery) {
+            if (snapshotEvery < 1) {
+                throw new IllegalArgumentException("snapshotEvery must be positive");
+            }
+            this.snapshotEvery = snapshotEvery;
+            return this;
+        }
+
+        /**
+         * Sets how many events before the latest snapshot survive compaction, for audit and time travel.
+         *
+         * @param retainedEvents Events kept behind the latest snapshot, 0 to keep none
+         * @return This builder for chaining
+         */
+        public Builder retainedEvents(int retainedEvents) {
+            if (retainedEvents < 0) {
+                throw new IllegalArgumentException("retainedEvents must not be negative");
+            }
+            this.retainedEvents = retainedEvents;
+            return this;
+        }
+
+        /**
+         * Sets for how many threads the fingerprints of the head state are kept. A save of a thread
+         * without them reads its journal first.
+         *
+         * @param maxCachedThreads Maximum number of threads
+         * @return This builder for chaining
+         */
+        public Builder maxCachedThreads(int maxCachedThreads) {
+            if (maxCachedThreads < 0) {
+                throw new IllegalArgumentException("maxCachedThreads must not be negative");
+            }
+            this.maxCachedThreads = maxCachedThreads;
+            return this;
+        }
+
+        public JournalAgentStateRepository build() {
+            return new JournalAgentStateRepository(this);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.veyon.veyflow.state;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces bulk operations such as tenant scans and purges to a maximum number of keys per second, so
+ * they do not compete with regular traffic. Used by a single thread; not thread-safe.
+ */
+class KeyRateLimiter {
+
+    private final double keysPerSecond;
+    private final long startNanos = System.nanoTime();
+    private long acquired = 0;
+
+    /**
+     * @param maxKeysPerSecond Maximum rate, or 0 for no limit
+     */
+    KeyRateLimiter(int maxKeysPerSecond) {
+        if (maxKeysPerSecond < 0) {
+            throw new IllegalArgumentException("maxKeysPerSecond must not be negative");
+        }
+        this.keysPerSecond = maxKeysPerSecond;
+    }
+
+    /**
+     * Blocks until {@code keys} more keys may be processed without exceeding the rate on average
+     * since this limiter was created.
+     */
+    void acquire(int keys) {
+        if (keysPerSecond == 0) {
+            return;
+        }
+        acquired += keys;
+        long dueNanos = startNanos + (long) (acquired / keysPerSecond * TimeUnit.SECONDS.toNanos(1));
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while pacing a bulk operation", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.veyon.veyflow.state;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Support for the lazily decoded form of {@link AgentState}: a scanner that finds the boundaries of
+ * JSON values without building them, and the Gson adapters that write undecoded values back verbatim.
+ */
+final class LazyJson {
+
+    private LazyJson() {
+    }
+
+    /**
+     * A JSON value inside a serialized state that has not been decoded yet. Holds on to the whole
+     * source string instead of copying the value out of it.
+     */
+    static final class Raw {
+        final String source;
+        final int start;
+        final int end;
+        // Digest of text() cached by JournalAgentStateRepository; the text never changes
+        Object fingerprint;
+
+        Raw(String source, int start, int end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        String text() {
+            return source.substring(start, end);
+        }
+    }
+
+    /**
+     * Writes {@link LazyValueMap} and {@link LazyMessageList} instances with their undecoded spans
+     * copied verbatim. Wraps the adapters of all maps and lists, since Gson chooses field adapters by
+     * the declared type; every other map or list is written by the usual adapter.
+     */
+    static final class AdapterFactory implements TypeAdapterFactory {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            Class<? super T> rawType = type.getRawType();
+            if (rawType != Map.class && rawType != List.class) {
+                return null;
+            }
+            TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+            TypeAdapter<Object> values = gson.getAdapter(Object.class);
+            TypeAdapter<ChatMessage> messages = gson.getAdapter(ChatMessage.class);
+            return new TypeAdapter<T>() {
+                @Override
+                public void write(JsonWriter out, T value) throws IOException {
+                    if (value instanceof LazyValueMap) {
+                        out.beginObject();
+                        for (Map.Entry<String, Object> entry : ((LazyValueMap) value).rawEntries()) {
+                            out.name(entry.getKey());
+                            writeValue(out, entry.getValue(), values);
+                        }
+                        out.endObject();
+                    } else if (value instanceof LazyMessageList) {
+                        out.beginArray();
+                        for (Object element : ((LazyMessageList) value).rawElements()) {
+                            writeValue(out, element, messages);
+                        }
+                        out.endArray();
+                    } else {
+                        delegate.write(out, value);
+                    }
+                }
+
+                @Override
+                public T read(JsonReader in) throws IOException {
+                    return delegate.read(in);
+                }
+            };
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> void writeValue(JsonWriter out, Object value, TypeAdapter<V> adapter) throws IOException {
+            if (value instanceof Raw) {
+                out.jsonValue(((Raw) value).text());
+            } else {
+                adapter.write(out, (V) value);
+            }
+        }
+    }
+
+    static int skipWhitespace(String json, int i) {
+        while (i < json.length()) {
+            char c = json.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return The index after the value starting at {@code i}.
+     * @throws IllegalArgumentException If the JSON is malformed
+     */
+    static int skipValue(String json, int i) {
+        if (i >= json.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        char c = json.charAt(i);
+        if (c == '"') {
+            return skipString(json, i);
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (i < json.length()) {
+                c = json.charAt(i);
+                if (c == '"') {
+                    i = skipString(json, i);
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if ((c == '}' || c == ']') && --depth == 0) {
+                    return i + 1;
+                }
+                i++;
+            }
+            throw new IllegalArgumentException("Unterminated JSON container");
+        }
+        int start = i;
+        while (i < json.length()) {
+            c = json.charAt(i);
+            if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                break;
+            }
+            i++;
+        }
+        if (i == start) {
+            throw new IllegalArgumentException("Unexpected character '" + c + "' at " + i);
+        }
+        return i;
+    }
+
+    static int skipString(String json, int i) {
+        for (i++; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+
+    /**
+     * @return The name of the string token {@code json[start, end)}.
+     */
+    static String readName(String json, int start, int end, Gson gson) {
+        if (json.charAt(start) != '"') {
+            throw new IllegalArgumentException("Expected a name at " + start);
+        }
+        for (int i = start + 1; i < end - 1; i++) {
+            if (json.charAt(i) == '\\') {
+                return gson.fromJson(json.substring(start, end), String.class);
+            }
+        }
+        return json.substring(start + 1, end - 1);
+    }
+
+    /**
+     * @return The index after {@code expected}, which must be the next non-whitespace character.
+     */
+    static int expect(String json, int i, char expected) {
+        i = skipWhitespace(json, i);
+        if (i >= json.length() || json.charAt(i) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at " + i);
+        }
+        return i + 1;
+    }
+}
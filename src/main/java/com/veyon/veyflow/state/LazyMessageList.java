@@ -0,0 +1,121 @@
+package com.veyon.veyflow.state;
+
+import com.google.gson.Gson;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * The chat messages of a lazily decoded {@link AgentState}. Each message stays a {@link LazyJson.Raw}
+ * span of the stored JSON until it is first read by index or iteration, and is written back verbatim
+ * if it never is, so a large tool output that no node looks at is never materialised.
+ */
+final class LazyMessageList extends AbstractList<ChatMessage> implements RandomAccess {
+
+    // Each element is a ChatMessage or a LazyJson.Raw
+    private final List<Object> elements;
+    private final Gson gson;
+
+    private LazyMessageList(List<Object> elements, Gson gson) {
+        this.elements = elements;
+        this.gson = gson;
+    }
+
+    /**
+     * Parses the elements of the array {@code json[start, end)} into raw messages.
+     */
+    static LazyMessageList parse(String json, int start, int end, Gson gson) {
+        List<Object> elements = new ArrayList<>();
+        int i = LazyJson.skipWhitespace(json, LazyJson.expect(json, start, '['));
+        if (json.charAt(i) == ']') {
+            return new LazyMessageList(elements, gson);
+        }
+        while (true) {
+            int elementStart = LazyJson.skipWhitespace(json, i);
+            int elementEnd = LazyJson.skipValue(json, elementStart);
+            elements.add(new LazyJson.Raw(json, elementStart, elementEnd));
+            i = LazyJson.skipWhitespace(json, elementEnd);
+            if (i < end && json.charAt(i) == ',') {
+                i++;
+            } else if (LazyJson.expect(json, i, ']') == end) {
+                return new LazyMessageList(elements, gson);
+            } else {
+                throw new IllegalArgumentException("Trailing content after chat messages at " + i);
+            }
+        }
+    }
+
+    static LazyMessageList empty(Gson gson) {
+        return new LazyMessageList(new ArrayList<>(), gson);
+    }
+
+    /**
+     * Appends a message that is decoded on first access.
+     */
+    void addRaw(LazyJson.Raw message) {
+        elements.add(message);
+        modCount++;
+    }
+
+    List<Object> rawElements() {
+        return elements;
+    }
+
+    /**
+     * @return Number of messages still undecoded.
+     */
+    int rawCount() {
+        int raw = 0;
+        for (Object element : elements) {
+            if (element instanceof LazyJson.Raw) {
+                raw++;
+            }
+        }
+        return raw;
+    }
+
+    // Replaces the raw span in place; concurrent readers of a shared state may decode a message twice
+    @Override
+    public ChatMessage get(int index) {
+        Object element = elements.get(index);
+        if (element instanceof LazyJson.Raw) {
+            element = gson.fromJson(((LazyJson.Raw) element).text(), ChatMessage.class);
+            elements.set(index, element);
+        }
+        return (ChatMessage) element;
+    }
+
+    @Override
+    public ChatMessage set(int index, ChatMessage message) {
+        ChatMessage previous = get(index);
+        elements.set(index, message);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, ChatMessage message) {
+        elements.add(index, message);
+        modCount++;
+    }
+
+    @Override
+    public ChatMessage remove(int index) {
+        ChatMessage previous = get(index);
+        elements.remove(index);
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        elements.subList(fromIndex, toIndex).clear();
+        modCount++;
+    }
+
+    @Override
+    public int size() {
+        return elements.size();
+    }
+}
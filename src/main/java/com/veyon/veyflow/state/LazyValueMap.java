@@ -0,0 +1,212 @@
+package com.veyon.veyflow.state;
+
+import com.google.gson.Gson;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * The {@code values} of a lazily decoded {@link AgentState}. Each value stays a {@link LazyJson.Raw}
+ * span of the stored JSON until it is first read, and is written back verbatim if it never is.
+ * Keys are decoded up front, so lookups, {@link #keySet()} and {@link #size()} decode nothing.
+ */
+final class LazyValueMap extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> entries = new LinkedHashMap<>();
+    private final Gson gson;
+
+    LazyValueMap(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * Parses the members of the object {@code json[start, end)} into raw entries.
+     */
+    static LazyValueMap parse(String json, int start, int end, Gson gson) {
+        LazyValueMap map = new LazyValueMap(gson);
+        int i = LazyJson.expect(json, start, '{');
+        i = LazyJson.skipWhitespace(json, i);
+        if (json.charAt(i) == '}') {
+            return map;
+        }
+        while (true) {
+            i = LazyJson.skipWhitespace(json, i);
+            int nameEnd = LazyJson.skipString(json, i);
+            String name = LazyJson.readName(json, i, nameEnd, gson);
+            int valueStart = LazyJson.skipWhitespace(json, LazyJson.expect(json, nameEnd, ':'));
+            int valueEnd = LazyJson.skipValue(json, valueStart);
+            map.entries.put(name, new LazyJson.Raw(json, valueStart, valueEnd));
+            i = LazyJson.skipWhitespace(json, valueEnd);
+            if (i < end && json.charAt(i) == ',') {
+                i++;
+            } else if (LazyJson.expect(json, i, '}') == end) {
+                return map;
+            } else {
+                throw new IllegalArgumentException("Trailing content after values at " + i);
+            }
+        }
+    }
+
+    private Object decode(Object value) {
+        return (value instanceof LazyJson.Raw) ? gson.fromJson(((LazyJson.Raw) value).text(), Object.class) : value;
+    }
+
+    // Replaces the raw span in place; concurrent readers of a shared state may decode a value twice
+    private Object decode(Map.Entry<String, Object> entry) {
+        Object value = entry.getValue();
+        if (value instanceof LazyJson.Raw) {
+            value = decode(value);
+            entry.setValue(value);
+        }
+        return value;
+    }
+
+    Set<Map.Entry<String, Object>> rawEntries() {
+        return entries.entrySet();
+    }
+
+    /**
+     * @return Number of values still undecoded.
+     */
+    int rawCount() {
+        int raw = 0;
+        for (Object value : entries.values()) {
+            if (value instanceof LazyJson.Raw) {
+                raw++;
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * @return The value as stored, i.e. a {@link LazyJson.Raw} if it was never decoded.
+     */
+    Object rawValue(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Like {@link #put(String, Object)}, but without decoding the replaced value to return it.
+     */
+    void set(String key, Object value) {
+        entries.put(key, value);
+    }
+
+    @Override
+    public Object get(Object key) {
+        Object value = entries.get(key);
+        if (value instanceof LazyJson.Raw) {
+            value = decode(value);
+            entries.put((String) key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return entries.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        return decode(entries.put(key, value));
+    }
+
+    @Override
+    public Object remove(Object key) {
+        return decode(entries.remove(key));
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return entries.keySet();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                Iterator<Map.Entry<String, Object>> iterator = entries.entrySet().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        return new LazyEntry(iterator.next());
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.size();
+            }
+        };
+    }
+
+    private final class LazyEntry implements Map.Entry<String, Object> {
+        private final Map.Entry<String, Object> entry;
+
+        LazyEntry(Map.Entry<String, Object> entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public String getKey() {
+            return entry.getKey();
+        }
+
+        @Override
+        public Object getValue() {
+            return decode(entry);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object previous = decode(entry);
+            entry.setValue(value);
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Map.Entry
+                    && Objects.equals(getKey(), ((Map.Entry<?, ?>) o).getKey())
+                    && Objects.equals(getValue(), ((Map.Entry<?, ?>) o).getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getKey()) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
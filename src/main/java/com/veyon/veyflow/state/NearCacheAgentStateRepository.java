@@ -0,0 +1,443 @@
+package com.veyon.veyflow.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Two-tier {@link AgentStateRepository}: a bounded, in-process LRU cache in front of a shared
+ * repository such as {@link RedisAgentStateRepository}.
+ * <p>
+ * Writes go to the delegate first and then replace the local entry. When an {@link InvalidationBus}
+ * is configured, every write is announced to the other nodes, which drop their copy of that thread.
+ * Because pub/sub delivery is not guaranteed, entries are additionally served for at most
+ * {@code maxStaleness} after they were loaded.
+ * <p>
+ * Entries are kept as JSON snapshots taken when a state is loaded or written, and every hit decodes
+ * a fresh copy, so a caller modifying a loaded state without saving it never changes what this node
+ * or other callers read.
+ */
+public class NearCacheAgentStateRepository implements AgentStateRepository, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(NearCacheAgentStateRepository.class);
+    // Appended to "tenant::" to invalidate every thread of a tenant
+    private static final String TENANT_WILDCARD = "*";
+
+    private final AgentStateRepository delegate;
+    private final InvalidationBus invalidationBus;
+    private final int maxEntries;
+    private final long maxStalenessNanos;
+    private final Map<String, Entry> cache;
+
+    // Bumped on every invalidation so a load racing with one is not cached
+    private final AtomicLong invalidationSequence = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong remoteInvalidations = new AtomicLong();
+    private final AtomicLong totalInvalidationLagMillis = new AtomicLong();
+    private final AtomicLong maxInvalidationLagMillis = new AtomicLong();
+
+    private static final class Entry {
+        final String json;
+        final long loadedAt;
+
+        Entry(AgentState state, long loadedAt) {
+            this.json = state.toJson();
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private NearCacheAgentStateRepository(Builder builder) {
+        this.delegate = builder.delegate;
+        this.invalidationBus = builder.invalidationBus;
+        this.maxEntries = builder.maxEntries;
+        this.maxStalenessNanos = builder.maxStaleness.toNanos();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > NearCacheAgentStateRepository.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (invalidationBus != null) {
+            invalidationBus.subscribe(this::onRemoteInvalidation);
+        }
+    }
+
+    /**
+     * Creates a new builder for a near cache in front of {@code delegate}.
+     *
+     * @param delegate The shared repository
+     * @return A new builder
+     */
+    public static Builder builder(AgentStateRepository delegate) {
+        return new Builder(delegate);
+    }
+
+    private static String getKey(String tenantId, String threadId) {
+        return tenantId + StateKeys.SEPARATOR + threadId;
+    }
+
+    @Override
+    public void validateIds(String tenantId, String threadId) {
+        delegate.validateIds(tenantId, threadId);
+    }
+
+    private void onRemoteInvalidation(String key, long publishedAtMillis) {
+        invalidationSequence.incrementAndGet();
+        synchronized (cache) {
+            if (key.endsWith(TENANT_WILDCARD)) {
+                String prefix = key.substring(0, key.length() - TENANT_WILDCARD.length());
+                cache.keySet().removeIf(cached -> cached.startsWith(prefix));
+            } else {
+                cache.remove(key);
+            }
+        }
+        remoteInvalidations.incrementAndGet();
+        long lag = Math.max(0, System.currentTimeMillis() - publishedAtMillis);
+        totalInvalidationLagMillis.addAndGet(lag);
+        maxInvalidationLagMillis.accumulateAndGet(lag, Math::max);
+    }
+
+    /**
+     * @return The cached snapshot of the thread as JSON, or null if it is not cached or too old.
+     */
+    private String getCached(String key) {
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.loadedAt > maxStalenessNanos) {
+                cache.remove(key);
+                expirations.incrementAndGet();
+                return null;
+            }
+            return entry.json;
+        }
+    }
+
+    private void putCached(String key, AgentState state, long sequenceAtLoad) {
+        synchronized (cache) {
+            if (invalidationSequence.get() == sequenceAtLoad) {
+                cache.put(key, new Entry(state, System.nanoTime()));
+            }
+        }
+    }
+
+    private void announce(String key) {
+        invalidationSequence.incrementAndGet();
+        if (invalidationBus != null) {
+            invalidationBus.publish(key);
+        }
+    }
+
+    @Override
+    public void save(AgentState state) {
+        delegate.save(state);
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        announce(key);
+        synchronized (cache) {
+            cache.put(key, new Entry(state, System.nanoTime()));
+        }
+    }
+
+    @Override
+    public Optional<AgentState> findById(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return Optional.empty();
+        }
+        String key = getKey(tenantId, threadId);
+        String cached = getCached(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return Optional.of(AgentState.fromJsonLazy(cached));
+        }
+        misses.incrementAndGet();
+        long sequence = invalidationSequence.get();
+        Optional<AgentState> loaded = delegate.findById(tenantId, threadId);
+        loaded.ifPresent(state -> putCached(key, state, sequence));
+        return loaded;
+    }
+
+    @Override
+    public Map<String, AgentState> findAll(String tenantId, Collection<String> threadIds) {
+        Map<String, AgentState> found = new LinkedHashMap<>();
+        if (tenantId == null) {
+            return found;
+        }
+        List<String> remote = new ArrayList<>();
+        for (String threadId : threadIds) {
+            String cached = (threadId != null) ? getCached(getKey(tenantId, threadId)) : null;
+            if (cached != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                remote.add(threadId);
+            }
+            found.put(threadId, (cached != null) ? AgentState.fromJsonLazy(cached) : null); // keep request order
+        }
+        if (!remote.isEmpty()) {
+            long sequence = invalidationSequence.get();
+            Map<String, AgentState> loaded = delegate.findAll(tenantId, remote);
+            loaded.forEach((threadId, state) -> putCached(getKey(tenantId, threadId), state, sequence));
+            found.putAll(loaded);
+        }
+        found.values().removeIf(state -> state == null);
+        return found;
+    }
+
+    @Override
+    public void saveAll(Collection<AgentState> states) {
+        delegate.saveAll(states);
+        for (AgentState state : states) {
+            String key = getKey(state.getTenantId(), state.getThreadId());
+            announce(key);
+            synchronized (cache) {
+                cache.put(key, new Entry(state, System.nanoTime()));
+            }
+        }
+    }
+
+    /**
+     * Scans the delegate directly; scanned states are not cached.
+     */
+    @Override
+    public Stream<AgentState> scanByTenant(String tenantId) {
+        return delegate.scanByTenant(tenantId);
+    }
+
+    /**
+     * Purges the delegate, then drops the tenant's local copies on this node and, through a
+     * tenant-wide invalidation, on the other nodes.
+     */
+    @Override
+    public long purgeTenant(String tenantId) {
+        long purged = delegate.purgeTenant(tenantId);
+        if (tenantId != null) {
+            String prefix = StateKeys.tenantPrefix(tenantId);
+            announce(prefix + TENANT_WILDCARD);
+            synchronized (cache) {
+                cache.keySet().removeIf(key -> key.startsWith(prefix));
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * Compares against the delegate. On conflict the local copy is dropped, since it is evidently stale.
+     */
+    @Override
+    public boolean compareAndSave(AgentState state) {
+        boolean saved = delegate.compareAndSave(state);
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        if (saved) {
+            announce(key);
+            synchronized (cache) {
+                cache.put(key, new Entry(state, System.nanoTime()));
+            }
+        } else {
+            invalidationSequence.incrementAndGet();
+            synchronized (cache) {
+                cache.remove(key);
+            }
+        }
+        return saved;
+    }
+
+    @Override
+    public boolean delete(String tenantId, String threadId) {
+        boolean deleted = delegate.delete(tenantId, threadId);
+        if (tenantId != null && threadId != null) {
+            invalidate(tenantId, threadId);
+        }
+        return deleted;
+    }
+
+    @Override
+    public long deleteAll(String tenantId, Collection<String> threadIds) {
+        long deleted = delegate.deleteAll(tenantId, threadIds);
+        if (tenantId != null) {
+            for (String threadId : threadIds) {
+                if (threadId != null) {
+                    invalidate(tenantId, threadId);
+                }
+            }
+        }
+        return deleted;
+    }
+
+    @Override
+    public boolean exists(String tenantId, String threadId) {
+        if (tenantId != null && threadId != null && getCached(getKey(tenantId, threadId)) != null) {
+            return true;
+        }
+        return delegate.exists(tenantId, threadId);
+    }
+
+    /**
+     * Drops the local copy of a thread on this node and tells the other nodes to do the same.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     */
+    public void invalidate(String tenantId, String threadId) {
+        String key = getKey(tenantId, threadId);
+        announce(key);
+        synchronized (cache) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Drops every local copy on this node only.
+     */
+    public void invalidateAll() {
+        invalidationSequence.incrementAndGet();
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Closes the invalidation bus, if any. The delegate is left open.
+     */
+    @Override
+    public void close() {
+        if (invalidationBus != null) {
+            try {
+                invalidationBus.close();
+            } catch (Exception e) {
+                log.warn("Failed to close invalidation bus: {}", e.getMessage());
+            }
+        }
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Fraction of lookups served locally, or 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : (double) h / total;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Entries dropped because they reached {@code maxStaleness} without being invalidated.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getRemoteInvalidations() {
+        return remoteInvalidations.get();
+    }
+
+    /**
+     * @return Mean time in milliseconds between another node's write and the local invalidation,
+     *         i.e. how long this node could have served a stale copy. 0 before the first invalidation.
+     */
+    public double getAverageInvalidationLagMillis() {
+        long count = remoteInvalidations.get();
+        return (count == 0) ? 0.0 : (double) totalInvalidationLagMillis.get() / count;
+    }
+
+    public long getMaxInvalidationLagMillis() {
+        return maxInvalidationLagMillis.get();
+    }
+
+    /**
+     * Builder for {@link NearCacheAgentStateRepository}.
+     */
+    public static class Builder {
+        private final AgentStateRepository delegate;
+        private InvalidationBus invalidationBus;
+        private int maxEntries = 10_000;
+        private Duration maxStaleness = Duration.ofSeconds(30);
+
+        private Builder(AgentStateRepository delegate) {
+            if (delegate == null) {
+                throw new IllegalArgumentException("delegate must not be null");
+            }
+            this.delegate = delegate;
+        }
+
+        /**
+         * Sets the bus used to exchange invalidations with other nodes. Without one, the cache is only
+         * correct if this node is the sole writer.
+         *
+         * @param invalidationBus The invalidation bus
+         * @return This builder for chaining
+         */
+        public Builder invalidationBus(InvalidationBus invalidationBus) {
+            this.invalidationBus = invalidationBus;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of cached threads; the least recently used one is evicted first.
+         *
+         * @param maxEntries Cache capacity
+         * @return This builder for chaining
+         */
+        public Builder maxEntries(int maxEntries) {
+            if (maxEntries <= 0) {
+                throw new IllegalArgumentException("maxEntries must be greater than 0");
+            }
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /**
+         * Sets how long an entry may be served after it was loaded or written, as a bound on
+         * staleness when an invalidation message is lost.
+         *
+         * @param maxStaleness Maximum entry age
+         * @return This builder for chaining
+         */
+        public Builder maxStaleness(Duration maxStaleness) {
+            if (maxStaleness == null || maxStaleness.isNegative() || maxStaleness.isZero()) {
+                throw new IllegalArgumentException("maxStaleness must be positive");
+            }
+            this.maxStaleness = maxStaleness;
+            return this;
+        }
+
+        public NearCacheAgentStateRepository build() {
+            return new NearCacheAgentStateRepository(this);
+        }
+    }
+}
@@ -2,5 +2,6 @@ package com.veyon.veyflow.state;
 
 public enum PersistenceMode {
     IN_MEMORY,
-    REDIS
+    REDIS,
+    FILE
 }
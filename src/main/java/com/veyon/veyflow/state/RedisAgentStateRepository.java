@@ -1,20 +1,168 @@
 package com.veyon.veyflow.state;
 
+import io.lettuce.core.GetExArgs;
+import io.lettuce.core.KeyValue;
+import io.lettuce.core.LettuceFutures;
 import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScanArgs;
+import io.lettuce.core.ScanIterator;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulConnection;
 import io.lettuce.core.api.StatefulRedisConnection;
 import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.SlotHash;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.cluster.api.reactive.RedisClusterReactiveCommands;
+import io.lettuce.core.cluster.api.sync.RedisClusterCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.support.AsyncConnectionPoolSupport;
+import io.lettuce.core.support.BoundedAsyncPool;
+import io.lettuce.core.support.BoundedPoolConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Redis-based implementation of {@link AgentStateRepository}.
+ * <p>
+ * All commands share a single long-lived {@link StatefulRedisConnection}. Lettuce connections are
+ * thread-safe and multiplex concurrent commands over one socket, so there is no per-operation
+ * handshake. Commands that would block the shared connection (transactions, blocking pops) must go
+ * through {@link #executeIsolated(Function)}, which borrows a dedicated connection from an optional
+ * bounded pool.
+ * <p>
+ * On a Redis Cluster ({@link #forCluster(String...)} or a {@link StatefulRedisClusterConnection}) keys
+ * use the {@link RedisKeyLayout#TENANT_HASH_TAG} layout by default, so the states of one tenant share a
+ * slot and batch operations on a tenant stay single-round-trip.
+ * <p>
+ * States expire according to the {@link StateRetentionPolicy} set with
+ * {@link #withRetentionPolicy(StateRetentionPolicy)}: 10 minutes after the last save by default, per
+ * tenant and renewed on every read ({@code GETEX}) if configured. Values are compressed by the
+ * {@link StateCodec} set with {@link #withCodec(StateCodec)}; by default they are stored as plain JSON.
+ * <p>
+ * Repositories that own their client, and those created with {@code forBinaryConnection}, store values
+ * as {@code byte[]}, so compressed frames hold the deflated bytes as they are. On a connection with
+ * {@code String} values, e.g. one shared with
+ * {@link com.veyon.veyflow.config.RedisWorkflowConfigRepository}, compressed frames are Base64 text,
+ * about a third larger, and frames written as bytes cannot be read. Binary repositories also read the
+ * Base64 frames, so states written before switching stay readable.
+ */
+public class RedisAgentStateRepository implements AgentStateRepository, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisAgentStateRepository.class);
+    private static final int DEFAULT_BLOCKING_POOL_SIZE = 0;
+    private static final int DEFAULT_SCAN_BATCH_SIZE = 500;
+    private static final int DEFAULT_SCAN_KEYS_PER_SECOND = 10_000;
+
+    /**
+     * Replaces the value only if the version at the start of the stored JSON, or in the header of a
+     * {@link StateCodec} frame, equals ARGV[1]. Only the first bytes are read, so the check does not
+     * depend on the state's size.
+     * Returns the new version, or -1 - storedVersion on conflict.
+     */
+    private static final String COMPARE_AND_SAVE_SCRIPT =
+            "local head = redis.call('GETRANGE', KEYS[1], 0, 63)\n" +
+            "local stored = tonumber(string.match(head, '^{\"version\":(%d+)') or string.match(head, '^\\031z[12]:(%d+):') or '0')\n" +
+            "if stored ~= tonumber(ARGV[1]) then return -1 - stored end\n" +
+            "redis.call('SETEX', KEYS[1], ARGV[3], ARGV[2])\n" +
+            "return stored + 1";
+    private static final String COMPARE_AND_SAVE_SHA = sha1Hex(COMPARE_AND_SAVE_SCRIPT);
 
-public class RedisAgentStateRepository implements AgentStateRepository {
+    /**
+     * Plain save of KEYS[i]: ARGV[3i - 2] is the state's version, ARGV[3i - 1] the value, encoded with
+     * that version plus one, and ARGV[3i] the TTL. The stored version becomes the greater of the previous
+     * one plus one and the state's own, as in {@link AgentState#versionAfterSave}; if that is not what
+     * the value was encoded with, the version in its header is rewritten. All keys must share a cluster
+     * slot. Returns the stored version, or the list of them for several keys.
+     */
+    private static final String SAVE_SCRIPT =
+            "local versions = {}\n" +
+            "for i = 1, #KEYS do\n" +
+            "  local head = redis.call('GETRANGE', KEYS[i], 0, 63)\n" +
+            "  local stored = tonumber(string.match(head, '^{\"version\":(%d+)') or string.match(head, '^\\031z[12]:(%d+):') or '0')\n" +
+            "  local version = math.max(stored + 1, tonumber(ARGV[3 * i - 2]))\n" +
+            "  local value = ARGV[3 * i - 1]\n" +
+            "  if version ~= tonumber(ARGV[3 * i - 2]) + 1 then\n" +
+            "    local prefix, encoded = string.match(value, '^({\"version\":)(%d+)')\n" +
+            "    if not prefix then prefix, encoded = string.match(value, '^(\\031z[12]:)(%d+)') end\n" +
+            "    if prefix then value = prefix .. string.format('%d', version) .. string.sub(value, #prefix + #encoded + 1) end\n" +
+            "  end\n" +
+            "  redis.call('SETEX', KEYS[i], ARGV[3 * i], value)\n" +
+            "  versions[i] = version\n" +
+            "end\n" +
+            "if #KEYS == 1 then return versions[1] end\n" +
+            "return versions";
+    private static final String SAVE_SHA = sha1Hex(SAVE_SCRIPT);
+
+    private static final RedisCodec<String, byte[]> BINARY_CODEC = RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE);
 
-    private static final long TTL_SECONDS = 600; // 10 minutes
     private final RedisClient redisClient;
-    private final String redisUri; // e.g., "redis://localhost:6379"
+    private final RedisURI redisUri; // e.g., "redis://localhost:6379"
+    private final RedisClusterClient clusterClient;
+    private final boolean ownsClient;
+    private final boolean ownsConnection;
+    private final int blockingPoolSize;
+    private final RedisKeyLayout keyLayout;
+    private final boolean textValues;
+
+    // Either a StatefulRedisConnection or a StatefulRedisClusterConnection, with byte[] values unless
+    // textValues; values are passed as the matching type
+    private volatile StatefulConnection<String, Object> connection;
+    private volatile BoundedAsyncPool<StatefulRedisConnection<String, String>> blockingPool;
+    private volatile StateRetentionPolicy retentionPolicy = StateRetentionPolicy.defaults();
+    private volatile StateCodec codec = StateCodec.uncompressed();
+
+    /**
+     * Creates a repository that owns its own {@link RedisClient}.
+     *
+     * @param redisUri The Redis URI, e.g. {@code redis://localhost:6379}
+     * @param blockingPoolSize Maximum number of dedicated connections for isolated commands, or 0 to open them on demand
+     */
+    public RedisAgentStateRepository(String redisUri, int blockingPoolSize) {
+        if (blockingPoolSize < 0) {
+            throw new IllegalArgumentException("blockingPoolSize must not be negative");
+        }
+        this.redisUri = RedisURI.create(redisUri);
+        this.redisClient = RedisClient.create(this.redisUri);
+        this.clusterClient = null;
+        this.ownsClient = true;
+        this.ownsConnection = true;
+        this.blockingPoolSize = blockingPoolSize;
+        this.keyLayout = RedisKeyLayout.LEGACY;
+        this.textValues = false;
+    }
 
     // Constructor allowing Redis URI to be passed
     public RedisAgentStateRepository(String redisUri) {
-        this.redisUri = redisUri;
-        this.redisClient = RedisClient.create(this.redisUri);
+        this(redisUri, DEFAULT_BLOCKING_POOL_SIZE);
     }
 
     // Default constructor using localhost
@@ -22,13 +170,318 @@ public class RedisAgentStateRepository implements AgentStateRepository {
         this("redis://localhost:6379");
     }
 
+    /**
+     * Creates a repository on top of an existing connection, e.g. one shared with
+     * {@link com.veyon.veyflow.config.RedisWorkflowConfigRepository}. The connection is not closed by
+     * {@link #shutdown()}, and {@link #executeIsolated(Function)} is not available.
+     *
+     * @param connection The shared connection
+     */
+    public RedisAgentStateRepository(StatefulRedisConnection<String, String> connection) {
+        this(connection, RedisKeyLayout.LEGACY);
+    }
+
+    /**
+     * Creates a repository on top of an existing standalone connection with the given key layout.
+     *
+     * @param connection The shared connection
+     * @param keyLayout How tenants are embedded in keys
+     */
+    public RedisAgentStateRepository(StatefulRedisConnection<String, String> connection, RedisKeyLayout keyLayout) {
+        this(connection, keyLayout, true);
+    }
+
+    /**
+     * Creates a repository on top of an existing Redis Cluster connection, using the
+     * {@link RedisKeyLayout#TENANT_HASH_TAG} layout. The connection is not closed by {@link #shutdown()}.
+     *
+     * @param connection The shared cluster connection
+     */
+    public RedisAgentStateRepository(StatefulRedisClusterConnection<String, String> connection) {
+        this(connection, RedisKeyLayout.TENANT_HASH_TAG);
+    }
+
+    /**
+     * Creates a repository on top of an existing Redis Cluster connection with the given key layout.
+     *
+     * @param connection The shared cluster connection
+     * @param keyLayout How tenants are embedded in keys
+     */
+    public RedisAgentStateRepository(StatefulRedisClusterConnection<String, String> connection, RedisKeyLayout keyLayout) {
+        this(connection, keyLayout, true);
+    }
+
+    private RedisAgentStateRepository(StatefulConnection<String, ?> connection, RedisKeyLayout keyLayout, boolean textValues) {
+        if (connection == null || keyLayout == null) {
+            throw new IllegalArgumentException("Connection and keyLayout must not be null");
+        }
+        this.redisUri = null;
+        this.redisClient = null;
+        this.clusterClient = null;
+        this.ownsClient = false;
+        this.ownsConnection = false;
+        this.blockingPoolSize = 0;
+        this.keyLayout = keyLayout;
+        this.textValues = textValues;
+        this.connection = untyped(connection);
+    }
+
+    private RedisAgentStateRepository(RedisClusterClient clusterClient) {
+        this.redisUri = null;
+        this.redisClient = null;
+        this.clusterClient = clusterClient;
+        this.ownsClient = true;
+        this.ownsConnection = true;
+        this.blockingPoolSize = 0;
+        this.keyLayout = RedisKeyLayout.TENANT_HASH_TAG;
+        this.textValues = false;
+    }
+
+    /**
+     * Creates a repository on top of an existing standalone connection with {@code byte[]} values, e.g.
+     * one opened with {@code RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE)}, so compressed
+     * states are stored without Base64. The connection is not closed by {@link #shutdown()}.
+     *
+     * @param connection The shared connection
+     * @param keyLayout How tenants are embedded in keys
+     * @return A new repository
+     */
+    public static RedisAgentStateRepository forBinaryConnection(StatefulRedisConnection<String, byte[]> connection,
+                                                                RedisKeyLayout keyLayout) {
+        return new RedisAgentStateRepository(connection, keyLayout, false);
+    }
+
+    /**
+     * Creates a repository on top of an existing Redis Cluster connection with {@code byte[]} values.
+     * The connection is not closed by {@link #shutdown()}.
+     *
+     * @param connection The shared cluster connection
+     * @param keyLayout How tenants are embedded in keys
+     * @return A new repository
+     */
+    public static RedisAgentStateRepository forBinaryConnection(StatefulRedisClusterConnection<String, byte[]> connection,
+                                                                RedisKeyLayout keyLayout) {
+        return new RedisAgentStateRepository(connection, keyLayout, false);
+    }
+
+    /**
+     * Creates a repository that owns a {@link RedisClusterClient} for the given seed nodes and uses the
+     * {@link RedisKeyLayout#TENANT_HASH_TAG} layout. {@link #executeIsolated(Function)} is not available.
+     *
+     * @param seedUris URIs of one or more cluster nodes, e.g. {@code redis://node1:6379}
+     * @return A new repository
+     */
+    public static RedisAgentStateRepository forCluster(String... seedUris) {
+        if (seedUris == null || seedUris.length == 0) {
+            throw new IllegalArgumentException("At least one cluster seed URI is required");
+        }
+        List<RedisURI> uris = new ArrayList<>(seedUris.length);
+        for (String seedUri : seedUris) {
+            uris.add(RedisURI.create(seedUri));
+        }
+        return new RedisAgentStateRepository(RedisClusterClient.create(uris));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StatefulConnection<String, Object> untyped(StatefulConnection<String, ?> connection) {
+        return (StatefulConnection<String, Object>) connection;
+    }
+
+    private StatefulConnection<String, Object> connection() {
+        StatefulConnection<String, Object> current = connection;
+        if (current == null) {
+            synchronized (this) {
+                current = connection;
+                if (current == null) {
+                    if (clusterClient != null) {
+                        current = untyped(clusterClient.connect(BINARY_CODEC));
+                        log.debug("Opened shared Redis Cluster connection");
+                    } else {
+                        current = untyped(redisClient.connect(BINARY_CODEC, redisUri));
+                        log.debug("Opened shared Redis connection to {}", redisUri);
+                    }
+                    connection = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private boolean isCluster() {
+        return connection() instanceof StatefulRedisClusterConnection;
+    }
+
+    private BoundedAsyncPool<StatefulRedisConnection<String, String>> blockingPool() {
+        BoundedAsyncPool<StatefulRedisConnection<String, String>> current = blockingPool;
+        if (current == null) {
+            synchronized (this) {
+                current = blockingPool;
+                if (current == null) {
+                    BoundedPoolConfig config = BoundedPoolConfig.builder()
+                            .maxTotal(blockingPoolSize)
+                            .maxIdle(blockingPoolSize)
+                            .minIdle(0)
+                            .build();
+                    current = AsyncConnectionPoolSupport.createBoundedObjectPool(
+                            () -> redisClient.connectAsync(StringCodec.UTF8, redisUri), config);
+                    blockingPool = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private RedisClusterCommands<String, Object> sync() {
+        StatefulConnection<String, Object> current = connection();
+        if (current instanceof StatefulRedisClusterConnection<String, Object> cluster) {
+            return cluster.sync();
+        }
+        return ((StatefulRedisConnection<String, Object>) current).sync();
+    }
+
+    private RedisClusterAsyncCommands<String, Object> async() {
+        StatefulConnection<String, Object> current = connection();
+        if (current instanceof StatefulRedisClusterConnection<String, Object> cluster) {
+            return cluster.async();
+        }
+        return ((StatefulRedisConnection<String, Object>) current).async();
+    }
+
+    private RedisClusterReactiveCommands<String, Object> reactive() {
+        StatefulConnection<String, Object> current = connection();
+        if (current instanceof StatefulRedisClusterConnection<String, Object> cluster) {
+            return cluster.reactive();
+        }
+        return ((StatefulRedisConnection<String, Object>) current).reactive();
+    }
+
     private String getKey(String tenantId, String threadId) {
-        if (tenantId == null || tenantId.trim().isEmpty() || threadId == null || threadId.trim().isEmpty()) {
-            throw new IllegalArgumentException("TenantId and ThreadId must not be null or empty");
+        StateKeys.requireIds(tenantId, threadId);
+        return "agentstate:" + keyLayout.tenantSegment(tenantId) + StateKeys.SEPARATOR + threadId;
+    }
+
+    /**
+     * Also rejects tenant IDs that the {@link RedisKeyLayout} cannot embed in a key.
+     */
+    @Override
+    public void validateIds(String tenantId, String threadId) {
+        getKey(tenantId, threadId);
+    }
+
+    private Optional<AgentState> decode(Object payload) {
+        if (isEmpty(payload)) {
+            return Optional.empty();
         }
-        return "agentstate:" + tenantId + "::" + threadId;
+        return Optional.of(decodeState(payload));
+    }
+
+    private static boolean isEmpty(Object payload) {
+        return payload == null || ((payload instanceof byte[] bytes) ? bytes.length == 0 : ((String) payload).isEmpty());
     }
 
+    /**
+     * The version in the header of a compressed frame wins over the one inside it, which
+     * {@link #SAVE_SCRIPT} does not rewrite.
+     */
+    private AgentState decodeState(Object payload) {
+        if (payload instanceof byte[] bytes) {
+            AgentState state = AgentState.fromJsonLazy(codec.decode(bytes));
+            if (StateCodec.isFrame(bytes)) {
+                state.setVersion(StateCodec.peekVersion(bytes));
+            }
+            return state;
+        }
+        String text = (String) payload;
+        AgentState state = AgentState.fromJsonLazy(codec.decode(text));
+        if (text.startsWith(StateCodec.MAGIC)) {
+            state.setVersion(StateCodec.peekVersion(text));
+        }
+        return state;
+    }
+
+    private Object encode(AgentState state) {
+        String json = state.toJson();
+        return textValues ? codec.encode(json, PersistenceMode.REDIS) : codec.encodeToBytes(json, PersistenceMode.REDIS);
+    }
+
+    /**
+     * @return A script argument as the connection's values are typed.
+     */
+    private Object value(String text) {
+        return textValues ? text : text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The arguments of {@link #SAVE_SCRIPT} for the states, in order.
+     */
+    private Object[] saveArgs(List<AgentState> states) {
+        Object[] args = new Object[states.size() * 3];
+        for (int i = 0; i < states.size(); i++) {
+            AgentState state = states.get(i);
+            long version = state.getVersion();
+            state.setVersion(version + 1);
+            try {
+                args[3 * i + 1] = encode(state);
+            } finally {
+                state.setVersion(version);
+            }
+            args[3 * i] = value(Long.toString(version));
+            args[3 * i + 2] = value(Long.toString(ttlSeconds(state.getTenantId())));
+        }
+        return args;
+    }
+
+    /**
+     * Sets how long states are kept and whether reads renew their TTL. Applies to all later commands.
+     *
+     * @param retentionPolicy The retention policy
+     * @return This repository for chaining
+     */
+    public RedisAgentStateRepository withRetentionPolicy(StateRetentionPolicy retentionPolicy) {
+        if (retentionPolicy == null) {
+            throw new IllegalArgumentException("retentionPolicy must not be null");
+        }
+        this.retentionPolicy = retentionPolicy;
+        return this;
+    }
+
+    /**
+     * @return The retention policy in use.
+     */
+    public StateRetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    /**
+     * Sets the codec that compresses stored states. Values written before, compressed or not, stay
+     * readable as long as the codec knows their dictionary.
+     *
+     * @param codec The codec; its level for {@link PersistenceMode#REDIS} is used
+     * @return This repository for chaining
+     */
+    public RedisAgentStateRepository withCodec(StateCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * @return The codec in use, which also exposes the compression ratio.
+     */
+    public StateCodec getCodec() {
+        return codec;
+    }
+
+    private long ttlSeconds(String tenantId) {
+        return retentionPolicy.ttlSecondsFor(tenantId);
+    }
+
+    /**
+     * Reads the stored version and writes the state in one Lua script ({@code EVALSHA}, falling back to
+     * {@code EVAL} once if the script is not cached on the server), so the version never goes back.
+     */
     @Override
     public void save(AgentState state) {
         if (state == null) {
@@ -36,28 +489,27 @@ public class RedisAgentStateRepository implements AgentStateRepository {
         }
         // Ensure persistence mode is REDIS, or handle appropriately
         // For now, we assume if this repository is used, it's for REDIS mode.
-        // state.setPersistenceMode(PersistenceMode.REDIS); 
-
-        try (StatefulRedisConnection<String, String> connection = redisClient.connect()) {
-            RedisCommands<String, String> syncCommands = connection.sync();
-            String key = getKey(state.getTenantId(), state.getThreadId());
-            String jsonState = state.toJson();
-            syncCommands.setex(key, TTL_SECONDS, jsonState);
+        // state.setPersistenceMode(PersistenceMode.REDIS);
+        String[] keys = {getKey(state.getTenantId(), state.getThreadId())};
+        Object[] args = saveArgs(List.of(state));
+        Long version;
+        try {
+            version = sync().evalsha(SAVE_SHA, ScriptOutputType.INTEGER, keys, args);
+        } catch (RedisNoScriptException e) {
+            version = sync().eval(SAVE_SCRIPT, ScriptOutputType.INTEGER, keys, args);
         }
+        state.setVersion(version);
     }
 
     @Override
     public Optional<AgentState> findById(String tenantId, String threadId) {
-        try (StatefulRedisConnection<String, String> connection = redisClient.connect()) {
-            RedisCommands<String, String> syncCommands = connection.sync();
+        try {
             String key = getKey(tenantId, threadId);
-            String jsonState = syncCommands.get(key);
-            if (jsonState == null || jsonState.isEmpty()) {
-                return Optional.empty();
+            StateRetentionPolicy policy = retentionPolicy;
+            if (policy.isSlidingExpiration()) {
+                return decode(sync().getex(key, GetExArgs.Builder.ex(policy.ttlSecondsFor(tenantId))));
             }
-            // Optionally, refresh TTL on read if desired (touch behavior)
-            // syncCommands.expire(key, TTL_SECONDS); 
-            return Optional.of(AgentState.fromJson(jsonState));
+            return decode(sync().get(key));
         } catch (IllegalArgumentException e) { // Catch issues from getKey
             return Optional.empty();
         }
@@ -65,10 +517,8 @@ public class RedisAgentStateRepository implements AgentStateRepository {
 
     @Override
     public boolean delete(String tenantId, String threadId) {
-        try (StatefulRedisConnection<String, String> connection = redisClient.connect()) {
-            RedisCommands<String, String> syncCommands = connection.sync();
-            String key = getKey(tenantId, threadId);
-            return syncCommands.del(key) > 0;
+        try {
+            return sync().del(getKey(tenantId, threadId)) > 0;
         } catch (IllegalArgumentException e) {
             return false;
         }
@@ -76,19 +526,488 @@ public class RedisAgentStateRepository implements AgentStateRepository {
 
     @Override
     public boolean exists(String tenantId, String threadId) {
-         try (StatefulRedisConnection<String, String> connection = redisClient.connect()) {
-            RedisCommands<String, String> syncCommands = connection.sync();
-            String key = getKey(tenantId, threadId);
-            return syncCommands.exists(key) > 0;
+        try {
+            return sync().exists(getKey(tenantId, threadId)) > 0;
         } catch (IllegalArgumentException e) {
             return false;
         }
     }
 
+    /**
+     * Runs the compare and the write atomically in a Lua script ({@code EVALSHA}, falling back to
+     * {@code EVAL} once if the script is not cached on the server).
+     */
+    @Override
+    public boolean compareAndSave(AgentState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("AgentState must not be null");
+        }
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        long expected = state.getVersion();
+        state.setVersion(expected + 1);
+        boolean saved = false;
+        try {
+            String[] keys = {key};
+            Object[] args = {value(Long.toString(expected)), encode(state), value(Long.toString(ttlSeconds(state.getTenantId())))};
+            Long result;
+            try {
+                result = sync().evalsha(COMPARE_AND_SAVE_SHA, ScriptOutputType.INTEGER, keys, args);
+            } catch (RedisNoScriptException e) {
+                result = sync().eval(COMPARE_AND_SAVE_SCRIPT, ScriptOutputType.INTEGER, keys, args);
+            }
+            saved = result != null && result > 0;
+            if (!saved && log.isDebugEnabled()) {
+                log.debug("Version conflict saving {}: expected {}, stored {}", key, expected, (result == null) ? null : -1 - result);
+            }
+            return saved;
+        } finally {
+            if (!saved) {
+                state.setVersion(expected);
+            }
+        }
+    }
+
+    private static String sha1Hex(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    /**
+     * Loads all requested threads with a single {@code MGET}. On a cluster, Lettuce splits it per slot;
+     * with {@link RedisKeyLayout#TENANT_HASH_TAG} all keys share one slot and it stays a single command.
+     * With sliding expiration the keys are read as one pipeline of {@code GETEX} commands instead, so
+     * every read key gets its TTL renewed.
+     */
+    @Override
+    public Map<String, AgentState> findAll(String tenantId, Collection<String> threadIds) {
+        Map<String, AgentState> found = new LinkedHashMap<>();
+        Map<String, String> threadIdsByKey = new LinkedHashMap<>();
+        for (String threadId : threadIds) {
+            try {
+                threadIdsByKey.put(getKey(tenantId, threadId), threadId);
+            } catch (IllegalArgumentException e) {
+                // Invalid identifiers cannot have state, same as findById
+            }
+        }
+        if (threadIdsByKey.isEmpty()) {
+            return found;
+        }
+        StateRetentionPolicy policy = retentionPolicy;
+        if (policy.isSlidingExpiration()) {
+            GetExArgs renew = GetExArgs.Builder.ex(policy.ttlSecondsFor(tenantId));
+            Map<String, RedisFuture<Object>> replies = new LinkedHashMap<>();
+            threadIdsByKey.forEach((key, threadId) -> replies.put(threadId, async().getex(key, renew)));
+            awaitAll(new ArrayList<>(replies.values()));
+            replies.forEach((threadId, reply) -> decode(reply.toCompletableFuture().join())
+                    .ifPresent(state -> found.put(threadId, state)));
+            return found;
+        }
+        List<KeyValue<String, Object>> values = sync().mget(threadIdsByKey.keySet().toArray(new String[0]));
+        for (KeyValue<String, Object> value : values) {
+            if (value.hasValue() && !isEmpty(value.getValue())) {
+                found.put(threadIdsByKey.get(value.getKey()), decodeState(value.getValue()));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Writes all states with one {@link #SAVE_SCRIPT} call, which gives every key its value, version and
+     * TTL atomically in a single round trip. The script is sent by its SHA, and its body only when the
+     * server answers {@code NOSCRIPT}.
+     * <p>
+     * On a cluster the keys are grouped by slot and each group is written by its own script call on its
+     * node, pipelined, so a tenant's batch under {@link RedisKeyLayout#TENANT_HASH_TAG} is still one
+     * atomic round trip.
+     */
+    @Override
+    public void saveAll(Collection<AgentState> states) {
+        Map<String, AgentState> byKey = new LinkedHashMap<>();
+        for (AgentState state : states) {
+            if (state == null) {
+                throw new IllegalArgumentException("AgentState must not be null");
+            }
+            byKey.put(getKey(state.getTenantId(), state.getThreadId()), state);
+        }
+        if (byKey.isEmpty()) {
+            return;
+        }
+        Collection<List<String>> groups = isCluster()
+                ? SlotHash.partition(StringCodec.UTF8, byKey.keySet()).values()
+                : List.of(new ArrayList<>(byKey.keySet()));
+        List<List<AgentState>> written = new ArrayList<>();
+        List<CompletableFuture<Object>> replies = new ArrayList<>();
+        for (List<String> groupKeys : groups) {
+            List<AgentState> group = new ArrayList<>(groupKeys.size());
+            groupKeys.forEach(key -> group.add(byKey.get(key)));
+            ScriptOutputType output = (group.size() == 1) ? ScriptOutputType.INTEGER : ScriptOutputType.MULTI;
+            written.add(group);
+            replies.add(evalSaveScriptAsync(output, groupKeys.toArray(new String[0]), saveArgs(group)));
+        }
+        awaitAll(replies);
+        for (int g = 0; g < written.size(); g++) {
+            List<AgentState> group = written.get(g);
+            Object versions = replies.get(g).join();
+            for (int i = 0; i < group.size(); i++) {
+                Object version = (versions instanceof List) ? ((List<?>) versions).get(i) : versions;
+                group.get(i).setVersion((Long) version);
+            }
+        }
+    }
+
+    /**
+     * Deletes all requested threads with a single multi-key {@code DEL}, split per slot on a cluster.
+     */
+    @Override
+    public long deleteAll(String tenantId, Collection<String> threadIds) {
+        List<String> keys = new ArrayList<>(threadIds.size());
+        for (String threadId : threadIds) {
+            try {
+                keys.add(getKey(tenantId, threadId));
+            } catch (IllegalArgumentException e) {
+                // Nothing stored under invalid identifiers
+            }
+        }
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        return sync().del(keys.toArray(new String[0]));
+    }
+
+    /**
+     * Streams a tenant's states in batches of 500 keys, paced to at most 10,000 keys per second.
+     */
+    @Override
+    public Stream<AgentState> scanByTenant(String tenantId) {
+        return scanByTenant(tenantId, DEFAULT_SCAN_BATCH_SIZE, DEFAULT_SCAN_KEYS_PER_SECOND);
+    }
+
+    /**
+     * Streams a tenant's states using a cursor-based {@code SCAN MATCH}. Each batch of keys is loaded
+     * with one {@code MGET} when the stream reaches it, so memory use is bounded by the batch size.
+     * {@code SCAN} may report a key more than once, in which case its state is emitted more than once.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param batchSize Keys requested per {@code SCAN} call and loaded per {@code MGET}.
+     * @param maxKeysPerSecond Upper bound on keys loaded per second, or 0 for no limit.
+     * @return The tenant's states, in no particular order.
+     */
+    public Stream<AgentState> scanByTenant(String tenantId, int batchSize, int maxKeysPerSecond) {
+        Iterator<List<String>> batches = scanTenantKeys(tenantId, batchSize);
+        KeyRateLimiter limiter = new KeyRateLimiter(maxKeysPerSecond);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.NONNULL), false)
+                .flatMap(keys -> {
+                    limiter.acquire(keys.size());
+                    List<AgentState> states = new ArrayList<>(keys.size());
+                    for (KeyValue<String, Object> value : sync().mget(keys.toArray(new String[0]))) {
+                        if (value.hasValue() && !isEmpty(value.getValue())) {
+                            AgentState state = decodeState(value.getValue());
+                            if (tenantId.equals(state.getTenantId())) {
+                                states.add(state);
+                            }
+                        }
+                    }
+                    return states.stream();
+                });
+    }
+
+    /**
+     * Deletes a tenant's states in batches of 500 keys, paced to at most 10,000 keys per second.
+     */
+    @Override
+    public long purgeTenant(String tenantId) {
+        return purgeTenant(tenantId, DEFAULT_SCAN_BATCH_SIZE, DEFAULT_SCAN_KEYS_PER_SECOND);
+    }
+
+    /**
+     * Deletes a tenant's states using a cursor-based {@code SCAN MATCH} and one {@code UNLINK} per
+     * batch. {@code UNLINK} frees the values in the background, so large states do not block Redis.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param batchSize Keys requested per {@code SCAN} call and removed per {@code UNLINK}.
+     * @param maxKeysPerSecond Upper bound on keys removed per second, or 0 for no limit.
+     * @return The number of states that were deleted.
+     */
+    public long purgeTenant(String tenantId, int batchSize, int maxKeysPerSecond) {
+        Iterator<List<String>> batches = scanTenantKeys(tenantId, batchSize);
+        KeyRateLimiter limiter = new KeyRateLimiter(maxKeysPerSecond);
+        long purged = 0;
+        while (batches.hasNext()) {
+            List<String> keys = batches.next();
+            limiter.acquire(keys.size());
+            purged += sync().unlink(keys.toArray(new String[0]));
+        }
+        log.info("Purged {} agent states of tenant {}", purged, tenantId);
+        return purged;
+    }
+
+    private Iterator<List<String>> scanTenantKeys(String tenantId, int batchSize) {
+        StateKeys.requireTenantId(tenantId);
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+        String pattern = "agentstate:" + escapeGlob(keyLayout.tenantSegment(tenantId)) + StateKeys.SEPARATOR + "*";
+        Iterator<String> keys = ScanIterator.scan(sync(), ScanArgs.Builder.matches(pattern).limit(batchSize));
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public List<String> next() {
+                List<String> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && keys.hasNext()) {
+                    batch.add(keys.next());
+                }
+                return batch;
+            }
+        };
+    }
+
+    private static String escapeGlob(String literal) {
+        StringBuilder escaped = new StringBuilder(literal.length());
+        for (char c : literal.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == ']' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private void awaitAll(List<? extends Future<?>> replies) {
+        if (replies.isEmpty()) {
+            return;
+        }
+        long timeoutMillis = connection().getTimeout().toMillis();
+        if (!LettuceFutures.awaitAll(timeoutMillis, TimeUnit.MILLISECONDS, replies.toArray(new Future[0]))) {
+            throw new IllegalStateException("Timed out after " + timeoutMillis + " ms waiting for " + replies.size() + " pipelined Redis replies");
+        }
+    }
+
+    /**
+     * Runs {@link #SAVE_SCRIPT} without blocking: {@code EVALSHA} first, and {@code EVAL} once if the
+     * script is not cached on the server, as {@link #save(AgentState)} does.
+     */
+    private <T> CompletableFuture<T> evalSaveScriptAsync(ScriptOutputType output, String[] keys, Object[] args) {
+        return async().<T>evalsha(SAVE_SHA, output, keys, args).toCompletableFuture()
+                .exceptionallyCompose(e -> {
+                    Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+                    return (cause instanceof RedisNoScriptException)
+                            ? async().<T>eval(SAVE_SCRIPT, output, keys, args).toCompletableFuture()
+                            : CompletableFuture.failedFuture(cause);
+                });
+    }
+
+    /**
+     * Asynchronously saves the given agent state. The command is written to the shared connection
+     * immediately and the returned stage completes when Redis acknowledges it. Failures, including a
+     * connection that cannot be opened, complete the stage exceptionally instead of being thrown.
+     *
+     * @param state The AgentState to save.
+     * @return A stage that completes once the state is stored.
+     */
+    @Override
+    public CompletionStage<Void> saveAsync(AgentState state) {
+        if (state == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("AgentState must not be null"));
+        }
+        try {
+            String[] keys = {getKey(state.getTenantId(), state.getThreadId())};
+            CompletableFuture<Long> reply = evalSaveScriptAsync(ScriptOutputType.INTEGER, keys, saveArgs(List.of(state)));
+            return reply.thenAccept(state::setVersion);
+        } catch (RuntimeException e) {
+            // Invalid identifiers, or no connection could be opened
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Asynchronously finds an AgentState by its tenantId and threadId.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A stage with the AgentState if found, or an empty Optional otherwise.
+     */
+    @Override
+    public CompletionStage<Optional<AgentState>> findByIdAsync(String tenantId, String threadId) {
+        try {
+            String key = getKey(tenantId, threadId);
+            StateRetentionPolicy policy = retentionPolicy;
+            RedisFuture<Object> reply = policy.isSlidingExpiration()
+                    ? async().getex(key, GetExArgs.Builder.ex(policy.ttlSecondsFor(tenantId)))
+                    : async().get(key);
+            return reply.thenApply(this::decode);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Asynchronously deletes an AgentState by its tenantId and threadId.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A stage with true if the state was deleted, false otherwise.
+     */
+    @Override
+    public CompletionStage<Boolean> deleteAsync(String tenantId, String threadId) {
+        try {
+            return async().del(getKey(tenantId, threadId)).thenApply(deleted -> deleted > 0);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(false);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Asynchronously checks if an AgentState exists for the given tenantId and threadId.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A stage with true if the state exists, false otherwise.
+     */
+    @Override
+    public CompletionStage<Boolean> existsAsync(String tenantId, String threadId) {
+        try {
+            return async().exists(getKey(tenantId, threadId)).thenApply(count -> count > 0);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(false);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Reactive variant of {@link #save(AgentState)}.
+     *
+     * @param state The AgentState to save.
+     * @return A Mono that completes once the state is stored.
+     */
+    public Mono<Void> saveReactive(AgentState state) {
+        return Mono.defer(() -> {
+            if (state == null) {
+                return Mono.error(new IllegalArgumentException("AgentState must not be null"));
+            }
+            String[] keys = {getKey(state.getTenantId(), state.getThreadId())};
+            Object[] args = saveArgs(List.of(state));
+            return reactive().<Long>evalsha(SAVE_SHA, ScriptOutputType.INTEGER, keys, args)
+                    .onErrorResume(RedisNoScriptException.class,
+                            e -> reactive().<Long>eval(SAVE_SCRIPT, ScriptOutputType.INTEGER, keys, args))
+                    .doOnNext(state::setVersion)
+                    .then();
+        });
+    }
+
+    /**
+     * Reactive variant of {@link #findById(String, String)}.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A Mono emitting the AgentState, or completing empty if not found.
+     */
+    public Mono<AgentState> findByIdReactive(String tenantId, String threadId) {
+        return Mono.defer(() -> {
+                    String key = getKey(tenantId, threadId);
+                    StateRetentionPolicy policy = retentionPolicy;
+                    return policy.isSlidingExpiration()
+                            ? reactive().getex(key, GetExArgs.Builder.ex(policy.ttlSecondsFor(tenantId)))
+                            : reactive().get(key);
+                })
+                .filter(payload -> !isEmpty(payload))
+                .map(this::decodeState)
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.empty());
+    }
+
+    /**
+     * Reactive variant of {@link #delete(String, String)}.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A Mono emitting true if the state was deleted.
+     */
+    public Mono<Boolean> deleteReactive(String tenantId, String threadId) {
+        return Mono.defer(() -> reactive().del(getKey(tenantId, threadId)))
+                .map(deleted -> deleted > 0)
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(false));
+    }
+
+    /**
+     * Reactive variant of {@link #exists(String, String)}.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return A Mono emitting true if the state exists.
+     */
+    public Mono<Boolean> existsReactive(String tenantId, String threadId) {
+        return Mono.defer(() -> reactive().exists(getKey(tenantId, threadId)))
+                .map(count -> count > 0)
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(false));
+    }
+
+    /**
+     * Runs commands on a dedicated connection instead of the shared multiplexed one.
+     * Use this for commands that hold connection state or block it, such as
+     * {@code WATCH}/{@code MULTI} transactions or blocking pops. When a blocking pool size was
+     * configured the connection is borrowed from the pool; otherwise a connection is opened for the
+     * call and closed afterwards.
+     *
+     * @param work The commands to run
+     * @return The value returned by {@code work}
+     * @throws IllegalStateException If the repository was created from an external connection or for a cluster
+     */
+    public <T> T executeIsolated(Function<RedisCommands<String, String>, T> work) {
+        if (redisClient == null) {
+            throw new IllegalStateException("Isolated connections require a repository that owns a standalone RedisClient");
+        }
+        if (blockingPoolSize == 0) {
+            try (StatefulRedisConnection<String, String> dedicated = redisClient.connect(StringCodec.UTF8, redisUri)) {
+                return work.apply(dedicated.sync());
+            }
+        }
+        BoundedAsyncPool<StatefulRedisConnection<String, String>> pool = blockingPool();
+        StatefulRedisConnection<String, String> dedicated = pool.acquire().join();
+        try {
+            return work.apply(dedicated.sync());
+        } finally {
+            pool.release(dedicated);
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
     // Call this when your application shuts down to release resources
     public void shutdown() {
-        if (redisClient != null) {
+        BoundedAsyncPool<StatefulRedisConnection<String, String>> pool = blockingPool;
+        if (pool != null) {
+            pool.close();
+            blockingPool = null;
+        }
+        StatefulConnection<String, Object> current = connection;
+        if (ownsConnection && current != null) {
+            current.close();
+            connection = null;
+        }
+        if (ownsClient && redisClient != null) {
             redisClient.shutdown();
         }
+        if (ownsClient && clusterClient != null) {
+            clusterClient.shutdown();
+        }
     }
 }
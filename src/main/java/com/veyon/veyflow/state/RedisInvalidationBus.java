@@ -0,0 +1,111 @@
+package com.veyon.veyflow.state;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link InvalidationBus} over a Redis pub/sub channel.
+ * <p>
+ * Messages have the form {@code <nodeId>|<publishedAtMillis>|<key>}. Publishing uses a regular
+ * connection because a subscribed connection cannot issue other commands. Pub/sub delivery is
+ * at-most-once, so caches fed by this bus should still bound how long an entry may be served.
+ */
+public class RedisInvalidationBus implements InvalidationBus {
+
+    private static final Logger log = LoggerFactory.getLogger(RedisInvalidationBus.class);
+
+    private final String channel;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final StatefulRedisConnection<String, String> publishConnection;
+    private final StatefulRedisPubSubConnection<String, String> subscribeConnection;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates a bus on the given channel. Connections are opened immediately and closed by {@link #close()};
+     * the client itself is not shut down.
+     *
+     * @param redisClient The client used to open the publish and subscribe connections
+     * @param channel The pub/sub channel, e.g. {@code veyflow:agentstate:invalidate}
+     */
+    public RedisInvalidationBus(RedisClient redisClient, String channel) {
+        if (channel == null || channel.isBlank()) {
+            throw new IllegalArgumentException("Channel must not be null or blank");
+        }
+        this.channel = channel;
+        this.publishConnection = redisClient.connect();
+        this.subscribeConnection = redisClient.connectPubSub();
+        this.subscribeConnection.addListener(new RedisPubSubAdapter<>() {
+            @Override
+            public void message(String receivedChannel, String message) {
+                if (RedisInvalidationBus.this.channel.equals(receivedChannel)) {
+                    dispatch(message);
+                }
+            }
+        });
+        this.subscribeConnection.sync().subscribe(channel);
+        log.debug("Subscribed to invalidation channel {} as node {}", channel, nodeId);
+    }
+
+    private void dispatch(String message) {
+        int first = message.indexOf('|');
+        int second = (first < 0) ? -1 : message.indexOf('|', first + 1);
+        if (second < 0) {
+            log.warn("Ignoring malformed invalidation message on {}: {}", channel, message);
+            return;
+        }
+        if (message.startsWith(nodeId) && first == nodeId.length()) {
+            return; // our own write
+        }
+        long publishedAt;
+        try {
+            publishedAt = Long.parseLong(message.substring(first + 1, second));
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalidation message with invalid timestamp on {}: {}", channel, message);
+            return;
+        }
+        String key = message.substring(second + 1);
+        for (Listener listener : listeners) {
+            try {
+                listener.onInvalidate(key, publishedAt);
+            } catch (Exception e) {
+                log.error("Invalidation listener failed for key {}", key, e);
+            }
+        }
+    }
+
+    @Override
+    public void publish(String key) {
+        String message = nodeId + "|" + System.currentTimeMillis() + "|" + key;
+        // Fire-and-forget: the write itself already succeeded, a lost message only delays invalidation
+        publishConnection.async().publish(channel, message).exceptionally(e -> {
+            log.warn("Failed to publish invalidation for key {} on {}: {}", key, channel, e.getMessage());
+            return 0L;
+        });
+    }
+
+    @Override
+    public void subscribe(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return The identifier this node stamps on its own messages.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void close() {
+        subscribeConnection.close();
+        publishConnection.close();
+    }
+}
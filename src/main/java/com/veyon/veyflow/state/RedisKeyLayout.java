@@ -0,0 +1,49 @@
+package com.veyon.veyflow.state;
+
+/**
+ * How the Redis repositories embed the tenant in their keys.
+ */
+public enum RedisKeyLayout {
+
+    /**
+     * {@code agentstate:<tenant>::<thread>}. The keys of one tenant are spread over all cluster slots,
+     * so batches touching several of them cannot run as one command or script on a Redis Cluster.
+     */
+    LEGACY,
+
+    /**
+     * {@code agentstate:{<tenant>}::<thread>}. The tenant is a hash tag, so all keys of a tenant,
+     * including its workflow configuration, map to the same cluster slot and can be read, written or
+     * deleted together in a single round trip. Existing data under the {@link #LEGACY} layout is not
+     * visible under this one.
+     */
+    TENANT_HASH_TAG;
+
+    /**
+     * @param tenantId The ID of the tenant.
+     * @return The tenant as it appears in a key under this layout.
+     * @throws IllegalArgumentException Under {@link #TENANT_HASH_TAG}, if the tenant ID contains {@code {} or
+     *         {@code }}: Redis would hash a different part of the key, so the tenant's keys would no longer
+     *         share a slot, and {@link #tenantFromSegment(String)} would not return the tenant ID.
+     */
+    public String tenantSegment(String tenantId) {
+        if (this != TENANT_HASH_TAG) {
+            return tenantId;
+        }
+        if (tenantId.indexOf('{') >= 0 || tenantId.indexOf('}') >= 0) {
+            throw new IllegalArgumentException("TenantId must not contain '{' or '}' under the " + this + " key layout: " + tenantId);
+        }
+        return "{" + tenantId + "}";
+    }
+
+    /**
+     * @param segment The tenant as it appears in a key under this layout.
+     * @return The ID of the tenant, the inverse of {@link #tenantSegment(String)}.
+     */
+    public String tenantFromSegment(String segment) {
+        if (this == TENANT_HASH_TAG && segment.length() >= 2 && segment.startsWith("{") && segment.endsWith("}")) {
+            return segment.substring(1, segment.length() - 1);
+        }
+        return segment;
+    }
+}
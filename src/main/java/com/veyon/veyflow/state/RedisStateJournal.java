@@ -0,0 +1,250 @@
+package com.veyon.veyflow.state;
+
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.api.StatefulConnection;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.sync.RedisClusterCommands;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link StateJournal} in Redis. Each thread has two keys:
+ * {@code agentjournal:<tenant>::<thread>:events}, a list of the retained events, and
+ * {@code agentjournal:<tenant>::<thread>:meta}, a hash with the head and base sequences and the two
+ * snapshots. Every operation is a Lua script over both keys, so appends are atomic with their head
+ * check and reads are consistent. Both keys expire according to the {@link StateRetentionPolicy},
+ * renewed on every append.
+ * <p>
+ * The two keys must share a cluster slot, so on a Redis Cluster only the
+ * {@link RedisKeyLayout#TENANT_HASH_TAG} layout is accepted. The connection is shared, e.g. with
+ * {@link RedisAgentStateRepository}, and never closed by the journal.
+ */
+public class RedisStateJournal implements StateJournal {
+
+    /**
+     * KEYS: events, meta. ARGV: expected head, TTL, events...
+     * Returns the new head, or -1 - head on conflict.
+     */
+    private static final String APPEND_SCRIPT =
+            "local head = tonumber(redis.call('HGET', KEYS[2], 'head') or '0')\n" +
+            "if head ~= tonumber(ARGV[1]) then return -1 - head end\n" +
+            "for i = 3, #ARGV do redis.call('RPUSH', KEYS[1], ARGV[i]) end\n" +
+            "head = head + #ARGV - 2\n" +
+            "redis.call('HSET', KEYS[2], 'head', head)\n" +
+            "redis.call('EXPIRE', KEYS[1], ARGV[2])\n" +
+            "redis.call('EXPIRE', KEYS[2], ARGV[2])\n" +
+            "return head";
+
+    /**
+     * KEYS: events, meta. ARGV: 'latest' or 'base', last sequence to read (negative for the head).
+     * Returns {head, snapshot sequence, snapshot or '', events...}.
+     */
+    private static final String READ_SCRIPT =
+            "local m = redis.call('HMGET', KEYS[2], 'head', 'base', 'snapshotSeq', 'snapshot', 'baseSnapshot')\n" +
+            "local head = tonumber(m[1] or '0')\n" +
+            "local base = tonumber(m[2] or '0')\n" +
+            "local from = base\n" +
+            "local snapshot = m[5] or ''\n" +
+            "if ARGV[1] == 'latest' and tonumber(m[3] or '0') > base then\n" +
+            "  from = tonumber(m[3])\n" +
+            "  snapshot = m[4]\n" +
+            "end\n" +
+            "local to = tonumber(ARGV[2])\n" +
+            "if to < 0 or to > head then to = head end\n" +
+            "local result = {head, from, snapshot}\n" +
+            "if to > from then\n" +
+            "  local events = redis.call('LRANGE', KEYS[1], from - base, to - base - 1)\n" +
+            "  for i = 1, #events do result[#result + 1] = events[i] end\n" +
+            "end\n" +
+            "return result";
+
+    /**
+     * KEYS: meta. ARGV: sequence, snapshot. Returns 1 if stored.
+     */
+    private static final String SNAPSHOT_SCRIPT =
+            "local m = redis.call('HMGET', KEYS[1], 'head', 'snapshotSeq')\n" +
+            "local seq = tonumber(ARGV[1])\n" +
+            "if seq > tonumber(m[1] or '0') or seq <= tonumber(m[2] or '0') then return 0 end\n" +
+            "redis.call('HSET', KEYS[1], 'snapshotSeq', ARGV[1], 'snapshot', ARGV[2])\n" +
+            "return 1";
+
+    /**
+     * KEYS: events, meta. ARGV: new base sequence, base snapshot. Returns 1 if compacted.
+     */
+    private static final String COMPACT_SCRIPT =
+            "local m = redis.call('HMGET', KEYS[2], 'head', 'base')\n" +
+            "local head = tonumber(m[1] or '0')\n" +
+            "local base = tonumber(m[2] or '0')\n" +
+            "local seq = tonumber(ARGV[1])\n" +
+            "if seq > head or seq <= base then return 0 end\n" +
+            "redis.call('LTRIM', KEYS[1], seq - base, -1)\n" +
+            "redis.call('HSET', KEYS[2], 'base', ARGV[1], 'baseSnapshot', ARGV[2])\n" +
+            "return 1";
+
+    private static final String APPEND_SHA = sha1Hex(APPEND_SCRIPT);
+    private static final String READ_SHA = sha1Hex(READ_SCRIPT);
+
+    private final StatefulConnection<String, String> connection;
+    private final RedisKeyLayout keyLayout;
+    private volatile StateRetentionPolicy retentionPolicy = StateRetentionPolicy.defaults();
+
+    /**
+     * Creates a journal on a standalone connection with the {@link RedisKeyLayout#LEGACY} layout.
+     *
+     * @param connection The shared connection
+     */
+    public RedisStateJournal(StatefulRedisConnection<String, String> connection) {
+        this(connection, RedisKeyLayout.LEGACY);
+    }
+
+    /**
+     * Creates a journal on a standalone connection with the given key layout.
+     *
+     * @param connection The shared connection
+     * @param keyLayout How tenants are embedded in keys
+     */
+    public RedisStateJournal(StatefulRedisConnection<String, String> connection, RedisKeyLayout keyLayout) {
+        this((StatefulConnection<String, String>) connection, keyLayout);
+    }
+
+    /**
+     * Creates a journal on a Redis Cluster connection with the {@link RedisKeyLayout#TENANT_HASH_TAG} layout.
+     *
+     * @param connection The shared cluster connection
+     */
+    public RedisStateJournal(StatefulRedisClusterConnection<String, String> connection) {
+        this(connection, RedisKeyLayout.TENANT_HASH_TAG);
+    }
+
+    private RedisStateJournal(StatefulConnection<String, String> connection, RedisKeyLayout keyLayout) {
+        if (connection == null || keyLayout == null) {
+            throw new IllegalArgumentException("Connection and keyLayout must not be null");
+        }
+        if (connection instanceof StatefulRedisClusterConnection && keyLayout != RedisKeyLayout.TENANT_HASH_TAG) {
+            throw new IllegalArgumentException("A journal on a Redis Cluster requires the TENANT_HASH_TAG key layout");
+        }
+        this.connection = connection;
+        this.keyLayout = keyLayout;
+    }
+
+    /**
+     * Sets how long journals are kept after their last append.
+     *
+     * @param retentionPolicy The retention policy; sliding expiration does not apply, reads never renew the TTL
+     * @return This journal for chaining
+     */
+    public RedisStateJournal withRetentionPolicy(StateRetentionPolicy retentionPolicy) {
+        if (retentionPolicy == null) {
+            throw new IllegalArgumentException("retentionPolicy must not be null");
+        }
+        this.retentionPolicy = retentionPolicy;
+        return this;
+    }
+
+    /**
+     * @return The retention policy in use.
+     */
+    public StateRetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
+    }
+
+    private RedisClusterCommands<String, String> sync() {
+        if (connection instanceof StatefulRedisClusterConnection<String, String> cluster) {
+            return cluster.sync();
+        }
+        return ((StatefulRedisConnection<String, String>) connection).sync();
+    }
+
+    private String[] keys(String tenantId, String threadId) {
+        StateKeys.requireIds(tenantId, threadId);
+        String prefix = "agentjournal:" + keyLayout.tenantSegment(tenantId) + StateKeys.SEPARATOR + threadId;
+        return new String[] {prefix + ":events", prefix + ":meta"};
+    }
+
+    private <T> T evalCached(String sha, String script, ScriptOutputType type, String[] keys, String... args) {
+        try {
+            return sync().evalsha(sha, type, keys, args);
+        } catch (RedisNoScriptException e) {
+            return sync().eval(script, type, keys, args);
+        }
+    }
+
+    @Override
+    public long append(String tenantId, String threadId, long expectedHead, List<String> events) {
+        String[] args = new String[events.size() + 2];
+        args[0] = Long.toString(expectedHead);
+        args[1] = Long.toString(retentionPolicy.ttlSecondsFor(tenantId));
+        for (int i = 0; i < events.size(); i++) {
+            args[i + 2] = events.get(i);
+        }
+        Long head = evalCached(APPEND_SHA, APPEND_SCRIPT, ScriptOutputType.INTEGER, keys(tenantId, threadId), args);
+        return (head == null) ? 0 : head;
+    }
+
+    @Override
+    public long head(String tenantId, String threadId) {
+        String head = sync().hget(keys(tenantId, threadId)[1], "head");
+        return (head == null) ? 0 : Long.parseLong(head);
+    }
+
+    @Override
+    public Replay readLatest(String tenantId, String threadId) {
+        return read(tenantId, threadId, "latest", -1);
+    }
+
+    @Override
+    public Replay readFromBase(String tenantId, String threadId, long toSequence) {
+        return read(tenantId, threadId, "base", toSequence);
+    }
+
+    private Replay read(String tenantId, String threadId, String from, long toSequence) {
+        List<Object> reply = evalCached(READ_SHA, READ_SCRIPT, ScriptOutputType.MULTI, keys(tenantId, threadId),
+                from, Long.toString(toSequence));
+        String snapshot = (String) reply.get(2);
+        List<String> events = new ArrayList<>(reply.size() - 3);
+        for (int i = 3; i < reply.size(); i++) {
+            events.add((String) reply.get(i));
+        }
+        return new Replay((Long) reply.get(0), (Long) reply.get(1), snapshot.isEmpty() ? null : snapshot, events);
+    }
+
+    @Override
+    public boolean writeSnapshot(String tenantId, String threadId, long sequence, String stateJson) {
+        String meta = keys(tenantId, threadId)[1];
+        Long stored = sync().eval(SNAPSHOT_SCRIPT, ScriptOutputType.INTEGER, new String[] {meta},
+                Long.toString(sequence), stateJson);
+        return stored != null && stored == 1;
+    }
+
+    @Override
+    public boolean compact(String tenantId, String threadId, long sequence, String stateJson) {
+        Long compacted = sync().eval(COMPACT_SCRIPT, ScriptOutputType.INTEGER, keys(tenantId, threadId),
+                Long.toString(sequence), stateJson);
+        return compacted != null && compacted == 1;
+    }
+
+    @Override
+    public boolean delete(String tenantId, String threadId) {
+        Long deleted = sync().del(keys(tenantId, threadId));
+        return deleted != null && deleted > 0;
+    }
+
+    private static String sha1Hex(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.veyon.veyflow.state;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only overflow file for states evicted from {@link InMemoryAgentStateRepository}.
+ * <p>
+ * Each record is {@code [int keyLength][key][int valueLength][value]} in UTF-8. The index of live
+ * records is kept in memory; the file is only an extension of the heap for the lifetime of the
+ * repository and is deleted on {@link #close()}. It is rewritten once dead records outweigh live ones.
+ * Not thread-safe; callers synchronize externally.
+ */
+class SpillFile implements AutoCloseable {
+
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private static final class Location {
+        final long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path path;
+    private FileChannel channel;
+    private final Map<String, Location> index = new HashMap<>();
+    private long liveBytes = 0;
+    private long fileBytes = 0;
+
+    SpillFile(Path directory) {
+        try {
+            Files.createDirectories(directory);
+            this.path = Files.createTempFile(directory, "agentstate-spill-", ".dat");
+            this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create spill file in " + directory, e);
+        }
+    }
+
+    void put(String key, String value) {
+        remove(key);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + keyBytes.length + valueBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(keyBytes.length).put(keyBytes).putInt(valueBytes.length).put(valueBytes).flip();
+        try {
+            long offset = fileBytes;
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            fileBytes += length;
+            liveBytes += length;
+            index.put(key, new Location(offset, length));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to spill file " + path, e);
+        }
+    }
+
+    /**
+     * @return The stored value, or null if the key was not spilled.
+     */
+    String get(String key) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer record = read(location);
+        int keyLength = record.getInt();
+        record.position(record.position() + keyLength);
+        byte[] value = new byte[record.getInt()];
+        record.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    boolean remove(String key) {
+        Location location = index.remove(key);
+        if (location == null) {
+            return false;
+        }
+        liveBytes -= location.length;
+        if (fileBytes - liveBytes > Math.max(liveBytes, MIN_COMPACTION_BYTES)) {
+            compact();
+        }
+        return true;
+    }
+
+    Set<String> keys() {
+        return index.keySet();
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    long getFileBytes() {
+        return fileBytes;
+    }
+
+    private ByteBuffer read(Location location) {
+        ByteBuffer record = ByteBuffer.allocate(location.length);
+        try {
+            while (record.hasRemaining()) {
+                if (channel.read(record, location.offset + record.position()) < 0) {
+                    throw new IOException("Unexpected end of spill file " + path);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read spill file " + path, e);
+        }
+        return record.flip();
+    }
+
+    private void compact() {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        Map<String, Location> newIndex = new HashMap<>();
+        long offset = 0;
+        try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                ByteBuffer record = read(entry.getValue());
+                while (record.hasRemaining()) {
+                    target.write(record, offset + record.position());
+                }
+                newIndex.put(entry.getKey(), new Location(offset, entry.getValue().length));
+                offset += entry.getValue().length;
+            }
+            channel.close();
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not compact spill file " + path, e);
+        }
+        index.clear();
+        index.putAll(newIndex);
+        fileBytes = offset;
+        liveBytes = offset;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not delete spill file " + path, e);
+        }
+    }
+}
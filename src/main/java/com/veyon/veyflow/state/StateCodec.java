@@ -0,0 +1,429 @@
+package com.veyon.veyflow.state;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses serialized states and configurations before the repositories store them.
+ * <p>
+ * Payloads are deflated, optionally with a preset {@link StateDictionary} trained from sampled states,
+ * which pays off for the short, repetitive JSON of chat histories. Frames start with a text header,
+ * {@code <0x1F>z2:<version>:<dictionaryId>:} followed by the deflated bytes where values are binary
+ * ({@link #encodeToBytes}), or {@code <0x1F>z1:<version>:<dictionaryId>:<base64>} where they must be
+ * text ({@link #encode}). The magic prefix can never start a JSON document, so plain payloads written
+ * before compression was enabled still decode, and the version stays readable for
+ * {@link AgentStateRepository#compareAndSave(AgentState)} without inflating. Binary payloads may hold
+ * either kind of frame. Payloads below {@code minCompressBytes}, or that would not shrink, are stored
+ * as they are.
+ * <p>
+ * The level is chosen per {@link PersistenceMode}, i.e. per backend; level 0 disables compression
+ * for that backend. To rotate dictionaries, encode with the new one and keep the old one as a
+ * decoding dictionary until all payloads written with it have expired.
+ */
+public final class StateCodec {
+
+    static final String MAGIC = "\u001Fz1:";
+    static final String BINARY_MAGIC = "\u001Fz2:";
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final Map<PersistenceMode, Integer> levels;
+    private final StateDictionary dictionary;
+    private final Map<Integer, StateDictionary> dictionaries;
+    private final int minCompressBytes;
+
+    private final AtomicLong payloads = new AtomicLong();
+    private final AtomicLong compressedPayloads = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    private StateCodec(Builder builder) {
+        this.levels = new EnumMap<>(builder.levels);
+        this.dictionary = builder.dictionary;
+        this.dictionaries = Map.copyOf(builder.dictionaries);
+        this.minCompressBytes = builder.minCompressBytes;
+    }
+
+    /**
+     * @return A new codec that never compresses but still decodes compressed payloads without a
+     *         dictionary. Used by the repositories unless another codec is configured; each gets its own,
+     *         so their metrics stay separate.
+     */
+    public static StateCodec uncompressed() {
+        return builder()
+                .level(PersistenceMode.REDIS, 0)
+                .level(PersistenceMode.FILE, 0)
+                .build();
+    }
+
+    /**
+     * Creates a new builder. Without further settings every backend compresses at
+     * {@link Deflater#DEFAULT_COMPRESSION} without a dictionary.
+     *
+     * @return A new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Encodes a JSON payload for storage in the given backend.
+     *
+     * @param json The serialized state or configuration
+     * @param mode The backend the payload is written to
+     * @return The compressed frame, or {@code json} itself if compression does not pay off
+     */
+    public String encode(String json, PersistenceMode mode) {
+        byte[] raw = json.getBytes(StandardCharsets.UTF_8);
+        payloads.incrementAndGet();
+        rawBytes.addAndGet(raw.length);
+        int level = levelFor(mode);
+        if (level == 0 || raw.length < minCompressBytes) {
+            storedBytes.addAndGet(raw.length);
+            return json;
+        }
+        byte[] deflated = deflate(raw, level, dictionary);
+        String frame = MAGIC + AgentState.peekVersion(json) + ":" + Integer.toUnsignedString(getDictionaryId())
+                + ":" + Base64.getEncoder().encodeToString(deflated);
+        if (frame.length() >= raw.length) {
+            storedBytes.addAndGet(raw.length);
+            return json;
+        }
+        compressedPayloads.incrementAndGet();
+        storedBytes.addAndGet(frame.length());
+        return frame;
+    }
+
+    /**
+     * Encodes a JSON payload for a backend that stores binary values. Compressed frames carry the
+     * deflated bytes as they are, a third smaller than the Base64 of {@link #encode(String, PersistenceMode)}.
+     *
+     * @param json The serialized state or configuration
+     * @param mode The backend the payload is written to
+     * @return The compressed frame, or the UTF-8 bytes of {@code json} if compression does not pay off
+     */
+    public byte[] encodeToBytes(String json, PersistenceMode mode) {
+        byte[] raw = json.getBytes(StandardCharsets.UTF_8);
+        payloads.incrementAndGet();
+        rawBytes.addAndGet(raw.length);
+        int level = levelFor(mode);
+        if (level == 0 || raw.length < minCompressBytes) {
+            storedBytes.addAndGet(raw.length);
+            return raw;
+        }
+        byte[] deflated = deflate(raw, level, dictionary);
+        byte[] header = (BINARY_MAGIC + AgentState.peekVersion(json) + ":" + Integer.toUnsignedString(getDictionaryId()) + ":")
+                .getBytes(StandardCharsets.US_ASCII);
+        if (header.length + deflated.length >= raw.length) {
+            storedBytes.addAndGet(raw.length);
+            return raw;
+        }
+        byte[] frame = Arrays.copyOf(header, header.length + deflated.length);
+        System.arraycopy(deflated, 0, frame, header.length, deflated.length);
+        compressedPayloads.incrementAndGet();
+        storedBytes.addAndGet(frame.length);
+        return frame;
+    }
+
+    /**
+     * Decodes a binary payload written by {@link #encodeToBytes(String, PersistenceMode)}, or by
+     * {@link #encode(String, PersistenceMode)} and stored as UTF-8.
+     *
+     * @param payload The stored payload, may be null
+     * @return The JSON payload
+     * @throws IllegalStateException If the payload was compressed with a dictionary this codec does not know
+     */
+    public String decode(byte[] payload) {
+        if (payload == null) {
+            return null;
+        }
+        if (!isFrame(payload) || payload[2] != BINARY_MAGIC.charAt(2)) {
+            return decode(new String(payload, StandardCharsets.UTF_8));
+        }
+        int versionEnd = indexOf(payload, ':', BINARY_MAGIC.length());
+        int dictionaryEnd = (versionEnd < 0) ? -1 : indexOf(payload, ':', versionEnd + 1);
+        if (dictionaryEnd < 0) {
+            throw new IllegalArgumentException("Malformed compressed payload header");
+        }
+        String dictionaryId = new String(payload, versionEnd + 1, dictionaryEnd - versionEnd - 1, StandardCharsets.US_ASCII);
+        ByteBuffer deflated = ByteBuffer.wrap(payload, dictionaryEnd + 1, payload.length - dictionaryEnd - 1);
+        return new String(inflate(deflated, Integer.parseUnsignedInt(dictionaryId), Integer.MAX_VALUE), StandardCharsets.UTF_8);
+    }
+
+    private static int indexOf(byte[] bytes, char c, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Whether a binary payload is a compressed frame, of either kind, rather than plain JSON.
+     */
+    static boolean isFrame(byte[] payload) {
+        return payload.length >= MAGIC.length() && payload[0] == MAGIC.charAt(0) && payload[1] == MAGIC.charAt(1)
+                && (payload[2] == MAGIC.charAt(2) || payload[2] == BINARY_MAGIC.charAt(2)) && payload[3] == MAGIC.charAt(3);
+    }
+
+    /**
+     * Reads the version from the header of a compressed frame of either kind.
+     */
+    static long peekVersion(byte[] frame) {
+        long version = 0;
+        for (int i = MAGIC.length(); i < frame.length && frame[i] >= '0' && frame[i] <= '9'; i++) {
+            version = version * 10 + (frame[i] - '0');
+        }
+        return version;
+    }
+
+    /**
+     * Decodes a payload written by {@link #encode(String, PersistenceMode)} or stored uncompressed.
+     *
+     * @param payload The stored payload, may be null
+     * @return The JSON payload
+     * @throws IllegalStateException If the payload was compressed with a dictionary this codec does not know
+     * @throws IllegalArgumentException If the payload is a frame written by {@link #encodeToBytes}
+     */
+    public String decode(String payload) {
+        if (payload != null && payload.startsWith(BINARY_MAGIC)) {
+            throw new IllegalArgumentException("Binary compressed payload cannot be decoded from text");
+        }
+        if (payload == null || !payload.startsWith(MAGIC)) {
+            return payload;
+        }
+        int versionEnd = payload.indexOf(':', MAGIC.length());
+        int dictionaryEnd = (versionEnd < 0) ? -1 : payload.indexOf(':', versionEnd + 1);
+        if (dictionaryEnd < 0) {
+            throw new IllegalArgumentException("Malformed compressed payload header");
+        }
+        int dictionaryId = Integer.parseUnsignedInt(payload, versionEnd + 1, dictionaryEnd, 10);
+        byte[] deflated = Base64.getDecoder().decode(payload.substring(dictionaryEnd + 1));
+        return new String(inflate(ByteBuffer.wrap(deflated), dictionaryId, Integer.MAX_VALUE), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the version from the header of a compressed frame.
+     */
+    static long peekVersion(String frame) {
+        long version = 0;
+        for (int i = MAGIC.length(); i < frame.length() && Character.isDigit(frame.charAt(i)); i++) {
+            version = version * 10 + (frame.charAt(i) - '0');
+        }
+        return version;
+    }
+
+    /**
+     * Deflates raw bytes with the current dictionary, for backends that store binary values. The
+     * dictionary ID must be stored alongside.
+     *
+     * @param raw The serialized payload
+     * @param mode The backend the payload is written to
+     * @return The deflated bytes
+     */
+    public byte[] compress(byte[] raw, PersistenceMode mode) {
+        byte[] deflated = deflate(raw, levelFor(mode), dictionary);
+        payloads.incrementAndGet();
+        compressedPayloads.incrementAndGet();
+        rawBytes.addAndGet(raw.length);
+        storedBytes.addAndGet(deflated.length);
+        return deflated;
+    }
+
+    /**
+     * Inflates bytes written by {@link #compress(byte[], PersistenceMode)} until they end or
+     * {@code maxBytes} have been produced.
+     *
+     * @param deflated The deflated bytes
+     * @param dictionaryId The ID of the dictionary used to compress them, or 0
+     * @param maxBytes Maximum number of bytes to inflate, e.g. to read just a header
+     * @return The inflated bytes
+     */
+    public byte[] decompress(ByteBuffer deflated, int dictionaryId, int maxBytes) {
+        return inflate(deflated, dictionaryId, maxBytes);
+    }
+
+    private static byte[] deflate(byte[] raw, int level, StateDictionary dictionary) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary.bytes());
+        }
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, raw.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private byte[] inflate(ByteBuffer deflated, int dictionaryId, int maxBytes) {
+        StateDictionary inflateDictionary = null;
+        if (dictionaryId != 0) {
+            inflateDictionary = dictionaries.get(dictionaryId);
+            if (inflateDictionary == null) {
+                throw new IllegalStateException("Payload was compressed with unknown dictionary " + Integer.toUnsignedString(dictionaryId));
+            }
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        try {
+            if (inflateDictionary != null) {
+                inflater.setDictionary(inflateDictionary.bytes());
+            }
+            inflater.setInput(deflated);
+            byte[] buffer = new byte[Math.min(maxBytes, Math.max(64, deflated.remaining() * 4))];
+            int length = 0;
+            while (length < maxBytes && !inflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, (int) Math.min(maxBytes, buffer.length * 2L));
+                }
+                int inflated = inflater.inflate(buffer, length, buffer.length - length);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                length += inflated;
+            }
+            return Arrays.copyOf(buffer, length);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed payload", e);
+        }
+    }
+
+    /**
+     * @param mode The backend
+     * @return The deflate level used for it, 0 if it is not compressed.
+     */
+    public int levelFor(PersistenceMode mode) {
+        return levels.getOrDefault(mode, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @return The ID of the dictionary new payloads are compressed with, or 0 for none.
+     */
+    public int getDictionaryId() {
+        return (dictionary != null) ? dictionary.getId() : 0;
+    }
+
+    public long getPayloadCount() {
+        return payloads.get();
+    }
+
+    public long getCompressedPayloadCount() {
+        return compressedPayloads.get();
+    }
+
+    /**
+     * @return Bytes of the payloads before encoding.
+     */
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    /**
+     * @return Bytes of the payloads as stored and sent over the network.
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * @return Raw bytes divided by stored bytes over all encoded payloads, 1.0 before the first one.
+     */
+    public double getCompressionRatio() {
+        long stored = storedBytes.get();
+        return (stored == 0) ? 1.0 : (double) rawBytes.get() / stored;
+    }
+
+    /**
+     * Builder for {@link StateCodec}.
+     */
+    public static class Builder {
+        private final Map<PersistenceMode, Integer> levels = new EnumMap<>(PersistenceMode.class);
+        private StateDictionary dictionary;
+        private final Map<Integer, StateDictionary> dictionaries = new HashMap<>();
+        private int minCompressBytes = 256;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the deflate level for one backend.
+         *
+         * @param mode The backend
+         * @param level 1 (fastest) to 9 (smallest), {@link Deflater#DEFAULT_COMPRESSION}, or 0 to not compress
+         * @return This builder for chaining
+         */
+        public Builder level(PersistenceMode mode, int level) {
+            if (mode == null || level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("level must be between -1 and 9 for a non-null mode");
+            }
+            levels.put(mode, level);
+            return this;
+        }
+
+        /**
+         * Sets the dictionary new payloads are compressed with. It is also used for decoding.
+         *
+         * @param dictionary The dictionary
+         * @return This builder for chaining
+         */
+        public Builder dictionary(StateDictionary dictionary) {
+            if (dictionary == null) {
+                throw new IllegalArgumentException("dictionary must not be null");
+            }
+            this.dictionary = dictionary;
+            dictionaries.put(dictionary.getId(), dictionary);
+            return this;
+        }
+
+        /**
+         * Adds a dictionary that is only used to decode existing payloads, e.g. the previous one after a rotation.
+         *
+         * @param dictionary The dictionary
+         * @return This builder for chaining
+         */
+        public Builder decodingDictionary(StateDictionary dictionary) {
+            if (dictionary == null) {
+                throw new IllegalArgumentException("dictionary must not be null");
+            }
+            dictionaries.putIfAbsent(dictionary.getId(), dictionary);
+            return this;
+        }
+
+        /**
+         * Sets the size below which text payloads are stored uncompressed.
+         *
+         * @param minCompressBytes Minimum payload size in bytes
+         * @return This builder for chaining
+         */
+        public Builder minCompressBytes(int minCompressBytes) {
+            if (minCompressBytes < 0) {
+                throw new IllegalArgumentException("minCompressBytes must not be negative");
+            }
+            this.minCompressBytes = minCompressBytes;
+            return this;
+        }
+
+        public StateCodec build() {
+            return new StateCodec(this);
+        }
+    }
+}
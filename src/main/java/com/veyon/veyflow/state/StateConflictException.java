@@ -0,0 +1,38 @@
+package com.veyon.veyflow.state;
+
+/**
+ * Thrown when a state could not be saved because another writer kept saving the same thread, and
+ * merging did not resolve the conflict.
+ */
+public class StateConflictException extends IllegalStateException {
+
+    private final String tenantId;
+    private final String threadId;
+    private final long expectedVersion;
+    private final long storedVersion;
+
+    public StateConflictException(String tenantId, String threadId, long expectedVersion, long storedVersion) {
+        super("Conflicting save of agent state for tenant '" + tenantId + "', thread '" + threadId
+                + "': expected version " + expectedVersion + " but found " + storedVersion);
+        this.tenantId = tenantId;
+        this.threadId = threadId;
+        this.expectedVersion = expectedVersion;
+        this.storedVersion = storedVersion;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public String getThreadId() {
+        return threadId;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public long getStoredVersion() {
+        return storedVersion;
+    }
+}
@@ -0,0 +1,168 @@
+package com.veyon.veyflow.state;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Preset dictionary for {@link StateCodec}, holding text that recurs across serialized states such as
+ * system prompts, tool names and JSON field names.
+ * <p>
+ * A dictionary is identified by the CRC32 of its bytes, which is stored with every payload compressed
+ * with it. Every node that reads those payloads needs the same dictionary, so persist
+ * {@link #getBytes()} and distribute it with the configuration rather than training on each node.
+ */
+public final class StateDictionary {
+
+    /**
+     * Deflate can only refer back 32 KiB, so a larger dictionary would not be used.
+     */
+    public static final int MAX_BYTES = 32 * 1024;
+
+    private static final int MIN_FRAGMENT_LENGTH = 4;
+
+    private final byte[] bytes;
+    private final int id;
+
+    private StateDictionary(byte[] bytes) {
+        this.bytes = bytes;
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        // 0 marks payloads without a dictionary
+        this.id = ((int) crc.getValue() == 0) ? 1 : (int) crc.getValue();
+    }
+
+    /**
+     * Wraps the bytes of a previously trained dictionary.
+     *
+     * @param bytes Dictionary bytes, at most {@link #MAX_BYTES}
+     * @return The dictionary
+     */
+    public static StateDictionary of(byte[] bytes) {
+        if (bytes == null || bytes.length == 0 || bytes.length > MAX_BYTES) {
+            throw new IllegalArgumentException("Dictionary must have between 1 and " + MAX_BYTES + " bytes");
+        }
+        return new StateDictionary(bytes.clone());
+    }
+
+    /**
+     * Trains a dictionary from sampled payloads, e.g. {@link AgentState#toJson()} of recent states.
+     * <p>
+     * Each sample is split into fragments at JSON delimiters. Fragments found in at least two samples
+     * are ranked by the bytes they would save, and the best ones are packed into the dictionary with the
+     * most valuable last, where deflate reaches them with the shortest distances.
+     *
+     * @param samples Sampled payloads; a few hundred typical states are usually enough
+     * @param maxBytes Maximum dictionary size, at most {@link #MAX_BYTES}
+     * @return The trained dictionary
+     * @throws IllegalArgumentException If the samples share no content
+     */
+    public static StateDictionary train(Collection<String> samples, int maxBytes) {
+        if (samples == null || samples.size() < 2) {
+            throw new IllegalArgumentException("At least two samples are required");
+        }
+        if (maxBytes <= 0 || maxBytes > MAX_BYTES) {
+            throw new IllegalArgumentException("maxBytes must be between 1 and " + MAX_BYTES);
+        }
+        Map<String, Integer> documentFrequency = new HashMap<>();
+        for (String sample : samples) {
+            if (sample != null) {
+                for (String fragment : fragments(sample)) {
+                    documentFrequency.merge(fragment, 1, Integer::sum);
+                }
+            }
+        }
+
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : documentFrequency.entrySet()) {
+            if (entry.getValue() >= 2) {
+                ranked.add(entry);
+            }
+        }
+        ranked.sort((a, b) -> Long.compare(score(b), score(a)));
+
+        List<byte[]> selected = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> entry : ranked) {
+            byte[] fragment = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            if (size + fragment.length <= maxBytes) {
+                selected.add(fragment);
+                size += fragment.length;
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("The samples share no content to build a dictionary from");
+        }
+        byte[] bytes = new byte[size];
+        int position = size;
+        for (byte[] fragment : selected) {
+            position -= fragment.length;
+            System.arraycopy(fragment, 0, bytes, position, fragment.length);
+        }
+        return new StateDictionary(bytes);
+    }
+
+    private static long score(Map.Entry<String, Integer> entry) {
+        return (long) (entry.getValue() - 1) * entry.getKey().length();
+    }
+
+    /**
+     * @return The distinct fragments of {@code sample}, each ending at a delimiter.
+     */
+    private static Set<String> fragments(String sample) {
+        Set<String> fragments = new HashSet<>();
+        int start = 0;
+        for (int i = 0; i < sample.length(); i++) {
+            char c = sample.charAt(i);
+            if (c == ',' || c == '{' || c == '[' || c == '}' || c == ']') {
+                if (i + 1 - start >= MIN_FRAGMENT_LENGTH) {
+                    fragments.add(sample.substring(start, i + 1));
+                }
+                start = i + 1;
+            }
+        }
+        if (sample.length() - start >= MIN_FRAGMENT_LENGTH) {
+            fragments.add(sample.substring(start));
+        }
+        return fragments;
+    }
+
+    /**
+     * @return The dictionary ID stored with payloads compressed with it.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return A copy of the dictionary bytes, for persisting it.
+     */
+    public byte[] getBytes() {
+        return bytes.clone();
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof StateDictionary && Arrays.equals(bytes, ((StateDictionary) o).bytes));
+    }
+
+    @Override
+    public int hashCode() {
+        return id;
+    }
+}
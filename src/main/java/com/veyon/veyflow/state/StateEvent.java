@@ -0,0 +1,188 @@
+package com.veyon.veyflow.state;
+
+import com.google.gson.Gson;
+
+/**
+ * One change to an {@link AgentState}, as recorded in a {@link StateJournal} by
+ * {@link JournalAgentStateRepository}.
+ * <p>
+ * Values and messages are carried as their JSON form, exactly as they appear in
+ * {@link AgentState#toJson()}, so replaying an event never re-encodes them.
+ */
+public final class StateEvent {
+
+    private static final Gson GSON = new Gson();
+
+    public enum Type {
+        /** {@code key} was set to the JSON value {@code data}. */
+        VALUE_SET,
+        /** {@code key} was removed. */
+        VALUE_REMOVED,
+        /** The chat message {@code data} (JSON) was appended. */
+        MESSAGE_APPENDED,
+        /** The chat messages were cut to the first {@code number} messages, e.g. before an edited message is re-appended. */
+        MESSAGES_TRUNCATED,
+        /** The node moved to {@code node}, with {@code previousNode} as the previous one. */
+        NODE_TRANSITION,
+        /** The version was set to {@code number} by a compare-and-save. */
+        VERSION_SET,
+        /** The persistence mode was set to {@code data}. */
+        PERSISTENCE_MODE_SET
+    }
+
+    private long sequence;
+    private Type type;
+    private long timestamp;
+    private String key;
+    private String data;
+    // Boxed so that events without a number do not serialize one
+    private Long number;
+    private String node;
+    private String previousNode;
+
+    private StateEvent() {
+    }
+
+    private StateEvent(Type type) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    static StateEvent valueSet(String key, String json) {
+        StateEvent event = new StateEvent(Type.VALUE_SET);
+        event.key = key;
+        event.data = json;
+        return event;
+    }
+
+    static StateEvent valueRemoved(String key) {
+        StateEvent event = new StateEvent(Type.VALUE_REMOVED);
+        event.key = key;
+        return event;
+    }
+
+    static StateEvent messageAppended(String json) {
+        StateEvent event = new StateEvent(Type.MESSAGE_APPENDED);
+        event.data = json;
+        return event;
+    }
+
+    static StateEvent messagesTruncated(int count) {
+        StateEvent event = new StateEvent(Type.MESSAGES_TRUNCATED);
+        event.number = (long) count;
+        return event;
+    }
+
+    static StateEvent nodeTransition(String node, String previousNode) {
+        StateEvent event = new StateEvent(Type.NODE_TRANSITION);
+        event.node = node;
+        event.previousNode = previousNode;
+        return event;
+    }
+
+    static StateEvent versionSet(long version) {
+        StateEvent event = new StateEvent(Type.VERSION_SET);
+        event.number = version;
+        return event;
+    }
+
+    static StateEvent persistenceModeSet(PersistenceMode mode) {
+        StateEvent event = new StateEvent(Type.PERSISTENCE_MODE_SET);
+        event.data = (mode != null) ? mode.name() : null;
+        return event;
+    }
+
+    /**
+     * Applies this event to {@code state}. Values and messages are added undecoded where the state is
+     * lazily decoded.
+     */
+    void applyTo(AgentState state) {
+        switch (type) {
+            case VALUE_SET:
+                state.setValueJson(key, data);
+                break;
+            case VALUE_REMOVED:
+                state.getKeys().remove(key);
+                break;
+            case MESSAGE_APPENDED:
+                state.addChatMessageJson(data);
+                break;
+            case MESSAGES_TRUNCATED:
+                state.getChatMessages().subList((int) getNumber(), state.getChatMessageCount()).clear();
+                break;
+            case NODE_TRANSITION:
+                state.setNodes(node, previousNode);
+                break;
+            case VERSION_SET:
+                state.setVersion(getNumber());
+                break;
+            case PERSISTENCE_MODE_SET:
+                state.setPersistenceMode((data != null) ? PersistenceMode.valueOf(data) : null);
+                break;
+            default:
+                throw new IllegalStateException("Unknown event type " + type);
+        }
+    }
+
+    String toJson() {
+        return GSON.toJson(this);
+    }
+
+    static StateEvent fromJson(String json) {
+        return GSON.fromJson(json, StateEvent.class);
+    }
+
+    StateEvent withSequence(long sequence) {
+        this.sequence = sequence;
+        return this;
+    }
+
+    /**
+     * @return Position of the event in its thread's journal, starting at 1.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return Time the event was recorded, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return The JSON value or message, or the persistence mode name, depending on the type.
+     */
+    public String getData() {
+        return data;
+    }
+
+    /**
+     * @return The message count of {@link Type#MESSAGES_TRUNCATED} or the version of {@link Type#VERSION_SET}.
+     */
+    public long getNumber() {
+        return (number != null) ? number : 0;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public String getPreviousNode() {
+        return previousNode;
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,121 @@
+package com.veyon.veyflow.state;
+
+import java.util.List;
+
+/**
+ * Storage for the per-thread event journals of {@link JournalAgentStateRepository}.
+ * <p>
+ * A journal is a sequence of serialized {@link StateEvent}s numbered from 1, plus two snapshots: the
+ * latest one, from which the current state is rebuilt, and the base one, the state at the first event
+ * still kept. Events between the base and the head are retained for audit and time travel; compaction
+ * moves the base forward and drops the events before it. A journal without a base snapshot starts from
+ * an empty state.
+ * <p>
+ * Implementations must make {@link #append} atomic with its head check, and each read must see one
+ * consistent version of the journal.
+ */
+public interface StateJournal {
+
+    /**
+     * Appends events if the journal's head still equals {@code expectedHead}.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @param expectedHead The sequence of the last event the caller knows of, 0 for a new journal.
+     * @param events The serialized events, numbered {@code expectedHead + 1} onwards.
+     * @return The new head, or {@code -1 - head} if the head differs.
+     */
+    long append(String tenantId, String threadId, long expectedHead, List<String> events);
+
+    /**
+     * @return Sequence of the last event, or 0 if the journal does not exist.
+     */
+    long head(String tenantId, String threadId);
+
+    /**
+     * Reads the latest snapshot, or the base one if it is newer, and the events after it.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @return The replay; empty, with head 0, if the journal does not exist.
+     */
+    Replay readLatest(String tenantId, String threadId);
+
+    /**
+     * Reads the base snapshot and the events after it up to {@code toSequence}.
+     *
+     * @param tenantId The ID of the tenant.
+     * @param threadId The ID of the conversation thread.
+     * @param toSequence The last event to read, or a negative number to read up to the head.
+     * @return The replay; empty, with head 0, if the journal does not exist.
+     */
+    Replay readFromBase(String tenantId, String threadId, long toSequence);
+
+    /**
+     * Stores the state after event {@code sequence} as the latest snapshot, unless the journal already
+     * has a later one or does not have that event.
+     *
+     * @return true if the snapshot was stored.
+     */
+    boolean writeSnapshot(String tenantId, String threadId, long sequence, String stateJson);
+
+    /**
+     * Makes the state after event {@code sequence} the base snapshot and drops the events up to it,
+     * unless the base is already there or the journal does not have that event.
+     *
+     * @return true if the journal was compacted.
+     */
+    boolean compact(String tenantId, String threadId, long sequence, String stateJson);
+
+    /**
+     * Deletes the journal and its snapshots.
+     *
+     * @return true if the journal existed.
+     */
+    boolean delete(String tenantId, String threadId);
+
+    /**
+     * A snapshot and the events following it.
+     */
+    final class Replay {
+        private final long head;
+        private final long sequence;
+        private final String snapshot;
+        private final List<String> events;
+
+        public Replay(long head, long sequence, String snapshot, List<String> events) {
+            this.head = head;
+            this.sequence = sequence;
+            this.snapshot = snapshot;
+            this.events = List.copyOf(events);
+        }
+
+        /**
+         * @return Sequence of the last event in the journal, 0 if the journal does not exist.
+         */
+        public long getHead() {
+            return head;
+        }
+
+        /**
+         * @return Sequence of the last event reflected in the snapshot, 0 for the empty state.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return The snapshot as produced by {@link AgentState#toJson()}, or null for the empty state.
+         */
+        public String getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * @return The serialized events after the snapshot, in order.
+         */
+        public List<String> getEvents() {
+            return events;
+        }
+    }
+}
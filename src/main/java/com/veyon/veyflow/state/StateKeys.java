@@ -0,0 +1,55 @@
+package com.veyon.veyflow.state;
+
+/**
+ * Builds the {@code <tenant>::<thread>} keys shared by the state repositories and journals, and checks
+ * the IDs that go into them. A tenant ID must not contain {@code ::} nor end with {@code :}, so the first
+ * {@code ::} of a key always separates the tenant from the thread, and the keys of a tenant are exactly
+ * those starting with {@link #tenantPrefix(String)}: purging tenant {@code a} never touches tenant
+ * {@code a::b}, which cannot exist.
+ */
+final class StateKeys {
+
+    static final String SEPARATOR = "::";
+
+    private StateKeys() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if either ID is null or blank, or the tenant ID is not valid.
+     */
+    static void requireIds(String tenantId, String threadId) {
+        if (tenantId == null || tenantId.trim().isEmpty() || threadId == null || threadId.trim().isEmpty()) {
+            throw new IllegalArgumentException("TenantId and ThreadId must not be null or empty");
+        }
+        requireTenantId(tenantId);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the tenant ID is null or blank, contains {@code ::} or ends
+     *         with {@code :}.
+     */
+    static void requireTenantId(String tenantId) {
+        if (tenantId == null || tenantId.trim().isEmpty()) {
+            throw new IllegalArgumentException("TenantId must not be null or empty");
+        }
+        if (tenantId.contains(SEPARATOR) || tenantId.endsWith(":")) {
+            throw new IllegalArgumentException("TenantId must not contain '::' or end with ':': " + tenantId);
+        }
+    }
+
+    /**
+     * @return {@code tenantId::threadId}, after {@link #requireIds}.
+     */
+    static String key(String tenantId, String threadId) {
+        requireIds(tenantId, threadId);
+        return tenantId + SEPARATOR + threadId;
+    }
+
+    /**
+     * @return The prefix of every key of the tenant, after {@link #requireTenantId}.
+     */
+    static String tenantPrefix(String tenantId) {
+        requireTenantId(tenantId);
+        return tenantId + SEPARATOR;
+    }
+}
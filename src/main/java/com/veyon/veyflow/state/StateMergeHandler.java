@@ -0,0 +1,22 @@
+package com.veyon.veyflow.state;
+
+/**
+ * Resolves a conflict detected by {@link AgentStateRepository#compareAndSave(AgentState)}: another
+ * writer saved the thread after the attempted state was loaded.
+ * <p>
+ * Used by {@link AgentStateRepository#saveWithMerge(AgentState, StateMergeHandler, int)}, which sets the
+ * version of the returned state and retries the save with it.
+ */
+@FunctionalInterface
+public interface StateMergeHandler {
+
+    /**
+     * Combines the stored state with the one that failed to save.
+     *
+     * @param stored The state currently stored, or null if the thread was deleted meanwhile
+     * @param attempted The state that failed to save
+     * @return The state to save instead; may be either argument, modified. Returning null gives up
+     *         and reports the conflict.
+     */
+    AgentState merge(AgentState stored, AgentState attempted);
+}
@@ -0,0 +1,128 @@
+package com.veyon.veyflow.state;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How long the Redis repositories keep a tenant's data after it was last written, and optionally
+ * after it was last read.
+ * <p>
+ * Each tenant gets the default TTL unless it has its own. With sliding expiration every read renews
+ * the TTL, so active conversations never expire while idle ones still do.
+ */
+public final class StateRetentionPolicy {
+
+    private static final StateRetentionPolicy DEFAULTS = builder().build();
+
+    private final Duration defaultTtl;
+    private final Map<String, Duration> tenantTtls;
+    private final boolean slidingExpiration;
+
+    private StateRetentionPolicy(Builder builder) {
+        this.defaultTtl = builder.defaultTtl;
+        this.tenantTtls = Map.copyOf(builder.tenantTtls);
+        this.slidingExpiration = builder.slidingExpiration;
+    }
+
+    /**
+     * @return The policy used when none is configured: 10 minutes for every tenant, renewed only on write.
+     */
+    public static StateRetentionPolicy defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Creates a new builder, starting from the {@link #defaults()}.
+     *
+     * @return A new builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param tenantId The ID of the tenant.
+     * @return The TTL for the tenant's data.
+     */
+    public Duration ttlFor(String tenantId) {
+        Duration ttl = (tenantId != null) ? tenantTtls.get(tenantId) : null;
+        return (ttl != null) ? ttl : defaultTtl;
+    }
+
+    /**
+     * @param tenantId The ID of the tenant.
+     * @return The TTL for the tenant's data in whole seconds, rounded up.
+     */
+    public long ttlSecondsFor(String tenantId) {
+        Duration ttl = ttlFor(tenantId);
+        return ttl.getSeconds() + (ttl.getNano() > 0 ? 1 : 0);
+    }
+
+    /**
+     * @return true if reads renew the TTL.
+     */
+    public boolean isSlidingExpiration() {
+        return slidingExpiration;
+    }
+
+    /**
+     * Builder for {@link StateRetentionPolicy}.
+     */
+    public static class Builder {
+        private Duration defaultTtl = Duration.ofMinutes(10);
+        private final Map<String, Duration> tenantTtls = new HashMap<>();
+        private boolean slidingExpiration = false;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the TTL of tenants without their own.
+         *
+         * @param defaultTtl TTL of at least one second
+         * @return This builder for chaining
+         */
+        public Builder defaultTtl(Duration defaultTtl) {
+            this.defaultTtl = validTtl(defaultTtl);
+            return this;
+        }
+
+        /**
+         * Sets the TTL of one tenant.
+         *
+         * @param tenantId The ID of the tenant
+         * @param ttl TTL of at least one second
+         * @return This builder for chaining
+         */
+        public Builder tenantTtl(String tenantId, Duration ttl) {
+            if (tenantId == null) {
+                throw new IllegalArgumentException("tenantId must not be null");
+            }
+            tenantTtls.put(tenantId, validTtl(ttl));
+            return this;
+        }
+
+        /**
+         * Renews the TTL on every read, not only on writes.
+         *
+         * @param slidingExpiration true to renew on reads
+         * @return This builder for chaining
+         */
+        public Builder slidingExpiration(boolean slidingExpiration) {
+            this.slidingExpiration = slidingExpiration;
+            return this;
+        }
+
+        private static Duration validTtl(Duration ttl) {
+            if (ttl == null || ttl.compareTo(Duration.ofSeconds(1)) < 0) {
+                throw new IllegalArgumentException("TTL must be at least one second");
+            }
+            return ttl;
+        }
+
+        public StateRetentionPolicy build() {
+            return new StateRetentionPolicy(this);
+        }
+    }
+}
@@ -0,0 +1,597 @@
+package com.veyon.veyflow.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * {@link AgentStateRepository} that keeps active threads in a hot repository, typically
+ * {@link RedisAgentStateRepository}, and moves idle ones to a cheaper cold repository, typically a
+ * {@link FileAgentStateRepository} with {@code compressValues}.
+ * <p>
+ * A background sweep demotes every thread that was not read or written through this repository for
+ * {@code demoteAfter}: it is copied to the cold tier and deleted from the hot one. The next
+ * {@link #findById(String, String)} (or {@code findAll}, {@code compareAndSave}) of a demoted thread
+ * promotes it back transparently, keeping its version. {@code demoteAfter} must be shorter than the hot
+ * tier's TTL, or threads expire before they can be demoted; given the hot tier's
+ * {@link Builder#retentionPolicy(StateRetentionPolicy) retention policy}, each tenant's threads are
+ * demoted after at most half their TTL.
+ * <p>
+ * Only threads accessed through this instance, or found in the hot tier by {@link #reconcile(String)},
+ * are demoted. After a restart, list the tenants with {@link Builder#reconcileTenants(Collection)} so the
+ * threads left in the hot tier are demoted instead of expiring there. A local cold tier is only visible
+ * to this node, so the tiering suits deployments where a thread is always served by the same node.
+ * Neither repository is closed by {@link #close()}.
+ */
+public class TieredAgentStateRepository implements AgentStateRepository, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TieredAgentStateRepository.class);
+    private static final int LOCK_STRIPES = 256;
+
+    private final AgentStateRepository hot;
+    private final AgentStateRepository cold;
+    private final long demoteAfterNanos;
+    private final StateRetentionPolicy retentionPolicy; // of the hot tier; null if unknown
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    // Threads that are in the hot tier as far as this node knows; absent keys may be in either tier
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong hotHits = new AtomicLong();
+    private final AtomicLong promotions = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong demotions = new AtomicLong();
+
+    private static final class Tracked {
+        final String tenantId;
+        final String threadId;
+        final long demoteAfterNanos;
+        volatile long lastAccess;
+
+        Tracked(String tenantId, String threadId, long demoteAfterNanos) {
+            this.tenantId = tenantId;
+            this.threadId = threadId;
+            this.demoteAfterNanos = demoteAfterNanos;
+        }
+    }
+
+    private TieredAgentStateRepository(Builder builder) {
+        this.hot = builder.hot;
+        this.cold = builder.cold;
+        this.demoteAfterNanos = builder.demoteAfter.toNanos();
+        this.retentionPolicy = builder.retentionPolicy;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "veyflow-tiered-agentstate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long sweepNanos = builder.sweepInterval.toNanos();
+        if (!builder.reconcileTenants.isEmpty()) {
+            List<String> tenants = List.copyOf(builder.reconcileTenants);
+            sweeper.execute(() -> tenants.forEach(this::reconcileQuietly));
+        }
+        sweeper.scheduleWithFixedDelay(this::demoteIdleQuietly, sweepNanos, sweepNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Creates a new builder for a repository over the given tiers.
+     *
+     * @param hot The repository holding active threads
+     * @param cold The repository idle threads are demoted to
+     * @return A new builder
+     */
+    public static Builder builder(AgentStateRepository hot, AgentStateRepository cold) {
+        return new Builder(hot, cold);
+    }
+
+    private static String getKey(String tenantId, String threadId) {
+        return StateKeys.key(tenantId, threadId);
+    }
+
+    @Override
+    public void validateIds(String tenantId, String threadId) {
+        hot.validateIds(tenantId, threadId);
+        cold.validateIds(tenantId, threadId);
+    }
+
+    private ReentrantLock lockFor(String key) {
+        ReentrantLock lock = stripes[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+        lock.lock();
+        return lock;
+    }
+
+    // Locks in stripe order, so concurrent batches cannot deadlock
+    private List<ReentrantLock> lockAll(Collection<String> keys) {
+        TreeMap<Integer, ReentrantLock> ordered = new TreeMap<>();
+        for (String key : keys) {
+            int stripe = (key.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+            ordered.put(stripe, stripes[stripe]);
+        }
+        List<ReentrantLock> locked = new ArrayList<>(ordered.size());
+        for (ReentrantLock lock : ordered.values()) {
+            lock.lock();
+            locked.add(lock);
+        }
+        return locked;
+    }
+
+    private static void unlockAll(List<ReentrantLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    private void touch(String key, String tenantId, String threadId) {
+        tracked.computeIfAbsent(key, k -> new Tracked(tenantId, threadId, demoteAfterNanos(tenantId))).lastAccess = System.nanoTime();
+    }
+
+    /**
+     * @return The idle time after which the tenant's threads are demoted: {@code demoteAfter}, but at most
+     *         half the tenant's TTL in the hot tier, so a late sweep still finds them there.
+     */
+    private long demoteAfterNanos(String tenantId) {
+        return (retentionPolicy != null)
+                ? Math.min(demoteAfterNanos, retentionPolicy.ttlFor(tenantId).toNanos() / 2) : demoteAfterNanos;
+    }
+
+    /**
+     * Saves to the hot tier and drops any cold copy, so a stale demoted state cannot be promoted later.
+     */
+    @Override
+    public void save(AgentState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("AgentState must not be null");
+        }
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        ReentrantLock lock = lockFor(key);
+        try {
+            hot.save(state);
+            if (!tracked.containsKey(key)) {
+                cold.delete(state.getTenantId(), state.getThreadId());
+            }
+            touch(key, state.getTenantId(), state.getThreadId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<AgentState> states) {
+        Map<String, AgentState> byKey = new LinkedHashMap<>();
+        for (AgentState state : states) {
+            if (state == null) {
+                throw new IllegalArgumentException("AgentState must not be null");
+            }
+            byKey.put(getKey(state.getTenantId(), state.getThreadId()), state);
+        }
+        if (byKey.isEmpty()) {
+            return;
+        }
+        List<ReentrantLock> locks = lockAll(byKey.keySet());
+        try {
+            hot.saveAll(states);
+            Map<String, List<String>> untrackedByTenant = new LinkedHashMap<>();
+            byKey.forEach((key, state) -> {
+                if (!tracked.containsKey(key)) {
+                    untrackedByTenant.computeIfAbsent(state.getTenantId(), t -> new ArrayList<>()).add(state.getThreadId());
+                }
+                touch(key, state.getTenantId(), state.getThreadId());
+            });
+            untrackedByTenant.forEach(cold::deleteAll);
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    @Override
+    public Optional<AgentState> findById(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return Optional.empty();
+        }
+        String key = getKey(tenantId, threadId);
+        ReentrantLock lock = lockFor(key);
+        try {
+            Optional<AgentState> state = hot.findById(tenantId, threadId);
+            if (state.isPresent()) {
+                hotHits.incrementAndGet();
+                touch(key, tenantId, threadId);
+                return state;
+            }
+            return promote(key, tenantId, threadId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the key's lock
+    private Optional<AgentState> promote(String key, String tenantId, String threadId) {
+        Optional<AgentState> state = cold.findById(tenantId, threadId);
+        if (state.isEmpty()) {
+            tracked.remove(key);
+            misses.incrementAndGet();
+            return state;
+        }
+        hot.save(state.get());
+        cold.delete(tenantId, threadId);
+        touch(key, tenantId, threadId);
+        promotions.incrementAndGet();
+        log.debug("Promoted agent state {} to the hot tier", key);
+        return state;
+    }
+
+    @Override
+    public Map<String, AgentState> findAll(String tenantId, Collection<String> threadIds) {
+        if (tenantId == null) {
+            return new LinkedHashMap<>();
+        }
+        Map<String, String> threadIdsByKey = new LinkedHashMap<>();
+        for (String threadId : threadIds) {
+            if (threadId != null) {
+                threadIdsByKey.put(getKey(tenantId, threadId), threadId);
+            }
+        }
+        if (threadIdsByKey.isEmpty()) {
+            return new LinkedHashMap<>();
+        }
+        List<ReentrantLock> locks = lockAll(threadIdsByKey.keySet());
+        try {
+            Map<String, AgentState> found = hot.findAll(tenantId, threadIdsByKey.values());
+            List<String> missing = new ArrayList<>();
+            threadIdsByKey.forEach((key, threadId) -> {
+                if (found.containsKey(threadId)) {
+                    hotHits.incrementAndGet();
+                    touch(key, tenantId, threadId);
+                } else {
+                    missing.add(threadId);
+                }
+            });
+            if (missing.isEmpty()) {
+                return found;
+            }
+            Map<String, AgentState> promoted = cold.findAll(tenantId, missing);
+            if (!promoted.isEmpty()) {
+                hot.saveAll(promoted.values());
+                cold.deleteAll(tenantId, promoted.keySet());
+                promotions.addAndGet(promoted.size());
+                found.putAll(promoted);
+            }
+            for (String threadId : missing) {
+                String key = getKey(tenantId, threadId);
+                if (promoted.containsKey(threadId)) {
+                    touch(key, tenantId, threadId);
+                } else {
+                    tracked.remove(key);
+                    misses.incrementAndGet();
+                }
+            }
+            return found;
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    @Override
+    public boolean delete(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return false;
+        }
+        String key = getKey(tenantId, threadId);
+        ReentrantLock lock = lockFor(key);
+        try {
+            boolean deleted = hot.delete(tenantId, threadId);
+            deleted |= cold.delete(tenantId, threadId);
+            tracked.remove(key);
+            return deleted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long deleteAll(String tenantId, Collection<String> threadIds) {
+        if (tenantId == null) {
+            return 0;
+        }
+        List<String> keys = new ArrayList<>(threadIds.size());
+        for (String threadId : threadIds) {
+            if (threadId != null) {
+                keys.add(getKey(tenantId, threadId));
+            }
+        }
+        List<ReentrantLock> locks = lockAll(keys);
+        try {
+            long deleted = hot.deleteAll(tenantId, threadIds) + cold.deleteAll(tenantId, threadIds);
+            keys.forEach(tracked::remove);
+            return deleted;
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    @Override
+    public boolean exists(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return false;
+        }
+        return hot.exists(tenantId, threadId) || cold.exists(tenantId, threadId);
+    }
+
+    /**
+     * Promotes a demoted thread first, so the version is compared against the hot tier.
+     */
+    @Override
+    public boolean compareAndSave(AgentState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("AgentState must not be null");
+        }
+        String tenantId = state.getTenantId();
+        String threadId = state.getThreadId();
+        String key = getKey(tenantId, threadId);
+        ReentrantLock lock = lockFor(key);
+        try {
+            if (!tracked.containsKey(key) && !hot.exists(tenantId, threadId)) {
+                promote(key, tenantId, threadId);
+            }
+            boolean saved = hot.compareAndSave(state);
+            touch(key, tenantId, threadId);
+            return saved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Streams the tenant's hot threads, then its cold ones. A thread found in both tiers is returned once,
+     * from the hot tier. Nothing is promoted.
+     */
+    @Override
+    public Stream<AgentState> scanByTenant(String tenantId) {
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        return Stream.concat(
+                hot.scanByTenant(tenantId).peek(state -> seen.add(state.getThreadId())),
+                cold.scanByTenant(tenantId).filter(state -> !seen.contains(state.getThreadId())));
+    }
+
+    @Override
+    public long purgeTenant(String tenantId) {
+        if (tenantId == null) {
+            throw new IllegalArgumentException("tenantId must not be null");
+        }
+        tracked.values().removeIf(entry -> entry.tenantId.equals(tenantId));
+        return hot.purgeTenant(tenantId) + cold.purgeTenant(tenantId);
+    }
+
+    /**
+     * Moves every thread that has been idle for at least {@code demoteAfter} to the cold tier. Runs
+     * periodically in the background; can be called directly, e.g. before a planned shutdown.
+     *
+     * @return Number of threads demoted
+     */
+    public int demoteIdle() {
+        long now = System.nanoTime();
+        int demoted = 0;
+        for (Map.Entry<String, Tracked> candidate : tracked.entrySet()) {
+            if (now - candidate.getValue().lastAccess < candidate.getValue().demoteAfterNanos) {
+                continue;
+            }
+            String key = candidate.getKey();
+            ReentrantLock lock = lockFor(key);
+            try {
+                Tracked entry = tracked.get(key);
+                if (entry != candidate.getValue() || System.nanoTime() - entry.lastAccess < entry.demoteAfterNanos) {
+                    continue;
+                }
+                Optional<AgentState> state = hot.findById(entry.tenantId, entry.threadId);
+                if (state.isPresent()) {
+                    cold.save(state.get());
+                    hot.delete(entry.tenantId, entry.threadId);
+                    demotions.incrementAndGet();
+                    demoted++;
+                }
+                tracked.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (demoted > 0) {
+            log.debug("Demoted {} idle agent states to the cold tier", demoted);
+        }
+        return demoted;
+    }
+
+    /**
+     * Tracks the tenant's threads in the hot tier that this instance does not know yet, such as those
+     * saved before a restart, as idle since their demotion age, so the next sweep demotes them unless they
+     * are used first. Without this they stay in the hot tier until its TTL deletes them. Runs for the
+     * tenants of {@link Builder#reconcileTenants(Collection)} when the repository is created. Needs a
+     * hot tier that supports {@code scanByTenant}.
+     *
+     * @param tenantId The ID of the tenant
+     * @return Number of threads newly tracked
+     */
+    public int reconcile(String tenantId) {
+        if (tenantId == null) {
+            throw new IllegalArgumentException("tenantId must not be null");
+        }
+        long demoteAfter = demoteAfterNanos(tenantId);
+        int reconciled = 0;
+        try (Stream<AgentState> states = hot.scanByTenant(tenantId)) {
+            for (Iterator<AgentState> it = states.iterator(); it.hasNext(); ) {
+                String threadId = it.next().getThreadId();
+                String key = getKey(tenantId, threadId);
+                ReentrantLock lock = lockFor(key);
+                try {
+                    Tracked entry = new Tracked(tenantId, threadId, demoteAfter);
+                    entry.lastAccess = System.nanoTime() - demoteAfter;
+                    if (tracked.putIfAbsent(key, entry) == null) {
+                        reconciled++;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        if (reconciled > 0) {
+            log.info("Reconciled {} agent states of tenant {} found in the hot tier", reconciled, tenantId);
+        }
+        return reconciled;
+    }
+
+    private void reconcileQuietly(String tenantId) {
+        try {
+            reconcile(tenantId);
+        } catch (Exception e) {
+            log.error("Reconciling the hot tier for tenant {} failed; its untracked states will not be demoted.", tenantId, e);
+        }
+    }
+
+    private void demoteIdleQuietly() {
+        try {
+            demoteIdle();
+        } catch (Exception e) {
+            log.error("Demoting idle agent states failed; will retry on the next sweep.", e);
+        }
+    }
+
+    /**
+     * Stops the background sweep. Threads stay in whichever tier they are in.
+     */
+    @Override
+    public void close() {
+        sweeper.shutdown();
+        try {
+            sweeper.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return Number of threads this node considers hot and may demote.
+     */
+    public int getTrackedCount() {
+        return tracked.size();
+    }
+
+    public long getHotHits() {
+        return hotHits.get();
+    }
+
+    public long getPromotions() {
+        return promotions.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getDemotions() {
+        return demotions.get();
+    }
+
+    /**
+     * Builder for {@link TieredAgentStateRepository}.
+     */
+    public static class Builder {
+        private final AgentStateRepository hot;
+        private final AgentStateRepository cold;
+        private Duration demoteAfter = Duration.ofMinutes(5);
+        private Duration sweepInterval = Duration.ofSeconds(30);
+        private StateRetentionPolicy retentionPolicy;
+        private final Set<String> reconcileTenants = new LinkedHashSet<>();
+
+        private Builder(AgentStateRepository hot, AgentStateRepository cold) {
+            if (hot == null || cold == null) {
+                throw new IllegalArgumentException("hot and cold repositories must not be null");
+            }
+            this.hot = hot;
+            this.cold = cold;
+        }
+
+        /**
+         * Sets how long a thread must go unaccessed before it is demoted. Must be shorter than the hot
+         * tier's TTL.
+         *
+         * @param demoteAfter Idle time before demotion
+         * @return This builder for chaining
+         */
+        public Builder demoteAfter(Duration demoteAfter) {
+            if (demoteAfter == null || demoteAfter.isNegative() || demoteAfter.isZero()) {
+                throw new IllegalArgumentException("demoteAfter must be positive");
+            }
+            this.demoteAfter = demoteAfter;
+            return this;
+        }
+
+        /**
+         * Sets how often idle threads are looked for.
+         *
+         * @param sweepInterval Interval between sweeps
+         * @return This builder for chaining
+         */
+        public Builder sweepInterval(Duration sweepInterval) {
+            if (sweepInterval == null || sweepInterval.isNegative() || sweepInterval.isZero()) {
+                throw new IllegalArgumentException("sweepInterval must be positive");
+            }
+            this.sweepInterval = sweepInterval;
+            return this;
+        }
+
+        /**
+         * Sets the retention policy of the hot tier, so each tenant's threads are demoted after at most
+         * half their TTL, even if {@code demoteAfter} is longer.
+         *
+         * @param retentionPolicy The hot tier's retention policy, e.g. that of its {@link RedisAgentStateRepository}
+         * @return This builder for chaining
+         */
+        public Builder retentionPolicy(StateRetentionPolicy retentionPolicy) {
+            this.retentionPolicy = retentionPolicy;
+            return this;
+        }
+
+        /**
+         * Sets the tenants whose hot threads are {@linkplain #reconcile(String) reconciled} in the
+         * background when the repository is created, so threads saved before a restart are demoted too.
+         *
+         * @param tenantIds The IDs of the tenants
+         * @return This builder for chaining
+         */
+        public Builder reconcileTenants(Collection<String> tenantIds) {
+            if (tenantIds == null) {
+                throw new IllegalArgumentException("tenantIds must not be null");
+            }
+            for (String tenantId : tenantIds) {
+                if (tenantId == null) {
+                    throw new IllegalArgumentException("tenantIds must not contain null");
+                }
+                reconcileTenants.add(tenantId);
+            }
+            return this;
+        }
+
+        public TieredAgentStateRepository build() {
+            return new TieredAgentStateRepository(this);
+        }
+    }
+}
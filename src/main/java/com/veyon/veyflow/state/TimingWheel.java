@@ -0,0 +1,96 @@
+package com.veyon.veyflow.state;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel for coarse-grained expiry of many keys.
+ * <p>
+ * Scheduling and advancing are O(1) per key. Deadlines far in the future wrap around the wheel and
+ * are re-checked each revolution. The wheel is not thread-safe; callers synchronize externally.
+ * Callers that extend a key's deadline (e.g. expire-after-access) keep a single timeout per key: when
+ * it fires they compare it with the key's current deadline and schedule it again if it moved, which
+ * avoids touching the wheel on every access.
+ */
+class TimingWheel<K> {
+
+    private static final class Timeout<K> {
+        final K key;
+        final long deadline;
+
+        Timeout(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    private final List<ArrayDeque<Timeout<K>>> buckets;
+    private final long tickNanos;
+    private final int mask;
+    private long currentTick;
+
+    /**
+     * @param tickNanos Resolution of the wheel
+     * @param bucketCount Number of buckets, rounded up to a power of two
+     * @param startNanos The current time
+     */
+    TimingWheel(long tickNanos, int bucketCount, long startNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("tickNanos must be positive");
+        }
+        int size = Integer.highestOneBit(Math.max(1, bucketCount - 1)) << 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.tickNanos = tickNanos;
+        this.mask = size - 1;
+        this.currentTick = startNanos / tickNanos;
+    }
+
+    /**
+     * Schedules {@code key} to be reported by {@link #advance} once {@code deadlineNanos} has passed.
+     */
+    void schedule(K key, long deadlineNanos) {
+        long tick = Math.max(deadlineNanos / tickNanos, currentTick);
+        buckets.get((int) (tick & mask)).add(new Timeout<>(key, deadlineNanos));
+    }
+
+    /**
+     * Moves the wheel to {@code nowNanos}, reporting every key whose deadline has passed.
+     *
+     * @param nowNanos The current time
+     * @param expired Receives each expired key together with its deadline
+     */
+    void advance(long nowNanos, ExpiryHandler<K> expired) {
+        long targetTick = nowNanos / tickNanos;
+        // After a long pause every bucket is visited at most once
+        long lastTick = Math.min(targetTick, currentTick + mask);
+        for (long tick = currentTick; tick <= lastTick; tick++) {
+            ArrayDeque<Timeout<K>> bucket = buckets.get((int) (tick & mask));
+            int pending = bucket.size();
+            for (int i = 0; i < pending; i++) {
+                Timeout<K> timeout = bucket.poll();
+                if (timeout.deadline <= nowNanos) {
+                    expired.onExpired(timeout.key, timeout.deadline);
+                } else {
+                    bucket.add(timeout); // due in a later revolution
+                }
+            }
+        }
+        currentTick = targetTick;
+    }
+
+    /**
+     * Drops every scheduled key.
+     */
+    void clear() {
+        buckets.forEach(ArrayDeque::clear);
+    }
+
+    @FunctionalInterface
+    interface ExpiryHandler<K> {
+        void onExpired(K key, long deadlineNanos);
+    }
+}
@@ -0,0 +1,666 @@
+package com.veyon.veyflow.state;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * {@link AgentStateRepository} decorator that takes saves off the caller's thread.
+ * <p>
+ * {@link #save(AgentState)} snapshots the state and queues it; a background thread writes queued
+ * states to the delegate in batches through {@link AgentStateRepository#saveAll(Collection)}.
+ * Repeated saves of the same {@code tenantId::threadId} before a flush are coalesced into one write.
+ * Reads through this repository see queued and in-flight states (read-your-writes for this JVM);
+ * other nodes only see them once flushed.
+ * <p>
+ * When {@code maxPending} distinct keys are queued, {@code save} blocks until the flusher catches up,
+ * and fails after {@code maxBlock}. Saves of IDs the delegate would reject fail right away. When a
+ * batch fails, its states are retried one at a time, so one unwritable state cannot hold back the
+ * others: a state the delegate rejects with an {@link IllegalArgumentException}, or that keeps failing
+ * while other states are written, is dropped and counted in {@link #getDroppedStates()}. If no state
+ * can be written, the delegate is considered unavailable and the batch stays queued. {@link #close()} stops the flusher and drains the queue; by
+ * default it is also registered as a JVM shutdown hook.
+ */
+public class WriteBehindAgentStateRepository implements AgentStateRepository, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindAgentStateRepository.class);
+    private static final int CLOSE_FLUSH_ATTEMPTS = 3;
+    private static final int MAX_WRITE_ATTEMPTS = 3;
+
+    private final AgentStateRepository delegate;
+    private final int maxBatchSize;
+    private final int maxPending;
+    private final long maxBlockNanos;
+
+    private final Object lock = new Object();
+    private final Map<String, Entry> pending = new LinkedHashMap<>();
+    private final Map<String, Entry> inFlight = new LinkedHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+    private final Thread shutdownHook;
+    private volatile boolean closed = false;
+
+    private final AtomicLong savesAccepted = new AtomicLong();
+    private final AtomicLong savesCoalesced = new AtomicLong();
+    private final AtomicLong statesFlushed = new AtomicLong();
+    private final AtomicLong batchesFlushed = new AtomicLong();
+    private final AtomicLong failedFlushes = new AtomicLong();
+    private final AtomicLong droppedStates = new AtomicLong();
+    private final AtomicLong backpressureWaits = new AtomicLong();
+    private volatile long lastFlushLagNanos = 0;
+
+    /**
+     * A queued snapshot. {@code enqueuedAt} is the time of the oldest save it replaced, so the lag of
+     * a coalesced key is measured from its first unflushed write.
+     */
+    private static final class Entry {
+        final AgentState state;
+        final long enqueuedAt;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+        int failedAttempts = 0; // guarded by lock
+
+        Entry(AgentState state, long enqueuedAt) {
+            this.state = state;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private WriteBehindAgentStateRepository(Builder builder) {
+        this.delegate = builder.delegate;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxPending = builder.maxPending;
+        this.maxBlockNanos = builder.maxBlock.toNanos();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "veyflow-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMillis = Math.max(1, builder.flushInterval.toMillis());
+        this.flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        if (builder.flushOnShutdown) {
+            this.shutdownHook = new Thread(this::close, "veyflow-write-behind-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        } else {
+            this.shutdownHook = null;
+        }
+    }
+
+    /**
+     * Creates a new builder for a write-behind repository in front of {@code delegate}.
+     *
+     * @param delegate The repository that receives the batched writes
+     * @return A new builder
+     */
+    public static Builder builder(AgentStateRepository delegate) {
+        return new Builder(delegate);
+    }
+
+    private static String getKey(String tenantId, String threadId) {
+        return tenantId + StateKeys.SEPARATOR + threadId;
+    }
+
+    @Override
+    public void validateIds(String tenantId, String threadId) {
+        delegate.validateIds(tenantId, threadId);
+    }
+
+    /**
+     * Queues a snapshot of the state. Returns as soon as the snapshot is queued. The state's version is
+     * advanced right away, past the version of any queued or in-flight save of the thread, to the
+     * version the delegate will store unless another node saves the thread first.
+     *
+     * @throws IllegalStateException If the queue stayed full for longer than {@code maxBlock}, or the repository is closed
+     */
+    @Override
+    public void save(AgentState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("AgentState must not be null");
+        }
+        delegate.validateIds(state.getTenantId(), state.getThreadId());
+        AgentState snapshot = state.copy();
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        boolean requestFlush;
+        synchronized (lock) {
+            ensureOpen();
+            Entry existing = pending.get(key);
+            if (existing != null) {
+                advanceVersion(state, snapshot, existing);
+                pending.put(key, new Entry(snapshot, existing.enqueuedAt));
+                savesAccepted.incrementAndGet();
+                savesCoalesced.incrementAndGet();
+                return;
+            }
+            awaitCapacity();
+            advanceVersion(state, snapshot, inFlight.get(key));
+            pending.put(key, new Entry(snapshot, System.nanoTime()));
+            savesAccepted.incrementAndGet();
+            requestFlush = pending.size() >= maxBatchSize;
+        }
+        if (requestFlush && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    // Must hold lock. The version the delegate will store, as far as this JVM knows its stored version.
+    private static void advanceVersion(AgentState state, AgentState snapshot, Entry local) {
+        long stored = (local != null) ? local.state.getVersion() : state.getVersion();
+        long version = AgentState.versionAfterSave(stored, state.getVersion());
+        state.setVersion(version);
+        snapshot.setVersion(version);
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("WriteBehindAgentStateRepository is closed");
+        }
+    }
+
+    // Must hold lock
+    private void awaitCapacity() {
+        if (pending.size() < maxPending) {
+            return;
+        }
+        backpressureWaits.incrementAndGet();
+        long deadline = System.nanoTime() + maxBlockNanos;
+        if (flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+        while (pending.size() >= maxPending) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new IllegalStateException("Write-behind queue is full (" + maxPending + " pending states); delegate is not keeping up");
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for write-behind capacity", e);
+            }
+            ensureOpen();
+        }
+    }
+
+    @Override
+    public Optional<AgentState> findById(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return Optional.empty();
+        }
+        Entry local = findLocal(getKey(tenantId, threadId));
+        if (local != null) {
+            return Optional.of(local.state.copy());
+        }
+        return delegate.findById(tenantId, threadId);
+    }
+
+    private Entry findLocal(String key) {
+        synchronized (lock) {
+            Entry entry = pending.get(key);
+            return (entry != null) ? entry : inFlight.get(key);
+        }
+    }
+
+    @Override
+    public Map<String, AgentState> findAll(String tenantId, Collection<String> threadIds) {
+        Map<String, AgentState> found = new LinkedHashMap<>();
+        if (tenantId == null) {
+            return found;
+        }
+        List<String> remote = new ArrayList<>();
+        for (String threadId : threadIds) {
+            Entry local = (threadId != null) ? findLocal(getKey(tenantId, threadId)) : null;
+            if (local != null) {
+                found.put(threadId, local.state.copy());
+            } else {
+                remote.add(threadId);
+                found.put(threadId, null); // keep request order
+            }
+        }
+        if (!remote.isEmpty()) {
+            found.putAll(delegate.findAll(tenantId, remote));
+        }
+        found.values().removeIf(state -> state == null);
+        return found;
+    }
+
+    /**
+     * Drops any queued save for the thread, waits for an in-flight write of it to finish and then
+     * deletes it from the delegate, so a flush cannot resurrect it.
+     */
+    @Override
+    public boolean delete(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return false;
+        }
+        String key = getKey(tenantId, threadId);
+        boolean droppedLocal = false;
+        while (true) {
+            Entry writing;
+            synchronized (lock) {
+                if (pending.remove(key) != null) {
+                    droppedLocal = true;
+                    lock.notifyAll();
+                }
+                writing = inFlight.get(key);
+            }
+            if (writing == null) {
+                break;
+            }
+            droppedLocal = true;
+            writing.written.exceptionally(e -> null).join();
+        }
+        return delegate.delete(tenantId, threadId) || droppedLocal;
+    }
+
+    /**
+     * Flushes queued saves first, so the delegate's scan includes them.
+     */
+    @Override
+    public Stream<AgentState> scanByTenant(String tenantId) {
+        flush();
+        return delegate.scanByTenant(tenantId);
+    }
+
+    /**
+     * Drops the tenant's queued saves and waits for its in-flight writes before purging the delegate,
+     * so a flush cannot resurrect a purged thread.
+     *
+     * @return The number of states the delegate deleted
+     */
+    @Override
+    public long purgeTenant(String tenantId) {
+        if (tenantId == null) {
+            return 0;
+        }
+        String prefix = StateKeys.tenantPrefix(tenantId);
+        List<Entry> writing = new ArrayList<>();
+        synchronized (lock) {
+            if (pending.keySet().removeIf(key -> key.startsWith(prefix))) {
+                lock.notifyAll();
+            }
+            inFlight.forEach((key, entry) -> {
+                if (key.startsWith(prefix)) {
+                    writing.add(entry);
+                }
+            });
+        }
+        for (Entry entry : writing) {
+            entry.written.exceptionally(e -> null).join();
+        }
+        return delegate.purgeTenant(tenantId);
+    }
+
+    /**
+     * Writes any queued or in-flight save of the thread through to the delegate first, then compares
+     * and saves synchronously against the delegate, so the version check sees the latest write.
+     */
+    @Override
+    public boolean compareAndSave(AgentState state) {
+        if (state == null || state.getTenantId() == null || state.getThreadId() == null) {
+            throw new IllegalArgumentException("AgentState and its tenantId and threadId must not be null");
+        }
+        String key = getKey(state.getTenantId(), state.getThreadId());
+        while (true) {
+            Entry queued = null;
+            Entry writing;
+            synchronized (lock) {
+                ensureOpen();
+                writing = inFlight.get(key);
+                if (writing == null) {
+                    queued = pending.remove(key);
+                    if (queued != null) {
+                        inFlight.put(key, queued);
+                        lock.notifyAll();
+                    }
+                }
+            }
+            if (queued != null) {
+                writeBatch(List.of(queued));
+            } else if (writing != null) {
+                writing.written.exceptionally(e -> null).join();
+            } else {
+                break;
+            }
+        }
+        return delegate.compareAndSave(state);
+    }
+
+    @Override
+    public boolean exists(String tenantId, String threadId) {
+        if (tenantId == null || threadId == null) {
+            return false;
+        }
+        return findLocal(getKey(tenantId, threadId)) != null || delegate.exists(tenantId, threadId);
+    }
+
+    /**
+     * Writes everything queued so far to the delegate on the calling thread.
+     *
+     * @throws RuntimeException The delegate's failure, if it could not write any state of a batch; the
+     *         batch stays queued
+     */
+    public void flush() {
+        while (true) {
+            List<Entry> batch = takeBatch();
+            if (batch.isEmpty() || !writeBatch(batch)) {
+                return; // states queued again wait for the next flush
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        flushRequested.set(false);
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Write-behind flush failed; {} states remain queued and will be retried.", getPendingCount(), e);
+        }
+    }
+
+    private List<Entry> takeBatch() {
+        synchronized (lock) {
+            List<Entry> batch = new ArrayList<>(Math.min(maxBatchSize, pending.size()));
+            Iterator<Map.Entry<String, Entry>> iterator = pending.entrySet().iterator();
+            while (iterator.hasNext() && batch.size() < maxBatchSize) {
+                Map.Entry<String, Entry> next = iterator.next();
+                if (inFlight.containsKey(next.getKey())) {
+                    continue; // an older write of this key must finish first
+                }
+                inFlight.put(next.getKey(), next.getValue());
+                batch.add(next.getValue());
+                iterator.remove();
+            }
+            if (!batch.isEmpty()) {
+                lock.notifyAll();
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * @return false if states of the batch were queued again
+     */
+    private boolean writeBatch(List<Entry> batch) {
+        List<AgentState> states = new ArrayList<>(batch.size());
+        long oldest = Long.MAX_VALUE;
+        for (Entry entry : batch) {
+            states.add(entry.state);
+            oldest = Math.min(oldest, entry.enqueuedAt);
+        }
+        try {
+            delegate.saveAll(states);
+        } catch (RuntimeException e) {
+            failedFlushes.incrementAndGet();
+            return !retryOneByOne(batch, e);
+        }
+        synchronized (lock) {
+            for (Entry entry : batch) {
+                inFlight.remove(getKey(entry.state.getTenantId(), entry.state.getThreadId()), entry);
+                entry.written.complete(null);
+            }
+        }
+        statesFlushed.addAndGet(batch.size());
+        batchesFlushed.incrementAndGet();
+        lastFlushLagNanos = System.nanoTime() - oldest;
+        return true;
+    }
+
+    /**
+     * Writes the states of a failed batch one at a time. Rejected states are dropped; states that fail
+     * otherwise are queued again, and dropped after {@value #MAX_WRITE_ATTEMPTS} such failures in rounds
+     * where other states were written, since the delegate is evidently available.
+     *
+     * @return Whether states were queued again
+     * @throws RuntimeException The batch failure, if no state could be written and some were queued again
+     */
+    private boolean retryOneByOne(List<Entry> batch, RuntimeException batchFailure) {
+        Map<Entry, RuntimeException> failures = new LinkedHashMap<>();
+        int written = 0;
+        for (Entry entry : batch) {
+            try {
+                delegate.save(entry.state);
+                written++;
+                synchronized (lock) {
+                    inFlight.remove(getKey(entry.state.getTenantId(), entry.state.getThreadId()), entry);
+                }
+                entry.written.complete(null);
+            } catch (RuntimeException e) {
+                failures.put(entry, e);
+            }
+        }
+        statesFlushed.addAndGet(written);
+        boolean requeued = false;
+        synchronized (lock) {
+            for (Map.Entry<Entry, RuntimeException> failure : failures.entrySet()) {
+                Entry entry = failure.getKey();
+                RuntimeException e = failure.getValue();
+                String key = getKey(entry.state.getTenantId(), entry.state.getThreadId());
+                inFlight.remove(key, entry);
+                if (written > 0 && !(e instanceof IllegalArgumentException)) {
+                    entry.failedAttempts++;
+                }
+                if (e instanceof IllegalArgumentException || entry.failedAttempts >= MAX_WRITE_ATTEMPTS) {
+                    droppedStates.incrementAndGet();
+                    log.error("Dropping write-behind state {} after it failed to save.", key, e);
+                } else {
+                    // A newer save of the same key supersedes the failed snapshot
+                    pending.putIfAbsent(key, entry);
+                    requeued = true;
+                }
+                entry.written.completeExceptionally(e);
+            }
+        }
+        if (written == 0 && requeued) {
+            throw batchFailure;
+        }
+        return requeued;
+    }
+
+    /**
+     * Stops the background flusher and writes all queued states to the delegate.
+     * Subsequent saves are rejected.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (int attempt = 1; attempt <= CLOSE_FLUSH_ATTEMPTS; attempt++) {
+            try {
+                flush();
+                break;
+            } catch (Exception e) {
+                log.error("Flush on close failed (attempt {}/{}).", attempt, CLOSE_FLUSH_ATTEMPTS, e);
+            }
+        }
+        int lost = getPendingCount();
+        if (lost > 0) {
+            log.error("WriteBehindAgentStateRepository closed with {} unflushed states.", lost);
+        }
+        if (shutdownHook != null && Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // JVM is already shutting down
+            }
+        }
+    }
+
+    /**
+     * @return Number of distinct threads queued or being written.
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size() + inFlight.size();
+        }
+    }
+
+    /**
+     * @return Age in milliseconds of the oldest save not yet written to the delegate, or 0 if none.
+     */
+    public long getOldestPendingAgeMillis() {
+        long oldest = Long.MAX_VALUE;
+        synchronized (lock) {
+            for (Entry entry : pending.values()) {
+                oldest = Math.min(oldest, entry.enqueuedAt);
+            }
+            for (Entry entry : inFlight.values()) {
+                oldest = Math.min(oldest, entry.enqueuedAt);
+            }
+        }
+        return (oldest == Long.MAX_VALUE) ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+    }
+
+    /**
+     * @return Time in milliseconds between the oldest save of the last successful batch and its write.
+     */
+    public long getLastFlushLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastFlushLagNanos);
+    }
+
+    public long getSavesAccepted() {
+        return savesAccepted.get();
+    }
+
+    public long getSavesCoalesced() {
+        return savesCoalesced.get();
+    }
+
+    public long getStatesFlushed() {
+        return statesFlushed.get();
+    }
+
+    public long getBatchesFlushed() {
+        return batchesFlushed.get();
+    }
+
+    public long getFailedFlushes() {
+        return failedFlushes.get();
+    }
+
+    public long getBackpressureWaits() {
+        return backpressureWaits.get();
+    }
+
+    /**
+     * @return States dropped because the delegate rejected them or kept failing to write them.
+     */
+    public long getDroppedStates() {
+        return droppedStates.get();
+    }
+
+    /**
+     * Builder for {@link WriteBehindAgentStateRepository}.
+     */
+    public static class Builder {
+        private final AgentStateRepository delegate;
+        private Duration flushInterval = Duration.ofMillis(50);
+        private int maxBatchSize = 256;
+        private int maxPending = 10_000;
+        private Duration maxBlock = Duration.ofSeconds(5);
+        private boolean flushOnShutdown = true;
+
+        private Builder(AgentStateRepository delegate) {
+            if (delegate == null) {
+                throw new IllegalArgumentException("delegate must not be null");
+            }
+            this.delegate = delegate;
+        }
+
+        /**
+         * Sets how often queued states are written when the batch size is not reached first.
+         *
+         * @param flushInterval Interval between flushes
+         * @return This builder for chaining
+         */
+        public Builder flushInterval(Duration flushInterval) {
+            if (flushInterval == null || flushInterval.isNegative() || flushInterval.isZero()) {
+                throw new IllegalArgumentException("flushInterval must be positive");
+            }
+            this.flushInterval = flushInterval;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of states written per {@code saveAll} call. Reaching it triggers an
+         * immediate flush.
+         *
+         * @param maxBatchSize Maximum batch size
+         * @return This builder for chaining
+         */
+        public Builder maxBatchSize(int maxBatchSize) {
+            if (maxBatchSize <= 0) {
+                throw new IllegalArgumentException("maxBatchSize must be greater than 0");
+            }
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of distinct queued threads at which {@code save} starts blocking.
+         *
+         * @param maxPending Queue capacity
+         * @return This builder for chaining
+         */
+        public Builder maxPending(int maxPending) {
+            if (maxPending <= 0) {
+                throw new IllegalArgumentException("maxPending must be greater than 0");
+            }
+            this.maxPending = maxPending;
+            return this;
+        }
+
+        /**
+         * Sets how long {@code save} may block on a full queue before failing.
+         *
+         * @param maxBlock Maximum blocking time
+         * @return This builder for chaining
+         */
+        public Builder maxBlock(Duration maxBlock) {
+            if (maxBlock == null || maxBlock.isNegative()) {
+                throw new IllegalArgumentException("maxBlock must not be negative");
+            }
+            this.maxBlock = maxBlock;
+            return this;
+        }
+
+        /**
+         * Sets whether a JVM shutdown hook drains the queue.
+         *
+         * @param flushOnShutdown true to register the hook
+         * @return This builder for chaining
+         */
+        public Builder flushOnShutdown(boolean flushOnShutdown) {
+            this.flushOnShutdown = flushOnShutdown;
+            return this;
+        }
+
+        public WriteBehindAgentStateRepository build() {
+            return new WriteBehindAgentStateRepository(this);
+        }
+    }
+}
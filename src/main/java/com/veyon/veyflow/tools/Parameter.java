@@ -1,10 +1,25 @@
 package com.veyon.veyflow.tools;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.veyon.veyflow.state.AgentState;
+
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
 public class Parameter {
     private String name;
     private String type;
     private String description;
     private boolean required;
+    private List<String> enumValues; // null if any value is allowed
+    private Double minimum;
+    private Double maximum;
 
     public Parameter() {}
 
@@ -15,6 +30,112 @@ public class Parameter {
         this.required = required;
     }
 
+    public Parameter(String name, String type, String description, boolean required,
+                     List<String> enumValues, Double minimum, Double maximum) {
+        this(name, type, description, required);
+        this.enumValues = enumValues;
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    /**
+     * Builds the schema of a tool method parameter from its annotation. The allowed values of an enum
+     * parameter default to the names of its constants.
+     *
+     * @param name The parameter name
+     * @param annotation The parameter's annotation
+     * @param javaType The parameter's type
+     * @return The schema
+     */
+    public static Parameter of(String name, ToolParameter annotation, Class<?> javaType) {
+        List<String> enumValues = null;
+        if (annotation.enumValues().length > 0) {
+            enumValues = List.of(annotation.enumValues());
+        } else if (javaType.isEnum()) {
+            enumValues = new ArrayList<>();
+            for (Object constant : javaType.getEnumConstants()) {
+                enumValues.add(((Enum<?>) constant).name());
+            }
+            enumValues = List.copyOf(enumValues);
+        }
+        return new Parameter(name, jsonType(annotation.type(), javaType), annotation.value(),
+                required(annotation.required(), javaType), enumValues, bound(annotation.minimum()), bound(annotation.maximum()));
+    }
+
+    /**
+     * Resolves whether a parameter must be passed. An {@link Optional} never has to be, and a primitive
+     * always has to be, since it cannot be bound to a missing argument. The declared schema, the
+     * {@link ToolArgumentValidator} and the {@link ToolArgumentBinder} all apply this rule.
+     *
+     * @param declared {@link ToolParameter#required()}, or false for a parameter without the annotation
+     * @param javaType The Java type of the parameter
+     * @return Whether the parameter is required
+     */
+    public static boolean required(boolean declared, Class<?> javaType) {
+        return javaType.isPrimitive() || (declared && javaType != Optional.class);
+    }
+
+    /**
+     * Resolves the declared JSON type of a parameter. {@code "string"}, the default of
+     * {@link ToolParameter#type()}, is replaced by the type that fits the Java type when that is clearly not
+     * a string, so a {@code List} or {@code int} left at the default is not declared, and validated, as one.
+     *
+     * @param declared The type from the annotation
+     * @param javaType The Java type of the parameter
+     * @return The JSON type
+     */
+    public static String jsonType(String declared, Class<?> javaType) {
+        if (!"string".equals(declared)) {
+            return declared;
+        }
+        if (javaType == int.class || javaType == long.class || javaType == short.class || javaType == byte.class
+                || javaType == Integer.class || javaType == Long.class || javaType == Short.class || javaType == Byte.class
+                || javaType == BigInteger.class) {
+            return "integer";
+        } else if (javaType == double.class || javaType == float.class || javaType == Double.class
+                || javaType == Float.class || Number.class.isAssignableFrom(javaType)) {
+            return "number";
+        } else if (javaType == boolean.class || javaType == Boolean.class) {
+            return "boolean";
+        } else if (javaType.isArray() || Collection.class.isAssignableFrom(javaType)
+                || javaType == JsonArray.class) {
+            return "array";
+        } else if (Map.class.isAssignableFrom(javaType) || javaType == JsonObject.class
+                || javaType.isRecord()) {
+            return "object";
+        }
+        return declared;
+    }
+
+    private static Double bound(double value) {
+        return (Double.isInfinite(value) || Double.isNaN(value)) ? null : value;
+    }
+
+    /**
+     * Gets the schema of a tool method's parameters: from the generated {@link ToolMetadata} if there is
+     * one, otherwise from the {@link ToolParameter} annotations. Parameters without the annotation, such as
+     * the {@link AgentState}, are not part of it.
+     *
+     * @param method The tool method
+     * @return The schema, in parameter order
+     */
+    public static List<Parameter> schemaOf(Method method) {
+        ToolMethodMetadata metadata = ToolMetadata.forMethod(method);
+        if (metadata != null) {
+            return metadata.getSchema();
+        }
+        String[] names = ToolArgumentBinder.parameterNames(method, null);
+        java.lang.reflect.Parameter[] parameters = method.getParameters();
+        List<Parameter> schema = new ArrayList<>();
+        for (int i = 0; i < parameters.length; i++) {
+            ToolParameter annotation = parameters[i].getAnnotation(ToolParameter.class);
+            if (annotation != null && parameters[i].getType() != AgentState.class) {
+                schema.add(of(names[i], annotation, parameters[i].getType()));
+            }
+        }
+        return schema;
+    }
+
     public String getName() {
         return name;
     }
@@ -46,4 +167,37 @@ public class Parameter {
     public void setRequired(boolean required) {
         this.required = required;
     }
+
+    /**
+     * @return The allowed values, or null if any value of the type is allowed.
+     */
+    public List<String> getEnumValues() {
+        return enumValues;
+    }
+
+    public void setEnumValues(List<String> enumValues) {
+        this.enumValues = enumValues;
+    }
+
+    /**
+     * @return The smallest allowed number, or null for no lower bound.
+     */
+    public Double getMinimum() {
+        return minimum;
+    }
+
+    public void setMinimum(Double minimum) {
+        this.minimum = minimum;
+    }
+
+    /**
+     * @return The largest allowed number, or null for no upper bound.
+     */
+    public Double getMaximum() {
+        return maximum;
+    }
+
+    public void setMaximum(Double maximum) {
+        this.maximum = maximum;
+    }
 }
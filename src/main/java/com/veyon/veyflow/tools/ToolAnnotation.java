@@ -6,7 +6,9 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 /**
- * Annotation for declaring methods as tools in the agent framework.
+ * Annotation for declaring methods as tools in the agent framework. A tool method may return a
+ * {@link java.util.concurrent.CompletableFuture} or other {@link java.util.concurrent.CompletionStage}
+ * instead of its result; the agent then waits for it without holding a thread.
  */
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
@@ -21,4 +23,57 @@ public @interface ToolAnnotation {
      * Default is true.
      */
     boolean recall() default true;
+
+    /**
+     * Whether calls to this tool may run concurrently with other tool calls of the same model response.
+     * Set to false for tools that are not thread-safe: a non-parallel call never runs concurrently with
+     * other non-parallel calls, which run one at a time in the order the model issued them. It may still
+     * overlap with parallel calls of the same response. Tools taking the {@code AgentState} are always
+     * non-parallel, since the state is not thread-safe.
+     * Default is true.
+     */
+    boolean parallel() default true;
+
+    /**
+     * Timeout of a call to this tool in milliseconds, including the wait for a free slot of its service.
+     * The future of an asynchronous tool is cancelled when it expires.
+     * Default is 0, the service's timeout, see {@link ToolLimits#timeoutMillis()}.
+     */
+    long timeoutMillis() default 0;
+
+    /**
+     * How long results of this tool are cached, in seconds, for calls with the same arguments. Only for
+     * idempotent tools; failures are never cached. The {@code AgentState} is not part of the cache key.
+     * Default is 0, no caching.
+     */
+    int cacheTtlSeconds() default 0;
+
+    /**
+     * Which calls share cached results. Default is {@link CacheScope#TENANT}.
+     */
+    CacheScope cacheScope() default CacheScope.TENANT;
+
+    /**
+     * The arguments that make up the cache key; other arguments do not distinguish calls. Default is all
+     * arguments of the method.
+     */
+    String[] cacheKeyArguments() default {};
+
+    /**
+     * Whether string arguments are compared case-insensitively and without surrounding whitespace when
+     * looking up cached results, so "Paris" and " paris" share a result. Default is false.
+     */
+    boolean cacheKeyIgnoreCase() default false;
+
+    /**
+     * Sharing of cached tool results.
+     */
+    enum CacheScope {
+        /** Shared by all tenants. */
+        GLOBAL,
+        /** Shared by the threads of a tenant. */
+        TENANT,
+        /** Only within one conversation thread. */
+        THREAD
+    }
 }
@@ -0,0 +1,261 @@
+package com.veyon.veyflow.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.veyon.veyflow.state.AgentState;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts the JSON arguments of a tool call to the parameters of its tool method. Prepared once per
+ * method: every parameter gets a converter, a direct one for strings, numbers, booleans and JSON values and
+ * a cached Gson {@link TypeAdapter} for anything else, including generic collections and records.
+ * Parameters of type {@link AgentState} receive the state.
+ * <p>
+ * Before converting, the arguments are checked for required parameters: primitives and parameters whose
+ * {@link ToolParameter#required()} is true, unless their type is {@link Optional}, the rule of
+ * {@link com.veyon.veyflow.tools.Parameter#required} that the declared schema follows as well. All missing
+ * ones are reported together.
+ * <p>
+ * Used both by {@link ToolInvoker} and by {@link ToolService#executeToolMethod}.
+ */
+public final class ToolArgumentBinder {
+
+    private static final Gson GSON = new Gson();
+
+    private static final ClassValue<Map<Method, ToolArgumentBinder>> BINDERS = new ClassValue<>() {
+        @Override
+        protected Map<Method, ToolArgumentBinder> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final String methodName;
+    private final String[] parameterNames;
+    private final Converter[] converters; // null for the AgentState
+    private final boolean[] required;
+    private final boolean usesState;
+
+    @FunctionalInterface
+    private interface Converter {
+        Object convert(JsonElement value);
+    }
+
+    /**
+     * Prepares the binder of a tool method.
+     *
+     * @param method The tool method
+     * @param parameterNames The names of its parameters, see {@link #parameterNames}
+     * @param gson Converts values of types without a direct converter
+     */
+    public ToolArgumentBinder(Method method, String[] parameterNames, Gson gson) {
+        Parameter[] parameters = method.getParameters();
+        this.methodName = method.getName();
+        this.parameterNames = parameterNames;
+        this.converters = new Converter[parameters.length];
+        this.required = new boolean[parameters.length];
+        boolean state = false;
+        for (int i = 0; i < parameters.length; i++) {
+            Class<?> type = parameters[i].getType();
+            if (type == AgentState.class) {
+                state = true;
+                continue;
+            }
+            ToolParameter annotation = parameters[i].getAnnotation(ToolParameter.class);
+            required[i] = com.veyon.veyflow.tools.Parameter.required(annotation != null && annotation.required(), type);
+            converters[i] = converter(parameterNames[i], parameters[i], gson);
+        }
+        this.usesState = state;
+    }
+
+    /**
+     * Gets the binder of a tool method, prepared on first use with a default {@link Gson}.
+     *
+     * @param method The tool method
+     * @return The binder
+     */
+    public static ToolArgumentBinder of(Method method) {
+        return BINDERS.get(method.getDeclaringClass()).computeIfAbsent(method,
+                m -> new ToolArgumentBinder(m, parameterNames(m, ToolMetadata.forMethod(m)), GSON));
+    }
+
+    /**
+     * @return The names of the method's parameters: from the generated metadata if there is one, otherwise
+     *         from reflection, which needs classes compiled with {@code -parameters}.
+     */
+    public static String[] parameterNames(Method method, ToolMethodMetadata metadata) {
+        if (metadata != null) {
+            return metadata.getParameterNames();
+        }
+        Parameter[] parameters = method.getParameters();
+        String[] names = new String[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            names[i] = parameters[i].getName();
+        }
+        return names;
+    }
+
+    /**
+     * Converts the model's arguments to the tool method's parameters.
+     *
+     * @param arguments The arguments from the model, by parameter name; may be null
+     * @param state The state passed to parameters of type {@link AgentState}
+     * @return The parameter values
+     * @throws IllegalArgumentException if required arguments are missing or an argument cannot be converted
+     */
+    public Object[] bind(JsonObject arguments, AgentState state) {
+        List<String> missing = null;
+        for (int i = 0; i < converters.length; i++) {
+            if (required[i] && isAbsent(arguments, parameterNames[i])) {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(parameterNames[i]);
+            }
+        }
+        if (missing != null) {
+            throw new IllegalArgumentException("Missing required parameter" + (missing.size() > 1 ? "s" : "") + " of "
+                    + methodName + ": " + String.join(", ", missing));
+        }
+
+        Object[] values = new Object[converters.length];
+        for (int i = 0; i < converters.length; i++) {
+            if (converters[i] == null) {
+                values[i] = state;
+                continue;
+            }
+            JsonElement value = (arguments != null) ? arguments.get(parameterNames[i]) : null;
+            if (value != null && !value.isJsonNull()) {
+                try {
+                    values[i] = converters[i].convert(value);
+                } catch (IllegalArgumentException e) {
+                    throw e;
+                } catch (RuntimeException e) {
+                    throw new IllegalArgumentException("Invalid value for parameter " + parameterNames[i] + ": " + e.getMessage(), e);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static boolean isAbsent(JsonObject arguments, String name) {
+        JsonElement value = (arguments != null) ? arguments.get(name) : null;
+        return value == null || value.isJsonNull();
+    }
+
+    /**
+     * @return The names of the method's parameters, in order; the caller must not modify the array.
+     */
+    public String[] getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * @return Whether the method takes the {@link AgentState}.
+     */
+    public boolean usesState() {
+        return usesState;
+    }
+
+    private static Converter converter(String name, Parameter parameter, Gson gson) {
+        Class<?> type = parameter.getType();
+        if (type == String.class) {
+            return value -> primitive(name, value, "a string").getAsString();
+        } else if (type == int.class || type == Integer.class) {
+            return value -> {
+                String string = primitive(name, value, "an integer").getAsString();
+                try {
+                    return Integer.parseInt(string);
+                } catch (NumberFormatException e) {
+                    return integral(name, value).intValueExact(); // 2.0, 2e1, " 2 "
+                }
+            };
+        } else if (type == long.class || type == Long.class) {
+            return value -> {
+                String string = primitive(name, value, "an integer").getAsString();
+                try {
+                    return Long.parseLong(string);
+                } catch (NumberFormatException e) {
+                    return integral(name, value).longValueExact();
+                }
+            };
+        } else if (type == double.class || type == Double.class) {
+            return value -> {
+                JsonPrimitive primitive = primitive(name, value, "a number");
+                return primitive.isNumber() ? primitive.getAsDouble() : number(name, value).doubleValue();
+            };
+        } else if (type == float.class || type == Float.class) {
+            return value -> {
+                JsonPrimitive primitive = primitive(name, value, "a number");
+                return primitive.isNumber() ? primitive.getAsFloat() : number(name, value).floatValue();
+            };
+        } else if (type == boolean.class || type == Boolean.class) {
+            return value -> bool(name, value);
+        } else if (type == JsonObject.class) {
+            return value -> {
+                if (!value.isJsonObject()) {
+                    throw new IllegalArgumentException("Parameter " + name + " must be an object");
+                }
+                return value.getAsJsonObject();
+            };
+        } else if (type == JsonArray.class) {
+            return value -> {
+                if (!value.isJsonArray()) {
+                    throw new IllegalArgumentException("Parameter " + name + " must be an array");
+                }
+                return value.getAsJsonArray();
+            };
+        } else if (type == JsonElement.class) {
+            return value -> value;
+        }
+        TypeAdapter<?> adapter = gson.getAdapter(TypeToken.get(parameter.getParameterizedType()));
+        return adapter::fromJsonTree;
+    }
+
+    private static JsonPrimitive primitive(String name, JsonElement value, String expected) {
+        if (!value.isJsonPrimitive()) {
+            throw new IllegalArgumentException("Parameter " + name + " must be " + expected);
+        }
+        return value.getAsJsonPrimitive();
+    }
+
+    private static BigDecimal number(String name, JsonElement value) {
+        try {
+            return new BigDecimal(primitive(name, value, "a number").getAsString().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter " + name + " must be a number");
+        }
+    }
+
+    private static BigDecimal integral(String name, JsonElement value) {
+        BigDecimal number = number(name, value);
+        if (number.stripTrailingZeros().scale() > 0) {
+            throw new IllegalArgumentException("Parameter " + name + " must be an integer");
+        }
+        return number;
+    }
+
+    private static boolean bool(String name, JsonElement value) {
+        JsonPrimitive primitive = primitive(name, value, "a boolean");
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        }
+        String string = primitive.getAsString().trim();
+        if (string.equalsIgnoreCase("true") || string.equalsIgnoreCase("false")) {
+            return Boolean.parseBoolean(string);
+        }
+        throw new IllegalArgumentException("Parameter " + name + " must be a boolean");
+    }
+}
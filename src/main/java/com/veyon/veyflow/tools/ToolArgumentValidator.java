@@ -0,0 +1,218 @@
+package com.veyon.veyflow.tools;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks the arguments of a tool call against the parameter schema declared to the model: required
+ * parameters, JSON types, allowed values and numeric ranges. The checks are compiled once per tool from
+ * its {@link Parameter}s, and every violation of a call is reported, so the model can fix them all in one
+ * retry. Arguments the schema does not declare are not checked.
+ * <p>
+ * Types are checked as leniently as {@link ToolArgumentBinder} converts them: numbers and booleans may also
+ * come as strings, such as {@code "3"} or {@code "true"}.
+ */
+public final class ToolArgumentValidator {
+
+    private static final ClassValue<Map<Method, ToolArgumentValidator>> VALIDATORS = new ClassValue<>() {
+        @Override
+        protected Map<Method, ToolArgumentValidator> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final ParameterCheck[] checks;
+
+    /**
+     * One violated constraint of one argument.
+     */
+    public static final class Violation {
+        private final String parameter;
+        private final String error;
+        private final String message;
+
+        Violation(String parameter, String error, String message) {
+            this.parameter = parameter;
+            this.error = error;
+            this.message = message;
+        }
+
+        public String getParameter() {
+            return parameter;
+        }
+
+        /**
+         * @return The violated constraint: {@code required}, {@code type}, {@code enum}, {@code minimum} or
+         *         {@code maximum}.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return parameter + " " + message;
+        }
+    }
+
+    private static final class ParameterCheck {
+        final String name;
+        final boolean required;
+        final String type; // lower case, null if not checked
+        final Set<String> enumValues;
+        final String enumList;
+        final BigDecimal minimum;
+        final BigDecimal maximum;
+
+        ParameterCheck(Parameter parameter) {
+            this.name = parameter.getName();
+            this.required = parameter.isRequired();
+            String declared = (parameter.getType() != null) ? parameter.getType().toLowerCase(Locale.ROOT) : "";
+            this.type = switch (declared) {
+                case "string", "integer", "number", "boolean", "array", "object" -> declared;
+                default -> null;
+            };
+            List<String> values = parameter.getEnumValues();
+            this.enumValues = (values != null && !values.isEmpty()) ? new HashSet<>(values) : null;
+            this.enumList = (enumValues != null) ? String.join(", ", values) : null;
+            this.minimum = (parameter.getMinimum() != null) ? BigDecimal.valueOf(parameter.getMinimum()) : null;
+            this.maximum = (parameter.getMaximum() != null) ? BigDecimal.valueOf(parameter.getMaximum()) : null;
+        }
+
+        void check(JsonObject arguments, List<Violation> violations) {
+            JsonElement value = (arguments != null) ? arguments.get(name) : null;
+            if (value == null || value.isJsonNull()) {
+                if (required) {
+                    violations.add(new Violation(name, "required", "is required"));
+                }
+                return;
+            }
+            if (type != null && !hasType(value)) {
+                violations.add(new Violation(name, "type", "must be " + (type.equals("integer") || type.equals("array")
+                        || type.equals("object") ? "an " : "a ") + type));
+                return;
+            }
+            if (enumValues != null && !(value.isJsonPrimitive() && enumValues.contains(value.getAsString()))) {
+                violations.add(new Violation(name, "enum", "must be one of " + enumList));
+            }
+            BigDecimal number = (minimum != null || maximum != null) ? number(value) : null;
+            if (number != null) {
+                if (minimum != null && number.compareTo(minimum) < 0) {
+                    violations.add(new Violation(name, "minimum", "must be >= " + minimum.stripTrailingZeros().toPlainString()));
+                }
+                if (maximum != null && number.compareTo(maximum) > 0) {
+                    violations.add(new Violation(name, "maximum", "must be <= " + maximum.stripTrailingZeros().toPlainString()));
+                }
+            }
+        }
+
+        private boolean hasType(JsonElement value) {
+            JsonPrimitive primitive = value.isJsonPrimitive() ? value.getAsJsonPrimitive() : null;
+            return switch (type) {
+                case "string" -> primitive != null && primitive.isString();
+                case "boolean" -> primitive != null && (primitive.isBoolean()
+                        || primitive.getAsString().trim().equalsIgnoreCase("true")
+                        || primitive.getAsString().trim().equalsIgnoreCase("false"));
+                case "number" -> number(value) != null;
+                case "integer" -> {
+                    BigDecimal number = number(value);
+                    yield number != null && number.stripTrailingZeros().scale() <= 0;
+                }
+                case "array" -> value.isJsonArray();
+                default -> value.isJsonObject();
+            };
+        }
+
+        /**
+         * @return The value as a number, if it is a number or a numeric string; otherwise null.
+         */
+        private static BigDecimal number(JsonElement value) {
+            if (!value.isJsonPrimitive() || value.getAsJsonPrimitive().isBoolean()) {
+                return null;
+            }
+            try {
+                return new BigDecimal(value.getAsString().trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Compiles the checks for a parameter schema.
+     *
+     * @param schema The parameters declared to the model
+     */
+    public ToolArgumentValidator(List<Parameter> schema) {
+        this.checks = new ParameterCheck[schema.size()];
+        for (int i = 0; i < checks.length; i++) {
+            checks[i] = new ParameterCheck(schema.get(i));
+        }
+    }
+
+    /**
+     * Gets the validator of a tool method, compiled on first use from {@link Parameter#schemaOf}.
+     *
+     * @param method The tool method
+     * @return The validator
+     */
+    public static ToolArgumentValidator of(Method method) {
+        return VALIDATORS.get(method.getDeclaringClass()).computeIfAbsent(method,
+                m -> new ToolArgumentValidator(Parameter.schemaOf(m)));
+    }
+
+    /**
+     * Checks the arguments of a call.
+     *
+     * @param arguments The arguments from the model; may be null
+     * @return Every violation, in schema order; empty if the arguments are valid
+     */
+    public List<Violation> validate(JsonObject arguments) {
+        List<Violation> violations = new ArrayList<>(0);
+        for (ParameterCheck check : checks) {
+            check.check(arguments, violations);
+        }
+        return violations;
+    }
+
+    /**
+     * Builds the tool result for invalid arguments:
+     * {@code {"status":"error","error":"invalid_arguments","message":...,"violations":[{"parameter":...,"error":...,"message":...}]}}.
+     *
+     * @param toolName The tool, as the model called it
+     * @param violations The violations from {@link #validate}
+     * @return The error
+     */
+    public static JsonObject toJson(String toolName, List<Violation> violations) {
+        JsonObject error = new JsonObject();
+        error.addProperty("status", "error");
+        error.addProperty("error", "invalid_arguments");
+        error.addProperty("message", "Invalid arguments for " + toolName + "; fix all violations and call it again");
+        JsonArray list = new JsonArray();
+        for (Violation violation : violations) {
+            JsonObject item = new JsonObject();
+            item.addProperty("parameter", violation.getParameter());
+            item.addProperty("error", violation.getError());
+            item.addProperty("message", violation.getMessage());
+            list.add(item);
+        }
+        error.add("violations", list);
+        return error;
+    }
+}
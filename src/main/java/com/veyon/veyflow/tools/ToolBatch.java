@@ -0,0 +1,43 @@
+package com.veyon.veyflow.tools;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method as the batch variant of a tool of the same {@link ToolService}. When a model response
+ * contains several calls to the tool, the agent invokes the batch method once with all of them and hands
+ * each call its own result. The batch method is not declared to the model.
+ * <p>
+ * The method takes a {@code List<T>} with one element per call, optionally followed by the
+ * {@code AgentState}. Each element is the call's arguments object converted to {@code T}, or, if the tool
+ * has a single argument of type {@code T}, that argument. It returns a {@code List} of results, or a
+ * {@link java.util.concurrent.CompletionStage} of one, in the order of the elements; an element that is a
+ * {@link Throwable} fails only its call.
+ * <pre>
+ * &#64;ToolAnnotation("Get the current weather for a location")
+ * public JsonObject getWeather(&#64;ToolParameter("The location") String location) { ... }
+ *
+ * &#64;ToolBatch("getWeather")
+ * public List&lt;JsonObject&gt; getWeatherBatch(List&lt;String&gt; locations) { ... }
+ * </pre>
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ToolBatch {
+    /**
+     * The name of the tool method this method batches.
+     */
+    String value();
+
+    /**
+     * Maximum number of calls per invocation; larger groups are split. Default is 0, no limit.
+     */
+    int maxBatchSize() default 0;
+
+    /**
+     * Timeout of one invocation in milliseconds. Default is 0, the tool's timeout.
+     */
+    long timeoutMillis() default 0;
+}
@@ -0,0 +1,134 @@
+package com.veyon.veyflow.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.veyon.veyflow.state.AgentState;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A {@link ToolBatch} method bound to its service, prepared like a {@link ToolInvoker}. Reached through
+ * {@link ToolInvoker#getBatchInvoker()} of the tool it batches; created by {@link ToolDispatchTable}.
+ */
+public final class ToolBatchInvoker {
+
+    private final String methodName;
+    private final int maxBatchSize;
+    private final long timeoutMillis;
+    private final boolean usesState;
+    private final boolean async;
+    private final MethodHandle handle;
+    private final TypeAdapter<?> elementAdapter;
+    private final String argumentName; // the tool's single argument bound per element, or null for the whole object
+
+    ToolBatchInvoker(ToolService service, Method method, Method toolMethod, Gson gson) throws IllegalAccessException {
+        String name = service.getClass().getName() + "." + method.getName();
+        ToolBatch annotation = method.getAnnotation(ToolBatch.class);
+        this.methodName = method.getName();
+        this.maxBatchSize = annotation.maxBatchSize();
+        this.timeoutMillis = annotation.timeoutMillis();
+
+        Parameter[] parameters = method.getParameters();
+        boolean listFirst = parameters.length >= 1 && parameters[0].getType() == List.class;
+        boolean stateSecond = parameters.length == 2 && parameters[1].getType() == AgentState.class;
+        if (!listFirst || (parameters.length == 2 && !stateSecond) || parameters.length > 2) {
+            throw new IllegalArgumentException("Batch method " + name + " must take a List, optionally followed by the AgentState");
+        }
+        if (!List.class.isAssignableFrom(method.getReturnType()) && !CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+            throw new IllegalArgumentException("Batch method " + name + " must return a List or a CompletionStage of one");
+        }
+        this.usesState = stateSecond;
+        this.async = CompletionStage.class.isAssignableFrom(method.getReturnType());
+
+        Type listType = parameters[0].getParameterizedType();
+        Type elementType = (listType instanceof ParameterizedType parameterized)
+                ? parameterized.getActualTypeArguments()[0] : JsonObject.class;
+        this.elementAdapter = gson.getAdapter(TypeToken.get(elementType));
+
+        Parameter[] toolParameters = toolMethod.getParameters();
+        String[] toolParameterNames = ToolArgumentBinder.parameterNames(toolMethod, ToolMetadata.forMethod(toolMethod));
+        int single = -1;
+        int arguments = 0;
+        for (int i = 0; i < toolParameters.length; i++) {
+            if (toolParameters[i].getType() != AgentState.class) {
+                single = i;
+                arguments++;
+            }
+        }
+        this.argumentName = (arguments == 1 && toolParameters[single].getParameterizedType().equals(elementType))
+                ? toolParameterNames[single] : null;
+
+        method.trySetAccessible();
+        this.handle = MethodHandles.lookup().unreflect(method)
+                .bindTo(service)
+                .asSpreader(Object[].class, parameters.length)
+                .asType(MethodType.methodType(Object.class, Object[].class));
+    }
+
+    /**
+     * Converts the model's arguments of one call to a batch element.
+     *
+     * @param arguments The arguments of the call; may be null
+     * @return The element
+     * @throws IllegalArgumentException if the arguments cannot be converted
+     */
+    public Object bindElement(JsonObject arguments) {
+        JsonElement value = (argumentName != null)
+                ? ((arguments != null) ? arguments.get(argumentName) : null)
+                : ((arguments != null) ? arguments : new JsonObject());
+        try {
+            return (value != null && !value.isJsonNull()) ? elementAdapter.fromJsonTree(value) : null;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid arguments for " + methodName + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Invokes the batch method.
+     *
+     * @param elements The elements from {@link #bindElement}, one per call
+     * @param state The state passed if the method takes it
+     * @return What the method returned: the results, or a stage of them if {@link #isAsync()}
+     * @throws Throwable Whatever the method throws, unwrapped
+     */
+    public Object invoke(List<Object> elements, AgentState state) throws Throwable {
+        Object[] values = usesState ? new Object[] {elements, state} : new Object[] {elements};
+        return (Object) handle.invokeExact(values);
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * @return Maximum number of calls per invocation, or 0 for no limit.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return Timeout of one invocation in milliseconds, or 0 for the tool's timeout.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return Whether the method returns a {@link CompletionStage} instead of the results.
+     */
+    public boolean isAsync() {
+        return async;
+    }
+}
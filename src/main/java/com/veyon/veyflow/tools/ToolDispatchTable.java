@@ -0,0 +1,119 @@
+package com.veyon.veyflow.tools;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps tool names, as the model returns them, to prepared {@link ToolInvoker}s, so dispatching a tool
+ * call is one hash lookup. Built once from the registered services.
+ * <p>
+ * Every public method annotated with {@link ToolAnnotation} is registered under
+ * {@code SimpleClassName.method}, the name it is declared to the model with, and under
+ * {@code SimpleClassName_method} for providers that do not allow dots in function names, plus both
+ * forms with the fully qualified class name. If two services share a simple class name, the first one
+ * registered keeps the short names.
+ * <p>
+ * Methods annotated with {@link ToolBatch} are attached to the invoker of the tool they batch.
+ */
+public final class ToolDispatchTable {
+
+    private static final Logger log = LoggerFactory.getLogger(ToolDispatchTable.class);
+
+    private final Map<String, ToolInvoker> invokers;
+
+    private ToolDispatchTable(Map<String, ToolInvoker> invokers) {
+        this.invokers = invokers;
+    }
+
+    /**
+     * Builds the table for the given services.
+     *
+     * @param services The registered tool services
+     * @param gson Converts JSON arguments to parameter types
+     * @return The dispatch table
+     * @throws IllegalArgumentException if a tool or batch method cannot be made invocable, or a batch method
+     *         does not match a tool of its service
+     */
+    public static ToolDispatchTable build(Collection<? extends ToolService> services, Gson gson) {
+        Map<String, ToolInvoker> invokers = new HashMap<>();
+        for (ToolService service : services) {
+            Class<?> serviceClass = service.getClass();
+            Map<String, ToolInvoker> serviceInvokers = new HashMap<>();
+            Map<String, Method> toolMethods = new HashMap<>();
+            for (Method method : serviceClass.getMethods()) {
+                if (method.isBridge() || !method.isAnnotationPresent(ToolAnnotation.class)) {
+                    continue;
+                }
+                ToolInvoker invoker;
+                try {
+                    invoker = new ToolInvoker(service, method, gson);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException("Tool method " + serviceClass.getName() + "." + method.getName()
+                            + " is not accessible", e);
+                }
+                serviceInvokers.putIfAbsent(method.getName(), invoker);
+                toolMethods.putIfAbsent(method.getName(), method);
+                for (String className : new String[] {serviceClass.getSimpleName(), serviceClass.getName()}) {
+                    for (char separator : new char[] {'.', '_'}) {
+                        String toolName = className + separator + method.getName();
+                        ToolInvoker existing = invokers.putIfAbsent(toolName, invoker);
+                        if (existing != null && existing != invoker) {
+                            log.warn("Tool name '{}' of {} is already taken by {}; calls go to the latter.",
+                                    toolName, serviceClass.getName(), existing.getServiceClassName());
+                        }
+                    }
+                }
+            }
+            attachBatchInvokers(service, serviceInvokers, toolMethods, gson);
+        }
+        return new ToolDispatchTable(invokers);
+    }
+
+    private static void attachBatchInvokers(ToolService service, Map<String, ToolInvoker> serviceInvokers,
+                                            Map<String, Method> toolMethods, Gson gson) {
+        Class<?> serviceClass = service.getClass();
+        for (Method method : serviceClass.getMethods()) {
+            if (method.isBridge() || !method.isAnnotationPresent(ToolBatch.class)) {
+                continue;
+            }
+            String toolName = method.getAnnotation(ToolBatch.class).value();
+            ToolInvoker invoker = serviceInvokers.get(toolName);
+            if (invoker == null) {
+                throw new IllegalArgumentException("Batch method " + serviceClass.getName() + "." + method.getName()
+                        + " refers to unknown tool " + toolName);
+            }
+            if (invoker.getBatchInvoker() != null) {
+                throw new IllegalArgumentException("Tool " + serviceClass.getName() + "." + toolName
+                        + " has more than one batch method");
+            }
+            try {
+                invoker.setBatchInvoker(new ToolBatchInvoker(service, method, toolMethods.get(toolName), gson));
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Batch method " + serviceClass.getName() + "." + method.getName()
+                        + " is not accessible", e);
+            }
+        }
+    }
+
+    /**
+     * @param toolName The tool name from the model's tool call
+     * @return The invoker, or null if no tool has this name
+     */
+    public ToolInvoker get(String toolName) {
+        return (toolName != null) ? invokers.get(toolName) : null;
+    }
+
+    /**
+     * @return All registered tool names with their invokers.
+     */
+    public Map<String, ToolInvoker> getInvokers() {
+        return Collections.unmodifiableMap(invokers);
+    }
+}
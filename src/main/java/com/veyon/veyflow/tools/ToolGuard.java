@@ -0,0 +1,567 @@
+package com.veyon.veyflow.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects the agent from one {@link ToolService}: a bulkhead bounds the calls running and waiting,
+ * every call has a deadline, and a circuit breaker stops calling the service after repeated failures.
+ * <p>
+ * Calls never block the caller. A synchronous tool runs on an executor; an asynchronous tool, one
+ * returning a {@link CompletionStage}, is started on the thread that admits it and completes whenever
+ * its stage does. A call that waits for a free slot is queued and started when a running call of the
+ * service completes. At the deadline the result fails with a timeout: a queued call is dropped, a
+ * synchronous tool is interrupted and an asynchronous tool's future is cancelled. A synchronous call
+ * keeps its bulkhead slot until it actually returns, so a hung downstream ties up at most
+ * {@code maxConcurrentCalls} threads.
+ * <p>
+ * After {@code failureThreshold} consecutive failures or timeouts the circuit opens and calls fail
+ * immediately for {@code openDuration}; then up to {@code halfOpenProbes} calls are let through, and the
+ * circuit closes on the first success or opens again on a failure. {@link IllegalArgumentException}s
+ * thrown by a tool are taken as rejected input: they count neither as failures nor as successes, so
+ * they neither open nor close the circuit.
+ * <p>
+ * Calls that are not run or not waited for fail with {@link ToolUnavailableException}.
+ */
+public class ToolGuard {
+
+    private static final Logger log = LoggerFactory.getLogger(ToolGuard.class);
+    private static final ScheduledExecutorService DEADLINES = deadlineTimer();
+
+    /**
+     * State of the circuit breaker.
+     */
+    public enum CircuitState {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String serviceClassName;
+    private final Settings settings;
+    private final Semaphore slots;
+    private final Queue<GuardedCall> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // Circuit breaker, guarded by this
+    private CircuitState state = CircuitState.CLOSED;
+    private int consecutiveFailures;
+    private long openUntil;
+    private int probesInFlight;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong openings = new AtomicLong();
+
+    /**
+     * Creates a guard.
+     *
+     * @param serviceClassName The guarded service, for errors and logs
+     * @param settings The limits
+     */
+    public ToolGuard(String serviceClassName, Settings settings) {
+        if (settings == null) {
+            throw new IllegalArgumentException("settings must not be null");
+        }
+        this.serviceClassName = serviceClassName;
+        this.settings = settings;
+        this.slots = new Semaphore(settings.maxConcurrentCalls);
+    }
+
+    private static ScheduledExecutorService deadlineTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "veyflow-tool-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * Runs a call to the guarded service.
+     *
+     * @param task The call; for asynchronous tools it returns the tool's {@link CompletionStage}
+     * @param async Whether {@code task} returns a stage to wait for instead of the result
+     * @param timeoutMillis Deadline of the call, including the wait for a slot; 0 for the service default
+     * @param executor Runs synchronous calls
+     * @return The result of the call. Fails with {@link ToolUnavailableException} if the circuit is open,
+     *         the bulkhead is full or the deadline passed, or with whatever the call threw.
+     */
+    public CompletableFuture<Object> call(Callable<Object> task, boolean async, long timeoutMillis, Executor executor) {
+        long timeoutNanos = (timeoutMillis > 0) ? TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : settings.timeout.toNanos();
+        boolean probe;
+        try {
+            probe = admit();
+        } catch (ToolUnavailableException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        GuardedCall call = new GuardedCall(task, async, executor, probe, timeoutNanos);
+        call.deadline = DEADLINES.schedule(call::expire, timeoutNanos, TimeUnit.NANOSECONDS);
+        if (slots.tryAcquire()) {
+            call.start();
+        } else if (queued.incrementAndGet() > settings.maxQueuedCalls) {
+            queued.decrementAndGet();
+            call.reject(unavailable(ToolUnavailableException.Reason.BULKHEAD_FULL, 0,
+                    "Too many calls in progress (" + settings.maxConcurrentCalls + " running, " + settings.maxQueuedCalls + " waiting)"));
+        } else {
+            waiting.add(call);
+            startWaiting(); // a slot may have been released before the call was queued
+        }
+        return call.result;
+    }
+
+    /**
+     * Starts queued calls while slots are free.
+     */
+    private void startWaiting() {
+        while (!waiting.isEmpty() && slots.tryAcquire()) {
+            GuardedCall next = waiting.poll();
+            if (next == null) {
+                slots.release();
+                return;
+            }
+            queued.decrementAndGet();
+            next.start();
+        }
+    }
+
+    private void releaseSlot() {
+        slots.release();
+        startWaiting();
+    }
+
+    /**
+     * One call from admission to completion. Its phase moves from QUEUED to RUNNING when it gets a slot,
+     * and to DONE when it is rejected, expires or completes; whichever moves it to DONE settles the result.
+     */
+    private final class GuardedCall implements Runnable {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+
+        final Callable<Object> task;
+        final boolean async;
+        final Executor executor;
+        final boolean probe;
+        final long timeoutNanos;
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        final AtomicInteger phase = new AtomicInteger(QUEUED);
+        volatile ScheduledFuture<?> deadline;
+        volatile CompletableFuture<?> stage; // of an asynchronous tool
+        private Thread runner; // of a synchronous tool, guarded by this
+
+        GuardedCall(Callable<Object> task, boolean async, Executor executor, boolean probe, long timeoutNanos) {
+            this.task = task;
+            this.async = async;
+            this.executor = executor;
+            this.probe = probe;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        /**
+         * Starts the call, holding a slot.
+         */
+        void start() {
+            if (!phase.compareAndSet(QUEUED, RUNNING)) {
+                releaseSlot(); // expired while queued
+                return;
+            }
+            calls.incrementAndGet();
+            if (!async) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    rejections.incrementAndGet();
+                    finish(null, unavailable(ToolUnavailableException.Reason.BULKHEAD_FULL, 0, "Executor rejected the call"), false);
+                    releaseSlot();
+                }
+                return;
+            }
+            CompletableFuture<?> started;
+            try {
+                Object returned = task.call();
+                if (returned == null) {
+                    throw new IllegalStateException("Asynchronous tool returned no CompletionStage");
+                }
+                started = ((CompletionStage<?>) returned).toCompletableFuture();
+            } catch (Throwable t) {
+                started = CompletableFuture.failedFuture(t);
+            }
+            stage = started;
+            if (phase.get() == DONE) {
+                started.cancel(true); // expired while the tool was starting
+            }
+            started.whenComplete((value, error) -> {
+                finish(value, unwrap(error), true);
+                releaseSlot();
+            });
+        }
+
+        /**
+         * Runs a synchronous tool on the executor.
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            Object value = null;
+            Throwable error = null;
+            try {
+                value = task.call();
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+                Thread.interrupted(); // an interrupt for an expired call must not hit the next task of this thread
+            }
+            finish(value, error, true);
+            releaseSlot();
+        }
+
+        void reject(ToolUnavailableException e) {
+            if (!phase.compareAndSet(QUEUED, DONE)) {
+                return;
+            }
+            rejections.incrementAndGet();
+            release(probe);
+            deadline.cancel(false);
+            result.completeExceptionally(e);
+        }
+
+        /**
+         * Completes the result, unless the call expired.
+         */
+        void finish(Object value, Throwable error, boolean ran) {
+            deadline.cancel(false);
+            if (!phase.compareAndSet(RUNNING, DONE)) {
+                return;
+            }
+            if (error == null) {
+                recordSuccess(probe);
+                result.complete(value);
+            } else {
+                if (error instanceof IllegalArgumentException) {
+                    release(probe); // rejected input says nothing about the service
+                } else if (ran) {
+                    failures.incrementAndGet();
+                    recordFailure(probe);
+                } else {
+                    release(probe);
+                }
+                result.completeExceptionally(error);
+            }
+        }
+
+        /**
+         * Fails the call at its deadline: drops it if queued, interrupts or cancels it if running.
+         */
+        void expire() {
+            if (phase.compareAndSet(QUEUED, DONE)) {
+                if (waiting.remove(this)) {
+                    queued.decrementAndGet();
+                }
+                rejections.incrementAndGet();
+                release(probe);
+                result.completeExceptionally(unavailable(ToolUnavailableException.Reason.TIMEOUT, 0,
+                        "Tool call timed out waiting for a free slot"));
+                return;
+            }
+            if (!phase.compareAndSet(RUNNING, DONE)) {
+                return;
+            }
+            timeouts.incrementAndGet();
+            recordFailure(probe);
+            result.completeExceptionally(unavailable(ToolUnavailableException.Reason.TIMEOUT, 0,
+                    "Tool call timed out after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"));
+            CompletableFuture<?> running = stage;
+            if (running != null) {
+                running.cancel(true);
+            }
+            synchronized (this) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error;
+    }
+
+    /**
+     * Checks the circuit.
+     *
+     * @return true if the call is a half-open probe
+     */
+    private synchronized boolean admit() {
+        long now = System.nanoTime();
+        if (state == CircuitState.OPEN) {
+            if (now - openUntil < 0) {
+                rejections.incrementAndGet();
+                throw unavailable(ToolUnavailableException.Reason.CIRCUIT_OPEN,
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(openUntil - now)), "Service is unavailable after repeated failures");
+            }
+            state = CircuitState.HALF_OPEN;
+            probesInFlight = 0;
+            log.info("Circuit of {} is half-open, probing", serviceClassName);
+        }
+        if (state == CircuitState.HALF_OPEN) {
+            if (probesInFlight >= settings.halfOpenProbes) {
+                rejections.incrementAndGet();
+                throw unavailable(ToolUnavailableException.Reason.CIRCUIT_OPEN, 0, "Service is being probed after repeated failures");
+            }
+            probesInFlight++;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void release(boolean probe) {
+        if (probe) {
+            probesInFlight--;
+        }
+    }
+
+    private synchronized void recordSuccess(boolean probe) {
+        release(probe);
+        consecutiveFailures = 0;
+        if (state == CircuitState.HALF_OPEN) {
+            state = CircuitState.CLOSED;
+            log.info("Circuit of {} closed", serviceClassName);
+        }
+    }
+
+    private synchronized void recordFailure(boolean probe) {
+        release(probe);
+        consecutiveFailures++;
+        if (state == CircuitState.HALF_OPEN || (state == CircuitState.CLOSED && consecutiveFailures >= settings.failureThreshold)) {
+            state = CircuitState.OPEN;
+            openUntil = System.nanoTime() + settings.openDuration.toNanos();
+            openings.incrementAndGet();
+            log.warn("Circuit of {} opened after {} consecutive failures, for {} ms",
+                    serviceClassName, consecutiveFailures, settings.openDuration.toMillis());
+        }
+    }
+
+    private ToolUnavailableException unavailable(ToolUnavailableException.Reason reason, long retryAfterMillis, String message) {
+        return new ToolUnavailableException(serviceClassName, reason, retryAfterMillis, message);
+    }
+
+    public synchronized CircuitState getCircuitState() {
+        return state;
+    }
+
+    public Settings getSettings() {
+        return settings;
+    }
+
+    /**
+     * @return Calls holding a slot, including timed out synchronous ones that have not returned yet.
+     */
+    public int getActiveCalls() {
+        return settings.maxConcurrentCalls - slots.availablePermits();
+    }
+
+    public int getQueuedCalls() {
+        return queued.get();
+    }
+
+    /**
+     * @return Calls that were started.
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return Calls that started but did not complete in time.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return Calls rejected by the circuit breaker or the bulkhead, including calls that timed out waiting
+     *         for a slot.
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public long getOpenings() {
+        return openings.get();
+    }
+
+    /**
+     * Limits enforced by a {@link ToolGuard}.
+     */
+    public static final class Settings {
+        private final int maxConcurrentCalls;
+        private final int maxQueuedCalls;
+        private final Duration timeout;
+        private final int failureThreshold;
+        private final Duration openDuration;
+        private final int halfOpenProbes;
+
+        private Settings(Builder builder) {
+            this.maxConcurrentCalls = builder.maxConcurrentCalls;
+            this.maxQueuedCalls = builder.maxQueuedCalls;
+            this.timeout = builder.timeout;
+            this.failureThreshold = builder.failureThreshold;
+            this.openDuration = builder.openDuration;
+            this.halfOpenProbes = builder.halfOpenProbes;
+        }
+
+        /**
+         * @return The defaults of {@link ToolLimits}.
+         */
+        public static Settings defaults() {
+            return builder().build();
+        }
+
+        /**
+         * @param limits The limits declared on a service
+         * @return Settings with the declared limits
+         */
+        public static Settings from(ToolLimits limits) {
+            return builder()
+                    .maxConcurrentCalls(limits.maxConcurrentCalls())
+                    .maxQueuedCalls(limits.maxQueuedCalls())
+                    .timeout(Duration.ofMillis(limits.timeoutMillis()))
+                    .failureThreshold(limits.failureThreshold())
+                    .openDuration(Duration.ofMillis(limits.openMillis()))
+                    .halfOpenProbes(limits.halfOpenProbes())
+                    .build();
+        }
+
+        /**
+         * @param serviceClass A service class
+         * @return The limits declared on the class, or the defaults
+         */
+        public static Settings of(Class<?> serviceClass) {
+            ToolLimits limits = serviceClass.getAnnotation(ToolLimits.class);
+            return (limits != null) ? from(limits) : defaults();
+        }
+
+        public static Builder builder() {
+            return new Builder();
+        }
+
+        public int getMaxConcurrentCalls() {
+            return maxConcurrentCalls;
+        }
+
+        public int getMaxQueuedCalls() {
+            return maxQueuedCalls;
+        }
+
+        public Duration getTimeout() {
+            return timeout;
+        }
+
+        public int getFailureThreshold() {
+            return failureThreshold;
+        }
+
+        public Duration getOpenDuration() {
+            return openDuration;
+        }
+
+        public int getHalfOpenProbes() {
+            return halfOpenProbes;
+        }
+
+        /**
+         * Builder for {@link Settings}, starting from the defaults of {@link ToolLimits}.
+         */
+        public static final class Builder {
+            private int maxConcurrentCalls = 32;
+            private int maxQueuedCalls = 64;
+            private Duration timeout = Duration.ofSeconds(30);
+            private int failureThreshold = 5;
+            private Duration openDuration = Duration.ofSeconds(30);
+            private int halfOpenProbes = 1;
+
+            private Builder() {
+            }
+
+            public Builder maxConcurrentCalls(int maxConcurrentCalls) {
+                if (maxConcurrentCalls < 1) {
+                    throw new IllegalArgumentException("maxConcurrentCalls must be at least 1");
+                }
+                this.maxConcurrentCalls = maxConcurrentCalls;
+                return this;
+            }
+
+            public Builder maxQueuedCalls(int maxQueuedCalls) {
+                if (maxQueuedCalls < 0) {
+                    throw new IllegalArgumentException("maxQueuedCalls must not be negative");
+                }
+                this.maxQueuedCalls = maxQueuedCalls;
+                return this;
+            }
+
+            public Builder timeout(Duration timeout) {
+                if (timeout == null || timeout.isNegative() || timeout.isZero()) {
+                    throw new IllegalArgumentException("timeout must be positive");
+                }
+                this.timeout = timeout;
+                return this;
+            }
+
+            public Builder failureThreshold(int failureThreshold) {
+                if (failureThreshold < 1) {
+                    throw new IllegalArgumentException("failureThreshold must be at least 1");
+                }
+                this.failureThreshold = failureThreshold;
+                return this;
+            }
+
+            public Builder openDuration(Duration openDuration) {
+                if (openDuration == null || openDuration.isNegative() || openDuration.isZero()) {
+                    throw new IllegalArgumentException("openDuration must be positive");
+                }
+                this.openDuration = openDuration;
+                return this;
+            }
+
+            public Builder halfOpenProbes(int halfOpenProbes) {
+                if (halfOpenProbes < 1) {
+                    throw new IllegalArgumentException("halfOpenProbes must be at least 1");
+                }
+                this.halfOpenProbes = halfOpenProbes;
+                return this;
+            }
+
+            public Settings build() {
+                return new Settings(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.veyon.veyflow.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.veyon.veyflow.state.AgentState;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A tool method of one {@link ToolService} instance, prepared for repeated calls: the method is bound
+ * to the service as a {@link MethodHandle} and a {@link ToolArgumentBinder} produces its arguments from
+ * the call's JSON arguments. Created by {@link ToolDispatchTable}.
+ * <p>
+ * If the service class has generated {@link ToolMetadata}, parameter names are taken from it and the tool
+ * is called through its typed invoker instead of the method handle.
+ * <p>
+ * A tool is asynchronous if it returns a {@link CompletionStage}, such as a
+ * {@link java.util.concurrent.CompletableFuture}; its result is the value the stage completes with.
+ */
+public final class ToolInvoker {
+
+    private static final Gson GSON = new Gson();
+
+    private final String serviceClassName;
+    private final String methodName;
+    private final boolean parallel;
+    private final boolean usesState;
+    private final boolean async;
+    private final ToolService service;
+    private final MethodHandle handle; // null if the tool has a generated invoker
+    private final ToolMethodMetadata.Invoker directInvoker;
+    private final ToolArgumentBinder argumentBinder;
+    private final ToolArgumentValidator argumentValidator;
+    private final long cacheTtlNanos;
+    private final ToolAnnotation.CacheScope cacheScope;
+    private final String[] cacheKeyArguments; // sorted
+    private final boolean cacheKeyIgnoreCase;
+    private final long timeoutMillis;
+    private volatile ToolBatchInvoker batchInvoker;
+
+    ToolInvoker(ToolService service, Method method, Gson gson) throws IllegalAccessException {
+        this.service = service;
+        this.serviceClassName = service.getClass().getName();
+        this.methodName = method.getName();
+        ToolAnnotation annotation = method.getAnnotation(ToolAnnotation.class);
+        ToolMethodMetadata metadata = ToolMetadata.forMethod(method);
+
+        Parameter[] parameters = method.getParameters();
+        String[] parameterNames = ToolArgumentBinder.parameterNames(method, metadata);
+        this.argumentBinder = new ToolArgumentBinder(method, parameterNames, gson);
+        this.argumentValidator = ToolArgumentValidator.of(method);
+        this.usesState = argumentBinder.usesState();
+        this.parallel = annotation != null && annotation.parallel() && !usesState;
+        this.async = CompletionStage.class.isAssignableFrom(method.getReturnType());
+
+        this.timeoutMillis = (annotation != null) ? annotation.timeoutMillis() : 0;
+        this.cacheTtlNanos = (annotation != null) ? TimeUnit.SECONDS.toNanos(annotation.cacheTtlSeconds()) : 0;
+        this.cacheScope = (annotation != null) ? annotation.cacheScope() : ToolAnnotation.CacheScope.TENANT;
+        this.cacheKeyIgnoreCase = annotation != null && annotation.cacheKeyIgnoreCase();
+        Set<String> argumentNames = new TreeSet<>();
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].getType() != AgentState.class) {
+                argumentNames.add(parameterNames[i]);
+            }
+        }
+        if (annotation != null && annotation.cacheKeyArguments().length > 0) {
+            Set<String> keyArguments = new TreeSet<>(Arrays.asList(annotation.cacheKeyArguments()));
+            if (!argumentNames.containsAll(keyArguments)) {
+                throw new IllegalArgumentException("cacheKeyArguments " + keyArguments + " of tool " + serviceClassName + "."
+                        + methodName + " must be among its arguments " + argumentNames);
+            }
+            argumentNames = keyArguments;
+        }
+        this.cacheKeyArguments = argumentNames.toArray(new String[0]);
+
+        this.directInvoker = (metadata != null) ? metadata.getInvoker() : null;
+        if (directInvoker != null) {
+            this.handle = null;
+        } else {
+            method.trySetAccessible(); // services are often package-private classes
+            this.handle = MethodHandles.lookup().unreflect(method)
+                    .bindTo(service)
+                    .asSpreader(Object[].class, parameters.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        }
+    }
+
+    /**
+     * Invokes the tool.
+     *
+     * @param arguments The arguments from the model, by parameter name; may be null
+     * @param state The state passed to parameters of type {@link AgentState}
+     * @return What the tool returned
+     * @throws IllegalArgumentException if an argument is missing or cannot be converted
+     * @throws Throwable Whatever the tool throws, unwrapped
+     */
+    public Object invoke(JsonObject arguments, AgentState state) throws Throwable {
+        return invokeBound(bindArguments(arguments, state));
+    }
+
+    /**
+     * Checks the model's arguments against the parameter schema declared to it.
+     *
+     * @param arguments The arguments from the model; may be null
+     * @return Every violation; empty if the arguments are valid
+     */
+    public List<ToolArgumentValidator.Violation> validateArguments(JsonObject arguments) {
+        return argumentValidator.validate(arguments);
+    }
+
+    /**
+     * Converts the model's arguments to the tool method's parameters.
+     *
+     * @param arguments The arguments from the model, by parameter name; may be null
+     * @param state The state passed to parameters of type {@link AgentState}
+     * @return The parameter values
+     * @throws IllegalArgumentException if required arguments are missing or an argument cannot be converted
+     */
+    public Object[] bindArguments(JsonObject arguments, AgentState state) {
+        return argumentBinder.bind(arguments, state);
+    }
+
+    /**
+     * Invokes the tool with parameter values from {@link #bindArguments}.
+     *
+     * @param values The parameter values
+     * @return What the tool returned
+     * @throws Throwable Whatever the tool throws, unwrapped
+     */
+    public Object invokeBound(Object[] values) throws Throwable {
+        if (directInvoker != null) {
+            return directInvoker.invoke(service, values);
+        }
+        return (Object) handle.invokeExact(values);
+    }
+
+    /**
+     * Builds the key of this call in a {@link ToolResultCache}: the tool, the scope and the normalised key
+     * arguments. JSON objects are compared regardless of member order and numbers regardless of notation,
+     * so {@code 1}, {@code 1.0} and {@code 1e0} are equal, and a missing argument equals {@code null}.
+     * The tenant and thread IDs are length-prefixed, and string arguments are JSON-quoted, so no value can
+     * be mistaken for a separator.
+     *
+     * @param arguments The arguments from the model; may be null
+     * @param state The state of the conversation, for tenant and thread scopes
+     * @return The cache key, or null if the tool's results are not cached
+     */
+    public String cacheKey(JsonObject arguments, AgentState state) {
+        if (cacheTtlNanos <= 0) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(serviceClassName).append('#').append(methodName).append('|');
+        switch (cacheScope) {
+            case THREAD -> appendField(appendField(key, state.getTenantId()), state.getThreadId());
+            case TENANT -> appendField(key, state.getTenantId());
+            case GLOBAL -> { }
+        }
+        key.append('|');
+        for (String name : cacheKeyArguments) {
+            key.append(name).append('=');
+            appendNormalized(key, (arguments != null) ? arguments.get(name) : null);
+            key.append(';');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Appends an ID as {@code <length>:<id>}, so no tenant or thread ID, whatever it contains, can make
+     * the key of another tenant and thread.
+     */
+    private static StringBuilder appendField(StringBuilder key, String id) {
+        return (id == null) ? key.append("-1:") : key.append(id.length()).append(':').append(id);
+    }
+
+    private void appendNormalized(StringBuilder key, JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            key.append("null");
+        } else if (value.isJsonObject()) {
+            key.append('{');
+            for (String member : new TreeSet<>(value.getAsJsonObject().keySet())) {
+                key.append(GSON.toJson(member)).append(':');
+                appendNormalized(key, value.getAsJsonObject().get(member));
+                key.append(',');
+            }
+            key.append('}');
+        } else if (value.isJsonArray()) {
+            key.append('[');
+            for (JsonElement element : value.getAsJsonArray()) {
+                appendNormalized(key, element);
+                key.append(',');
+            }
+            key.append(']');
+        } else {
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            if (primitive.isNumber()) {
+                key.append(new BigDecimal(primitive.getAsString()).stripTrailingZeros().toString());
+            } else if (primitive.isString()) {
+                String string = cacheKeyIgnoreCase ? primitive.getAsString().trim().toLowerCase(Locale.ROOT) : primitive.getAsString();
+                key.append(GSON.toJson(string));
+            } else {
+                key.append(primitive.getAsBoolean());
+            }
+        }
+    }
+
+    /**
+     * @return How long results are cached, in nanoseconds; 0 if they are not.
+     */
+    public long getCacheTtlNanos() {
+        return cacheTtlNanos;
+    }
+
+    /**
+     * @return The tool's own timeout in milliseconds, or 0 for its service's timeout.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return The {@link ToolBatch} variant of this tool, or null if it has none.
+     */
+    public ToolBatchInvoker getBatchInvoker() {
+        return batchInvoker;
+    }
+
+    void setBatchInvoker(ToolBatchInvoker batchInvoker) {
+        this.batchInvoker = batchInvoker;
+    }
+
+    public String getServiceClassName() {
+        return serviceClassName;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    /**
+     * @return Whether calls may run concurrently with other tool calls: the tool allows it and does not
+     *         take the {@link AgentState}.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @return Whether the tool returns a {@link CompletionStage} instead of its result.
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * @return Whether the tool takes the {@link AgentState}.
+     */
+    public boolean usesState() {
+        return usesState;
+    }
+}
@@ -0,0 +1,49 @@
+package com.veyon.veyflow.tools;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Limits for the calls to one {@link ToolService}, enforced by a {@link ToolGuard}. Services without
+ * this annotation get {@link ToolGuard.Settings#defaults()}; settings passed to the agent take
+ * precedence over both.
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ToolLimits {
+    /**
+     * Maximum number of calls to the service running at once. Calls that timed out count until they
+     * actually return. Default is 32.
+     */
+    int maxConcurrentCalls() default 32;
+
+    /**
+     * Maximum number of calls waiting for one of the {@link #maxConcurrentCalls()} slots; further calls
+     * are rejected immediately. Default is 64.
+     */
+    int maxQueuedCalls() default 64;
+
+    /**
+     * Default timeout of the service's tools in milliseconds, including the wait for a slot.
+     * {@link ToolAnnotation#timeoutMillis()} overrides it per tool. Default is 30000.
+     */
+    long timeoutMillis() default 30_000;
+
+    /**
+     * Number of consecutive failed or timed out calls that opens the circuit. Default is 5.
+     */
+    int failureThreshold() default 5;
+
+    /**
+     * How long an open circuit rejects calls before letting probe calls through, in milliseconds.
+     * Default is 30000.
+     */
+    long openMillis() default 30_000;
+
+    /**
+     * Number of probe calls let through at once while half-open. Default is 1.
+     */
+    int halfOpenProbes() default 1;
+}
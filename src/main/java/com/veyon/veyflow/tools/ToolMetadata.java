@@ -0,0 +1,107 @@
+package com.veyon.veyflow.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The tools of one {@link ToolService} class as seen at compile time, generated by
+ * {@link com.veyon.veyflow.tools.processor.ToolServiceProcessor} into the service's package as
+ * {@code VeyflowTools_<Service>}, where nested class names are joined with {@code _}. Covers the tool methods
+ * declared by the class itself, in source order.
+ * <p>
+ * When a service has generated metadata, its tool declarations and parameter names come from it, so they
+ * do not depend on compiling with {@code -parameters}, and its tools are called directly instead of through
+ * reflection. Services compiled without the processor work as before.
+ */
+public abstract class ToolMetadata {
+
+    /**
+     * Prefix of the simple name of generated classes.
+     */
+    public static final String CLASS_PREFIX = "VeyflowTools_";
+
+    private static final Logger log = LoggerFactory.getLogger(ToolMetadata.class);
+
+    private static final ClassValue<Optional<ToolMetadata>> GENERATED = new ClassValue<>() {
+        @Override
+        protected Optional<ToolMetadata> computeValue(Class<?> serviceClass) {
+            return Optional.ofNullable(load(serviceClass));
+        }
+    };
+
+    /**
+     * @return The tool methods declared by the service class, in source order.
+     */
+    public abstract List<ToolMethodMetadata> getToolMethods();
+
+    /**
+     * Finds the metadata of a method.
+     *
+     * @param method A method of the service class
+     * @return Its metadata, or null if it is not a tool method of this class
+     */
+    public ToolMethodMetadata getToolMethod(Method method) {
+        for (ToolMethodMetadata toolMethod : getToolMethods()) {
+            if (toolMethod.matches(method.getName(), method.getParameterTypes())) {
+                return toolMethod;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the generated metadata of a service class. Looked up once per class.
+     *
+     * @param serviceClass The class declaring the tool methods
+     * @return The metadata, or null if the class was compiled without the processor
+     */
+    public static ToolMetadata of(Class<?> serviceClass) {
+        return GENERATED.get(serviceClass).orElse(null);
+    }
+
+    /**
+     * Finds the metadata of a tool method, in the generated metadata of the class declaring it.
+     *
+     * @param method The tool method
+     * @return Its metadata, or null if its class was compiled without the processor
+     */
+    public static ToolMethodMetadata forMethod(Method method) {
+        ToolMetadata metadata = of(method.getDeclaringClass());
+        return (metadata != null) ? metadata.getToolMethod(method) : null;
+    }
+
+    /**
+     * @param packageName The package of the service, empty for the unnamed package
+     * @param nestedName The simple names of the service and its enclosing classes, outermost first
+     * @return The binary name of the generated class
+     */
+    public static String generatedClassName(String packageName, List<String> nestedName) {
+        String simpleName = CLASS_PREFIX + String.join("_", nestedName);
+        return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    }
+
+    private static ToolMetadata load(Class<?> serviceClass) {
+        if (serviceClass.isArray() || serviceClass.isPrimitive() || serviceClass.isAnonymousClass() || serviceClass.isLocalClass()) {
+            return null;
+        }
+        List<String> nestedName = new ArrayList<>();
+        for (Class<?> c = serviceClass; c != null; c = c.getEnclosingClass()) {
+            nestedName.add(0, c.getSimpleName());
+        }
+        String className = generatedClassName(serviceClass.getPackageName(), nestedName);
+        try {
+            Class<?> generated = Class.forName(className, true, serviceClass.getClassLoader());
+            return (ToolMetadata) generated.getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            log.warn("Ignoring generated tool metadata {} of {}: {}", className, serviceClass.getName(), e.toString());
+            return null;
+        }
+    }
+}
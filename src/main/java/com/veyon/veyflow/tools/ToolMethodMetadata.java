@@ -0,0 +1,99 @@
+package com.veyon.veyflow.tools;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compile-time description of one tool method, part of a generated {@link ToolMetadata}: its declaration
+ * for the model, its parameter names as written in the source and a direct, typed call of the method.
+ */
+public final class ToolMethodMetadata {
+
+    /**
+     * Calls the tool method on a service, casting each argument to its parameter type.
+     */
+    @FunctionalInterface
+    public interface Invoker {
+        Object invoke(Object service, Object[] arguments) throws Throwable;
+    }
+
+    private final String methodName;
+    private final String description;
+    private final boolean recall;
+    private final String[] parameterNames;
+    private final Class<?>[] parameterTypes;
+    private final List<Parameter> schema;
+    private final Invoker invoker;
+
+    /**
+     * @param methodName The name of the method
+     * @param description The tool description from {@link ToolAnnotation#value()}
+     * @param recall {@link ToolAnnotation#recall()}
+     * @param parameterNames The names of all parameters, in order
+     * @param parameterTypes The erased types of all parameters, in order
+     * @param schema The parameters annotated with {@link ToolParameter}, as declared to the model
+     * @param invoker Calls the method, or null if it is not accessible from its package
+     */
+    public ToolMethodMetadata(String methodName, String description, boolean recall, String[] parameterNames,
+                              Class<?>[] parameterTypes, List<Parameter> schema, Invoker invoker) {
+        if (parameterNames.length != parameterTypes.length) {
+            throw new IllegalArgumentException("Tool method " + methodName + " has " + parameterTypes.length
+                    + " parameter types but " + parameterNames.length + " names");
+        }
+        this.methodName = methodName;
+        this.description = description;
+        this.recall = recall;
+        this.parameterNames = parameterNames;
+        this.parameterTypes = parameterTypes;
+        this.schema = Collections.unmodifiableList(schema);
+        this.invoker = invoker;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public boolean isRecall() {
+        return recall;
+    }
+
+    /**
+     * @return The names of the method's parameters, in order; the caller must not modify the array.
+     */
+    public String[] getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * @return The erased types of the method's parameters, in order; the caller must not modify the array.
+     */
+    public Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    /**
+     * @return The parameters declared to the model. The instances are shared and must not be modified.
+     */
+    public List<Parameter> getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return The typed call of the method, or null if only reflection can call it.
+     */
+    public Invoker getInvoker() {
+        return invoker;
+    }
+
+    /**
+     * @return Whether this describes a method with the given parameter types.
+     */
+    public boolean matches(String methodName, Class<?>[] parameterTypes) {
+        return this.methodName.equals(methodName) && Arrays.equals(this.parameterTypes, parameterTypes);
+    }
+}
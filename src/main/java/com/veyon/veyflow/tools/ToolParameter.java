@@ -26,4 +26,20 @@ public @interface ToolParameter {
      * Default is true, as most tool parameters are essential.
      */
     boolean required() default true;
+
+    /**
+     * The values the parameter may take, declared to the model as its {@code enum}. Default is any value;
+     * for parameters of an enum type, the names of its constants.
+     */
+    String[] enumValues() default {};
+
+    /**
+     * The smallest value of a numeric parameter. Default is no lower bound.
+     */
+    double minimum() default Double.NEGATIVE_INFINITY;
+
+    /**
+     * The largest value of a numeric parameter. Default is no upper bound.
+     */
+    double maximum() default Double.POSITIVE_INFINITY;
 }
@@ -0,0 +1,212 @@
+package com.veyon.veyflow.tools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of serialized tool results, for tools that enable caching with
+ * {@link ToolAnnotation#cacheTtlSeconds()}. Keys are built by {@link ToolInvoker#cacheKey}.
+ * <p>
+ * Lookups are single-flight: while a call is running, identical calls wait for its result instead of
+ * invoking the tool again, and share its failure if it fails. Failures are not cached. A caller that
+ * gives up on its result, for example at its deadline, does not cancel the load the others wait for.
+ */
+public class ToolResultCache {
+
+    private final int maxEntries;
+    private final Map<String, Entry> cache;
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Starts computing a tool result on a cache miss.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        CompletableFuture<String> load();
+    }
+
+    private static final class Entry {
+        final String result;
+        final long expiresAt;
+
+        Entry(String result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxEntries Maximum number of cached results; the least recently used are evicted first
+     */
+    public ToolResultCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.maxEntries = maxEntries;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ToolResultCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the cached result for {@code key}, or loads and caches it. If the same key is already being
+     * loaded, waits for that load instead. Does not block: a load completes the returned future.
+     *
+     * @param key The cache key
+     * @param ttlNanos How long a loaded result stays cached
+     * @param loader Invokes the tool and serializes its result
+     * @return The result, or a future failed with what the loader failed with, for this call or the one
+     *         it waited for
+     */
+    public CompletableFuture<String> get(String key, long ttlNanos, Loader loader) {
+        String cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<String> load = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, load);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running.copy(); // a waiter cancelling its copy must not cancel the load
+        }
+        // The previous load of this key may have completed between the lookup and putIfAbsent
+        cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            inFlight.remove(key, load);
+            load.complete(cached);
+            return load.copy();
+        }
+        misses.incrementAndGet();
+        CompletableFuture<String> loaded;
+        try {
+            loaded = loader.load();
+        } catch (Throwable t) {
+            loaded = CompletableFuture.failedFuture(t);
+        }
+        loaded.whenComplete((result, error) -> {
+            if (error == null) {
+                synchronized (cache) {
+                    cache.put(key, new Entry(result, System.nanoTime() + ttlNanos));
+                }
+            }
+            inFlight.remove(key, load);
+            if (error == null) {
+                load.complete(result);
+            } else {
+                load.completeExceptionally(error);
+            }
+        });
+        return load.copy();
+    }
+
+    /**
+     * Gets a cached result without loading it, for callers that load missing results themselves and
+     * {@link #put} them. Counts as a hit or a miss.
+     *
+     * @param key The cache key
+     * @return The result, or null if it is not cached
+     */
+    public String getIfPresent(String key) {
+        String cached = lookup(key);
+        (cached != null ? hits : misses).incrementAndGet();
+        return cached;
+    }
+
+    /**
+     * Caches a result computed outside {@link #get}, such as by a batch call.
+     *
+     * @param key The cache key
+     * @param result The result
+     * @param ttlNanos How long the result stays cached
+     */
+    public void put(String key, String result, long ttlNanos) {
+        synchronized (cache) {
+            cache.put(key, new Entry(result, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    private String lookup(String key) {
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (System.nanoTime() - entry.expiresAt >= 0) {
+                cache.remove(key);
+                expirations.incrementAndGet();
+                return null;
+            }
+            return entry.result;
+        }
+    }
+
+    /**
+     * Drops every cached result.
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    public int getSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Lookups that invoked the tool.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Lookups that waited for an identical call in flight instead of invoking the tool.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return Fraction of lookups that did not invoke the tool, or 0 before the first lookup.
+     */
+    public double getHitRatio() {
+        long saved = hits.get() + coalesced.get();
+        long total = saved + misses.get();
+        return (total == 0) ? 0.0 : (double) saved / total;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+}
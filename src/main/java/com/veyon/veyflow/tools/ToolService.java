@@ -3,13 +3,14 @@ package com.veyon.veyflow.tools;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonElement;
+import com.veyon.veyflow.state.AgentState;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base class for all tool services in the agent framework.
@@ -17,7 +18,7 @@ import java.util.Optional;
  */
 public abstract class ToolService {
     private final String toolsJson;
-    private final Map<String, Method> toolMethods = new HashMap<>();
+    private final Map<String, Method> toolMethods = new ConcurrentHashMap<>();
     private final Map<String, Boolean> toolRecallSettings = new HashMap<>();
 
     /**
@@ -29,9 +30,17 @@ public abstract class ToolService {
     }
 
     /**
-     * Initialize the tool methods map.
+     * Initialize the tool methods map. With generated {@link ToolMetadata} only the recall settings are
+     * read; methods are looked up on first use.
      */
     private void initializeToolMethods() {
+        ToolMetadata metadata = ToolMetadata.of(this.getClass());
+        if (metadata != null) {
+            for (ToolMethodMetadata toolMethod : metadata.getToolMethods()) {
+                toolRecallSettings.putIfAbsent(toolMethod.getMethodName(), toolMethod.isRecall());
+            }
+            return;
+        }
         for (Method method : this.getClass().getDeclaredMethods()) {
             if (method.isAnnotationPresent(ToolAnnotation.class)) {
                 ToolAnnotation annotation = method.getAnnotation(ToolAnnotation.class);
@@ -68,7 +77,24 @@ public abstract class ToolService {
      * @return The method, or null if not found
      */
     public Method getToolMethod(String toolName) {
-        return toolMethods.get(toolName);
+        Method method = toolMethods.get(toolName);
+        if (method == null && toolName != null && toolRecallSettings.containsKey(toolName)) {
+            ToolMetadata metadata = ToolMetadata.of(this.getClass());
+            if (metadata != null) {
+                for (ToolMethodMetadata toolMethod : metadata.getToolMethods()) {
+                    if (toolMethod.getMethodName().equals(toolName)) {
+                        try {
+                            method = this.getClass().getDeclaredMethod(toolName, toolMethod.getParameterTypes());
+                            toolMethods.put(toolName, method);
+                        } catch (NoSuchMethodException e) {
+                            return null;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        return method;
     }
     
     /**
@@ -90,62 +116,28 @@ public abstract class ToolService {
                 return errorResult;
             }
             
-            // Preparar los parámetros para la invocación
-            Parameter[] methodParams = method.getParameters();
-            Object[] args = new Object[methodParams.length];
-            
-            for (int i = 0; i < methodParams.length; i++) {
-                Parameter param = methodParams[i];
-                String paramName = null;
-                
-                // Obtener el nombre del parámetro desde la anotación
-                if (param.isAnnotationPresent(ToolParameter.class)) {
-                    ToolParameter annotation = param.getAnnotation(ToolParameter.class);
-                    paramName = annotation.value();
-                }
-                
-                // Si no tiene anotación, usar el nombre del parámetro
-                if (paramName == null || paramName.isEmpty()) {
-                    paramName = param.getName();
-                }
-                
-                // Convertir el parámetro JSON al tipo correcto
-                Class<?> paramType = param.getType();
-                
-                if (state != null && paramType.isAssignableFrom(state.getClass())) {
-                    args[i] = state;
-                } else if (parameters != null && parameters.has(paramName)) {
-                    JsonElement paramValue = parameters.get(paramName);
-                    
-                    if (paramType == String.class) {
-                        args[i] = paramValue.getAsString();
-                    } else if (paramType == int.class || paramType == Integer.class) {
-                        args[i] = paramValue.getAsInt();
-                    } else if (paramType == boolean.class || paramType == Boolean.class) {
-                        args[i] = paramValue.getAsBoolean();
-                    } else if (paramType == double.class || paramType == Double.class) {
-                        args[i] = paramValue.getAsDouble();
-                    } else if (paramType == JsonObject.class) {
-                        args[i] = paramValue.getAsJsonObject();
-                    } else {
-                        // Para otros tipos, intentamos convertir de String
-                        args[i] = paramValue.getAsString();
-                    }
-                } else if (parameters == null || !parameters.has(paramName)) {
-                    if (paramType.isPrimitive()) {
-                        // Valores por defecto para tipos primitivos
-                        if (paramType == int.class) args[i] = 0;
-                        else if (paramType == boolean.class) args[i] = false;
-                        else if (paramType == double.class) args[i] = 0.0;
-                        else args[i] = null; // Esto puede causar un NPE para tipos primitivos
-                    } else {
-                        args[i] = null;
-                    }
-                }
+            // Validar los argumentos contra el esquema declarado, informando todas las violaciones a la vez
+            List<ToolArgumentValidator.Violation> violations = ToolArgumentValidator.of(method).validate(parameters);
+            if (!violations.isEmpty()) {
+                return ToolArgumentValidator.toJson(toolName, violations);
             }
-            
+
+            // Convertir los argumentos con el binder del método, el mismo que usa ToolAgent
+            Object[] args = ToolArgumentBinder.of(method).bind(parameters, (state instanceof AgentState agentState) ? agentState : null);
+
             // Invocar el método
-            Object result = method.invoke(this, args);
+            ToolMethodMetadata metadata = ToolMetadata.forMethod(method);
+            Object result;
+            if (metadata != null && metadata.getInvoker() != null) {
+                result = metadata.getInvoker().invoke(this, args);
+            } else {
+                method.trySetAccessible();
+                try {
+                    result = method.invoke(this, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
             
             // Manejar el resultado
             if (result instanceof JsonObject) {
@@ -163,7 +155,9 @@ public abstract class ToolService {
                 return jsonResult;
             }
             
-        } catch (Exception e) {
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (Throwable e) {
             JsonObject errorResult = new JsonObject();
             errorResult.addProperty("status", "error");
             errorResult.addProperty("message", "Error executing tool: " + e.getMessage());
@@ -172,7 +166,9 @@ public abstract class ToolService {
     }
 
     /**
-     * Build the JSON representation of the tools.
+     * Build the JSON representation of the tools, from the generated {@link ToolMetadata} if there is one.
+     * Parameters are declared from {@link Parameter#schemaOf}, so the declaration matches what
+     * {@link ToolArgumentValidator} checks and {@link ToolArgumentBinder} requires.
      * 
      * @return JSON string representing the tools
      */
@@ -180,45 +176,19 @@ public abstract class ToolService {
         JsonObject toolObj = new JsonObject();
         JsonArray functionDeclarations = new JsonArray();
 
-        for (Method method : this.getClass().getDeclaredMethods()) {
-            if (!method.isAnnotationPresent(ToolAnnotation.class)) continue;
-            ToolAnnotation toolAnn = method.getAnnotation(ToolAnnotation.class);
-
-            JsonObject fn = new JsonObject();
-            fn.addProperty("name", method.getName());
-            fn.addProperty("description", toolAnn.value());
-
-            JsonObject paramsSchema = new JsonObject();
-            paramsSchema.addProperty("type", "object");
-            JsonObject props = new JsonObject();
-            JsonArray required = new JsonArray();
-
-            for (Parameter param : method.getParameters()) {
-                ToolParameter paramAnn = param.getAnnotation(ToolParameter.class);
-                if (paramAnn == null) continue;
-                
-                String paramName = param.getName();
-                JsonObject prop = new JsonObject();
-                
-                // Determine parameter type
-                String paramType = mapJavaTypeToJsonType(param.getType());
-                prop.addProperty("type", paramType);
-                prop.addProperty("description", paramAnn.value());
-                props.add(paramName, prop);
-                
-                // Add to required parameters if not Optional
-                if (!param.getType().equals(Optional.class)) {
-                    required.add(paramName);
-                }
+        ToolMetadata metadata = ToolMetadata.of(this.getClass());
+        if (metadata != null) {
+            for (ToolMethodMetadata toolMethod : metadata.getToolMethods()) {
+                functionDeclarations.add(buildFunctionDeclaration(toolMethod.getMethodName(),
+                        toolMethod.getDescription(), toolMethod.getSchema()));
             }
-
-            paramsSchema.add("properties", props);
-            if (required.size() > 0) {
-                paramsSchema.add("required", required);
+        } else {
+            for (Method method : this.getClass().getDeclaredMethods()) {
+                if (!method.isAnnotationPresent(ToolAnnotation.class)) continue;
+                functionDeclarations.add(buildFunctionDeclaration(method.getName(),
+                        method.getAnnotation(ToolAnnotation.class).value(),
+                        Parameter.schemaOf(method)));
             }
-            
-            fn.add("parameters", paramsSchema);
-            functionDeclarations.add(fn);
         }
 
         toolObj.add("functionDeclarations", functionDeclarations);
@@ -227,28 +197,42 @@ public abstract class ToolService {
         return new Gson().toJson(tools);
     }
     
-    /**
-     * Map Java types to JSON types.
-     * 
-     * @param javaType The Java type
-     * @return The corresponding JSON type
-     */
-    private String mapJavaTypeToJsonType(Class<?> javaType) {
-        if (javaType.equals(String.class)) {
-            return "string";
-        } else if (javaType.equals(int.class) || javaType.equals(Integer.class) ||
-                  javaType.equals(long.class) || javaType.equals(Long.class) ||
-                  javaType.equals(float.class) || javaType.equals(Float.class) ||
-                  javaType.equals(double.class) || javaType.equals(Double.class)) {
-            return "number";
-        } else if (javaType.equals(boolean.class) || javaType.equals(Boolean.class)) {
-            return "boolean";
-        } else if (javaType.equals(java.util.List.class) || javaType.isArray()) {
-            return "array";
-        } else if (javaType.equals(java.util.Map.class) || javaType.equals(JsonObject.class)) {
-            return "object";
-        } else {
-            return "object";
+    private static JsonObject buildFunctionDeclaration(String name, String description, List<Parameter> schema) {
+        JsonObject fn = new JsonObject();
+        fn.addProperty("name", name);
+        fn.addProperty("description", description);
+
+        JsonObject paramsSchema = new JsonObject();
+        paramsSchema.addProperty("type", "object");
+        JsonObject props = new JsonObject();
+        JsonArray required = new JsonArray();
+
+        for (Parameter param : schema) {
+            JsonObject prop = new JsonObject();
+            prop.addProperty("type", param.getType());
+            prop.addProperty("description", param.getDescription());
+            if (param.getEnumValues() != null && !param.getEnumValues().isEmpty()) {
+                JsonArray values = new JsonArray();
+                param.getEnumValues().forEach(values::add);
+                prop.add("enum", values);
+            }
+            if (param.getMinimum() != null) {
+                prop.addProperty("minimum", param.getMinimum());
+            }
+            if (param.getMaximum() != null) {
+                prop.addProperty("maximum", param.getMaximum());
+            }
+            props.add(param.getName(), prop);
+            if (param.isRequired()) {
+                required.add(param.getName());
+            }
+        }
+
+        paramsSchema.add("properties", props);
+        if (required.size() > 0) {
+            paramsSchema.add("required", required);
         }
+        fn.add("parameters", paramsSchema);
+        return fn;
     }
 }
@@ -0,0 +1,65 @@
+package com.veyon.veyflow.tools;
+
+import com.google.gson.JsonObject;
+
+import java.util.Locale;
+
+/**
+ * Thrown by a {@link ToolGuard} when a tool call is not run or not waited for. The model gets a
+ * structured error for it, see {@link #toJson()}.
+ */
+public class ToolUnavailableException extends RuntimeException {
+
+    /**
+     * Why the call did not complete.
+     */
+    public enum Reason {
+        /** The service's circuit is open after repeated failures. */
+        CIRCUIT_OPEN,
+        /** The service has too many calls running and waiting. */
+        BULKHEAD_FULL,
+        /** The call did not complete within its timeout. */
+        TIMEOUT
+    }
+
+    private final String serviceClassName;
+    private final Reason reason;
+    private final long retryAfterMillis;
+
+    public ToolUnavailableException(String serviceClassName, Reason reason, long retryAfterMillis, String message) {
+        super(message);
+        this.serviceClassName = serviceClassName;
+        this.reason = reason;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public String getServiceClassName() {
+        return serviceClassName;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return When the service may accept calls again, in milliseconds; 0 if unknown.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /**
+     * @return The error as a tool result: {@code status}, {@code error} (the reason in lower case),
+     *         {@code message} and, if known, {@code retryAfterMillis}.
+     */
+    public String toJson() {
+        JsonObject error = new JsonObject();
+        error.addProperty("status", "error");
+        error.addProperty("error", reason.name().toLowerCase(Locale.ROOT));
+        error.addProperty("message", getMessage());
+        if (retryAfterMillis > 0) {
+            error.addProperty("retryAfterMillis", retryAfterMillis);
+        }
+        return error.toString();
+    }
+}
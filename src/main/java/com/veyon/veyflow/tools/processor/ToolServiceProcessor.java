@@ -0,0 +1,241 @@
+package com.veyon.veyflow.tools.processor;
+
+import com.veyon.veyflow.tools.ToolAnnotation;
+import com.veyon.veyflow.tools.ToolMetadata;
+import com.veyon.veyflow.tools.ToolParameter;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generates a {@link ToolMetadata} class for every class declaring {@link ToolAnnotation} methods, so the
+ * tools of a {@link com.veyon.veyflow.tools.ToolService} are described and called without reflection.
+ * Registered as a service, so javac runs it for any project that has veyflow on its annotation processor
+ * path.
+ * <p>
+ * Classes that generated code cannot reference, such as private nested classes, are skipped with a note
+ * and keep working through reflection; so do private tool methods.
+ */
+@SupportedAnnotationTypes("com.veyon.veyflow.tools.ToolAnnotation")
+public class ToolServiceProcessor extends AbstractProcessor {
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        Set<TypeElement> services = new LinkedHashSet<>();
+        for (TypeElement annotation : annotations) {
+            for (Element element : round.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.METHOD && element.getEnclosingElement() instanceof TypeElement service) {
+                    services.add(service);
+                }
+            }
+        }
+        for (TypeElement service : services) {
+            if (!isReferenceable(service)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        "No tool metadata generated for " + service + ", it is not accessible from its package", service);
+                continue;
+            }
+            try {
+                generate(service);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Cannot write tool metadata for " + service + ": " + e.getMessage(), service);
+            }
+        }
+        return false; // the annotations stay available to other processors
+    }
+
+    /**
+     * @return Whether code in the package of {@code type} can name it.
+     */
+    private static boolean isReferenceable(TypeElement type) {
+        for (Element e = type; e instanceof TypeElement t; e = e.getEnclosingElement()) {
+            if (t.getNestingKind() == NestingKind.LOCAL || t.getNestingKind() == NestingKind.ANONYMOUS
+                    || t.getModifiers().contains(Modifier.PRIVATE) || t.getKind() == ElementKind.ANNOTATION_TYPE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void generate(TypeElement service) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(service).getQualifiedName().toString();
+        List<String> nestedName = new ArrayList<>();
+        for (Element e = service; e instanceof TypeElement t; e = e.getEnclosingElement()) {
+            nestedName.add(0, t.getSimpleName().toString());
+        }
+        // As ToolMetadata.generatedClassName, which cannot be called here: its class needs slf4j
+        String simpleName = ToolMetadata.CLASS_PREFIX + String.join("_", nestedName);
+        String className = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        String serviceType = processingEnv.getTypeUtils().erasure(service.asType()).toString();
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("import com.veyon.veyflow.tools.Parameter;\n")
+                .append("import com.veyon.veyflow.tools.ToolMetadata;\n")
+                .append("import com.veyon.veyflow.tools.ToolMethodMetadata;\n\n")
+                .append("import java.util.List;\n\n")
+                .append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n")
+                .append("@SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+                .append("public final class ").append(simpleName).append(" extends ToolMetadata {\n\n")
+                .append("    private static final List<ToolMethodMetadata> TOOL_METHODS = List.of(");
+
+        Set<String> names = new HashSet<>();
+        String separator = "";
+        for (ExecutableElement method : ElementFilter.methodsIn(service.getEnclosedElements())) {
+            ToolAnnotation annotation = method.getAnnotation(ToolAnnotation.class);
+            if (annotation == null) {
+                continue;
+            }
+            if (!names.add(method.getSimpleName().toString())) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                        "Tool " + method.getSimpleName() + " is overloaded; the model can only call one of the overloads", method);
+            }
+            source.append(separator).append("\n            ");
+            appendToolMethod(source, serviceType, method, annotation);
+            separator = ",";
+        }
+
+        source.append(");\n\n")
+                .append("    @Override\n")
+                .append("    public List<ToolMethodMetadata> getToolMethods() {\n")
+                .append("        return TOOL_METHODS;\n")
+                .append("    }\n")
+                .append("}\n");
+
+        try (Writer writer = processingEnv.getFiler().createSourceFile(className, service).openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    private void appendToolMethod(StringBuilder source, String serviceType, ExecutableElement method, ToolAnnotation annotation) {
+        List<? extends VariableElement> parameters = method.getParameters();
+        List<String> types = new ArrayList<>();
+        for (VariableElement parameter : parameters) {
+            types.add(processingEnv.getTypeUtils().erasure(parameter.asType()).toString());
+        }
+
+        source.append("new ToolMethodMetadata(").append(literal(method.getSimpleName().toString())).append(", ")
+                .append(literal(annotation.value())).append(", ").append(annotation.recall()).append(",\n")
+                .append("                    new String[] {");
+        for (int i = 0; i < parameters.size(); i++) {
+            source.append(i > 0 ? ", " : "").append(literal(parameters.get(i).getSimpleName().toString()));
+        }
+        source.append("},\n                    new Class<?>[] {");
+        for (int i = 0; i < types.size(); i++) {
+            source.append(i > 0 ? ", " : "").append(types.get(i)).append(".class");
+        }
+        source.append("},\n                    List.of(");
+        String separator = "";
+        for (int i = 0; i < parameters.size(); i++) {
+            VariableElement parameter = parameters.get(i);
+            ToolParameter toolParameter = parameter.getAnnotation(ToolParameter.class);
+            if (toolParameter != null) {
+                source.append(separator).append("new Parameter(").append(literal(parameter.getSimpleName().toString())).append(", ")
+                        .append("Parameter.jsonType(").append(literal(toolParameter.type())).append(", ").append(types.get(i)).append(".class), ").append(literal(toolParameter.value())).append(", ")
+                        .append("Parameter.required(").append(toolParameter.required()).append(", ").append(types.get(i)).append(".class), ");
+                appendEnumValues(source, parameter, toolParameter);
+                source.append(", ").append(bound(toolParameter.minimum())).append(", ").append(bound(toolParameter.maximum())).append(")");
+                separator = ", ";
+            }
+        }
+        source.append("),\n                    ");
+
+        if (method.getModifiers().contains(Modifier.PRIVATE)) {
+            source.append("null)");
+            return;
+        }
+        StringBuilder call = new StringBuilder();
+        if (method.getModifiers().contains(Modifier.STATIC)) {
+            call.append(serviceType);
+        } else {
+            call.append("((").append(serviceType).append(") service)");
+        }
+        call.append('.').append(method.getSimpleName()).append('(');
+        for (int i = 0; i < types.size(); i++) {
+            call.append(i > 0 ? ", " : "").append('(').append(types.get(i)).append(") arguments[").append(i).append(']');
+        }
+        call.append(')');
+        if (method.getReturnType().getKind() == TypeKind.VOID) {
+            source.append("(service, arguments) -> {\n                        ").append(call).append(";\n")
+                    .append("                        return null;\n                    })");
+        } else {
+            source.append("(service, arguments) -> ").append(call).append(')');
+        }
+    }
+
+    /**
+     * Appends the allowed values as Parameter.of derives them: from the annotation, else from an enum type.
+     */
+    private void appendEnumValues(StringBuilder source, VariableElement parameter, ToolParameter toolParameter) {
+        List<String> values = new ArrayList<>(List.of(toolParameter.enumValues()));
+        Element type = processingEnv.getTypeUtils().asElement(parameter.asType());
+        if (values.isEmpty() && type != null && type.getKind() == ElementKind.ENUM) {
+            for (Element constant : type.getEnclosedElements()) {
+                if (constant.getKind() == ElementKind.ENUM_CONSTANT) {
+                    values.add(constant.getSimpleName().toString());
+                }
+            }
+        }
+        if (values.isEmpty()) {
+            source.append("null");
+            return;
+        }
+        source.append("List.of(");
+        for (int i = 0; i < values.size(); i++) {
+            source.append(i > 0 ? ", " : "").append(literal(values.get(i)));
+        }
+        source.append(')');
+    }
+
+    private static String bound(double value) {
+        return (Double.isInfinite(value) || Double.isNaN(value)) ? "null" : "(Double) " + value;
+    }
+
+    private static String literal(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> literal.append("\\\"");
+                case '\\' -> literal.append("\\\\");
+                case '\n' -> literal.append("\\n");
+                case '\r' -> literal.append("\\r");
+                case '\t' -> literal.append("\\t");
+                default -> {
+                    if (c < 0x20 || c > 0x7e) {
+                        literal.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        literal.append(c);
+                    }
+                }
+            }
+        }
+        return literal.append('"').toString();
+    }
+}
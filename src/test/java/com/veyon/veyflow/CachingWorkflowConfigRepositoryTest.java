@@ -0,0 +1,110 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.config.CachingWorkflowConfigRepository;
+import com.veyon.veyflow.config.InMemoryWorkflowConfigRepository;
+import com.veyon.veyflow.config.WorkflowConfig;
+import com.veyon.veyflow.state.InvalidationBus;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Invalidations are only remembered while a load that started before them can still store its result.
+ */
+public class CachingWorkflowConfigRepositoryTest {
+
+    /**
+     * Delivers invalidations only when the test calls {@link #invalidate}.
+     */
+    private static final class ManualBus implements InvalidationBus {
+        private volatile Listener listener;
+
+        @Override
+        public void publish(String key) {
+        }
+
+        @Override
+        public void subscribe(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void invalidate(String key) {
+            listener.onInvalidate(key, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Blocks lookups of "slow" until released, so an invalidation can arrive while the load is running.
+     */
+    private static final class SlowRepository extends InMemoryWorkflowConfigRepository {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Optional<WorkflowConfig> findById(String tenantId) {
+            Optional<WorkflowConfig> found = super.findById(tenantId);
+            if ("slow".equals(tenantId)) {
+                started.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return found;
+        }
+    }
+
+    private final ManualBus bus = new ManualBus();
+
+    @Test
+    void forgetsInvalidationsOnceNoOlderLoadIsPending() throws Exception {
+        try (CachingWorkflowConfigRepository cache = CachingWorkflowConfigRepository.builder(new InMemoryWorkflowConfigRepository())
+                .invalidationBus(bus).refreshInterval(Duration.ofMillis(20)).build()) {
+            for (int i = 0; i < 1_000; i++) {
+                bus.invalidate("tenant-" + i);
+            }
+            assertEquals(1_000, cache.getRemoteInvalidations());
+            waitUntil(() -> cache.getRememberedInvalidations() == 0);
+        }
+    }
+
+    @Test
+    void keepsAnInvalidationWhileAnOlderLoadIsRunning() throws Exception {
+        SlowRepository delegate = new SlowRepository();
+        delegate.save(new WorkflowConfig("slow"));
+        try (CachingWorkflowConfigRepository cache = CachingWorkflowConfigRepository.builder(delegate)
+                .invalidationBus(bus).preload(false).refreshInterval(Duration.ofMillis(20)).build()) {
+            CompletableFuture<Optional<WorkflowConfig>> load = CompletableFuture.supplyAsync(() -> cache.findById("slow"));
+            assertTrue(delegate.started.await(5, TimeUnit.SECONDS));
+
+            bus.invalidate("slow");
+            Thread.sleep(100); // several sweeps
+            assertEquals(1, cache.getRememberedInvalidations());
+
+            delegate.release.countDown();
+            assertTrue(load.get(5, TimeUnit.SECONDS).isPresent());
+            assertEquals(0, cache.getSize()); // the load started before the invalidation
+            waitUntil(() -> cache.getRememberedInvalidations() == 0);
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,118 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import com.veyon.veyflow.state.FileAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Write throughput and cold-load latency benchmark for {@link FileAgentStateRepository}.
+ * <p>
+ * Measures saves with synchronous group commit and with interval fsync, then reopens the log with and
+ * without an index snapshot. Not part of the test suite; run it manually with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.veyon.veyflow.FileAgentStateRepositoryBenchmark}.
+ * Arguments: {@code [directory] [operations] [threads] [threadIds]}.
+ */
+public class FileAgentStateRepositoryBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(FileAgentStateRepositoryBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        Path directory = args.length > 0 ? Path.of(args[0]) : Files.createTempDirectory("veyflow-file-bench");
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int threadIds = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+
+        List<AgentState> states = new ArrayList<>();
+        for (int i = 0; i < threadIds; i++) {
+            AgentState state = new AgentState("bench-tenant", "thread-" + i, PersistenceMode.FILE);
+            state.set("counter", i);
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "What is the weather like in London?"));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "It is sunny and 21 degrees."));
+            states.add(state);
+        }
+
+        try {
+            Path groupCommit = directory.resolve("group-commit");
+            try (FileAgentStateRepository repository = FileAgentStateRepository.builder(groupCommit).build()) {
+                run("group-commit", operations, threads, states, repository);
+                log.info("group-commit: {} writes per fsync", String.format("%.1f", repository.getAverageWritesPerSync()));
+            }
+
+            Path interval = directory.resolve("interval-fsync");
+            try (FileAgentStateRepository repository = FileAgentStateRepository.builder(interval)
+                    .fsyncInterval(Duration.ofMillis(10))
+                    .build()) {
+                run("interval-fsync-10ms", operations, threads, states, repository);
+            }
+
+            coldLoad("cold-load (snapshot)", groupCommit, states);
+            Files.deleteIfExists(groupCommit.resolve("index.snapshot"));
+            coldLoad("cold-load (full replay)", groupCommit, states);
+        } finally {
+            if (args.length == 0) {
+                delete(directory);
+            }
+        }
+    }
+
+    private static void run(String label, int operations, int threads, List<AgentState> states,
+                            FileAgentStateRepository repository) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int perThread = operations / threads;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * perThread;
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    repository.save(states.get((offset + i) % states.size()));
+                }
+            }, pool));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        double opsPerSecond = (perThread * threads) / (elapsed / 1_000_000_000.0);
+        log.info("{}: {} saves/sec ({} threads, log {} MiB)", label, String.format("%.0f", opsPerSecond), threads,
+                repository.getLogBytes() / (1024 * 1024));
+    }
+
+    private static void coldLoad(String label, Path directory, List<AgentState> states) {
+        long start = System.nanoTime();
+        try (FileAgentStateRepository repository = FileAgentStateRepository.builder(directory).build()) {
+            long opened = System.nanoTime();
+            AgentState first = states.get(0);
+            repository.findById(first.getTenantId(), first.getThreadId())
+                    .orElseThrow(() -> new IllegalStateException("State missing after reopen"));
+            long firstRead = System.nanoTime();
+            log.info("{}: open {} ms ({} records replayed), first read {} us, {} threads",
+                    label, TimeUnit.NANOSECONDS.toMillis(opened - start), repository.getReplayedRecords(),
+                    TimeUnit.NANOSECONDS.toMicros(firstRead - opened), repository.getEntryCount());
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.FileAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A crash can leave a partly written record at the end of the log. Reopening must drop exactly that
+ * record, keep every complete one and accept new writes after it.
+ */
+public class FileRecoveryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void truncatesGarbageAfterTheSnapshot() throws Exception {
+        try (FileAgentStateRepository repository = FileAgentStateRepository.builder(directory).build()) {
+            repository.save(state("t1", "one"));
+            repository.save(state("t2", "two"));
+        }
+        Path segment = lastSegment();
+        long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 42, 0, 0, 1, 0, 7, 7, 7}));
+        }
+
+        try (FileAgentStateRepository repository = FileAgentStateRepository.builder(directory).build()) {
+            assertEquals(11, repository.getTruncatedBytes());
+            assertEquals(size, Files.size(segment));
+            assertEquals("one", repository.findById("tenant", "t1").orElseThrow().get("step"));
+            assertEquals("two", repository.findById("tenant", "t2").orElseThrow().get("step"));
+        }
+    }
+
+    @Test
+    void dropsATornRecordAndKeepsTheOnesBeforeIt() throws Exception {
+        long sizeBeforeLastSave;
+        try (FileAgentStateRepository repository = FileAgentStateRepository.builder(directory).build()) {
+            repository.save(state("t1", "one"));
+            repository.save(state("t2", "two"));
+            sizeBeforeLastSave = Files.size(lastSegment());
+            repository.save(state("t1", "updated"));
+        }
+        // Without the snapshot the whole log is replayed, as after a crash
+        Files.delete(directory.resolve("index.snapshot"));
+        Path segment = lastSegment();
+        long tornBytes = Files.size(segment) - sizeBeforeLastSave - 5;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(segment) - 5);
+        }
+
+        try (FileAgentStateRepository repository = FileAgentStateRepository.builder(directory).build()) {
+            assertEquals(tornBytes, repository.getTruncatedBytes());
+            assertEquals(2, repository.getReplayedRecords());
+            AgentState recovered = repository.findById("tenant", "t1").orElseThrow();
+            assertEquals("one", recovered.get("step"));
+            assertEquals(1, recovered.getVersion());
+
+            repository.save(state("t3", "three"));
+        }
+        try (FileAgentStateRepository repository = FileAgentStateRepository.builder(directory).build()) {
+            assertEquals(0, repository.getTruncatedBytes());
+            assertEquals("three", repository.findById("tenant", "t3").orElseThrow().get("step"));
+            assertEquals("two", repository.findById("tenant", "t2").orElseThrow().get("step"));
+        }
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = files.filter(p -> p.getFileName().toString().startsWith("segment-")).sorted().toList();
+            assertFalse(segments.isEmpty());
+            return segments.get(segments.size() - 1);
+        }
+    }
+
+    private static AgentState state(String threadId, String step) {
+        return new AgentState("tenant", threadId, PersistenceMode.FILE).set("step", step);
+    }
+}
@@ -0,0 +1,130 @@
+package com.veyon.veyflow;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.veyon.veyflow.tools.Parameter;
+import com.veyon.veyflow.tools.ToolMetadata;
+import com.veyon.veyflow.tools.ToolMethodMetadata;
+import com.veyon.veyflow.tools.ToolService;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The metadata generated for {@link WeatherToolService} at test-compile time must describe and dispatch its
+ * tools exactly like the reflective fallback used for services compiled without the processor.
+ */
+public class GeneratedToolMetadataTest {
+
+    @Test
+    void testServicesAreCompiledWithTheProcessor() throws Exception {
+        assertNotNull(ToolMetadata.of(WeatherToolService.class));
+        ToolMethodMetadata getWeather = ToolMetadata.forMethod(WeatherToolService.class.getMethod("getWeather", String.class,
+                com.veyon.veyflow.state.AgentState.class));
+        assertNotNull(getWeather);
+        assertNotNull(getWeather.getInvoker());
+    }
+
+    @Test
+    void generatedAndReflectiveDeclarationsAreIdentical() throws Exception {
+        ToolService generated = new WeatherToolService();
+        ToolService reflective = reflectiveWeatherToolService();
+        assertNull(ToolMetadata.of(reflective.getClass()));
+
+        assertEquals(JsonParser.parseString(reflective.getToolsJson()), JsonParser.parseString(generated.getToolsJson()));
+        for (String tool : List.of("getWeather", "getForecast")) {
+            List<Parameter> expected = Parameter.schemaOf(reflective.getToolMethod(tool));
+            List<Parameter> actual = Parameter.schemaOf(generated.getToolMethod(tool));
+            assertEquals(describe(expected), describe(actual), tool);
+            assertEquals(reflective.shouldRecall(tool), generated.shouldRecall(tool), tool);
+        }
+    }
+
+    @Test
+    void generatedAndReflectiveDispatchAreIdentical() throws Exception {
+        ToolService generated = new WeatherToolService();
+        ToolService reflective = reflectiveWeatherToolService();
+
+        for (Map.Entry<String, String> call : Map.of(
+                "getWeather", "{\"location\":\"Lisbon\"}",
+                "getForecast", "{\"location\":\"Lisbon\",\"days\":\"2\"}").entrySet()) {
+            JsonObject arguments = JsonParser.parseString(call.getValue()).getAsJsonObject();
+            assertEquals(withoutRandomValues(reflective.executeToolMethod(call.getKey(), arguments, null)),
+                    withoutRandomValues(generated.executeToolMethod(call.getKey(), arguments, null)), call.getKey());
+        }
+        for (String invalid : List.of("{\"location\":\"Lisbon\"}", "{\"location\":7,\"days\":\"two\"}", "{}")) {
+            JsonObject arguments = JsonParser.parseString(invalid).getAsJsonObject();
+            JsonObject expected = reflective.executeToolMethod("getForecast", arguments, null);
+            assertEquals("error", expected.get("status").getAsString(), invalid);
+            assertEquals(expected, generated.executeToolMethod("getForecast", arguments, null), invalid);
+        }
+        assertEquals(reflective.executeToolMethod("missing", new JsonObject(), null),
+                generated.executeToolMethod("missing", new JsonObject(), null));
+    }
+
+    private static String describe(List<Parameter> schema) {
+        StringBuilder description = new StringBuilder();
+        for (Parameter parameter : schema) {
+            description.append(parameter.getName()).append(':').append(parameter.getType()).append(':')
+                    .append(parameter.getDescription()).append(':').append(parameter.isRequired()).append(':')
+                    .append(parameter.getEnumValues()).append(':').append(parameter.getMinimum()).append(':')
+                    .append(parameter.getMaximum()).append('\n');
+        }
+        return description.toString();
+    }
+
+    /**
+     * The weather is random; everything else about the result must match.
+     */
+    private static JsonElement withoutRandomValues(JsonElement element) {
+        if (element.isJsonObject()) {
+            JsonObject copy = new JsonObject();
+            for (Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+                boolean random = member.getKey().equals("condition") || member.getKey().equals("temperature");
+                copy.add(member.getKey(), random ? JsonParser.parseString("\"?\"") : withoutRandomValues(member.getValue()));
+            }
+            return copy;
+        }
+        return element;
+    }
+
+    /**
+     * Loads its own copy of {@link WeatherToolService} from a class loader that cannot see the generated
+     * metadata, so that copy falls back to reflection.
+     */
+    private static ToolService reflectiveWeatherToolService() throws Exception {
+        ClassLoader loader = new ClassLoader(GeneratedToolMetadataTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.startsWith("com.veyon.veyflow." + ToolMetadata.CLASS_PREFIX)) {
+                    throw new ClassNotFoundException(name);
+                }
+                if (!name.equals(WeatherToolService.class.getName())) {
+                    return super.loadClass(name, resolve);
+                }
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> loaded = findLoadedClass(name);
+                    if (loaded != null) {
+                        return loaded;
+                    }
+                    try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                        byte[] bytes = in.readAllBytes();
+                        return defineClass(name, bytes, 0, bytes.length);
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+            }
+        };
+        Class<?> serviceClass = loader.loadClass(WeatherToolService.class.getName());
+        assertNotSame(WeatherToolService.class, serviceClass);
+        return (ToolService) serviceClass.getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,152 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.InMemoryAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InMemoryAgentStateRepositoryTest {
+
+    @TempDir
+    Path spillDirectory;
+
+    @Test
+    void evictsTheLeastRecentlyReadThread() {
+        try (InMemoryAgentStateRepository repository = InMemoryAgentStateRepository.builder().maxEntries(2).build()) {
+            repository.save(state("a"));
+            repository.save(state("b"));
+            assertTrue(repository.findById("tenant", "a").isPresent());
+            repository.save(state("c"));
+
+            assertTrue(repository.exists("tenant", "a"));
+            assertFalse(repository.exists("tenant", "b"));
+            assertTrue(repository.exists("tenant", "c"));
+            assertEquals(1, repository.getEvictionCount());
+        }
+    }
+
+    @Test
+    void existsAndVersionChecksDoNotCountAsAccess() {
+        try (InMemoryAgentStateRepository repository = InMemoryAgentStateRepository.builder().maxEntries(2).build()) {
+            repository.save(state("a"));
+            repository.save(state("b"));
+            assertTrue(repository.exists("tenant", "a"));
+            assertFalse(repository.compareAndSave(state("a").setVersion(42)));
+            repository.save(state("c"));
+
+            assertFalse(repository.exists("tenant", "a"));
+            assertTrue(repository.exists("tenant", "b"));
+        }
+    }
+
+    @Test
+    void spillsEvictedThreadsAndChecksTheirVersionWithoutReloading() {
+        try (InMemoryAgentStateRepository repository = InMemoryAgentStateRepository.builder()
+                .maxEntries(1).spillDirectory(spillDirectory).build()) {
+            AgentState a = state("a");
+            assertTrue(repository.compareAndSave(a));
+            repository.save(state("b"));
+            assertEquals(1, repository.getSpilledEntryCount());
+
+            assertFalse(repository.compareAndSave(state("a")));
+            assertEquals(1, repository.getSpilledEntryCount());
+            assertTrue(repository.compareAndSave(state("a").setVersion(1)));
+
+            assertEquals(2, repository.findById("tenant", "a").orElseThrow().getVersion());
+            assertEquals(1, repository.getSpilledEntryCount());
+            assertTrue(repository.findById("tenant", "b").isPresent());
+        }
+    }
+
+    @Test
+    void expiresThreadsAfterWrite() throws InterruptedException {
+        try (InMemoryAgentStateRepository repository = InMemoryAgentStateRepository.builder()
+                .expireAfterWrite(Duration.ofMillis(100)).build()) {
+            repository.save(state("a"));
+            assertTrue(repository.findById("tenant", "a").isPresent());
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (repository.getExpirationCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, repository.getExpirationCount());
+            assertFalse(repository.findById("tenant", "a").isPresent());
+            assertEquals(0, repository.getEntryCount());
+        }
+    }
+
+    @Test
+    void readsExtendExpireAfterAccess() throws InterruptedException {
+        try (InMemoryAgentStateRepository repository = InMemoryAgentStateRepository.builder()
+                .expireAfterAccess(Duration.ofMillis(400)).build()) {
+            repository.save(state("read"));
+            repository.save(state("idle"));
+            for (int i = 0; i < 6; i++) {
+                Thread.sleep(100);
+                assertTrue(repository.findById("tenant", "read").isPresent());
+            }
+            assertTrue(repository.exists("tenant", "read"));
+            assertFalse(repository.exists("tenant", "idle"));
+        }
+    }
+
+    @Test
+    void batchResultsFollowTheRequestOrderAndLeaveOutMissingThreads() {
+        try (InMemoryAgentStateRepository repository = new InMemoryAgentStateRepository()) {
+            repository.saveAll(List.of(state("c").set("step", "three"), state("a").set("step", "one"), state("b").set("step", "two")));
+
+            Map<String, AgentState> found = repository.findAll("tenant", Arrays.asList("b", "missing", "a", null, "c"));
+
+            assertEquals(List.of("b", "a", "c"), List.copyOf(found.keySet()));
+            assertEquals("two", found.get("b").get("step"));
+            assertEquals(1, found.get("a").getVersion());
+            assertTrue(repository.findAll(null, List.of("a")).isEmpty());
+            assertEquals(1, repository.deleteAll("tenant", Arrays.asList("a", "missing", null)));
+            assertEquals(List.of("b", "c"), List.copyOf(repository.findAll("tenant", List.of("a", "b", "c")).keySet()));
+        }
+    }
+
+    @Test
+    void saveAllRejectsANullStateBeforeSavingAny() {
+        try (InMemoryAgentStateRepository repository = new InMemoryAgentStateRepository()) {
+            assertThrows(IllegalArgumentException.class, () -> repository.saveAll(Arrays.asList(state("a"), null)));
+
+            assertFalse(repository.exists("tenant", "a"));
+        }
+    }
+
+    @Test
+    void asyncOperationsReportFailuresThroughTheStage() throws Exception {
+        try (InMemoryAgentStateRepository repository = new InMemoryAgentStateRepository()) {
+            AgentState saved = state("a").set("step", "one");
+            repository.saveAsync(saved).toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+            Optional<AgentState> found = repository.findByIdAsync("tenant", "a").toCompletableFuture().get(5, TimeUnit.SECONDS);
+            assertEquals("one", found.orElseThrow().get("step"));
+            assertEquals(1, saved.getVersion());
+            assertTrue(repository.findByIdAsync("tenant", "missing").toCompletableFuture().get(5, TimeUnit.SECONDS).isEmpty());
+            assertTrue(repository.findByIdAsync(null, "a").toCompletableFuture().get(5, TimeUnit.SECONDS).isEmpty());
+
+            CompletableFuture<Void> rejected = assertDoesNotThrow(() -> repository.saveAsync(null).toCompletableFuture());
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, failure.getCause());
+        }
+    }
+
+    private static AgentState state(String threadId) {
+        return new AgentState("tenant", threadId, PersistenceMode.IN_MEMORY);
+    }
+}
@@ -0,0 +1,52 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import com.veyon.veyflow.state.InMemoryStateJournal;
+import com.veyon.veyflow.state.JournalAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bytes written per save by {@link JournalAgentStateRepository} versus rewriting the full state.
+ * <p>
+ * Simulates a conversation where every turn loads the state, appends a user message, a tool output and
+ * an assistant reply, updates a counter and saves. Not part of the test suite; run it manually with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.veyon.veyflow.JournalAgentStateBenchmark}.
+ * Arguments: {@code [turns] [toolOutputBytes]}.
+ */
+public class JournalAgentStateBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(JournalAgentStateBenchmark.class);
+
+    public static void main(String[] args) {
+        int turns = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int toolOutputBytes = args.length > 1 ? Integer.parseInt(args[1]) : 4 * 1024;
+
+        try (JournalAgentStateRepository repository = JournalAgentStateRepository.builder(new InMemoryStateJournal()).build()) {
+            AgentState state = new AgentState("bench-tenant", "bench-thread", PersistenceMode.REDIS);
+            state.set("locale", "en-GB").set("turn", 0);
+            repository.save(state);
+
+            long fullBytes = 0;
+            for (int turn = 0; turn < turns; turn++) {
+                AgentState loaded = repository.findById("bench-tenant", "bench-thread").orElseThrow();
+                loaded.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "Summarise report " + turn));
+                loaded.addChatMessage(new ChatMessage(ChatMessage.Role.TOOL, "{\"report\":\"" + "x".repeat(toolOutputBytes) + "\"}"));
+                loaded.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "Report " + turn + " is fine."));
+                loaded.set("turn", turn + 1);
+                loaded.setCurrentNode("summarise");
+                repository.save(loaded);
+                fullBytes += loaded.toJson().length();
+            }
+
+            log.info("{} turns, final state {} KiB", turns,
+                    repository.findById("bench-tenant", "bench-thread").orElseThrow().toJson().length() / 1024);
+            log.info("full rewrite: {} KiB written in total", fullBytes / 1024);
+            log.info("journal: {} KiB written in {} events ({}x less), plus {} snapshots",
+                    repository.getAppendedBytes() / 1024, repository.getAppendedEvents(),
+                    String.format("%.1f", (double) fullBytes / repository.getAppendedBytes()),
+                    repository.getSnapshots());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import com.veyon.veyflow.state.InMemoryStateJournal;
+import com.veyon.veyflow.state.JournalAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.StateEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Saves append only what changed, and replaying the journal, with or without a snapshot, must rebuild
+ * exactly the state that was saved.
+ */
+public class JournalReplayTest {
+
+    private final InMemoryStateJournal journal = new InMemoryStateJournal();
+
+    @Test
+    void savesAppendOnlyTheChanges() {
+        try (JournalAgentStateRepository repository = JournalAgentStateRepository.builder(journal).build()) {
+            AgentState state = new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY)
+                    .set("city", "Lisbon").set("limits", Map.of("max", 3));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "hello"));
+            repository.save(state);
+            int afterFirstSave = repository.getJournal("tenant", "t1").size();
+
+            state.set("city", "Porto");
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "hi"));
+            state.setCurrentNode("answer");
+            repository.save(state);
+
+            List<StateEvent> events = repository.getJournal("tenant", "t1");
+            List<StateEvent.Type> delta = new ArrayList<>();
+            for (StateEvent event : events.subList(afterFirstSave, events.size())) {
+                delta.add(event.getType());
+            }
+            assertEquals(4, delta.size(), delta.toString());
+            assertTrue(delta.containsAll(List.of(StateEvent.Type.VERSION_SET, StateEvent.Type.VALUE_SET,
+                    StateEvent.Type.MESSAGE_APPENDED, StateEvent.Type.NODE_TRANSITION)), delta.toString());
+
+            // Saving again without changes only advances the version
+            repository.save(state);
+            List<StateEvent> after = repository.getJournal("tenant", "t1");
+            assertEquals(events.size() + 1, after.size());
+            assertEquals(StateEvent.Type.VERSION_SET, after.get(after.size() - 1).getType());
+            assertEquals(3, state.getVersion());
+        }
+    }
+
+    @Test
+    void aFreshRepositoryRebuildsTheSavedState() {
+        AgentState saved;
+        long firstSequence;
+        try (JournalAgentStateRepository repository = JournalAgentStateRepository.builder(journal).build()) {
+            saved = conversation(repository);
+            firstSequence = repository.getJournal("tenant", "t1").get(0).getSequence();
+        }
+
+        try (JournalAgentStateRepository repository = JournalAgentStateRepository.builder(journal).build()) {
+            AgentState replayed = repository.findById("tenant", "t1").orElseThrow();
+            assertSameState(saved, replayed);
+
+            AgentState first = repository.findAtSequence("tenant", "t1", firstSequence).orElseThrow();
+            assertTrue(first.getChatMessageCount() <= 1);
+
+            // A save from the replayed state continues the same journal
+            replayed.set("turn", 4);
+            repository.save(replayed);
+        }
+        try (JournalAgentStateRepository repository = JournalAgentStateRepository.builder(journal).build()) {
+            AgentState continued = repository.findById("tenant", "t1").orElseThrow();
+            assertEquals(4, continued.<Number>get("turn").intValue());
+            assertEquals(saved.getVersion() + 1, continued.getVersion());
+        }
+    }
+
+    @Test
+    void replayingFromASnapshotGivesTheSameState() {
+        try (JournalAgentStateRepository repository = JournalAgentStateRepository.builder(journal)
+                .snapshotEvery(1_000).retainedEvents(2).build()) {
+            AgentState saved = conversation(repository);
+            AgentState beforeCompaction = repository.findById("tenant", "t1").orElseThrow();
+
+            assertTrue(repository.compact("tenant", "t1"));
+            assertTrue(repository.getJournal("tenant", "t1").size() <= 2);
+
+            assertSameState(saved, beforeCompaction);
+            try (JournalAgentStateRepository fresh = JournalAgentStateRepository.builder(journal).build()) {
+                assertSameState(saved, fresh.findById("tenant", "t1").orElseThrow());
+            }
+        }
+    }
+
+    /**
+     * Three turns of a conversation and an edit of the last question, saved after each.
+     */
+    private static AgentState conversation(JournalAgentStateRepository repository) {
+        AgentState state = new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY);
+        for (int turn = 1; turn <= 3; turn++) {
+            state.set("turn", turn).set("history", List.of("a", "b", String.valueOf(turn)));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "question " + turn));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "answer " + turn));
+            state.setCurrentNode("node" + turn);
+            repository.save(state);
+        }
+        // An edited conversation is cut back before it goes on
+        List<ChatMessage> kept = new ArrayList<>(state.getChatMessages().subList(0, 4));
+        kept.add(new ChatMessage(ChatMessage.Role.USER, "edited question"));
+        state.setChatMessages(kept);
+        repository.save(state);
+        return state;
+    }
+
+    private static void assertSameState(AgentState expected, AgentState actual) {
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getCurrentNode(), actual.getCurrentNode());
+        assertEquals(expected.getPreviousNode(), actual.getPreviousNode());
+        assertEquals(expected.getKeys(), actual.getKeys());
+        assertEquals(AgentState.fromJson(expected.toJson()).<Object>get("history"), actual.get("history"));
+        assertEquals(expected.getChatMessageCount(), actual.getChatMessageCount());
+        for (int i = 0; i < expected.getChatMessageCount(); i++) {
+            assertEquals(expected.getChatMessages().get(i).getContent(), actual.getChatMessages().get(i).getContent());
+            assertEquals(expected.getChatMessages().get(i).getRole(), actual.getChatMessages().get(i).getRole());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import com.veyon.veyflow.state.PersistenceMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Load-modify-save cost of eagerly versus lazily decoded {@link AgentState}s.
+ * <p>
+ * Each iteration decodes a stored state with large tool outputs, reads two values and the last three
+ * messages, sets one value and serializes the state again, which is what a typical node does. Not part
+ * of the test suite; run it manually with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.veyon.veyflow.LazyAgentStateBenchmark}.
+ * Arguments: {@code [iterations] [turns] [toolOutputBytes]}.
+ */
+public class LazyAgentStateBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(LazyAgentStateBenchmark.class);
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int turns = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int toolOutputBytes = args.length > 2 ? Integer.parseInt(args[2]) : 8 * 1024;
+
+        AgentState state = new AgentState("bench-tenant", "bench-thread", PersistenceMode.REDIS);
+        state.set("locale", "en-GB").set("step", 0);
+        for (int i = 0; i < 50; i++) {
+            state.set("slot-" + i, "value-" + i);
+        }
+        for (int turn = 0; turn < turns; turn++) {
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "Summarise report " + turn));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.TOOL, "{\"report\":\"" + "x".repeat(toolOutputBytes) + "\"}"));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "Report " + turn + " is fine."));
+        }
+        String json = state.toJson();
+        log.info("State: {} KiB, {} messages, {} values", json.length() / 1024, state.getChatMessageCount(), state.getKeys().size());
+
+        // Warm-up
+        run("warm-up", iterations / 4, json, AgentState::fromJson);
+        run("warm-up", iterations / 4, json, AgentState::fromJsonLazy);
+
+        run("eager", iterations, json, AgentState::fromJson);
+        run("lazy", iterations, json, AgentState::fromJsonLazy);
+    }
+
+    private static void run(String label, int iterations, String json, Function<String, AgentState> decoder) {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            AgentState loaded = decoder.apply(json);
+            String locale = loaded.get("locale");
+            Number step = loaded.get("step");
+            int count = loaded.getChatMessageCount();
+            List<ChatMessage> recent = loaded.getChatMessages(Math.max(0, count - 3), count);
+            loaded.set("step", step.intValue() + 1);
+            checksum += locale.length() + recent.get(recent.size() - 1).getContent().length() + loaded.toJson().length();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (!label.equals("warm-up")) {
+            log.info("{}: {} us per load-modify-save (checksum {})", label,
+                    String.format("%.1f", elapsed / 1_000.0 / iterations), checksum);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A lazily loaded state must write the values and messages it never decoded back exactly as it read
+ * them, and decode them to the same content as an eagerly loaded state.
+ */
+public class LazyJsonTest {
+
+    private static final String PRICE = "\"price\":1.50";
+    private static final String NAME = "\"name\":\"caf\\u00e9 \\\"au lait\\\"\"";
+    private static final String NESTED = "\"nested\":{\"b\":[2, 1],\"a\":{\"deep\":null}}";
+    private static final String MESSAGE = "{\"id\":\"m1\",\"role\":\"USER\",\"content\":\"brace } and bracket ] in text\","
+            + "\"metadata\":{},\"timestamp\":\"2026-01-02T03:04:05Z[Etc/UTC]\",\"toolCalls\":[]}";
+    private static final String JSON = "{\"version\":3,\"values\":{" + PRICE + "," + NAME + "," + NESTED + "},"
+            + "\"chatMessages\":[" + MESSAGE + "],\"currentNode\":\"a\",\"previousNode\":\"\","
+            + "\"threadId\":\"t1\",\"tenantId\":\"tenant\",\"persistenceMode\":\"IN_MEMORY\"}";
+
+    @Test
+    void writesUntouchedSpansBackVerbatim() {
+        AgentState state = AgentState.fromJsonLazy(JSON);
+        state.set("step", "next");
+        state.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "ok"));
+
+        String written = state.toJson();
+        assertTrue(written.contains(PRICE), written);
+        assertTrue(written.contains(NAME), written);
+        assertTrue(written.contains(NESTED), written);
+        assertTrue(written.contains(MESSAGE), written);
+        assertTrue(written.contains("\"step\":\"next\""), written);
+
+        // An eager load normalizes the same values, so the spans above were not re-encoded
+        assertFalse(AgentState.fromJson(JSON).toJson().contains(PRICE));
+    }
+
+    @Test
+    void decodesToTheSameContentAsAnEagerLoad() {
+        AgentState lazy = AgentState.fromJsonLazy(JSON);
+        AgentState eager = AgentState.fromJson(JSON);
+
+        assertEquals(3, lazy.getVersion());
+        assertEquals(eager.getKeys(), lazy.getKeys());
+        assertEquals((Object) eager.get("name"), lazy.get("name"));
+        assertEquals((Object) eager.get("nested"), lazy.get("nested"));
+        assertEquals("café \"au lait\"", lazy.get("name"));
+        assertEquals(1, lazy.getChatMessageCount());
+        assertEquals("brace } and bracket ] in text", lazy.getChatMessages().get(0).getContent());
+
+        // Once written back, the result reads like the original
+        AgentState reloaded = AgentState.fromJson(AgentState.fromJsonLazy(JSON).toJson());
+        assertEquals((Object) eager.get("price"), reloaded.get("price"));
+        assertEquals(eager.<Map<String, Object>>get("nested"), reloaded.get("nested"));
+    }
+}
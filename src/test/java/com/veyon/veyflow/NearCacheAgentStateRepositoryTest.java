@@ -0,0 +1,40 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.InMemoryAgentStateRepository;
+import com.veyon.veyflow.state.NearCacheAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NearCacheAgentStateRepositoryTest {
+
+    private final NearCacheAgentStateRepository repository =
+            NearCacheAgentStateRepository.builder(new InMemoryAgentStateRepository()).build();
+
+    @Test
+    void changingALoadedStateDoesNotChangeTheCachedOne() {
+        repository.save(new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY).set("step", "saved"));
+
+        AgentState first = repository.findById("tenant", "t1").orElseThrow();
+        first.set("step", "unsaved");
+        AgentState second = repository.findById("tenant", "t1").orElseThrow();
+
+        assertNotSame(first, second);
+        assertEquals("saved", second.get("step"));
+        assertEquals(2, repository.getHits());
+    }
+
+    @Test
+    void changingASavedStateAfterSavingDoesNotChangeTheCachedOne() {
+        AgentState state = new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY).set("step", "saved");
+        repository.saveAll(List.of(state));
+        state.set("step", "unsaved");
+
+        assertEquals("saved", repository.findAll("tenant", List.of("t1")).get("t1").get("step"));
+        assertEquals(1, repository.getHits());
+    }
+}
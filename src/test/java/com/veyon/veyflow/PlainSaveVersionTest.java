@@ -0,0 +1,130 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.AgentStateRepository;
+import com.veyon.veyflow.state.FileAgentStateRepository;
+import com.veyon.veyflow.state.InMemoryAgentStateRepository;
+import com.veyon.veyflow.state.InMemoryStateJournal;
+import com.veyon.veyflow.state.JournalAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.TieredAgentStateRepository;
+import com.veyon.veyflow.state.WriteBehindAgentStateRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A plain save must never move a thread's version back, or a compare-and-save that loaded the thread
+ * before it could succeed over the plain write.
+ */
+public class PlainSaveVersionTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void inMemory() {
+        assertMonotonic(new InMemoryAgentStateRepository(), () -> { });
+    }
+
+    @Test
+    void file() throws Exception {
+        try (FileAgentStateRepository repository = FileAgentStateRepository.builder(directory).build()) {
+            assertMonotonic(repository, () -> { });
+        }
+    }
+
+    @Test
+    void journal() {
+        try (JournalAgentStateRepository repository = JournalAgentStateRepository.builder(new InMemoryStateJournal()).build()) {
+            assertMonotonic(repository, () -> { });
+        }
+    }
+
+    @Test
+    void writeBehind() {
+        try (WriteBehindAgentStateRepository repository = WriteBehindAgentStateRepository
+                .builder(new InMemoryAgentStateRepository()).flushOnShutdown(false).build()) {
+            assertMonotonic(repository, repository::flush);
+        }
+    }
+
+    @Test
+    void movingBetweenTiersKeepsTheVersion() {
+        InMemoryAgentStateRepository hot = new InMemoryAgentStateRepository();
+        InMemoryAgentStateRepository cold = new InMemoryAgentStateRepository();
+        try (TieredAgentStateRepository repository = TieredAgentStateRepository.builder(hot, cold)
+                .demoteAfter(Duration.ofMillis(1)).sweepInterval(Duration.ofHours(1)).build()) {
+            AgentState state = state();
+            repository.save(state);
+            repository.save(state);
+            assertEquals(2, state.getVersion());
+
+            sleep(5);
+            assertEquals(1, repository.demoteIdle());
+            assertEquals(2, cold.findById("tenant", "t1").orElseThrow().getVersion());
+
+            AgentState loaded = repository.findById("tenant", "t1").orElseThrow().copy();
+            assertEquals(2, loaded.getVersion());
+            assertTrue(repository.compareAndSave(loaded));
+            assertEquals(3, loaded.getVersion());
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void assertMonotonic(AgentStateRepository repository, Runnable settle) {
+        AgentState created = state().set("step", "created");
+        repository.save(created);
+        assertEquals(1, created.getVersion());
+        repository.save(created);
+        assertEquals(2, created.getVersion());
+        settle.run();
+        assertEquals(2, load(repository).getVersion());
+
+        // A plain save between another writer's load and its compare-and-save makes the latter fail
+        AgentState first = load(repository);
+        AgentState second = load(repository).set("step", "second");
+        repository.save(second);
+        settle.run();
+        assertEquals(3, second.getVersion());
+        assertFalse(repository.compareAndSave(first.set("step", "first")));
+        assertEquals("second", load(repository).get("step"));
+
+        // A stale state does not take the version back
+        AgentState stale = state().set("step", "stale");
+        repository.save(stale);
+        settle.run();
+        assertEquals(4, load(repository).getVersion());
+
+        // Nor does a batch
+        AgentState other = new AgentState("tenant", "t2", PersistenceMode.IN_MEMORY);
+        repository.saveAll(List.of(state(), other));
+        settle.run();
+        assertEquals(5, load(repository).getVersion());
+        assertEquals(1, other.getVersion());
+
+        AgentState latest = load(repository);
+        assertTrue(repository.compareAndSave(latest));
+        assertEquals(6, latest.getVersion());
+    }
+
+    private static AgentState load(AgentStateRepository repository) {
+        return repository.findById("tenant", "t1").orElseThrow().copy();
+    }
+
+    private static AgentState state() {
+        return new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY);
+    }
+}
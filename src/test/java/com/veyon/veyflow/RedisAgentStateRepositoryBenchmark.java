@@ -0,0 +1,113 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.RedisAgentStateRepository;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.api.StatefulRedisConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput benchmark for {@link RedisAgentStateRepository} against a local Redis.
+ * <p>
+ * Compares the previous connect-per-operation access pattern with the shared multiplexed
+ * connection. Not part of the test suite; run it manually with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.veyon.veyflow.RedisAgentStateRepositoryBenchmark}.
+ * Arguments: {@code [redisUrl] [operations] [threads]}.
+ */
+public class RedisAgentStateRepositoryBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(RedisAgentStateRepositoryBenchmark.class);
+
+    public static void main(String[] args) throws Exception {
+        String redisUrl = args.length > 0 ? args[0] : "redis://localhost:6379";
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        String tenantId = "bench-tenant-" + UUID.randomUUID();
+
+        List<AgentState> states = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            AgentState state = new AgentState(tenantId, "thread-" + i, PersistenceMode.REDIS);
+            state.set("counter", i);
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "What is the weather like in London?"));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "It is sunny and 21 degrees."));
+            states.add(state);
+        }
+
+        RedisClient client = RedisClient.create(redisUrl);
+        try {
+            // Warm-up so both runs start with loaded classes and a resolved host.
+            run("warm-up", operations / 10, threads, states, state -> connectPerOperation(client, state));
+
+            double before = run("connect-per-operation", operations, threads, states, state -> connectPerOperation(client, state));
+
+            double after;
+            try (RedisAgentStateRepository repository = new RedisAgentStateRepository(redisUrl)) {
+                after = run("shared-connection", operations, threads, states, state -> {
+                    repository.save(state);
+                    repository.findById(state.getTenantId(), state.getThreadId());
+                });
+                for (AgentState state : states) {
+                    repository.delete(state.getTenantId(), state.getThreadId());
+                }
+            }
+            log.info("Speed-up: {}x", String.format("%.1f", after / before));
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * The access pattern used before the repository kept a long-lived connection.
+     */
+    private static void connectPerOperation(RedisClient client, AgentState state) {
+        String key = "agentstate:" + state.getTenantId() + "::" + state.getThreadId();
+        try (StatefulRedisConnection<String, String> connection = client.connect()) {
+            connection.sync().setex(key, 600, state.toJson());
+        }
+        try (StatefulRedisConnection<String, String> connection = client.connect()) {
+            AgentState.fromJson(connection.sync().get(key));
+        }
+    }
+
+    private interface Operation {
+        void apply(AgentState state) throws Exception;
+    }
+
+    private static double run(String label, int operations, int threads, List<AgentState> states, Operation operation) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        int perThread = operations / threads;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    try {
+                        operation.apply(states.get((offset + i) % states.size()));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }, pool));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        // Each operation is one save plus one load.
+        double opsPerSecond = (perThread * threads * 2) / (elapsed / 1_000_000_000.0);
+        log.info("{}: {} ops/sec ({} threads)", label, String.format("%.0f", opsPerSecond), threads);
+        return opsPerSecond;
+    }
+}
@@ -0,0 +1,228 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.RedisAgentStateRepository;
+import com.veyon.veyflow.state.RedisKeyLayout;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisConnectionException;
+import io.lettuce.core.api.StatefulRedisConnection;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The batch and asynchronous operations keep the repository contract: batch results follow the request
+ * order and leave out missing threads, a null state is rejected before anything is written, and an
+ * asynchronous operation reports every failure through its stage instead of throwing it. Callers sharing
+ * the one connection only ever see their own results, also while the save script is not cached on the
+ * server. Tests that need a server are skipped when no Redis is listening on localhost.
+ */
+public class RedisAgentStateRepositoryTest {
+
+    private static final String REDIS_URL = "redis://localhost:6379";
+
+    private static boolean redisAvailable;
+
+    private final String tenantId = "test-" + UUID.randomUUID();
+    private RedisAgentStateRepository repository;
+    private RedisClient client;
+
+    @BeforeAll
+    static void probeRedis() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", 6379), 200);
+            redisAvailable = true;
+        } catch (IOException e) {
+            redisAvailable = false;
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (repository != null) {
+            repository.purgeTenant(tenantId);
+            repository.close();
+        }
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    void asyncOperationsReportAnUnreachableServerThroughTheStage() {
+        try (RedisAgentStateRepository unreachable = new RedisAgentStateRepository("redis://localhost:1", 0)) {
+            CompletableFuture<Void> save = assertDoesNotThrow(() -> unreachable.saveAsync(state("t1", "one")).toCompletableFuture());
+            CompletableFuture<?> find = assertDoesNotThrow(() -> unreachable.findByIdAsync(tenantId, "t1").toCompletableFuture());
+
+            assertInstanceOf(RedisConnectionException.class, failure(save));
+            assertInstanceOf(RedisConnectionException.class, failure(find));
+        }
+    }
+
+    @Test
+    void batchResultsFollowTheRequestOrderAndLeaveOutMissingThreads() {
+        redis();
+        AgentState c = state("c", "three");
+        repository.saveAll(List.of(c, state("a", "one"), state("b", "two")));
+        repository.saveAll(List.of(c));
+
+        Map<String, AgentState> found = repository.findAll(tenantId, Arrays.asList("b", "missing", "a", null, "c"));
+
+        assertEquals(List.of("b", "a", "c"), List.copyOf(found.keySet()));
+        assertEquals("two", found.get("b").get("step"));
+        assertEquals(1, found.get("a").getVersion());
+        assertEquals(2, c.getVersion());
+        assertEquals(2, found.get("c").getVersion());
+        assertEquals(1, repository.deleteAll(tenantId, Arrays.asList("a", "missing", null)));
+        assertEquals(List.of("b", "c"), List.copyOf(repository.findAll(tenantId, List.of("a", "b", "c")).keySet()));
+    }
+
+    @Test
+    void saveAllRejectsANullStateBeforeWritingAny() {
+        redis();
+
+        assertThrows(IllegalArgumentException.class, () -> repository.saveAll(Arrays.asList(state("a", "one"), null)));
+
+        assertFalse(repository.exists(tenantId, "a"));
+    }
+
+    @Test
+    void asyncOperationsReportFailuresThroughTheStage() throws Exception {
+        redis();
+        AgentState saved = state("a", "one");
+        repository.saveAsync(saved).toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, saved.getVersion());
+        assertEquals("one", await(repository.findByIdAsync(tenantId, "a")).orElseThrow().get("step"));
+        assertTrue(await(repository.findByIdAsync(tenantId, "missing")).isEmpty());
+        assertTrue(await(repository.findByIdAsync(tenantId, null)).isEmpty());
+
+        CompletableFuture<Void> rejected = assertDoesNotThrow(() -> repository.saveAsync(null).toCompletableFuture());
+        assertInstanceOf(IllegalArgumentException.class, failure(rejected));
+        try (StatefulRedisConnection<String, String> shared = client.connect();
+             RedisAgentStateRepository hashTagged = new RedisAgentStateRepository(shared, RedisKeyLayout.TENANT_HASH_TAG)) {
+            AgentState unembeddable = new AgentState("a}b", "t1", PersistenceMode.REDIS);
+            assertInstanceOf(IllegalArgumentException.class, failure(hashTagged.saveAsync(unembeddable).toCompletableFuture()));
+        }
+
+        // A key of another type makes Redis itself fail the command
+        try (StatefulRedisConnection<String, String> raw = client.connect()) {
+            raw.sync().lpush("agentstate:" + tenantId + "::list", "x");
+        }
+        assertInstanceOf(RedisCommandExecutionException.class, failure(repository.findByIdAsync(tenantId, "list").toCompletableFuture()));
+    }
+
+    @Test
+    void concurrentCallersOnTheSharedConnectionSeeOnlyTheirOwnResults() throws Exception {
+        redis();
+        try (StatefulRedisConnection<String, String> raw = client.connect()) {
+            raw.sync().scriptFlush(); // every save path must fall back from EVALSHA to EVAL at first
+        }
+        int callers = 16;
+        int rounds = 40;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int c = 0; c < callers; c++) {
+                String threadId = "caller-" + c;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    AgentState state = new AgentState(tenantId, threadId, PersistenceMode.REDIS);
+                    for (int round = 0; round < rounds; round++) {
+                        String step = threadId + "/" + round;
+                        state.set("step", step);
+                        switch (round % 4) {
+                            case 0 -> repository.save(state);
+                            case 1 -> await(repository.saveAsync(state));
+                            case 2 -> repository.saveReactive(state).block();
+                            default -> repository.saveAll(List.of(state));
+                        }
+                        assertEquals(round + 1, state.getVersion(), step);
+
+                        AgentState loaded = (round % 2 == 0)
+                                ? repository.findById(tenantId, threadId).orElseThrow()
+                                : await(repository.findByIdAsync(tenantId, threadId)).orElseThrow();
+                        assertEquals(step, loaded.get("step"));
+                        assertEquals(round + 1, loaded.getVersion(), step);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(callers, repository.scanByTenant(tenantId).count());
+    }
+
+    @Test
+    void savesSendTheScriptBodyOnlyWhenTheServerLacksIt() {
+        redis();
+        try (StatefulRedisConnection<String, String> raw = client.connect()) {
+            raw.sync().scriptFlush();
+            AgentState state = state("t1", "one");
+            repository.saveAsync(state).toCompletableFuture().join();
+            long evalCalls = evalCalls(raw);
+
+            repository.saveAsync(state).toCompletableFuture().join();
+            repository.saveAll(List.of(state, state("t2", "two")));
+            repository.saveReactive(state).block();
+            repository.save(state);
+
+            assertEquals(evalCalls, evalCalls(raw));
+            assertEquals(5, state.getVersion());
+        }
+    }
+
+    private static long evalCalls(StatefulRedisConnection<String, String> raw) {
+        Matcher calls = Pattern.compile("cmdstat_eval:calls=(\\d+)").matcher(raw.sync().info("commandstats"));
+        return calls.find() ? Long.parseLong(calls.group(1)) : 0;
+    }
+
+    private RedisAgentStateRepository redis() {
+        assumeTrue(redisAvailable, "Redis is not running on localhost:6379");
+        client = RedisClient.create(REDIS_URL);
+        repository = new RedisAgentStateRepository(REDIS_URL);
+        return repository;
+    }
+
+    private AgentState state(String threadId, String step) {
+        return new AgentState(tenantId, threadId, PersistenceMode.REDIS).set("step", step);
+    }
+
+    private static <T> T await(CompletionStage<T> stage) throws Exception {
+        return stage.toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) {
+        return assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS)).getCause();
+    }
+}
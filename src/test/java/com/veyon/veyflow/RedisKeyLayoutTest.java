@@ -0,0 +1,31 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.RedisKeyLayout;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RedisKeyLayoutTest {
+
+    @Test
+    void hashTagLayoutRoundTripsTenantIds() {
+        for (String tenantId : new String[] {"acme", "a:b", "tenant-42"}) {
+            String segment = RedisKeyLayout.TENANT_HASH_TAG.tenantSegment(tenantId);
+            assertEquals("{" + tenantId + "}", segment);
+            assertEquals(tenantId, RedisKeyLayout.TENANT_HASH_TAG.tenantFromSegment(segment));
+        }
+    }
+
+    @Test
+    void hashTagLayoutRejectsBracesThatWouldChangeTheHashTag() {
+        assertThrows(IllegalArgumentException.class, () -> RedisKeyLayout.TENANT_HASH_TAG.tenantSegment("a}x{b"));
+        assertThrows(IllegalArgumentException.class, () -> RedisKeyLayout.TENANT_HASH_TAG.tenantSegment("{a"));
+        assertThrows(IllegalArgumentException.class, () -> RedisKeyLayout.TENANT_HASH_TAG.tenantSegment("a}"));
+    }
+
+    @Test
+    void legacyLayoutKeepsTenantIdsAsTheyAre() {
+        assertEquals("a}x{b", RedisKeyLayout.LEGACY.tenantSegment("a}x{b"));
+        assertEquals("a}x{b", RedisKeyLayout.LEGACY.tenantFromSegment("a}x{b"));
+    }
+}
@@ -0,0 +1,96 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.StateCodec;
+import com.veyon.veyflow.state.StateDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Payload size and encoding cost of {@link StateCodec} on chat-history states.
+ * <p>
+ * Compares the bytes sent to and stored by Redis per save as plain JSON, deflated, and deflated with
+ * a dictionary trained from a separate sample of states. Not part of the test suite; run it manually with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.veyon.veyflow.StateCodecBenchmark}.
+ * Arguments: {@code [states] [turns]}.
+ */
+public class StateCodecBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(StateCodecBenchmark.class);
+
+    private static final String SYSTEM_PROMPT = "You are a helpful travel assistant. Answer concisely, use the "
+            + "available tools to look up weather and flights, and never invent prices or schedules.";
+    private static final String[] CITIES = {"London", "Paris", "Berlin", "Madrid", "Rome", "Lisbon", "Vienna", "Prague"};
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int turns = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        Random random = new Random(42);
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            samples.add(state("sample-" + i, turns, random).toJson());
+        }
+        List<AgentState> states = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            states.add(state("thread-" + i, turns, random));
+        }
+
+        long start = System.nanoTime();
+        StateDictionary dictionary = StateDictionary.train(samples, StateDictionary.MAX_BYTES);
+        log.info("Trained a {} byte dictionary from {} samples in {} ms", dictionary.size(), samples.size(),
+                (System.nanoTime() - start) / 1_000_000);
+
+        run("plain", StateCodec.uncompressed(), states);
+        run("deflate", StateCodec.builder().build(), states);
+        run("deflate-fast", StateCodec.builder().level(PersistenceMode.REDIS, 1).build(), states);
+        run("deflate-dictionary", StateCodec.builder().dictionary(dictionary).build(), states);
+    }
+
+    private static void run(String label, StateCodec codec, List<AgentState> states) {
+        List<String> payloads = new ArrayList<>(states.size());
+        // Warm-up; it is counted too, hence the halved byte counters below
+        for (AgentState state : states) {
+            codec.decode(codec.encode(state.toJson(), PersistenceMode.REDIS));
+        }
+        long encodeStart = System.nanoTime();
+        for (AgentState state : states) {
+            payloads.add(codec.encode(state.toJson(), PersistenceMode.REDIS));
+        }
+        long encodeNanos = System.nanoTime() - encodeStart;
+        long decodeStart = System.nanoTime();
+        for (String payload : payloads) {
+            AgentState.fromJson(codec.decode(payload));
+        }
+        long decodeNanos = System.nanoTime() - decodeStart;
+
+        long raw = codec.getRawBytes() / 2;
+        long stored = codec.getStoredBytes() / 2;
+        log.info("{}: {} bytes/save (raw {}), ratio {}, encode {} us/state, decode {} us/state", label,
+                stored / states.size(), raw / states.size(), String.format("%.2f", codec.getCompressionRatio()),
+                String.format("%.1f", encodeNanos / 1_000.0 / states.size()),
+                String.format("%.1f", decodeNanos / 1_000.0 / states.size()));
+    }
+
+    private static AgentState state(String threadId, int turns, Random random) {
+        AgentState state = new AgentState("bench-tenant", threadId, PersistenceMode.REDIS);
+        state.set("locale", "en-GB");
+        state.addChatMessage(new ChatMessage(ChatMessage.Role.SYSTEM, SYSTEM_PROMPT));
+        for (int turn = 0; turn < turns; turn++) {
+            String city = CITIES[random.nextInt(CITIES.length)];
+            int temperature = 5 + random.nextInt(25);
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "What is the weather like in " + city + " tomorrow?"));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.TOOL, "{\"tool\":\"get_weather\",\"city\":\"" + city
+                    + "\",\"temperature_celsius\":" + temperature + ",\"conditions\":\"partly cloudy\",\"humidity\":"
+                    + (40 + random.nextInt(50)) + "}"));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "Tomorrow in " + city + " it will be partly cloudy with "
+                    + temperature + " degrees."));
+        }
+        return state;
+    }
+}
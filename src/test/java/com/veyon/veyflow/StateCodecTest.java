@@ -0,0 +1,72 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.StateCodec;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Binary backends store compressed frames without Base64 and still read the text frames written
+ * before; every repository's default codec counts only its own payloads.
+ */
+public class StateCodecTest {
+
+    private final StateCodec codec = StateCodec.builder().build();
+
+    @Test
+    void binaryFramesRoundTripAndSkipBase64() {
+        String json = chatState().toJson();
+
+        byte[] binary = codec.encodeToBytes(json, PersistenceMode.REDIS);
+        String text = codec.encode(json, PersistenceMode.REDIS);
+
+        assertEquals(json, codec.decode(binary));
+        assertEquals(json, codec.decode(text));
+        assertTrue(binary.length < text.length() * 0.8, binary.length + " vs " + text.length());
+        assertTrue(new String(binary, 0, 8, StandardCharsets.ISO_8859_1).startsWith("\u001Fz2:7:0:"));
+        assertEquals(7, AgentState.fromJson(codec.decode(binary)).getVersion());
+    }
+
+    @Test
+    void binaryPayloadsAlsoHoldTextFramesAndPlainJson() {
+        String json = chatState().toJson();
+
+        assertEquals(json, codec.decode(codec.encode(json, PersistenceMode.REDIS).getBytes(StandardCharsets.UTF_8)));
+        assertEquals(json, codec.decode(json.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("{\"version\":1}", codec.decode(codec.encodeToBytes("{\"version\":1}", PersistenceMode.REDIS)));
+        assertNull(codec.decode((byte[]) null));
+    }
+
+    @Test
+    void binaryFramesCannotBeReadAsText() {
+        byte[] binary = codec.encodeToBytes(chatState().toJson(), PersistenceMode.REDIS);
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(new String(binary, StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void defaultCodecsKeepSeparateMetrics() {
+        StateCodec first = StateCodec.uncompressed();
+        StateCodec second = StateCodec.uncompressed();
+        assertNotSame(first, second);
+
+        String json = chatState().toJson();
+        assertArrayEquals(json.getBytes(StandardCharsets.UTF_8), first.encodeToBytes(json, PersistenceMode.REDIS));
+        assertEquals(1, first.getPayloadCount());
+        assertEquals(0, first.getCompressedPayloadCount());
+        assertEquals(0, second.getPayloadCount());
+    }
+
+    private static AgentState chatState() {
+        AgentState state = new AgentState("tenant", "t1", PersistenceMode.REDIS).setVersion(7);
+        for (int i = 0; i < 20; i++) {
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "What is the weather in Lisbon on day " + i + "?"));
+            state.addChatMessage(new ChatMessage(ChatMessage.Role.ASSISTANT, "It is sunny in Lisbon on day " + i + "."));
+        }
+        return state;
+    }
+}
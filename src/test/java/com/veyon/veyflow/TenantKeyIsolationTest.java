@@ -0,0 +1,78 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.AgentStateRepository;
+import com.veyon.veyflow.state.FileAgentStateRepository;
+import com.veyon.veyflow.state.InMemoryAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.WriteBehindAgentStateRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tenant keys are {@code tenant::thread}; a tenant ID must never be able to reach into another tenant's
+ * keys through that separator.
+ */
+public class TenantKeyIsolationTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void purgeTenantOnlyRemovesItsOwnThreadsInMemory() {
+        assertIsolated(new InMemoryAgentStateRepository());
+    }
+
+    @Test
+    void purgeTenantOnlyRemovesItsOwnThreadsOnFile() throws Exception {
+        try (FileAgentStateRepository repository = FileAgentStateRepository.builder(directory).build()) {
+            assertIsolated(repository);
+        }
+    }
+
+    @Test
+    void purgeTenantOnlyRemovesItsOwnThreadsBehindWriteBehind() {
+        try (WriteBehindAgentStateRepository repository = WriteBehindAgentStateRepository
+                .builder(new InMemoryAgentStateRepository()).flushOnShutdown(false).build()) {
+            assertIsolated(repository, repository::flush);
+        }
+    }
+
+    private static void assertIsolated(AgentStateRepository repository) {
+        assertIsolated(repository, () -> { });
+    }
+
+    private static void assertIsolated(AgentStateRepository repository, Runnable settle) {
+        // The IDs that would have shared tenant a's key prefix cannot be stored
+        assertThrows(IllegalArgumentException.class, () -> repository.save(state("a::b", "t1")));
+        assertThrows(IllegalArgumentException.class, () -> repository.save(state("a:", ":t1")));
+        assertThrows(IllegalArgumentException.class, () -> repository.validateIds("a::b", "t1"));
+        assertThrows(IllegalArgumentException.class, () -> repository.purgeTenant("a::b"));
+
+        repository.save(state("a", "t1"));
+        repository.save(state("a", "b::t1"));
+        repository.save(state("a:b", "t1"));
+        repository.save(state("ab", "t1"));
+        settle.run();
+
+        assertEquals(2, repository.purgeTenant("a"));
+        assertFalse(repository.exists("a", "t1"));
+        assertFalse(repository.exists("a", "b::t1"));
+        assertTrue(repository.exists("a:b", "t1"));
+        assertTrue(repository.exists("ab", "t1"));
+        try (Stream<AgentState> states = repository.scanByTenant("a:b")) {
+            assertEquals(List.of("t1"), states.map(AgentState::getThreadId).collect(Collectors.toList()));
+        }
+    }
+
+    private static AgentState state(String tenantId, String threadId) {
+        return new AgentState(tenantId, threadId, PersistenceMode.IN_MEMORY);
+    }
+}
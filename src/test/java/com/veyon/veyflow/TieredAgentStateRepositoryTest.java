@@ -0,0 +1,174 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.FileAgentStateRepository;
+import com.veyon.veyflow.state.InMemoryAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.StateRetentionPolicy;
+import com.veyon.veyflow.state.TieredAgentStateRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A thread lives in exactly one tier: idle threads move to the cold tier, and the next read brings them
+ * back with their version. Threads the repository has never seen, such as those left in the hot tier by
+ * a restart, must be demoted as well instead of expiring there.
+ */
+public class TieredAgentStateRepositoryTest {
+
+    @TempDir
+    Path directory;
+
+    private InMemoryAgentStateRepository hot;
+    private FileAgentStateRepository cold;
+
+    @BeforeEach
+    void setUp() {
+        hot = new InMemoryAgentStateRepository();
+        cold = FileAgentStateRepository.builder(directory).compressValues(true).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        cold.close();
+        hot.close();
+    }
+
+    @Test
+    void demotesThreadsIdleLongerThanDemoteAfter() throws Exception {
+        try (TieredAgentStateRepository tiered = TieredAgentStateRepository.builder(hot, cold)
+                .demoteAfter(Duration.ofMillis(200)).sweepInterval(Duration.ofMillis(20)).build()) {
+            tiered.save(state("idle", "one"));
+            tiered.save(state("active", "two"));
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (tiered.getDemotions() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+                assertTrue(tiered.findById("tenant", "active").isPresent());
+            }
+            assertEquals(1, tiered.getDemotions());
+
+            assertTrue(hot.findById("tenant", "idle").isEmpty());
+            assertEquals("one", cold.findById("tenant", "idle").orElseThrow().get("step"));
+            assertTrue(hot.findById("tenant", "active").isPresent());
+            assertTrue(cold.findById("tenant", "active").isEmpty());
+            assertEquals(1, tiered.getTrackedCount());
+        }
+    }
+
+    @Test
+    void promotesADemotedThreadOnRead() throws Exception {
+        try (TieredAgentStateRepository tiered = TieredAgentStateRepository.builder(hot, cold)
+                .demoteAfter(Duration.ofMillis(1)).sweepInterval(Duration.ofHours(1)).build()) {
+            AgentState saved = state("t1", "one");
+            tiered.save(saved);
+            tiered.save(saved);
+            Thread.sleep(5);
+            assertEquals(1, tiered.demoteIdle());
+
+            AgentState promoted = tiered.findById("tenant", "t1").orElseThrow();
+
+            assertEquals("one", promoted.get("step"));
+            assertEquals(saved.getVersion(), promoted.getVersion());
+            assertTrue(hot.findById("tenant", "t1").isPresent());
+            assertTrue(cold.findById("tenant", "t1").isEmpty());
+            assertEquals(1, tiered.getPromotions());
+
+            // The promoted version is the one compareAndSave checks against
+            assertTrue(tiered.compareAndSave(promoted.set("step", "two")));
+            assertEquals("two", tiered.findById("tenant", "t1").orElseThrow().get("step"));
+        }
+    }
+
+    @Test
+    void deletesFromBothTiers() throws Exception {
+        try (TieredAgentStateRepository tiered = TieredAgentStateRepository.builder(hot, cold)
+                .demoteAfter(Duration.ofMillis(1)).sweepInterval(Duration.ofHours(1)).build()) {
+            tiered.save(state("demoted", "one"));
+            Thread.sleep(5);
+            tiered.demoteIdle();
+            tiered.save(state("hot", "two"));
+            // A stale copy in each tier, as left by an interrupted demotion
+            hot.save(state("both", "three"));
+            cold.save(state("both", "three"));
+            hot.save(state("batch", "four"));
+            cold.save(state("batch", "four"));
+
+            assertTrue(tiered.delete("tenant", "demoted"));
+            assertTrue(tiered.delete("tenant", "hot"));
+            assertTrue(tiered.delete("tenant", "both"));
+            assertFalse(tiered.delete("tenant", "both"));
+            assertEquals(2, tiered.deleteAll("tenant", List.of("batch", "missing")));
+
+            for (String threadId : List.of("demoted", "hot", "both", "batch")) {
+                assertFalse(hot.exists("tenant", threadId), threadId);
+                assertFalse(cold.exists("tenant", threadId), threadId);
+                assertTrue(tiered.findById("tenant", threadId).isEmpty(), threadId);
+            }
+            assertEquals(0, tiered.getTrackedCount());
+        }
+    }
+
+    @Test
+    void demotesEachTenantWithinHalfItsTtl() throws Exception {
+        StateRetentionPolicy policy = StateRetentionPolicy.builder()
+                .defaultTtl(Duration.ofHours(1))
+                .tenantTtl("brief", Duration.ofSeconds(1))
+                .build();
+        try (TieredAgentStateRepository tiered = TieredAgentStateRepository.builder(hot, cold)
+                .demoteAfter(Duration.ofMinutes(5)).sweepInterval(Duration.ofMillis(50)).retentionPolicy(policy).build()) {
+            tiered.save(new AgentState("brief", "t1", PersistenceMode.IN_MEMORY));
+            tiered.save(new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY));
+
+            Thread.sleep(300);
+            assertEquals(0, tiered.getDemotions());
+            waitUntil(() -> tiered.getDemotions() == 1);
+
+            assertTrue(cold.exists("brief", "t1"));
+            assertTrue(hot.exists("tenant", "t1"));
+        }
+    }
+
+    @Test
+    void reconcilesThreadsLeftInTheHotTierByARestart() throws Exception {
+        hot.save(state("left-idle", "one"));
+        hot.save(state("left-active", "two"));
+        hot.save(new AgentState("other", "t1", PersistenceMode.IN_MEMORY));
+
+        try (TieredAgentStateRepository tiered = TieredAgentStateRepository.builder(hot, cold)
+                .demoteAfter(Duration.ofMinutes(1)).sweepInterval(Duration.ofHours(1))
+                .reconcileTenants(List.of("tenant")).build()) {
+            waitUntil(() -> tiered.getTrackedCount() == 2);
+            assertTrue(tiered.findById("tenant", "left-active").isPresent());
+
+            assertEquals(1, tiered.demoteIdle());
+            assertTrue(cold.exists("tenant", "left-idle"));
+            assertTrue(hot.exists("tenant", "left-active"));
+            assertTrue(hot.exists("other", "t1")); // not reconciled
+            assertEquals(0, tiered.reconcile("tenant"));
+            assertEquals(1, tiered.reconcile("other"));
+        }
+    }
+
+    private static AgentState state(String threadId, String step) {
+        return new AgentState("tenant", threadId, PersistenceMode.IN_MEMORY).set("step", step);
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,99 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.config.ToolActivationIndex;
+import com.veyon.veyflow.config.WorkflowConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Configurations with equal tool activations share one index and its version, different activations get
+ * different versions, and a lookup answers exactly what the configuration activates. Nothing outside a
+ * configuration can change its activations behind its index.
+ */
+public class ToolActivationIndexTest {
+
+    private static final String WEATHER = "com.example.WeatherToolService";
+    private static final String BOOKING = "com.example.BookingToolService";
+
+    @Test
+    void equalActivationsShareOneIndex() {
+        WorkflowConfig first = new WorkflowConfig("first");
+        first.activateToolMethods(WEATHER, List.of("getWeather", "getForecast"));
+        first.activateAllToolMethodsForService(BOOKING);
+        WorkflowConfig second = new WorkflowConfig("second");
+        second.activateAllToolMethodsForService(BOOKING);
+        second.activateToolMethods(WEATHER, List.of("getForecast", "getWeather", "getWeather"));
+
+        assertSame(first.getToolActivationIndex(), second.getToolActivationIndex());
+        assertEquals(first.getToolActivationIndex().getVersion(), second.getToolActivationIndex().getVersion());
+        assertSame(ToolActivationIndex.of(Map.of(BOOKING, List.of("book", "*"))),
+                ToolActivationIndex.of(Map.of(BOOKING, List.of("*"))));
+        assertSame(ToolActivationIndex.EMPTY, new WorkflowConfig("empty").getToolActivationIndex());
+    }
+
+    @Test
+    void differentActivationsGetDifferentVersions() {
+        WorkflowConfig config = new WorkflowConfig("tenant");
+        config.activateToolMethods(WEATHER, List.of("getWeather"));
+        ToolActivationIndex before = config.getToolActivationIndex();
+
+        config.activateToolMethods(WEATHER, List.of("getWeather", "getForecast"));
+        ToolActivationIndex after = config.getToolActivationIndex();
+
+        assertNotSame(before, after);
+        assertNotEquals(before.getVersion(), after.getVersion());
+        assertNotEquals(after.getVersion(), ToolActivationIndex.of(Map.of(BOOKING, List.of("getWeather", "getForecast"))).getVersion());
+        assertNotEquals(after.getVersion(), ToolActivationIndex.of(Map.of(WEATHER, List.of("*"))).getVersion());
+    }
+
+    @Test
+    void looksUpEachMethodInItsServiceBitset() {
+        List<String> methods = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            methods.add("method" + i);
+        }
+        List<String> active = new ArrayList<>();
+        for (int i = 0; i < methods.size(); i += 7) {
+            active.add(methods.get(i)); // spans several 64-bit words
+        }
+        // Another index gives the service's methods their bits in a different order
+        ToolActivationIndex other = ToolActivationIndex.of(Map.of(WEATHER, List.of("method149", "method3")));
+        ToolActivationIndex index = ToolActivationIndex.of(Map.of(WEATHER, active, BOOKING, List.of()));
+
+        for (String method : methods) {
+            assertEquals(active.contains(method), index.isActive(WEATHER, method), method);
+            assertEquals(method.equals("method149") || method.equals("method3"), other.isActive(WEATHER, method), method);
+            assertFalse(index.isActive(BOOKING, method), method);
+        }
+        assertFalse(index.isActive(WEATHER, "unknown"));
+        assertFalse(index.isActive("com.example.Unknown", "method0"));
+        assertFalse(index.isActive(null, "method0"));
+        assertTrue(index.isServiceConfigured(BOOKING));
+        assertFalse(index.isServiceConfigured("com.example.Unknown"));
+    }
+
+    @Test
+    void activationsCannotBeChangedFromOutside() {
+        List<String> methods = new ArrayList<>(List.of("getWeather"));
+        Map<String, List<String>> services = new HashMap<>(Map.of(WEATHER, methods));
+        WorkflowConfig config = new WorkflowConfig("tenant");
+        config.setConfiguredToolServices(services);
+        ToolActivationIndex index = config.getToolActivationIndex();
+
+        methods.add("getForecast");
+        services.put(BOOKING, List.of("*"));
+        assertThrows(UnsupportedOperationException.class, () -> config.getConfiguredToolServices().get(WEATHER).add("getForecast"));
+        assertThrows(UnsupportedOperationException.class, () -> config.getConfiguredToolServices().remove(WEATHER));
+
+        assertEquals(Map.of(WEATHER, List.of("getWeather")), config.getConfiguredToolServices());
+        assertSame(index, config.getToolActivationIndex());
+        assertFalse(config.isToolMethodActive(WEATHER, "getForecast"));
+        assertFalse(config.isToolServiceConfigured(BOOKING));
+    }
+}
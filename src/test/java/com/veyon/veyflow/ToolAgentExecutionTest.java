@@ -0,0 +1,462 @@
+package com.veyon.veyflow;
+
+import com.google.gson.JsonParser;
+import com.veyon.veyflow.config.WorkflowConfig;
+import com.veyon.veyflow.core.AgentTurnResult;
+import com.veyon.veyflow.core.ToolAgent;
+import com.veyon.veyflow.foundationmodels.FoundationModelService;
+import com.veyon.veyflow.foundationmodels.ModelTurnResponse;
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.ChatMessage;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.tools.Tool;
+import com.veyon.veyflow.tools.ToolAnnotation;
+import com.veyon.veyflow.tools.ToolBatch;
+import com.veyon.veyflow.tools.ToolCall;
+import com.veyon.veyflow.tools.ToolParameter;
+import com.veyon.veyflow.tools.ToolService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The tool calls of one model response run at most {@code toolParallelism} at a time, and tools that are
+ * not thread-safe one at a time; whatever order they finish in, results reach the history in the order
+ * the model issued the calls, and a failing call only fails its own result. Asynchronous tools hold no
+ * thread while their stage is pending. Calls to a tool with a batch variant share one invocation of it,
+ * and each call gets the result at its own position. Equal tool activations share one list of declarations.
+ */
+public class ToolAgentExecutionTest {
+
+    /**
+     * Answers the first request with the given tool calls and every later one with text, and records the
+     * declarations of every request.
+     */
+    public static class ScriptedModelService implements FoundationModelService {
+        private List<ToolCall> toolCalls = List.of();
+        private final AtomicInteger requests = new AtomicInteger();
+        final List<List<Tool>> declarations = new CopyOnWriteArrayList<>();
+
+        void respondWith(ToolCall... calls) {
+            toolCalls = List.of(calls);
+            requests.set(0);
+        }
+
+        @Override
+        public ModelTurnResponse generate(ModelRequest request) {
+            declarations.add(request.functionDeclarations());
+            return (requests.getAndIncrement() == 0 && !toolCalls.isEmpty()) ? new ModelTurnResponse(null, new ArrayList<>(toolCalls))
+                    : new ModelTurnResponse("done", null);
+        }
+    }
+
+    public static class ConcurrencyToolService extends ToolService {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger serialRunning = new AtomicInteger();
+        final AtomicInteger maxSerialRunning = new AtomicInteger();
+        final Queue<String> finished = new ConcurrentLinkedQueue<>();
+
+        @ToolAnnotation("Waits, then returns the id")
+        public String sleep(@ToolParameter("Id") String id, @ToolParameter("Milliseconds to wait") int millis) throws InterruptedException {
+            enter(running, maxRunning);
+            try {
+                Thread.sleep(millis);
+                if (id.startsWith("fail")) {
+                    throw new IllegalStateException("failed " + id);
+                }
+                finished.add(id);
+                return id;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @ToolAnnotation(value = "Not thread-safe", parallel = false)
+        public String unsafe(@ToolParameter("Id") String id) throws InterruptedException {
+            return serial(id);
+        }
+
+        @ToolAnnotation("Reads the state")
+        public String stateful(@ToolParameter("Id") String id, AgentState state) throws InterruptedException {
+            return serial(id + "@" + state.getThreadId());
+        }
+
+        private String serial(String id) throws InterruptedException {
+            enter(serialRunning, maxSerialRunning);
+            try {
+                Thread.sleep(20);
+                return id;
+            } finally {
+                serialRunning.decrementAndGet();
+            }
+        }
+
+        private static void enter(AtomicInteger running, AtomicInteger maxRunning) {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        }
+    }
+
+    public static class AsyncToolService extends ToolService {
+        final List<CompletableFuture<String>> pending = new CopyOnWriteArrayList<>();
+        final List<Thread> callers = new CopyOnWriteArrayList<>();
+
+        @ToolAnnotation("Completes when the test completes it")
+        public CompletableFuture<String> pending(@ToolParameter("Id") String id) {
+            CompletableFuture<String> stage = new CompletableFuture<>();
+            pending.add(stage);
+            callers.add(Thread.currentThread());
+            return stage;
+        }
+
+        @ToolAnnotation("Completes exceptionally")
+        public CompletableFuture<String> failing(@ToolParameter("Id") String id) {
+            return CompletableFuture.failedFuture(new IllegalStateException("failed " + id));
+        }
+
+        @ToolAnnotation("Returns no stage")
+        public CompletableFuture<String> missing(@ToolParameter("Id") String id) {
+            return null;
+        }
+
+        @ToolAnnotation(value = "Never completes", timeoutMillis = 100)
+        public CompletableFuture<String> hanging(@ToolParameter("Id") String id) {
+            return pending(id);
+        }
+    }
+
+    public static class CodeToolService extends ToolService {
+        final List<List<String>> batches = new CopyOnWriteArrayList<>();
+
+        @ToolAnnotation("Looks up a code")
+        public String lookup(@ToolParameter("Code") String code) {
+            return "single " + code;
+        }
+
+        @ToolBatch(value = "lookup", maxBatchSize = 2)
+        public List<Object> lookupBatch(List<String> codes) {
+            batches.add(List.copyOf(codes));
+            List<Object> results = new ArrayList<>();
+            for (String code : codes) {
+                results.add(code.startsWith("bad") ? new IllegalArgumentException("unknown code " + code) : "batch " + code);
+            }
+            return results;
+        }
+
+        @ToolAnnotation("Names a country")
+        public String country(@ToolParameter("Code") String code) {
+            return "single " + code;
+        }
+
+        @ToolBatch("country")
+        public List<String> countryBatch(List<String> codes) {
+            batches.add(List.copyOf(codes));
+            List<String> results = new ArrayList<>();
+            for (String code : codes) {
+                results.add("country " + code);
+            }
+            return results;
+        }
+
+        @ToolAnnotation("Names a currency")
+        public String currency(@ToolParameter("Code") String code) {
+            return "single " + code;
+        }
+
+        @ToolBatch("currency")
+        public List<String> currencyBatch(List<String> codes) {
+            batches.add(List.copyOf(codes));
+            List<String> results = new ArrayList<>();
+            for (String code : codes.subList(1, codes.size())) {
+                results.add("currency " + code); // one result short
+            }
+            return results;
+        }
+    }
+
+    private final ScriptedModelService model = new ScriptedModelService();
+    private final ExecutorService executor = Executors.newFixedThreadPool(16);
+    private final AtomicInteger callIds = new AtomicInteger();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void runsAtMostToolParallelismCallsAtOnce() {
+        ConcurrencyToolService service = new ConcurrencyToolService();
+        ToolAgent agent = agent(service).withToolParallelism(3);
+        ToolCall[] calls = new ToolCall[9];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = call("ConcurrencyToolService.sleep", "{\"id\":\"c" + i + "\",\"millis\":50}");
+        }
+
+        List<String> results = execute(agent, calls);
+
+        assertEquals(9, results.size());
+        assertTrue(service.maxRunning.get() <= 3, "max " + service.maxRunning.get());
+        assertTrue(service.maxRunning.get() > 1, "max " + service.maxRunning.get());
+    }
+
+    @Test
+    void returnsResultsInCallOrderWhateverOrderTheyFinishIn() {
+        ConcurrencyToolService service = new ConcurrencyToolService();
+        ToolAgent agent = agent(service).withToolParallelism(3);
+
+        AgentState state = state();
+        AgentTurnResult result = execute(agent, state,
+                call("ConcurrencyToolService.sleep", "{\"id\":\"a\",\"millis\":200}"),
+                call("ConcurrencyToolService.sleep", "{\"id\":\"b\",\"millis\":100}"),
+                call("ConcurrencyToolService.sleep", "{\"id\":\"c\",\"millis\":0}"));
+
+        assertEquals(List.of("c", "b", "a"), List.copyOf(service.finished));
+        assertEquals(List.of("\"a\"", "\"b\"", "\"c\""), results(result));
+        List<ChatMessage> toolMessages = state.getChatMessages().stream()
+                .filter(message -> message.getRole() == ChatMessage.Role.TOOL).toList();
+        assertEquals(List.of("\"a\"", "\"b\"", "\"c\""), toolMessages.stream().map(ChatMessage::getContent).toList());
+        assertEquals(List.of("call-1", "call-2", "call-3"), toolMessages.stream().map(ChatMessage::getId).toList());
+    }
+
+    @Test
+    void aFailingCallOnlyFailsItsOwnResult() {
+        ToolAgent agent = agent(new ConcurrencyToolService()).withToolParallelism(4);
+
+        List<String> results = execute(agent,
+                call("ConcurrencyToolService.sleep", "{\"id\":\"a\",\"millis\":20}"),
+                call("ConcurrencyToolService.sleep", "{\"id\":\"fail-b\",\"millis\":0}"),
+                call("ConcurrencyToolService.sleep", "{\"millis\":0}"),
+                call("UnknownToolService.sleep", "{\"id\":\"d\",\"millis\":0}"),
+                call("ConcurrencyToolService.sleep", "{\"id\":\"e\",\"millis\":20}"));
+
+        assertEquals("\"a\"", results.get(0));
+        assertEquals("Error: failed fail-b", results.get(1));
+        assertEquals("invalid_arguments", JsonParser.parseString(results.get(2)).getAsJsonObject().get("error").getAsString());
+        assertTrue(results.get(3).startsWith("Error: Service for UnknownToolService.sleep not found"), results.get(3));
+        assertEquals("\"e\"", results.get(4));
+    }
+
+    @Test
+    void runsNonParallelAndStateTakingToolsOneAtATime() {
+        ConcurrencyToolService service = new ConcurrencyToolService();
+        ToolAgent agent = agent(service).withToolParallelism(4);
+
+        List<String> results = execute(agent,
+                call("ConcurrencyToolService.unsafe", "{\"id\":\"a\"}"),
+                call("ConcurrencyToolService.stateful", "{\"id\":\"b\"}"),
+                call("ConcurrencyToolService.sleep", "{\"id\":\"c\",\"millis\":30}"),
+                call("ConcurrencyToolService.unsafe", "{\"id\":\"d\"}"),
+                call("ConcurrencyToolService.stateful", "{\"id\":\"e\"}"),
+                call("ConcurrencyToolService.sleep", "{\"id\":\"f\",\"millis\":30}"));
+
+        assertEquals(1, service.maxSerialRunning.get());
+        assertEquals(List.of("\"a\"", "\"b@t1\"", "\"c\"", "\"d\"", "\"e@t1\"", "\"f\""), results);
+    }
+
+    @Test
+    void asynchronousToolsHoldNoThreadWhilePending() throws Exception {
+        // The agent's only tool thread stays busy, so pending calls cannot be waiting on it
+        ExecutorService busy = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        busy.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        try {
+            AsyncToolService service = new AsyncToolService();
+            ToolAgent agent = agent(service).withToolExecutor(busy).withToolParallelism(3);
+            CompletableFuture<List<String>> results = CompletableFuture.supplyAsync(() -> execute(agent,
+                    call("AsyncToolService.pending", "{\"id\":\"a\"}"),
+                    call("AsyncToolService.pending", "{\"id\":\"b\"}"),
+                    call("AsyncToolService.pending", "{\"id\":\"c\"}")), executor);
+
+            waitUntil(() -> service.pending.size() == 3);
+            assertEquals(1, service.callers.stream().distinct().count()); // all started on the agent's thread
+            assertFalse(results.isDone());
+            for (int i = 2; i >= 0; i--) {
+                service.pending.get(i).complete("done " + i);
+            }
+            assertEquals(List.of("\"done 0\"", "\"done 1\"", "\"done 2\""), results.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            busy.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedAndMissingStagesBecomeToolErrors() {
+        List<String> results = execute(agent(new AsyncToolService()),
+                call("AsyncToolService.failing", "{\"id\":\"a\"}"),
+                call("AsyncToolService.missing", "{\"id\":\"b\"}"));
+
+        assertEquals("Error: failed a", results.get(0));
+        assertEquals("Error: Asynchronous tool returned no CompletionStage", results.get(1));
+    }
+
+    @Test
+    void cancelsAStageAtItsTimeout() throws Exception {
+        AsyncToolService service = new AsyncToolService();
+
+        List<String> results = execute(agent(service), call("AsyncToolService.hanging", "{\"id\":\"a\"}"));
+
+        assertEquals("timeout", JsonParser.parseString(results.get(0)).getAsJsonObject().get("error").getAsString());
+        waitUntil(() -> service.pending.get(0).isCancelled());
+    }
+
+    @Test
+    void groupsCallsToOneToolIntoOneBatch() {
+        CodeToolService service = new CodeToolService();
+
+        List<String> results = execute(agent(service),
+                call("CodeToolService.country", "{\"code\":\"PT\"}"),
+                call("CodeToolService.lookup", "{\"code\":\"X\"}"),
+                call("CodeToolService.country", "{\"code\":\"ES\"}"),
+                call("CodeToolService.country", "{\"code\":\"FR\"}"));
+
+        assertEquals(List.of("\"country PT\"", "\"single X\"", "\"country ES\"", "\"country FR\""), results);
+        assertEquals(List.of(List.of("PT", "ES", "FR")), service.batches);
+    }
+
+    @Test
+    void splitsGroupsByMaxBatchSizeAndHandsEachCallItsResult() {
+        CodeToolService service = new CodeToolService();
+
+        List<String> results = execute(agent(service),
+                call("CodeToolService.lookup", "{\"code\":\"A\"}"),
+                call("CodeToolService.lookup", "{\"code\":\"bad-B\"}"),
+                call("CodeToolService.lookup", "{\"code\":\"C\"}"),
+                call("CodeToolService.lookup", "{\"code\":\"D\"}"),
+                call("CodeToolService.lookup", "{\"code\":\"E\"}"));
+
+        // The call left over on its own goes to the tool itself
+        assertEquals(Set.of(List.of("A", "bad-B"), List.of("C", "D")), Set.copyOf(service.batches));
+        assertEquals(2, service.batches.size());
+        assertEquals(List.of("\"batch A\"", "Error: unknown code bad-B", "\"batch C\"", "\"batch D\"", "\"single E\""), results);
+    }
+
+    @Test
+    void aBatchWithTheWrongNumberOfResultsFailsEveryCall() {
+        CodeToolService service = new CodeToolService();
+
+        List<String> results = execute(agent(service),
+                call("CodeToolService.currency", "{\"code\":\"EUR\"}"),
+                call("CodeToolService.currency", "{\"code\":\"USD\"}"),
+                call("CodeToolService.currency", "{\"code\":\"GBP\"}"));
+
+        assertEquals(List.of(List.of("EUR", "USD", "GBP")), service.batches);
+        for (String result : results) {
+            assertEquals("Error: Batch method currencyBatch returned 2 results for 3 calls", result);
+        }
+    }
+
+    @Test
+    void activatesServicesUnderTheNameTheyAreRegisteredWith() {
+        ToolAgent agent = new ToolAgent(model, Map.of("concurrency", new ConcurrencyToolService()), "test-model")
+                .withToolExecutor(executor);
+        WorkflowConfig config = new WorkflowConfig("tenant");
+        config.activateToolMethods("concurrency", List.of("sleep"));
+
+        List<String> results = results(execute(agent, state(), config,
+                call("ConcurrencyToolService.sleep", "{\"id\":\"a\",\"millis\":0}"),
+                call("ConcurrencyToolService.unsafe", "{\"id\":\"b\"}")));
+
+        assertEquals(List.of("ConcurrencyToolService.sleep"), model.declarations.get(0).stream().map(Tool::getName).toList());
+        assertEquals("\"a\"", results.get(0));
+        assertTrue(results.get(1).startsWith("Error: Service for ConcurrencyToolService.unsafe not found"), results.get(1));
+    }
+
+    @Test
+    void sharesDeclarationsBetweenEqualActivations() {
+        ToolAgent agent = agent(new ConcurrencyToolService(), new CodeToolService());
+        String concurrency = ConcurrencyToolService.class.getName();
+        String code = CodeToolService.class.getName();
+        WorkflowConfig first = new WorkflowConfig("first");
+        first.activateToolMethods(concurrency, List.of("sleep", "unsafe"));
+        first.activateAllToolMethodsForService(code);
+        WorkflowConfig second = new WorkflowConfig("second");
+        second.activateAllToolMethodsForService(code);
+        second.activateToolMethods(concurrency, List.of("unsafe", "sleep"));
+
+        execute(agent, state(), first);
+        execute(agent, state(), second);
+        assertSame(model.declarations.get(0), model.declarations.get(1));
+        assertEquals(5, model.declarations.get(0).size());
+
+        second.activateToolMethods(concurrency, List.of("sleep"));
+        execute(agent, state(), second);
+        execute(agent, state(), first);
+        assertNotSame(model.declarations.get(0), model.declarations.get(2));
+        assertEquals(4, model.declarations.get(2).size());
+        assertFalse(model.declarations.get(2).stream().anyMatch(tool -> tool.getName().equals("ConcurrencyToolService.unsafe")));
+        assertSame(model.declarations.get(0), model.declarations.get(3));
+    }
+
+    private ToolAgent agent(ToolService... services) {
+        Map<String, ToolService> registered = new HashMap<>();
+        for (ToolService service : services) {
+            registered.put(service.getClass().getName(), service);
+        }
+        return new ToolAgent(model, registered, "test-model").withToolExecutor(executor);
+    }
+
+    private ToolCall call(String name, String arguments) {
+        return new ToolCall("call-" + callIds.incrementAndGet(), name, JsonParser.parseString(arguments).getAsJsonObject());
+    }
+
+    private List<String> execute(ToolAgent agent, ToolCall... calls) {
+        return results(execute(agent, state(), calls));
+    }
+
+    private AgentTurnResult execute(ToolAgent agent, AgentState state, ToolCall... calls) {
+        WorkflowConfig config = new WorkflowConfig("tenant");
+        for (ToolCall call : calls) {
+            config.activateAllToolMethodsForService(ToolAgentExecutionTest.class.getName() + "$" + call.getName().split("\\.")[0]);
+        }
+        return execute(agent, state, config, calls);
+    }
+
+    private AgentTurnResult execute(ToolAgent agent, AgentState state, WorkflowConfig config, ToolCall... calls) {
+        model.respondWith(calls);
+        AgentTurnResult result = agent.execute(state, config, null, null);
+        assertEquals("done", result.getFinalMessage());
+        return result;
+    }
+
+    private static AgentState state() {
+        AgentState state = new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY);
+        state.addChatMessage(new ChatMessage(ChatMessage.Role.USER, "go"));
+        return state;
+    }
+
+    private static List<String> results(AgentTurnResult result) {
+        return result.getToolExecutionMetadata().stream().map(AgentTurnResult.ToolExecutionRecord::getResult).toList();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,95 @@
+package com.veyon.veyflow;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.veyon.veyflow.tools.ToolAnnotation;
+import com.veyon.veyflow.tools.ToolArgumentValidator;
+import com.veyon.veyflow.tools.ToolParameter;
+import com.veyon.veyflow.tools.ToolService;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Every violated constraint of a call must be reported at once, and arguments the binder would accept
+ * must not be reported.
+ */
+public class ToolArgumentValidatorTest {
+
+    public static class RoomToolService extends ToolService {
+        @ToolAnnotation("Reserves a room")
+        public String reserve(
+                @ToolParameter(value = "Room", required = true) String room,
+                @ToolParameter(value = "Nights", required = true, minimum = 1, maximum = 14) int nights,
+                @ToolParameter(value = "Rate", required = false, minimum = 0) Double rate,
+                @ToolParameter(value = "View", required = false, enumValues = {"sea", "garden"}) String view,
+                @ToolParameter(value = "Breakfast", required = false) Boolean breakfast) {
+            return "reserved";
+        }
+    }
+
+    private final ToolArgumentValidator validator = ToolArgumentValidator.of(reserveMethod());
+
+    @Test
+    void acceptsValidAndLenientlyTypedArguments() {
+        assertEquals(List.of(), validator.validate(arguments(
+                "{\"room\":\"12\",\"nights\":3,\"rate\":99.5,\"view\":\"sea\",\"breakfast\":true}")));
+        assertEquals(List.of(), validator.validate(arguments(
+                "{\"room\":\"12\",\"nights\":\"14\",\"rate\":\"0\",\"breakfast\":\"FALSE\",\"unknown\":[1]}")));
+        assertEquals(List.of(), validator.validate(arguments("{\"room\":\"12\",\"nights\":2.0,\"rate\":0}")));
+    }
+
+    @Test
+    void reportsEveryViolationInSchemaOrder() {
+        List<ToolArgumentValidator.Violation> violations = validator.validate(arguments(
+                "{\"nights\":15,\"rate\":-1,\"view\":\"street\",\"breakfast\":\"maybe\"}"));
+
+        assertEquals(List.of("room:required", "nights:maximum", "rate:minimum", "view:enum", "breakfast:type"),
+                describe(violations));
+        assertEquals("must be one of sea, garden", violations.get(3).getMessage());
+        assertEquals("must be <= 14", violations.get(1).getMessage());
+    }
+
+    @Test
+    void aWronglyTypedArgumentIsNotCheckedFurther() {
+        assertEquals(List.of("room:type", "nights:type"), describe(validator.validate(arguments(
+                "{\"room\":{\"number\":12},\"nights\":2.5}"))));
+        assertEquals(List.of("nights:type"), describe(validator.validate(arguments("{\"room\":\"12\",\"nights\":\"a week\"}"))));
+        assertEquals(List.of("nights:minimum"), describe(validator.validate(arguments("{\"room\":\"12\",\"nights\":0}"))));
+        assertEquals(List.of("room:required", "nights:required"), describe(validator.validate(null)));
+    }
+
+    @Test
+    void theServiceAnswersWithAllViolations() {
+        JsonObject result = new RoomToolService().executeToolMethod("reserve", arguments("{\"nights\":0,\"view\":\"street\"}"), null);
+
+        assertEquals("error", result.get("status").getAsString());
+        assertEquals("invalid_arguments", result.get("error").getAsString());
+        assertEquals(3, result.getAsJsonArray("violations").size());
+        assertEquals(ToolArgumentValidator.toJson("reserve", validator.validate(arguments("{\"nights\":0,\"view\":\"street\"}"))),
+                result);
+    }
+
+    private static List<String> describe(List<ToolArgumentValidator.Violation> violations) {
+        List<String> described = new ArrayList<>();
+        for (ToolArgumentValidator.Violation violation : violations) {
+            described.add(violation.getParameter() + ":" + violation.getError());
+        }
+        return described;
+    }
+
+    private static JsonObject arguments(String json) {
+        return JsonParser.parseString(json).getAsJsonObject();
+    }
+
+    private static java.lang.reflect.Method reserveMethod() {
+        try {
+            return RoomToolService.class.getMethod("reserve", String.class, int.class, Double.class, String.class, Boolean.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
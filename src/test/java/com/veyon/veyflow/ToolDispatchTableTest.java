@@ -0,0 +1,175 @@
+package com.veyon.veyflow;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.tools.ToolAnnotation;
+import com.veyon.veyflow.tools.ToolArgumentBinder;
+import com.veyon.veyflow.tools.ToolDispatchTable;
+import com.veyon.veyflow.tools.ToolInvoker;
+import com.veyon.veyflow.tools.ToolMetadata;
+import com.veyon.veyflow.tools.ToolParameter;
+import com.veyon.veyflow.tools.ToolService;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A tool called through its {@link ToolDispatchTable} invoker, by method handle or by generated invoker,
+ * must return exactly what a reflective {@link Method#invoke} of the same method returns, and fail
+ * where it fails. {@link ToolService#executeToolMethod} binds arguments with the same binder, so it
+ * rejects a malformed argument with the same message.
+ */
+public class ToolDispatchTableTest {
+
+    public static class MathToolService extends ToolService {
+        @ToolAnnotation("Adds two numbers")
+        public long add(@ToolParameter("First") int a, @ToolParameter(value = "Second", required = false) Integer b) {
+            return a + ((b != null) ? b : 100);
+        }
+
+        @ToolAnnotation("Describes its arguments")
+        public String describe(@ToolParameter(value = "Flag", required = false) Boolean flag,
+                               @ToolParameter(value = "Ratio", required = false) Double ratio, AgentState state) {
+            return flag + "/" + ratio + "/" + state.getThreadId();
+        }
+
+        @ToolAnnotation("Sums numbers")
+        public int sum(@ToolParameter(value = "Numbers", type = "array") List<Integer> numbers) {
+            return numbers.stream().mapToInt(Integer::intValue).sum();
+        }
+
+        @ToolAnnotation("Returns nothing")
+        public void touch(@ToolParameter("Id") String id) {
+            if (id.isEmpty()) {
+                throw new IllegalStateException("empty id");
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call {
+        Object call() throws Throwable;
+    }
+
+    private final AgentState state = new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY);
+
+    @Test
+    void handleAndGeneratedInvokersMatchReflection() throws Exception {
+        ToolService generated = new MathToolService();
+        ToolService reflective = withoutGeneratedMetadata(MathToolService.class);
+        assertNotNull(ToolMetadata.of(generated.getClass()));
+        assertNull(ToolMetadata.of(reflective.getClass()));
+        ToolDispatchTable generatedTable = ToolDispatchTable.build(List.of(generated), new Gson());
+        ToolDispatchTable handleTable = ToolDispatchTable.build(List.of(reflective), new Gson());
+
+        String[][] calls = {
+                {"add", "{\"a\":1,\"b\":2}"},
+                {"add", "{\"a\":\"3\",\"b\":4.0}"},
+                {"add", "{\"a\":5}"},
+                {"add", "{\"a\":5,\"b\":null}"},
+                {"add", "{\"b\":1}"},
+                {"add", "{\"a\":1.5}"},
+                {"describe", "{}"},
+                {"describe", "{\"flag\":true,\"ratio\":0.5}"},
+                {"describe", "{\"flag\":\"false\",\"ratio\":\"2\"}"},
+                {"touch", "{\"id\":\"x\"}"},
+                {"touch", "{\"id\":\"\"}"},
+        };
+        for (String[] call : calls) {
+            JsonObject arguments = JsonParser.parseString(call[1]).getAsJsonObject();
+            String expected = outcome(() -> invokeReflectively(reflective, call[0], arguments));
+            String toolName = "MathToolService." + call[0];
+            assertEquals(expected, outcome(() -> handleTable.get(toolName).invoke(arguments, state)), call[1]);
+            assertEquals(expected, outcome(() -> generatedTable.get(toolName).invoke(arguments, state)), call[1]);
+        }
+        assertEquals("value 3", outcome(() -> handleTable.get("MathToolService.add").invoke(
+                JsonParser.parseString("{\"a\":1,\"b\":2}").getAsJsonObject(), state)));
+        assertEquals("IllegalArgumentException: Missing required parameter of add: a", outcome(() -> handleTable
+                .get("MathToolService.add").invoke(JsonParser.parseString("{\"b\":1}").getAsJsonObject(), state)));
+        assertEquals("value null/null/t1", outcome(() -> handleTable.get("MathToolService.describe").invoke(null, state)));
+    }
+
+    @Test
+    void bothCallPathsBindAMalformedArgumentTheSameWay() {
+        ToolService service = new MathToolService();
+        ToolInvoker invoker = ToolDispatchTable.build(List.of(service), new Gson()).get("MathToolService.sum");
+        // Array items are not checked against the schema, so the binder is the first to see the bad item
+        JsonObject malformed = JsonParser.parseString("{\"numbers\":[1,\"x\"]}").getAsJsonObject();
+        assertTrue(invoker.validateArguments(malformed).isEmpty());
+
+        IllegalArgumentException agentPath = assertThrows(IllegalArgumentException.class, () -> invoker.bindArguments(malformed, state));
+        JsonObject servicePath = service.executeToolMethod("sum", malformed, state);
+
+        assertTrue(agentPath.getMessage().startsWith("Invalid value for parameter numbers"), agentPath.getMessage());
+        assertEquals("error", servicePath.get("status").getAsString());
+        assertEquals("Error executing tool: " + agentPath.getMessage(), servicePath.get("message").getAsString());
+
+        JsonObject valid = JsonParser.parseString("{\"numbers\":[1,\"2\",3]}").getAsJsonObject();
+        assertArrayEquals(invoker.bindArguments(valid, state), ToolArgumentBinder.of(service.getToolMethod("sum")).bind(valid, state));
+        assertEquals("6", service.executeToolMethod("sum", valid, state).get("result").getAsString());
+    }
+
+    private Object invokeReflectively(ToolService service, String toolName, JsonObject arguments) throws Throwable {
+        Method method = service.getToolMethod(toolName);
+        Object[] values = ToolArgumentBinder.of(method).bind(arguments, state);
+        try {
+            return method.invoke(service, values);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Describes what a call returned or threw, so outcomes of different call paths can be compared.
+     */
+    private static String outcome(Call call) {
+        try {
+            return "value " + call.call();
+        } catch (Throwable e) {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+
+    /**
+     * Loads a copy of a nested service class, together with the classes it is nested in, from a class loader
+     * that cannot see its generated metadata, so the copy is dispatched through a method handle.
+     */
+    private static ToolService withoutGeneratedMetadata(Class<? extends ToolService> type) throws Exception {
+        String topLevel = type.getName().substring(0, type.getName().indexOf('$'));
+        ClassLoader loader = new ClassLoader(ToolDispatchTableTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.startsWith("com.veyon.veyflow." + ToolMetadata.CLASS_PREFIX)) {
+                    throw new ClassNotFoundException(name);
+                }
+                if (!name.equals(topLevel) && !name.startsWith(topLevel + "$")) {
+                    return super.loadClass(name, resolve);
+                }
+                synchronized (getClassLoadingLock(name)) {
+                    Class<?> loaded = findLoadedClass(name);
+                    if (loaded != null) {
+                        return loaded;
+                    }
+                    try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                        byte[] bytes = in.readAllBytes();
+                        return defineClass(name, bytes, 0, bytes.length);
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+            }
+        };
+        Class<?> serviceClass = loader.loadClass(type.getName());
+        assertNotSame(type, serviceClass);
+        return (ToolService) serviceClass.getDeclaredConstructor().newInstance();
+    }
+}
@@ -0,0 +1,180 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.tools.ToolGuard;
+import com.veyon.veyflow.tools.ToolUnavailableException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link ToolGuard} must bound how long and how many calls a service runs, and stop calling a service
+ * that keeps failing until a probe shows it has recovered.
+ */
+public class ToolGuardTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void timesOutASlowCallAndInterruptsIt() throws Exception {
+        ToolGuard guard = guard(ToolGuard.Settings.builder().timeout(Duration.ofMillis(100)));
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        CompletableFuture<Object> result = guard.call(() -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            return "late";
+        }, false, 0, executor);
+
+        assertEquals(ToolUnavailableException.Reason.TIMEOUT, reasonOf(result));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, guard.getTimeouts());
+        waitUntil(() -> guard.getActiveCalls() == 0);
+    }
+
+    @Test
+    void rejectsCallsBeyondTheQueue() throws Exception {
+        ToolGuard guard = guard(ToolGuard.Settings.builder().maxConcurrentCalls(1).maxQueuedCalls(1));
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<Object> running = guard.call(() -> {
+            release.await();
+            return "first";
+        }, false, 0, executor);
+        CompletableFuture<Object> queued = guard.call(() -> "second", false, 0, executor);
+        CompletableFuture<Object> rejected = guard.call(() -> "third", false, 0, executor);
+
+        assertEquals(ToolUnavailableException.Reason.BULKHEAD_FULL, reasonOf(rejected));
+        assertEquals(1, guard.getQueuedCalls());
+        release.countDown();
+        assertEquals("first", running.get(5, TimeUnit.SECONDS));
+        assertEquals("second", queued.get(5, TimeUnit.SECONDS));
+        assertEquals(1, guard.getRejections());
+        assertEquals(2, guard.getCalls());
+    }
+
+    @Test
+    void opensAfterConsecutiveFailuresThenProbesAndCloses() throws Exception {
+        ToolGuard guard = guard(ToolGuard.Settings.builder().failureThreshold(2).openDuration(Duration.ofMillis(200)));
+
+        // Rejected input is not a failure of the service
+        assertThrows(ExecutionException.class, () -> guard.call(() -> {
+            throw new IllegalArgumentException("bad input");
+        }, false, 0, executor).get(5, TimeUnit.SECONDS));
+        fail(guard);
+        assertEquals(ToolGuard.CircuitState.CLOSED, guard.getCircuitState());
+        fail(guard);
+        assertEquals(ToolGuard.CircuitState.OPEN, guard.getCircuitState());
+        assertEquals(1, guard.getOpenings());
+
+        CompletableFuture<Object> whileOpen = guard.call(() -> "never run", false, 0, executor);
+        assertEquals(ToolUnavailableException.Reason.CIRCUIT_OPEN, reasonOf(whileOpen));
+
+        Thread.sleep(250);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> probe = guard.call(() -> {
+            release.await();
+            return "probe";
+        }, false, 0, executor);
+        assertEquals(ToolGuard.CircuitState.HALF_OPEN, guard.getCircuitState());
+        CompletableFuture<Object> secondProbe = guard.call(() -> "never run", false, 0, executor);
+        assertEquals(ToolUnavailableException.Reason.CIRCUIT_OPEN, reasonOf(secondProbe));
+
+        release.countDown();
+        assertEquals("probe", probe.get(5, TimeUnit.SECONDS));
+        assertEquals(ToolGuard.CircuitState.CLOSED, guard.getCircuitState());
+        assertEquals("ok", guard.call(() -> "ok", false, 0, executor).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void aFailedProbeOpensTheCircuitAgain() throws Exception {
+        ToolGuard guard = guard(ToolGuard.Settings.builder().failureThreshold(1).openDuration(Duration.ofMillis(100)));
+        fail(guard);
+        assertEquals(ToolGuard.CircuitState.OPEN, guard.getCircuitState());
+
+        Thread.sleep(150);
+        fail(guard);
+        assertEquals(ToolGuard.CircuitState.OPEN, guard.getCircuitState());
+        assertEquals(2, guard.getOpenings());
+        assertEquals(ToolUnavailableException.Reason.CIRCUIT_OPEN, reasonOf(guard.call(() -> "never run", false, 0, executor)));
+    }
+
+    @Test
+    void rejectedInputNeitherOpensNorClosesTheCircuit() throws Exception {
+        ToolGuard guard = guard(ToolGuard.Settings.builder().failureThreshold(2).openDuration(Duration.ofMillis(100)));
+        fail(guard);
+        reject(guard);
+        fail(guard);
+        assertEquals(ToolGuard.CircuitState.OPEN, guard.getCircuitState()); // the rejection did not reset the count
+
+        Thread.sleep(150);
+        reject(guard);
+        assertEquals(ToolGuard.CircuitState.HALF_OPEN, guard.getCircuitState());
+        assertEquals(2, guard.getFailures());
+
+        // The probe slot was given back, so a real call can still close the circuit
+        assertEquals("ok", guard.call(() -> "ok", false, 0, executor).get(5, TimeUnit.SECONDS));
+        assertEquals(ToolGuard.CircuitState.CLOSED, guard.getCircuitState());
+    }
+
+    @Test
+    void cancelsAnAsynchronousToolAtItsDeadline() throws Exception {
+        ToolGuard guard = guard(ToolGuard.Settings.builder());
+        CompletableFuture<Object> stage = new CompletableFuture<>();
+
+        CompletableFuture<Object> result = guard.call(() -> stage, true, 100, executor);
+
+        assertEquals(ToolUnavailableException.Reason.TIMEOUT, reasonOf(result));
+        waitUntil(stage::isCancelled);
+        waitUntil(() -> guard.getActiveCalls() == 0);
+    }
+
+    private static ToolGuard guard(ToolGuard.Settings.Builder settings) {
+        return new ToolGuard("TestService", settings.build());
+    }
+
+    private void fail(ToolGuard guard) {
+        CompletableFuture<Object> result = guard.call(() -> {
+            throw new IllegalStateException("downstream failed");
+        }, false, 0, executor);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+
+    private void reject(ToolGuard guard) {
+        CompletableFuture<Object> result = guard.call(() -> {
+            throw new IllegalArgumentException("bad input");
+        }, false, 0, executor);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalArgumentException.class, e.getCause());
+    }
+
+        private static ToolUnavailableException.Reason reasonOf(CompletableFuture<Object> result) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        return assertInstanceOf(ToolUnavailableException.class, e.getCause()).getReason();
+    }
+
+    private static void waitUntil(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,133 @@
+package com.veyon.veyflow;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.tools.ToolAnnotation;
+import com.veyon.veyflow.tools.ToolDispatchTable;
+import com.veyon.veyflow.tools.ToolInvoker;
+import com.veyon.veyflow.tools.ToolParameter;
+import com.veyon.veyflow.tools.ToolResultCache;
+import com.veyon.veyflow.tools.ToolService;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Calls that only differ in how the model wrote equal arguments must share a cached result; calls that
+ * differ in a key argument, or in the scope the cache is shared in, must not.
+ */
+public class ToolResultCacheKeyTest {
+
+    public static class LookupToolService extends ToolService {
+        @ToolAnnotation(value = "Looks up a city", cacheTtlSeconds = 60, cacheKeyIgnoreCase = true)
+        public String city(@ToolParameter("Name") String name, @ToolParameter("Filters") JsonObject filters,
+                           @ToolParameter("Limit") double limit) {
+            return name;
+        }
+
+        @ToolAnnotation(value = "Looks up a code", cacheTtlSeconds = 60, cacheKeyArguments = "code",
+                cacheScope = ToolAnnotation.CacheScope.THREAD)
+        public String code(@ToolParameter("Code") String code, @ToolParameter("Trace") String trace, AgentState state) {
+            return code;
+        }
+
+        @ToolAnnotation("Not cached")
+        public String uncached(@ToolParameter("Name") String name) {
+            return name;
+        }
+    }
+
+    public static class BrokenToolService extends ToolService {
+        @ToolAnnotation(value = "Broken", cacheTtlSeconds = 60, cacheKeyArguments = "missing")
+        public String broken(@ToolParameter("Name") String name) {
+            return name;
+        }
+    }
+
+    private final ToolDispatchTable table = ToolDispatchTable.build(List.of(new LookupToolService()), new Gson());
+    private final AgentState state = new AgentState("tenant", "t1", PersistenceMode.IN_MEMORY);
+
+    @Test
+    void equalArgumentsWrittenDifferentlyShareAKey() {
+        ToolInvoker city = table.get("LookupToolService.city");
+        String key = city.cacheKey(arguments("{\"name\":\"Paris\",\"filters\":{\"a\":1,\"b\":[1,2]},\"limit\":10}"), state);
+
+        assertEquals(key, city.cacheKey(arguments("{\"limit\":1e1,\"filters\":{\"b\":[1.0,2],\"a\":1.00},\"name\":\" paris \"}"), state));
+        assertNotEquals(key, city.cacheKey(arguments("{\"name\":\"Paris\",\"filters\":{\"a\":1,\"b\":[2,1]},\"limit\":10}"), state));
+        assertNotEquals(key, city.cacheKey(arguments("{\"name\":\"Paris\",\"filters\":{\"a\":1,\"b\":[1,2]},\"limit\":10.5}"), state));
+        assertNotEquals(key, city.cacheKey(arguments("{\"name\":\"Paris\",\"filters\":{\"a\":\"1\",\"b\":[1,2]},\"limit\":10}"), state));
+        assertNotEquals(key, city.cacheKey(arguments("{\"name\":\"Paris\",\"limit\":10}"), state));
+        assertNotEquals(key, city.cacheKey(arguments("{\"name\":\"Paris\",\"filters\":{\"a\":1,\"b\":[1,2]},\"limit\":10}"),
+                new AgentState("other", "t1", PersistenceMode.IN_MEMORY)));
+    }
+
+    @Test
+    void onlyKeyArgumentsAndTheScopeDistinguishCalls() {
+        ToolInvoker code = table.get("LookupToolService.code");
+        String key = code.cacheKey(arguments("{\"code\":\"AB\",\"trace\":\"1\"}"), state);
+
+        assertEquals(key, code.cacheKey(arguments("{\"code\":\"AB\",\"trace\":\"2\"}"), state));
+        assertNotEquals(key, code.cacheKey(arguments("{\"code\":\"ab\",\"trace\":\"1\"}"), state));
+        assertNotEquals(key, code.cacheKey(arguments("{\"code\":\"AB\",\"trace\":\"1\"}"),
+                new AgentState("tenant", "t2", PersistenceMode.IN_MEMORY)));
+        assertNull(table.get("LookupToolService.uncached").cacheKey(arguments("{\"name\":\"Paris\"}"), state));
+    }
+
+    @Test
+    void idsContainingSeparatorsDoNotCollide() {
+        ToolInvoker code = table.get("LookupToolService.code");
+        JsonObject arguments = arguments("{\"code\":\"AB\"}");
+
+        assertNotEquals(code.cacheKey(arguments, new AgentState("a::b", "c", PersistenceMode.IN_MEMORY)),
+                code.cacheKey(arguments, new AgentState("a", "b::c", PersistenceMode.IN_MEMORY)));
+        assertNotEquals(code.cacheKey(arguments, new AgentState("a|b", "c", PersistenceMode.IN_MEMORY)),
+                code.cacheKey(arguments, new AgentState("a", "b|c", PersistenceMode.IN_MEMORY)));
+
+        ToolInvoker city = table.get("LookupToolService.city");
+        JsonObject paris = arguments("{\"name\":\"Paris\"}");
+        assertNotEquals(city.cacheKey(paris, new AgentState("t|", "x", PersistenceMode.IN_MEMORY)),
+                city.cacheKey(paris, new AgentState("t", "x", PersistenceMode.IN_MEMORY)));
+    }
+
+    @Test
+    void rejectsKeyArgumentsTheToolDoesNotHave() {
+        assertThrows(IllegalArgumentException.class, () -> ToolDispatchTable.build(List.of(new BrokenToolService()), new Gson()));
+    }
+
+    @Test
+    void callsWithEqualKeysAreLoadedOnce() throws Exception {
+        ToolInvoker city = table.get("LookupToolService.city");
+        ToolResultCache cache = new ToolResultCache(16);
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<String> pending = new CompletableFuture<>();
+        long ttl = city.getCacheTtlNanos();
+
+        CompletableFuture<String> first = cache.get(city.cacheKey(arguments("{\"name\":\"Paris\",\"limit\":1}"), state), ttl, () -> {
+            loads.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<String> second = cache.get(city.cacheKey(arguments("{\"limit\":1.0,\"name\":\"PARIS\"}"), state), ttl, () -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        pending.complete("paris");
+
+        assertEquals("paris", first.get(5, TimeUnit.SECONDS));
+        assertEquals("paris", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getCoalesced());
+        assertEquals("paris", cache.getIfPresent(city.cacheKey(arguments("{\"name\":\"paris\",\"limit\":1}"), state)));
+    }
+
+    private static JsonObject arguments(String json) {
+        return JsonParser.parseString(json).getAsJsonObject();
+    }
+}
@@ -0,0 +1,73 @@
+package com.veyon.veyflow;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.veyon.veyflow.tools.Parameter;
+import com.veyon.veyflow.tools.ToolAnnotation;
+import com.veyon.veyflow.tools.ToolParameter;
+import com.veyon.veyflow.tools.ToolService;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link ToolService#getToolsJson()} must declare the parameters exactly as {@link Parameter#schemaOf}
+ * describes them, since that schema is what the arguments are validated and bound against.
+ */
+public class ToolsJsonTest {
+
+    public enum Unit { CELSIUS, FAHRENHEIT }
+
+    public static class BookingToolService extends ToolService {
+        @ToolAnnotation("Books a table")
+        public String book(
+                @ToolParameter(value = "Guests", required = true, minimum = 1, maximum = 12) int guests,
+                @ToolParameter(value = "Note", required = true) Optional<String> note,
+                @ToolParameter(value = "Seating", enumValues = {"inside", "outside"}) String seating,
+                @ToolParameter(value = "Unit", required = false) Unit unit,
+                @ToolParameter(value = "Children", required = false) int children) {
+            return "booked";
+        }
+    }
+
+    @Test
+    void declaresTheSchemaTheArgumentsAreCheckedAgainst() throws Exception {
+        BookingToolService service = new BookingToolService();
+        JsonObject function = JsonParser.parseString(service.getToolsJson()).getAsJsonArray().get(0).getAsJsonObject()
+                .getAsJsonArray("functionDeclarations").get(0).getAsJsonObject();
+        JsonObject parameters = function.getAsJsonObject("parameters");
+        JsonObject properties = parameters.getAsJsonObject("properties");
+
+        assertEquals("integer", properties.getAsJsonObject("guests").get("type").getAsString());
+        assertEquals(1.0, properties.getAsJsonObject("guests").get("minimum").getAsDouble());
+        assertEquals(12.0, properties.getAsJsonObject("guests").get("maximum").getAsDouble());
+        assertEquals(List.of("inside", "outside"), strings(properties.getAsJsonObject("seating").getAsJsonArray("enum")));
+        assertEquals(List.of("CELSIUS", "FAHRENHEIT"), strings(properties.getAsJsonObject("unit").getAsJsonArray("enum")));
+        assertEquals(List.of("guests", "seating", "children"), strings(parameters.getAsJsonArray("required")));
+
+        Method book = BookingToolService.class.getMethod("book", int.class, Optional.class, String.class, Unit.class, int.class);
+        List<Parameter> schema = Parameter.schemaOf(book);
+        assertEquals(schema.size(), properties.size());
+        for (Parameter parameter : schema) {
+            JsonObject property = properties.getAsJsonObject(parameter.getName());
+            assertEquals(parameter.getType(), property.get("type").getAsString(), parameter.getName());
+            assertEquals(parameter.isRequired(), strings(parameters.getAsJsonArray("required")).contains(parameter.getName()),
+                    parameter.getName());
+        }
+    }
+
+    private static List<String> strings(JsonArray array) {
+        List<String> values = new ArrayList<>();
+        for (JsonElement element : array) {
+            values.add(element.getAsString());
+        }
+        return values;
+    }
+}
@@ -3,11 +3,14 @@ package com.veyon.veyflow;
 import com.google.gson.JsonObject;
 import com.veyon.veyflow.state.AgentState;
 import com.veyon.veyflow.tools.ToolAnnotation;
+import com.veyon.veyflow.tools.ToolBatch;
 import com.veyon.veyflow.tools.ToolParameter;
 import com.veyon.veyflow.tools.ToolService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 
@@ -36,6 +39,17 @@ public class WeatherToolService extends ToolService {
         
         return result;
     }
+
+    @ToolBatch("getWeather")
+    public List<JsonObject> getWeatherBatch(List<String> locations, AgentState state) {
+        log.info("Getting weather for {} locations in one request: {}", locations.size(), locations);
+
+        List<JsonObject> results = new ArrayList<>(locations.size());
+        for (String location : locations) {
+            results.add(getWeather(location, state));
+        }
+        return results;
+    }
     
 
     @ToolAnnotation("Get the weather forecast for a specified location")
@@ -0,0 +1,144 @@
+package com.veyon.veyflow;
+
+import com.veyon.veyflow.state.AgentState;
+import com.veyon.veyflow.state.AgentStateRepository;
+import com.veyon.veyflow.state.InMemoryAgentStateRepository;
+import com.veyon.veyflow.state.PersistenceMode;
+import com.veyon.veyflow.state.WriteBehindAgentStateRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindAgentStateRepositoryTest {
+
+    private final FlakyRepository delegate = new FlakyRepository();
+    private final WriteBehindAgentStateRepository repository = WriteBehindAgentStateRepository.builder(delegate)
+            .flushInterval(Duration.ofHours(1))
+            .flushOnShutdown(false)
+            .build();
+
+    @AfterEach
+    void tearDown() {
+        delegate.down = false;
+        delegate.failing.clear();
+        repository.close();
+    }
+
+    @Test
+    void rejectsIdsTheDelegateCannotStoreWhenQueued() {
+        assertThrows(IllegalArgumentException.class, () -> repository.save(state("tenant", " ")));
+        assertThrows(IllegalArgumentException.class, () -> repository.save(state("a::b", "t1")));
+        assertEquals(0, repository.getPendingCount());
+    }
+
+    @Test
+    void dropsAStateTheDelegateRejectsAndWritesTheRest() {
+        delegate.failing.add("poison");
+        delegate.rejectFailing = true;
+        repository.save(state("tenant", "t1"));
+        repository.save(state("tenant", "poison"));
+        repository.save(state("tenant", "t2"));
+
+        repository.flush();
+
+        assertEquals(0, repository.getPendingCount());
+        assertEquals(1, repository.getDroppedStates());
+        assertEquals(1, repository.getFailedFlushes());
+        assertTrue(delegate.exists("tenant", "t1"));
+        assertTrue(delegate.exists("tenant", "t2"));
+        assertFalse(delegate.exists("tenant", "poison"));
+    }
+
+    @Test
+    void keepsTheBatchQueuedWhileTheDelegateIsDown() {
+        repository.save(state("tenant", "t1"));
+        repository.save(state("tenant", "t2"));
+        delegate.down = true;
+
+        assertThrows(IllegalStateException.class, repository::flush);
+        assertThrows(IllegalStateException.class, repository::flush);
+        assertEquals(2, repository.getPendingCount());
+        assertEquals(0, repository.getDroppedStates());
+        assertTrue(repository.findById("tenant", "t1").isPresent());
+
+        delegate.down = false;
+        repository.flush();
+        assertEquals(0, repository.getPendingCount());
+        assertTrue(delegate.exists("tenant", "t1"));
+        assertTrue(delegate.exists("tenant", "t2"));
+    }
+
+    @Test
+    void dropsAStateThatKeepsFailingWhileOthersAreWritten() {
+        delegate.failing.add("stuck");
+        repository.save(state("tenant", "stuck"));
+        for (int round = 1; round <= 3; round++) {
+            repository.save(state("tenant", "t" + round));
+            repository.flush();
+            assertTrue(delegate.exists("tenant", "t" + round));
+            assertEquals(round < 3 ? 1 : 0, repository.getPendingCount(), "after round " + round);
+        }
+        assertEquals(1, repository.getDroppedStates());
+        assertFalse(delegate.exists("tenant", "stuck"));
+    }
+
+    private static AgentState state(String tenantId, String threadId) {
+        return new AgentState(tenantId, threadId, PersistenceMode.IN_MEMORY);
+    }
+
+    /**
+     * Fails every write while {@code down}, and every write containing a thread in {@code failing}.
+     */
+    private static final class FlakyRepository implements AgentStateRepository {
+        final InMemoryAgentStateRepository store = new InMemoryAgentStateRepository();
+        final Set<String> failing = ConcurrentHashMap.newKeySet();
+        volatile boolean down = false;
+        volatile boolean rejectFailing = false;
+
+        @Override
+        public void save(AgentState state) {
+            check(state);
+            store.save(state);
+        }
+
+        @Override
+        public void saveAll(Collection<AgentState> states) {
+            states.forEach(this::check);
+            store.saveAll(states);
+        }
+
+        private void check(AgentState state) {
+            if (down) {
+                throw new IllegalStateException("delegate is down");
+            }
+            if (failing.contains(state.getThreadId())) {
+                if (rejectFailing) {
+                    throw new IllegalArgumentException("cannot store " + state.getThreadId());
+                }
+                throw new IllegalStateException("cannot write " + state.getThreadId());
+            }
+        }
+
+        @Override
+        public Optional<AgentState> findById(String tenantId, String threadId) {
+            return store.findById(tenantId, threadId);
+        }
+
+        @Override
+        public boolean delete(String tenantId, String threadId) {
+            return store.delete(tenantId, threadId);
+        }
+
+        @Override
+        public boolean exists(String tenantId, String threadId) {
+            return store.exists(tenantId, threadId);
+        }
+    }
+}